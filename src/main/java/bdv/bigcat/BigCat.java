@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
@@ -20,14 +21,18 @@ import bdv.bigcat.composite.ARGBCompositeAlphaYCbCr;
 import bdv.bigcat.composite.Composite;
 import bdv.bigcat.composite.CompositeCopy;
 import bdv.bigcat.control.AnnotationsController;
+import bdv.bigcat.control.AssignmentHistoryController;
+import bdv.bigcat.control.BlockPrefetcher;
 import bdv.bigcat.control.ConfirmSegmentController;
 import bdv.bigcat.control.DrawProjectAndIntersectController;
+import bdv.bigcat.control.FillExecutor;
 import bdv.bigcat.control.LabelBrushController;
 import bdv.bigcat.control.LabelFillController;
 import bdv.bigcat.control.LabelPersistenceController;
 import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.SelectionController;
 import bdv.bigcat.control.TranslateZController;
+import bdv.bigcat.label.AssignmentHistory;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
 import bdv.bigcat.ui.ARGBConvertedLabelPairSource;
@@ -37,6 +42,8 @@ import bdv.img.SetCache;
 import bdv.img.h5.AbstractH5SetupImageLoader;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
+import bdv.img.h5.H5LongCanvas;
+import bdv.img.h5.H5ReaderPool;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
@@ -47,11 +54,8 @@ import bdv.util.LocalIdService;
 import bdv.viewer.TriggerBehaviourBindings;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import gnu.trove.map.hash.TLongLongHashMap;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
@@ -66,13 +70,22 @@ public class BigCat
 {
 	final static private int[] cellDimensions = new int[]{ 64, 64, 8 };
 
+	/* prefetching along z, bytes ahead and bytes per second */
+	final static private long prefetchMemoryBudget = 256l * 1024 * 1024;
+	final static private double prefetchBandwidthBudget = 64.0 * 1024 * 1024;
+
+	/* seconds between saves of the assignment changes */
+	final static private long autosavePeriod = 60;
+
 	private H5LabelMultisetSetupImageLoader fragments = null;
 	private ARGBConvertedLabelPairSource convertedLabelPair = null;
-	private CellImg< LongType, ?, ? > paintedLabels = null;
+	private H5LongCanvas paintedLabels = null;
 	private BigDataViewer bdv;
 	private GoldenAngleSaturatedConfirmSwitchARGBStream colorStream;
 	private FragmentSegmentAssignment assignment;
+	private AssignmentHistory assignmentHistory;
 	private final String projectFile;
+	private final H5ReaderPool readers;
 	private final String paintedLabelsDataset;
 	private final String mergedLabelsDataset;
 	private String fragmentSegmentLutDataset;
@@ -109,6 +122,7 @@ public class BigCat
 
 		System.out.println( "Opening " + projectFile );
 		final IHDF5Reader reader = HDF5Factory.open( projectFile );
+		readers = new H5ReaderPool( projectFile );
 
 		// support both file_format 0.0 and >=0.1
 		final String volumesPath = reader.isGroup( "/volumes" ) ? "/volumes" : "";
@@ -116,7 +130,7 @@ public class BigCat
 
 		/* raw pixels */
 		final String rawPath = volumesPath + "/" + rawDataset;
-		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( reader, rawPath, 0, cellDimensions );
+		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( reader, readers, rawPath, 0, cellDimensions );
 
 		/* fragments */
 		String fragmentsPath = labelsPath + "/" + labelsDataset;
@@ -142,6 +156,8 @@ public class BigCat
 				new H5LabelMultisetSetupImageLoader(
 						reader,
 						null,
+						readers,
+						null,
 						labelsDataset,
 						1,
 						cellDimensions );
@@ -162,15 +178,7 @@ public class BigCat
 		idService.invalidate( maxId );
 
 		final String paintedLabelsFilePath = args[ 0 ];
-		final File paintedLabelsFile = new File( paintedLabelsFilePath );
-		if ( paintedLabelsFile.exists() && reader.exists( paintedLabelsDataset ) )
-				paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions );
-		else
-		{
-			paintedLabels = new CellImgFactory< LongType >( cellDimensions ).create( fragmentsDimensions, new LongType() );
-			for ( final LongType t : paintedLabels )
-				t.set( Label.TRANSPARENT );
-		}
+		paintedLabels = new H5LongCanvas( new File( paintedLabelsFilePath ), paintedLabelsDataset, fragmentsDimensions, cellDimensions );
 
 		/* pair labels */
 		final RandomAccessiblePair< VolatileLabelMultisetType, LongType > labelPair =
@@ -179,9 +187,8 @@ public class BigCat
 						paintedLabels );
 
 		assignment = new FragmentSegmentAssignment( idService );
-		final TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, fragmentSegmentLutDataset, 1024 );
-		if ( lut != null )
-			assignment.initLut( lut );
+		assignmentHistory = new AssignmentHistory( assignment );
+		assignmentHistory.load( reader, fragmentSegmentLutDataset );
 
 		colorStream = new GoldenAngleSaturatedConfirmSwitchARGBStream( assignment );
 		colorStream.setAlpha( 0x20 );
@@ -294,9 +301,20 @@ public class BigCat
 					fragmentSegmentLutDataset,
 					config,
 					bdv.getViewerFrame().getKeybindings() );
+			persistenceController.setHistory( assignmentHistory );
+			persistenceController.startAutosave( autosavePeriod, TimeUnit.SECONDS );
+
+			new AssignmentHistoryController(
+					bdv.getViewer(),
+					assignmentHistory,
+					config,
+					bdv.getViewerFrame().getKeybindings() );
+
+			final FillExecutor fillExecutor = new FillExecutor( bdv.getViewer() );
 
 			final LabelFillController fillController = new LabelFillController(
 					bdv.getViewer(),
+					fillExecutor,
 					fragments.getImage( 0 ),
 					paintedLabels,
 					fragments.getMipmapTransforms()[ 0 ],
@@ -309,6 +327,7 @@ public class BigCat
 			/* splitter (and more) */
 			final DrawProjectAndIntersectController dpi = new DrawProjectAndIntersectController(
 					bdv,
+					fillExecutor,
 					idService,
 					new AffineTransform3D(),
 					new InputTriggerConfig(),
@@ -349,6 +368,7 @@ public class BigCat
 				public void windowClosing( final WindowEvent we )
 				{
 					saveBeforeClosing();
+					readers.printStatistics();
 					System.exit( 0 );
 				}
 			} );
@@ -366,6 +386,13 @@ public class BigCat
 				config );
 		bindings.addBehaviourMap( "translate_z", translateZController.getBehaviourMap() );
 
+		final BlockPrefetcher prefetcher = new BlockPrefetcher( bdv.getViewer(), prefetchMemoryBudget, prefetchBandwidthBudget, 16, 2 );
+		prefetcher.addSource( raw, raw.getBlockDimensions(), 1 );
+		if ( fragments != null )
+			prefetcher.addSource( fragments, fragments.getBlockDimensions(), 16 );
+		translateZController.addStepListener( prefetcher );
+		bdv.getViewer().addTransformListener( prefetcher );
+
 		final AnnotationsHdf5Store annotationsStore = new AnnotationsHdf5Store( projectFile, idService );
 		annotationsController = new AnnotationsController(
 				annotationsStore,
@@ -17,6 +17,7 @@ import bdv.bigcat.composite.ARGBCompositeAlphaYCbCr;
 import bdv.bigcat.composite.Composite;
 import bdv.bigcat.composite.CompositeCopy;
 import bdv.bigcat.control.DrawProjectAndIntersectController;
+import bdv.bigcat.control.FillExecutor;
 import bdv.bigcat.control.LabelBrushController;
 import bdv.bigcat.control.LabelFillController;
 import bdv.bigcat.control.LabelPersistenceController;
@@ -34,6 +35,8 @@ import bdv.img.SetCache;
 import bdv.img.h5.AbstractH5SetupImageLoader;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
+import bdv.img.h5.H5LongCanvas;
+import bdv.img.h5.H5ReaderPool;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
@@ -45,8 +48,6 @@ import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
@@ -108,9 +109,10 @@ public class BigCatAriadne
 
 		System.out.println( "Opening " + args[ 0 ] );
 		final IHDF5Reader reader = HDF5Factory.open( args[ 0 ] );
+		final H5ReaderPool readers = new H5ReaderPool( args[ 0 ] );
 
 		/* raw pixels */
-		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( reader, rawDataset, 0, cellDimensions, resolutions );
+		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( reader, readers, rawDataset, 0, cellDimensions, resolutions );
 
 		/* fragments */
 		final String labelsDataset = reader.exists( mergedLabelsDataset ) ? mergedLabelsDataset : backgroundLabelsDataset;
@@ -118,6 +120,8 @@ public class BigCatAriadne
 				new H5LabelMultisetSetupImageLoader(
 						reader,
 						null,
+						readers,
+						null,
 						labelsDataset,
 						1,
 						cellDimensions,
@@ -143,17 +147,8 @@ public class BigCatAriadne
 //		Arrays.fill( paintedLabelsArray, PairVolatileLabelMultisetLongARGBConverter.TRANSPARENT_LABEL );
 //		final ArrayImg< LongType, LongArray > paintedLabels = ArrayImgs.longs( paintedLabelsArray, fragmentsDimensions );
 
-		final CellImg< LongType, ?, ? > paintedLabels;
 		final String paintedLabelsFilePath = args[ 0 ];
-		final File paintedLabelsFile = new File( paintedLabelsFilePath );
-		if ( paintedLabelsFile.exists() && reader.exists( paintedLabelsDataset ) )
-				paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions );
-		else
-		{
-			paintedLabels = new CellImgFactory< LongType >( cellDimensions ).create( fragmentsDimensions, new LongType() );
-			for ( final LongType t : paintedLabels )
-				t.set( Label.TRANSPARENT );
-		}
+		final H5LongCanvas paintedLabels = new H5LongCanvas( new File( paintedLabelsFilePath ), paintedLabelsDataset, fragmentsDimensions, cellDimensions );
 
 //		H5Utils.saveUnsignedLong( paintedLabels, new File( args[ 0 ] + ".labels.h5" ), "paintedLabels", cellDimensions );
 
@@ -279,8 +274,11 @@ public class BigCatAriadne
 				config,
 				bdv.getViewerFrame().getKeybindings() );
 
+		final FillExecutor fillExecutor = new FillExecutor( bdv.getViewer() );
+
 		final LabelFillController fillController = new LabelFillController(
 				bdv.getViewer(),
+				fillExecutor,
 				fragments.getImage( 0 ),
 				paintedLabels,
 				fragments.getMipmapTransforms()[ 0 ],
@@ -292,6 +290,7 @@ public class BigCatAriadne
 
 		final LabelRestrictToSegmentController intersectController = new LabelRestrictToSegmentController(
 				bdv.getViewer(),
+				fillExecutor,
 				fragments.getImage( 0 ),
 				paintedLabels,
 				fragments.getMipmapTransforms()[ 0 ],
@@ -302,6 +301,7 @@ public class BigCatAriadne
 
 		final DrawProjectAndIntersectController dpi = new DrawProjectAndIntersectController(
 				bdv,
+				fillExecutor,
 				idService,
 				transform,
 				new InputTriggerConfig(),
@@ -26,6 +26,8 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import bdv.labels.labelset.Label;
+
 /**
  *
  *
@@ -39,6 +41,7 @@ public class Message
 		SEPARATE( "separate" ),
 		ISOLATE( "isolate" ),
 		FRAGMENT_SEGMENT_LUT( "fragment-segment-lut" ),
+		RESYNC( "resync" ),
 		HANDSHAKE( "handshake" );
 
 		private final String name;
@@ -60,20 +63,39 @@ public class Message
 		}
 	}
 
+	/**
+	 * Merge the segments of all fragments.  If {@link #segment} is set, the
+	 * merged segment gets that id, otherwise the id of the segment of the
+	 * first fragment.
+	 */
 	static public class MergeData
 	{
 		public long[] fragments;
+		public long segment = Label.TRANSPARENT;
 	}
 
+	/**
+	 * Detach {@link #fragmentB} from its segment if it is the segment of
+	 * {@link #fragmentA}, see {@link IsolateData}.
+	 */
 	static public class SeparateData
 	{
 		public long fragmentA;
 		public long fragmentB;
+		public long segment = Label.TRANSPARENT;
 	}
 
+	/**
+	 * Detach a fragment from its segment, it becomes a segment with the id
+	 * of the fragment.  If {@link #segment} is set, the remaining fragments
+	 * get that id, otherwise they keep their segment id, or get the id of
+	 * the first remaining fragment if the segment had the id of the detached
+	 * fragment.
+	 */
 	static public class IsolateData
 	{
 		public long fragment;
+		public long segment = Label.TRANSPARENT;
 	}
 
 	static public class FragmentSegmentLUTData
@@ -82,8 +104,24 @@ public class Message
 		public long[] segments;
 	}
 
+	/**
+	 * Request a {@link FragmentSegmentLUTData snapshot} after a gap in the
+	 * sequence of updates.
+	 */
+	static public class ResyncData
+	{
+		public long lastSequence;
+	}
+
+	/**
+	 * Messages without sequence number are applied in the order they arrive.
+	 */
+	final static public long NO_SEQUENCE = -1;
+
 	protected Object data = null;
 
+	protected long sequence = NO_SEQUENCE;
+
 
 	public Message() {}
 
@@ -94,6 +132,13 @@ public class Message
 	}
 
 
+	public Message( final Object data, final long sequence )
+	{
+		this.data = data;
+		this.sequence = sequence;
+	}
+
+
 	public MessageType getType()
 	{
 		return typeForObj( data );
@@ -106,6 +151,12 @@ public class Message
 	}
 
 
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+
 	static public MessageType typeForStr( final String typeName )
 	{
 		if ( typeName != null )
@@ -118,6 +169,8 @@ public class Message
 				return MessageType.ISOLATE;
 			if ( MessageType.FRAGMENT_SEGMENT_LUT.equalsName( typeName ) )
 				return MessageType.FRAGMENT_SEGMENT_LUT;
+			if ( MessageType.RESYNC.equalsName( typeName ) )
+				return MessageType.RESYNC;
 		}
 		return MessageType.HANDSHAKE;
 	}
@@ -135,6 +188,8 @@ public class Message
 				return MessageType.ISOLATE;
 			if ( FragmentSegmentLUTData.class.isInstance( data ) )
 				return MessageType.FRAGMENT_SEGMENT_LUT;
+			if ( ResyncData.class.isInstance( data ) )
+				return MessageType.RESYNC;
 		}
 		return MessageType.HANDSHAKE;
 	}
@@ -149,6 +204,8 @@ public class Message
 			final JsonObject json = new JsonObject();
 			final MessageType type = typeForObj( src.data );
 			json.addProperty( "type", type.toString() );
+			if ( src.sequence != NO_SEQUENCE )
+				json.addProperty( "sequence", src.sequence );
 
 			switch ( type )
 			{
@@ -156,6 +213,7 @@ public class Message
 			case SEPARATE:
 			case ISOLATE:
 			case FRAGMENT_SEGMENT_LUT:
+			case RESYNC:
 				json.add( "data", context.serialize( src.data ) );
 			}
 
@@ -174,6 +232,8 @@ public class Message
 
 			Object data = null;
 
+			final long sequence = jsonObject.has( "sequence" ) ? jsonObject.get( "sequence" ).getAsLong() : NO_SEQUENCE;
+
 			if ( jsonObject.has( "type" ) )
 			{
 				final JsonElement typeJsonElement = jsonObject.get( "type" );
@@ -196,11 +256,14 @@ public class Message
 					case FRAGMENT_SEGMENT_LUT:
 						data = context.deserialize( dataJsonObject, FragmentSegmentLUTData.class );
 						break;
+					case RESYNC:
+						data = context.deserialize( dataJsonObject, ResyncData.class );
+						break;
 					}
 				}
 			}
 
-			return new Message( data );
+			return new Message( data, sequence );
 		}
 	}
 }
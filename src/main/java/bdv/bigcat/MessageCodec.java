@@ -0,0 +1,320 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import bdv.bigcat.Message.FragmentSegmentLUTData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.Message.MessageType;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.Message.SeparateData;
+
+/**
+ * Encodes {@link Message Messages} for the wire.  Messages with payloads of
+ * up to {@link #maxJsonLongs} longs are encoded as Gson JSON such that peers
+ * that only speak JSON can read them, larger payloads (fragment segment
+ * lookup table snapshots in particular) are encoded in a binary frame that
+ * is written and read with bulk copies:
+ *
+ * <pre>
+ * byte    {@link #BINARY_MAGIC}
+ * byte    type code
+ * long    sequence
+ * ...     payload, big endian
+ *
+ * type                  code  payload
+ * MERGE                 1     long segment, int n, long[n] fragments
+ * SEPARATE              2     long fragmentA, long fragmentB, long segment
+ * ISOLATE               3     long fragment, long segment
+ * FRAGMENT_SEGMENT_LUT  4     int n, long[n] fragments, long[n] segments
+ * HANDSHAKE             5
+ * RESYNC                6     long lastSequence
+ * </pre>
+ *
+ * The type codes are part of the protocol and independent of the order of
+ * {@link MessageType}, new types get new codes.  JSON messages start with
+ * '{', binary frames with {@link #BINARY_MAGIC}, such that both can be
+ * mixed on the same socket.
+ */
+public class MessageCodec
+{
+	final static public byte BINARY_MAGIC = 0;
+
+	final static private int headerSize = 2 + 8;
+
+	/**
+	 * payloads with more longs are encoded binary
+	 */
+	final protected int maxJsonLongs;
+
+	final protected Gson gson;
+
+	public MessageCodec( final int maxJsonLongs )
+	{
+		this.maxJsonLongs = maxJsonLongs;
+		final GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.registerTypeAdapter( Message.class, new Message.Serializer() );
+		gsonBuilder.registerTypeAdapter( Message.class, new Message.GSONDeserializer() );
+		gson = gsonBuilder.create();
+	}
+
+	public MessageCodec()
+	{
+		this( 64 );
+	}
+
+	static private int payloadLongs( final Message msg )
+	{
+		switch ( msg.getType() )
+		{
+		case MERGE:
+			return ( ( MergeData )msg.getData() ).fragments.length + 1;
+		case FRAGMENT_SEGMENT_LUT:
+			return ( ( FragmentSegmentLUTData )msg.getData() ).fragments.length * 2;
+		case SEPARATE:
+			return 3;
+		case ISOLATE:
+			return 2;
+		case RESYNC:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Type code of binary frames, see the frame table above.
+	 */
+	static public byte typeCode( final MessageType type )
+	{
+		switch ( type )
+		{
+		case MERGE:
+			return 1;
+		case SEPARATE:
+			return 2;
+		case ISOLATE:
+			return 3;
+		case FRAGMENT_SEGMENT_LUT:
+			return 4;
+		case HANDSHAKE:
+			return 5;
+		case RESYNC:
+			return 6;
+		default:
+			throw new IllegalArgumentException( "No type code for message type " + type );
+		}
+	}
+
+	/**
+	 * Message type of a binary frame type code.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code code} is unknown
+	 */
+	static public MessageType messageType( final byte code )
+	{
+		switch ( code )
+		{
+		case 1:
+			return MessageType.MERGE;
+		case 2:
+			return MessageType.SEPARATE;
+		case 3:
+			return MessageType.ISOLATE;
+		case 4:
+			return MessageType.FRAGMENT_SEGMENT_LUT;
+		case 5:
+			return MessageType.HANDSHAKE;
+		case 6:
+			return MessageType.RESYNC;
+		default:
+			throw new IllegalArgumentException( "Unknown message type code " + code );
+		}
+	}
+
+	public byte[] encode( final Message msg )
+	{
+		if ( payloadLongs( msg ) > maxJsonLongs )
+			return encodeBinary( msg );
+		else
+			return gson.toJson( msg, Message.class ).getBytes( StandardCharsets.UTF_8 );
+	}
+
+	static private void putLongs( final ByteBuffer buffer, final long[] values )
+	{
+		buffer.asLongBuffer().put( values );
+		buffer.position( buffer.position() + values.length * 8 );
+	}
+
+	static private long[] getLongs( final ByteBuffer buffer, final int n )
+	{
+		if ( n < 0 || n > buffer.remaining() / 8 )
+			throw new IllegalArgumentException( "Invalid array length " + n + " with " + buffer.remaining() + " bytes remaining." );
+		final long[] values = new long[ n ];
+		buffer.asLongBuffer().get( values );
+		buffer.position( buffer.position() + n * 8 );
+		return values;
+	}
+
+	static public byte[] encodeBinary( final Message msg )
+	{
+		final MessageType type = msg.getType();
+		final Object data = msg.getData();
+		final int payloadSize;
+		switch ( type )
+		{
+		case MERGE:
+		case FRAGMENT_SEGMENT_LUT:
+			payloadSize = 4 + payloadLongs( msg ) * 8;
+			break;
+		default:
+			payloadSize = payloadLongs( msg ) * 8;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate( headerSize + payloadSize );
+		buffer.put( BINARY_MAGIC );
+		buffer.put( typeCode( type ) );
+		buffer.putLong( msg.getSequence() );
+
+		switch ( type )
+		{
+		case MERGE:
+		{
+			final MergeData merge = ( MergeData )data;
+			buffer.putLong( merge.segment );
+			buffer.putInt( merge.fragments.length );
+			putLongs( buffer, merge.fragments );
+			break;
+		}
+		case SEPARATE:
+		{
+			final SeparateData separate = ( SeparateData )data;
+			buffer.putLong( separate.fragmentA );
+			buffer.putLong( separate.fragmentB );
+			buffer.putLong( separate.segment );
+			break;
+		}
+		case ISOLATE:
+		{
+			final IsolateData isolate = ( IsolateData )data;
+			buffer.putLong( isolate.fragment );
+			buffer.putLong( isolate.segment );
+			break;
+		}
+		case FRAGMENT_SEGMENT_LUT:
+		{
+			final FragmentSegmentLUTData lut = ( FragmentSegmentLUTData )data;
+			buffer.putInt( lut.fragments.length );
+			putLongs( buffer, lut.fragments );
+			putLongs( buffer, lut.segments );
+			break;
+		}
+		case RESYNC:
+			buffer.putLong( ( ( ResyncData )data ).lastSequence );
+			break;
+		case HANDSHAKE:
+			break;
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * @throws RuntimeException
+	 *             if {@code bytes} is not a valid message, e.g.
+	 *             {@link IllegalArgumentException},
+	 *             {@link java.nio.BufferUnderflowException} or
+	 *             {@link com.google.gson.JsonParseException}
+	 */
+	public Message decode( final byte[] bytes )
+	{
+		if ( bytes.length > 0 && bytes[ 0 ] == BINARY_MAGIC )
+			return decodeBinary( bytes );
+
+		final Message msg = gson.fromJson( new String( bytes, StandardCharsets.UTF_8 ), Message.class );
+		if ( msg == null )
+			throw new IllegalArgumentException( "Empty message." );
+		return msg;
+	}
+
+	static public Message decodeBinary( final byte[] bytes )
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		if ( buffer.get() != BINARY_MAGIC )
+			throw new IllegalArgumentException( "Not a binary message." );
+
+		final MessageType type = messageType( buffer.get() );
+		final long sequence = buffer.getLong();
+
+		final Object data;
+		switch ( type )
+		{
+		case MERGE:
+		{
+			final MergeData merge = new MergeData();
+			merge.segment = buffer.getLong();
+			merge.fragments = getLongs( buffer, buffer.getInt() );
+			data = merge;
+			break;
+		}
+		case SEPARATE:
+		{
+			final SeparateData separate = new SeparateData();
+			separate.fragmentA = buffer.getLong();
+			separate.fragmentB = buffer.getLong();
+			separate.segment = buffer.getLong();
+			data = separate;
+			break;
+		}
+		case ISOLATE:
+		{
+			final IsolateData isolate = new IsolateData();
+			isolate.fragment = buffer.getLong();
+			isolate.segment = buffer.getLong();
+			data = isolate;
+			break;
+		}
+		case FRAGMENT_SEGMENT_LUT:
+		{
+			final FragmentSegmentLUTData lut = new FragmentSegmentLUTData();
+			final int n = buffer.getInt();
+			lut.fragments = getLongs( buffer, n );
+			lut.segments = getLongs( buffer, n );
+			data = lut;
+			break;
+		}
+		case RESYNC:
+		{
+			final ResyncData resync = new ResyncData();
+			resync.lastSequence = buffer.getLong();
+			data = resync;
+			break;
+		}
+		default:
+			data = null;
+		}
+
+		return new Message( data, sequence );
+	}
+}
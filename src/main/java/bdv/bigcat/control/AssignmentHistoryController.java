@@ -0,0 +1,104 @@
+package bdv.bigcat.control;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.ActionMap;
+import javax.swing.InputMap;
+
+import org.scijava.ui.behaviour.KeyStrokeAdder;
+import org.scijava.ui.behaviour.io.InputTriggerConfig;
+
+import bdv.bigcat.label.AssignmentHistory;
+import bdv.util.AbstractNamedAction;
+import bdv.util.AbstractNamedAction.NamedActionAdder;
+import bdv.viewer.InputActionBindings;
+import bdv.viewer.ViewerPanel;
+
+/**
+ * Undo and redo merges, assigns and detaches of fragments.
+ */
+public class AssignmentHistoryController
+{
+	final protected ViewerPanel viewer;
+	final protected AssignmentHistory history;
+
+	// for keystroke actions
+	private final ActionMap ksActionMap = new ActionMap();
+	private final InputMap ksInputMap = new InputMap();
+	private final NamedActionAdder ksActionAdder = new NamedActionAdder( ksActionMap );
+	private final KeyStrokeAdder ksKeyStrokeAdder;
+
+	public AssignmentHistoryController(
+			final ViewerPanel viewer,
+			final AssignmentHistory history,
+			final InputTriggerConfig config,
+			final InputActionBindings inputActionBindings )
+	{
+		this.viewer = viewer;
+		this.history = history;
+		ksKeyStrokeAdder = config.keyStrokeAdder( ksInputMap, "assignment history" );
+
+		new Undo( "undo assignment", "ctrl Z" ).register();
+		new Redo( "redo assignment", "ctrl shift Z", "ctrl Y" ).register();
+
+		inputActionBindings.addActionMap( "assignment history", ksActionMap );
+		inputActionBindings.addInputMap( "assignment history", ksInputMap );
+	}
+
+	private abstract class SelfRegisteringAction extends AbstractNamedAction
+	{
+		private final String[] defaultTriggers;
+
+		public SelfRegisteringAction( final String name, final String ... defaultTriggers )
+		{
+			super( name );
+			this.defaultTriggers = defaultTriggers;
+		}
+
+		public void register()
+		{
+			ksActionAdder.put( this );
+			ksKeyStrokeAdder.put( name(), defaultTriggers );
+		}
+	}
+
+	private class Undo extends SelfRegisteringAction
+	{
+		public Undo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			final boolean undone;
+			synchronized ( viewer )
+			{
+				undone = history.undo();
+			}
+			viewer.showMessage( undone ? "undo" : "nothing to undo" );
+			viewer.requestRepaint();
+		}
+	}
+
+	private class Redo extends SelfRegisteringAction
+	{
+		public Redo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			final boolean redone;
+			synchronized ( viewer )
+			{
+				redone = history.redo();
+			}
+			viewer.showMessage( redone ? "redo" : "nothing to redo" );
+			viewer.requestRepaint();
+		}
+	}
+}
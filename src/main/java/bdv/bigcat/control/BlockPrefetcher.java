@@ -0,0 +1,570 @@
+package bdv.bigcat.control;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.ViewerSetupImgLoader;
+import bdv.util.Affine3DHelpers;
+import bdv.viewer.ViewerPanel;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Loads the cells of the next slices along the viewing direction in the
+ * background, such that they are cached when the user gets there.
+ *
+ * The step direction and size are taken from the
+ * {@link TranslateZController} and from viewer transforms that differ from
+ * the previous one only by a translation in screen z. For each registered
+ * source, the cells covering the screen at the next slices are queued at the
+ * mipmap level that the viewer renders and at the next coarser level, which
+ * the viewer renders first. Cells are queued nearest slice first until the
+ * memory budget (estimated bytes of all cells ahead of the current slice) is
+ * reached, and loaded no faster than the bandwidth budget by low priority
+ * daemon threads. Queued cells are dropped when the direction changes or the
+ * view is moved otherwise.
+ *
+ * Transform changes only hand the latest transform over to a scheduler
+ * thread, which enumerates the cells off the event dispatch thread. Cells
+ * that were queued before and are still within the look-ahead window are
+ * not queued again, cells that left the window are forgotten.
+ *
+ * Cells are loaded through the blocking images of the sources and shared
+ * with the volatile images that the viewer renders through the cache.
+ */
+public class BlockPrefetcher implements TransformListener< AffineTransform3D >, TranslateZController.StepListener
+{
+	/**
+	 * The viewer renders the coarsest level whose voxels are at least this
+	 * large on screen, see {@code MipmapTransforms.getBestMipMapLevel}.
+	 */
+	final static private double MIN_VOXEL_SCREEN_SIZE = 0.99;
+
+	private static class PrefetchSource
+	{
+		final ViewerSetupImgLoader< ?, ? > loader;
+
+		final int[][] cellDimensions;
+
+		final double bytesPerVoxel;
+
+		/**
+		 * cells queued or visible in the look-ahead window of the last
+		 * schedule, one set per level, only used by the scheduler thread
+		 */
+		TLongHashSet[] seen;
+
+		PrefetchSource( final ViewerSetupImgLoader< ?, ? > loader, final int[][] cellDimensions, final double bytesPerVoxel )
+		{
+			this.loader = loader;
+			this.cellDimensions = cellDimensions;
+			this.bytesPerVoxel = bytesPerVoxel;
+			seen = emptySets( loader.numMipmapLevels() );
+		}
+	}
+
+	private static TLongHashSet[] emptySets( final int n )
+	{
+		final TLongHashSet[] sets = new TLongHashSet[ n ];
+		for ( int i = 0; i < n; ++i )
+			sets[ i ] = new TLongHashSet();
+		return sets;
+	}
+
+	/**
+	 * What to schedule, handed over from the event dispatch thread to the
+	 * scheduler thread.
+	 */
+	private static class Request
+	{
+		final AffineTransform3D viewerTransform;
+
+		final int timepoint;
+
+		final int width;
+
+		final int height;
+
+		final double step;
+
+		final long generation;
+
+		Request( final AffineTransform3D viewerTransform, final int timepoint, final int width, final int height, final double step, final long generation )
+		{
+			this.viewerTransform = viewerTransform;
+			this.timepoint = timepoint;
+			this.width = width;
+			this.height = height;
+			this.step = step;
+			this.generation = generation;
+		}
+	}
+
+	private static class Task
+	{
+		final RandomAccessibleInterval< ? > image;
+
+		final long[] position;
+
+		final long bytes;
+
+		final long generation;
+
+		Task( final RandomAccessibleInterval< ? > image, final long[] position, final long bytes, final long generation )
+		{
+			this.image = image;
+			this.position = position;
+			this.bytes = bytes;
+			this.generation = generation;
+		}
+
+		void load()
+		{
+			final RandomAccess< ? > access = image.randomAccess();
+			access.setPosition( position );
+			access.get();
+		}
+	}
+
+	final protected ViewerPanel viewer;
+
+	final protected long memoryBudget;
+
+	final protected double bandwidthBudget;
+
+	final protected int maxNumSteps;
+
+	final private ArrayList< PrefetchSource > sources = new ArrayList<>();
+
+	final private BlockingDeque< Task > queue = new LinkedBlockingDeque<>();
+
+	/**
+	 * tasks of older generations are cancelled
+	 */
+	final private AtomicLong generation = new AtomicLong();
+
+	final private Thread[] workers;
+
+	final private Thread scheduler;
+
+	/**
+	 * latest request that was not yet taken by the scheduler thread
+	 */
+	private Request pendingRequest = null;
+
+	/**
+	 * generation of the {@link PrefetchSource#seen} sets, only used by the
+	 * scheduler thread
+	 */
+	private long seenGeneration = -1;
+
+	final private AffineTransform3D previousTransform = new AffineTransform3D();
+
+	private boolean hasPreviousTransform = false;
+
+	/**
+	 * screen z of the next slice, 0 if no direction is known
+	 */
+	private double step = 0;
+
+	/**
+	 * {@link System#nanoTime()} before which no further cell is loaded
+	 */
+	private long nextLoadTime = Long.MIN_VALUE;
+
+	/**
+	 * @param viewer
+	 * @param memoryBudget
+	 *            estimated bytes of all cells ahead of the current slice.
+	 * @param bandwidthBudget
+	 *            estimated bytes loaded per second,
+	 *            {@link Double#POSITIVE_INFINITY} for no limit.
+	 * @param maxNumSteps
+	 *            how many slices ahead cells are queued at most.
+	 * @param numThreads
+	 */
+	public BlockPrefetcher(
+			final ViewerPanel viewer,
+			final long memoryBudget,
+			final double bandwidthBudget,
+			final int maxNumSteps,
+			final int numThreads )
+	{
+		this.viewer = viewer;
+		this.memoryBudget = memoryBudget;
+		this.bandwidthBudget = bandwidthBudget;
+		this.maxNumSteps = maxNumSteps;
+
+		workers = new Thread[ numThreads ];
+		for ( int i = 0; i < numThreads; ++i )
+		{
+			workers[ i ] = new Thread( () -> work(), "prefetch-" + i );
+			workers[ i ].setDaemon( true );
+			workers[ i ].setPriority( Thread.MIN_PRIORITY );
+			workers[ i ].start();
+		}
+
+		scheduler = new Thread( () -> scheduleRequests(), "prefetch-scheduler" );
+		scheduler.setDaemon( true );
+		scheduler.setPriority( Thread.MIN_PRIORITY );
+		scheduler.start();
+	}
+
+	/**
+	 * Prefetch cells of {@code loader}.
+	 *
+	 * @param loader
+	 * @param cellDimensions
+	 *            cell dimensions of each mipmap level, levels beyond the
+	 *            length of this array are not prefetched.
+	 * @param bytesPerVoxel
+	 *            estimated memory per voxel for the budgets.
+	 */
+	public synchronized void addSource(
+			final ViewerSetupImgLoader< ?, ? > loader,
+			final int[][] cellDimensions,
+			final double bytesPerVoxel )
+	{
+		sources.add( new PrefetchSource( loader, cellDimensions, bytesPerVoxel ) );
+	}
+
+	/**
+	 * Drop all queued cells.  The scheduler thread forgets the seen cells
+	 * when it takes the next request.
+	 */
+	public synchronized void cancel()
+	{
+		generation.incrementAndGet();
+		queue.clear();
+		pendingRequest = null;
+		nextLoadTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Stop the worker and scheduler threads.
+	 */
+	public void stop()
+	{
+		cancel();
+		scheduler.interrupt();
+		for ( final Thread worker : workers )
+			worker.interrupt();
+	}
+
+	/**
+	 * Called by {@link TranslateZController} before the viewer transform is
+	 * changed, such that a change of direction is known before the new
+	 * transform arrives.
+	 */
+	@Override
+	public synchronized void step( final double dZ )
+	{
+		if ( dZ * step < 0 )
+			cancel();
+		step = dZ;
+	}
+
+	@Override
+	public synchronized void transformChanged( final AffineTransform3D transform )
+	{
+		final boolean isStep = hasPreviousTransform && isTranslationInZ( previousTransform, transform );
+		final double dZ = isStep ? previousTransform.get( 2, 3 ) - transform.get( 2, 3 ) : 0;
+		previousTransform.set( transform );
+		hasPreviousTransform = true;
+
+		if ( isStep )
+		{
+			if ( dZ == 0 )
+				return;
+			if ( dZ * step < 0 )
+				cancel();
+			step = dZ;
+		}
+		else
+			cancel();
+
+		if ( step != 0 )
+		{
+			pendingRequest = new Request(
+					transform.copy(),
+					viewer.getState().getCurrentTimepoint(),
+					viewer.getDisplay().getWidth(),
+					viewer.getDisplay().getHeight(),
+					step,
+					generation.get() );
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return whether {@code b} differs from {@code a} only by the z
+	 *         translation.
+	 */
+	private static boolean isTranslationInZ( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				if ( !( r == 2 && c == 3 ) && a.get( r, c ) != b.get( r, c ) )
+					return false;
+		return true;
+	}
+
+	/**
+	 * The coarsest level whose voxels are at least
+	 * {@link #MIN_VOXEL_SCREEN_SIZE} on screen.
+	 */
+	private static int bestLevel( final AffineTransform3D viewerTransform, final AffineTransform3D[] mipmapTransforms )
+	{
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		for ( int level = mipmapTransforms.length - 1; level > 0; --level )
+		{
+			sourceToScreen.set( viewerTransform );
+			sourceToScreen.concatenate( mipmapTransforms[ level ] );
+			double voxelSize = Double.MAX_VALUE;
+			for ( int d = 0; d < 3; ++d )
+				voxelSize = Math.min( voxelSize, Affine3DHelpers.extractScale( sourceToScreen, d ) );
+			if ( voxelSize >= MIN_VOXEL_SCREEN_SIZE )
+				return level;
+		}
+		return 0;
+	}
+
+	/**
+	 * Take the latest request and schedule it until interrupted.
+	 */
+	private void scheduleRequests()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Request request;
+				final PrefetchSource[] requestSources;
+				synchronized ( this )
+				{
+					while ( pendingRequest == null )
+						wait();
+					request = pendingRequest;
+					pendingRequest = null;
+					requestSources = sources.toArray( new PrefetchSource[ sources.size() ] );
+				}
+				try
+				{
+					schedule( request, requestSources );
+				}
+				catch ( final RuntimeException e )
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{}
+	}
+
+	/**
+	 * Queue the cells of the next slices at the current and the next coarser
+	 * level, and replace the seen cells of each source by the cells of the
+	 * look-ahead window.
+	 */
+	private void schedule( final Request request, final PrefetchSource[] requestSources )
+	{
+		if ( request.width <= 0 || request.height <= 0 )
+			return;
+
+		if ( request.generation != seenGeneration )
+		{
+			for ( final PrefetchSource source : requestSources )
+				source.seen = emptySets( source.seen.length );
+			seenGeneration = request.generation;
+		}
+
+		final ArrayList< PrefetchSource > levelSources = new ArrayList<>();
+		final ArrayList< Integer > levels = new ArrayList<>();
+		final ArrayList< RandomAccessibleInterval< ? > > images = new ArrayList<>();
+		final ArrayList< AffineTransform3D > screenToSources = new ArrayList<>();
+		final ArrayList< TLongHashSet > windows = new ArrayList<>();
+		for ( final PrefetchSource source : requestSources )
+		{
+			final AffineTransform3D[] mipmapTransforms = source.loader.getMipmapTransforms();
+			final int bestLevel = bestLevel( request.viewerTransform, mipmapTransforms );
+			for ( int level = bestLevel; level <= bestLevel + 1 && level < source.cellDimensions.length && level < mipmapTransforms.length; ++level )
+			{
+				final AffineTransform3D sourceToScreen = request.viewerTransform.copy();
+				sourceToScreen.concatenate( mipmapTransforms[ level ] );
+				levelSources.add( source );
+				levels.add( level );
+				images.add( source.loader.getImage( request.timepoint, level ) );
+				screenToSources.add( sourceToScreen.inverse() );
+				windows.add( new TLongHashSet() );
+			}
+		}
+
+		queueCells( request, levelSources, levels, images, screenToSources, windows );
+
+		for ( final PrefetchSource source : requestSources )
+		{
+			final TLongHashSet[] seen = emptySets( source.seen.length );
+			for ( int i = 0; i < levelSources.size(); ++i )
+				if ( levelSources.get( i ) == source )
+					seen[ levels.get( i ) ] = windows.get( i );
+			source.seen = seen;
+		}
+	}
+
+	/**
+	 * Add the cells of the next slices to {@code windows}, nearest slice
+	 * first, until {@link #memoryBudget} is reached.  Cells that are in the
+	 * current slice or were seen before are counted against the budget but
+	 * not queued again.
+	 */
+	private void queueCells(
+			final Request request,
+			final ArrayList< PrefetchSource > levelSources,
+			final ArrayList< Integer > levels,
+			final ArrayList< RandomAccessibleInterval< ? > > images,
+			final ArrayList< AffineTransform3D > screenToSources,
+			final ArrayList< TLongHashSet > windows )
+	{
+		final long[] cellMin = new long[ 3 ];
+		final long[] cellMax = new long[ 3 ];
+		long budget = memoryBudget;
+		for ( int k = 0; k <= maxNumSteps && budget > 0; ++k )
+		{
+			if ( request.generation != generation.get() )
+				return;
+
+			for ( int i = 0; i < levelSources.size() && budget > 0; ++i )
+			{
+				final PrefetchSource source = levelSources.get( i );
+				final int level = levels.get( i );
+				final RandomAccessibleInterval< ? > image = images.get( i );
+				final int[] cellDimensions = source.cellDimensions[ level ];
+				if ( !cellRange( screenToSources.get( i ), request.width, request.height, k * request.step, image, cellDimensions, cellMin, cellMax ) )
+					continue;
+
+				final long[] gridDimensions = new long[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					gridDimensions[ d ] = ( image.dimension( d ) + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+				final long bytesPerCell = ( long ) ( source.bytesPerVoxel * cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] );
+				final TLongHashSet seen = source.seen[ level ];
+				final TLongHashSet window = windows.get( i );
+				final long[] cell = new long[ 3 ];
+				for ( cell[ 2 ] = cellMin[ 2 ]; cell[ 2 ] <= cellMax[ 2 ]; ++cell[ 2 ] )
+					for ( cell[ 1 ] = cellMin[ 1 ]; cell[ 1 ] <= cellMax[ 1 ]; ++cell[ 1 ] )
+						for ( cell[ 0 ] = cellMin[ 0 ]; cell[ 0 ] <= cellMax[ 0 ]; ++cell[ 0 ] )
+						{
+							if ( k > 0 && ( budget -= bytesPerCell ) < 0 )
+								return;
+							final long index = IntervalIndexer.positionToIndex( cell, gridDimensions );
+							/* cells of the current slice are loaded by the viewer */
+							if ( window.add( index ) && !seen.contains( index ) && k > 0 )
+							{
+								final long[] position = new long[ 3 ];
+								for ( int d = 0; d < 3; ++d )
+									position[ d ] = cell[ d ] * cellDimensions[ d ];
+								queue.add( new Task( image, position, bytesPerCell, request.generation ) );
+							}
+						}
+			}
+		}
+	}
+
+	/**
+	 * Range of cells of {@code image} that intersect the screen rectangle
+	 * {@code width}&times;{@code height} at screen {@code z}.
+	 *
+	 * @return whether the range is not empty.
+	 */
+	private static boolean cellRange(
+			final AffineTransform3D screenToSource,
+			final int width,
+			final int height,
+			final double z,
+			final RandomAccessibleInterval< ? > image,
+			final int[] cellDimensions,
+			final long[] cellMin,
+			final long[] cellMax )
+	{
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		final double[] corner = new double[ 3 ];
+		final double[] sourceCorner = new double[ 3 ];
+		for ( int c = 0; c < 4; ++c )
+		{
+			corner[ 0 ] = ( c & 1 ) == 0 ? 0 : width;
+			corner[ 1 ] = ( c & 2 ) == 0 ? 0 : height;
+			corner[ 2 ] = z;
+			screenToSource.apply( corner, sourceCorner );
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], sourceCorner[ d ] );
+				max[ d ] = Math.max( max[ d ], sourceCorner[ d ] );
+			}
+		}
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long lastVoxel = image.dimension( d ) - 1;
+			final long minVoxel = Math.max( 0, Math.round( min[ d ] ) );
+			final long maxVoxel = Math.min( lastVoxel, Math.round( max[ d ] ) );
+			if ( minVoxel > maxVoxel )
+				return false;
+			cellMin[ d ] = minVoxel / cellDimensions[ d ];
+			cellMax[ d ] = maxVoxel / cellDimensions[ d ];
+		}
+		return true;
+	}
+
+	private void work()
+	{
+		try
+		{
+			while ( true )
+			{
+				final Task task = queue.takeFirst();
+				if ( task.generation != generation.get() )
+					continue;
+				throttle( task.bytes );
+				if ( task.generation != generation.get() )
+					continue;
+				try
+				{
+					task.load();
+				}
+				catch ( final RuntimeException e )
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{}
+	}
+
+	/**
+	 * Wait until {@code bytes} can be loaded within
+	 * {@link #bandwidthBudget}.
+	 */
+	private void throttle( final long bytes ) throws InterruptedException
+	{
+		if ( Double.isInfinite( bandwidthBudget ) )
+			return;
+
+		final long wait;
+		synchronized ( this )
+		{
+			final long now = System.nanoTime();
+			final long start = Math.max( now, nextLoadTime );
+			nextLoadTime = start + ( long ) ( bytes * 1e9 / bandwidthBudget );
+			wait = start - now;
+		}
+		if ( wait > 0 )
+			Thread.sleep( wait / 1000000, ( int ) ( wait % 1000000 ) );
+	}
+}
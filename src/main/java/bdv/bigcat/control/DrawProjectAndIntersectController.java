@@ -35,6 +35,7 @@ import bdv.BigDataViewer;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.ScanlineFill;
 import bdv.util.AbstractNamedAction.NamedActionAdder;
 import bdv.util.IdService;
 import bdv.viewer.InputActionBindings;
@@ -121,6 +122,8 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 
 	private final SelectionController selectionController;
 
+	private final FillExecutor fillExecutor;
+
 	public DrawProjectAndIntersectController(
 			final BigDataViewer bdv,
 			final IdService idService,
@@ -135,6 +138,30 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 			final InputActionBindings inputActionBindings,
 			final TriggerBehaviourBindings bindings,
 			final String... activateModeKeys )
+	{
+		this( bdv, new FillExecutor( bdv.getViewer() ), idService, viewerToGlobalCoordinatesTransform, config, labels, paintedLabels, labelTransform, assignment, colorStream, selectionController, inputActionBindings, bindings, activateModeKeys );
+	}
+
+	/**
+	 * @param fillExecutor
+	 *            runs the fills, share it with other controllers that fill
+	 *            such that fills never run concurrently
+	 */
+	public DrawProjectAndIntersectController(
+			final BigDataViewer bdv,
+			final FillExecutor fillExecutor,
+			final IdService idService,
+			final AffineTransform3D viewerToGlobalCoordinatesTransform,
+			final InputTriggerConfig config,
+			final RandomAccessibleInterval< LabelMultisetType > labels,
+			final RandomAccessibleInterval< LongType > paintedLabels,
+			final AffineTransform3D labelTransform,
+			final FragmentSegmentAssignment assignment,
+			final AbstractSaturatedARGBStream colorStream,
+			final SelectionController selectionController,
+			final InputActionBindings inputActionBindings,
+			final TriggerBehaviourBindings bindings,
+			final String... activateModeKeys )
 	{
 		this.viewer = bdv.getViewer();
 		this.idService = idService;
@@ -146,6 +173,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 		this.assignment = assignment;
 		this.colorStream = colorStream;
 		this.selectionController = selectionController;
+		this.fillExecutor = fillExecutor;
 		this.bindings = bindings;
 
 		viewer.addTransformListener( this );
@@ -643,6 +671,12 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 		return ArrayImgs.bytes( imgData, img.getWidth(), img.getHeight() );
 	}
 
+	public static ArrayImg< ByteType, ByteArray > copyBufferedImage( final BufferedImage img )
+	{
+		final byte[] imgData = ( ( DataBufferByte ) img.getRaster().getDataBuffer() ).getData();
+		return ArrayImgs.bytes( imgData.clone(), img.getWidth(), img.getHeight() );
+	}
+
 	private class Fill extends SelfRegisteringBehaviour implements ClickBehaviour
 	{
 
@@ -708,24 +742,28 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 		@Override
 		public void doOnUnToggle( final int x, final int y )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				setCoordinates( x, y );
+			setCoordinates( x, y );
 
-				final Point p = new Point( Math.round( labelLocation.getDoublePosition( 0 ) ), Math.round( labelLocation.getDoublePosition( 1 ) ), Math.round( labelLocation.getDoublePosition( 2 ) ) );
+			final Point p = new Point( Math.round( labelLocation.getDoublePosition( 0 ) ), Math.round( labelLocation.getDoublePosition( 1 ) ), Math.round( labelLocation.getDoublePosition( 2 ) ) );
 
-				final ArrayImg< ByteType, ByteArray > img = wrapBufferedImage( filledPixelsOverlay.img );
-				final ArrayRandomAccess< ByteType > imgAccess = img.randomAccess();
-				imgAccess.setPosition( new int[] { x, y } );
+			/*
+			 * the overlay is cleared and can be painted again while the fill is
+			 * running, so fill from a copy
+			 */
+			final ArrayImg< ByteType, ByteArray > img = copyBufferedImage( filledPixelsOverlay.img );
+			final ArrayRandomAccess< ByteType > imgAccess = img.randomAccess();
+			imgAccess.setPosition( new int[] { x, y } );
 
-				final byte overlayValueAtPoint = imgAccess.get().get();
+			final byte overlayValueAtPoint = imgAccess.get().get();
 
-				final ExtendedRandomAccessibleInterval< ByteType, IntervalView< ByteType > > borderExtended = Views.extendBorder( Views.interval( Views.addDimension( img ), new FinalInterval( img.dimension( 0 ), img.dimension( 1 ), overlayValueAtPoint ) ) );
+			final ExtendedRandomAccessibleInterval< ByteType, IntervalView< ByteType > > borderExtended = Views.extendBorder( Views.interval( Views.addDimension( img ), new FinalInterval( img.dimension( 0 ), img.dimension( 1 ), overlayValueAtPoint ) ) );
 
-				final RandomAccessibleOnRealRandomAccessible< ByteType > interpolatedAndTransformed = Views.raster( RealViews.transform( Views.interpolate( borderExtended, new NearestNeighborInterpolatorFactory<>() ), labelTransform.inverse().copy().concatenate( viewerToGlobalCoordinatesTransform.inverse() )// toLabelSpace
-				) );
+			final RandomAccessibleOnRealRandomAccessible< ByteType > interpolatedAndTransformed = Views.raster( RealViews.transform( Views.interpolate( borderExtended, new NearestNeighborInterpolatorFactory<>() ), labelTransform.inverse().copy().concatenate( viewerToGlobalCoordinatesTransform.inverse() )// toLabelSpace
+			) );
 
+			final long fillLabel = selectionController.getActiveFragmentId();
+
+			fillExecutor.submit( "Filling " + p + " with " + fillLabel + " (draw project and intersect)", task -> {
 				final long seedFragmentLabel = LabelFillController.getBiggestLabel( labels, p );
 				System.out.println( seedFragmentLabel + " " + overlayValueAtPoint + " " + getColor().getRGB() );
 				final RandomAccess< LongType > paintedLabelAccess = paintedLabels.randomAccess();
@@ -733,7 +771,8 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 				final long paintedLabel = paintedLabelAccess.get().get();
 				final long segmentLabel = assignment.getSegment( seedFragmentLabel );
 				final long comparison = paintedLabel == TRANSPARENT ? segmentLabel : paintedLabel;
-				final long[] fragmentsContainedInSegment = assignment.getFragments( segmentLabel );
+				final long[] fragmentsContainedInSegment = assignment.getFragments( segmentLabel ).clone();
+				Arrays.sort( fragmentsContainedInSegment );
 
 				final Filter< Pair< Pair< LabelMultisetType, ByteType >, LongType >, Pair< Pair< LabelMultisetType, ByteType >, LongType > > filter = ( p1, p2 ) -> {
 
@@ -746,25 +785,15 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 							return currentPaint == comparison;
 						else
 						{
-							final LabelMultisetType currentMultiSet = multiSetOverlayPairComp.getA();
-							for ( final long fragment : fragmentsContainedInSegment )
-								if ( currentMultiSet.contains( fragment ) )
-									return true;
-							return false;
+							return multiSetOverlayPairComp.getA().containsAny( fragmentsContainedInSegment );
 						}
 					}
 
 					return false;
 				};
 
-				final long t0 = System.currentTimeMillis();
-
-				FloodFill.fill( new RandomAccessiblePair<>( Views.extendValue( labels, new LabelMultisetType() ), interpolatedAndTransformed ), Views.extendValue( paintedLabels, new LongType( TRANSPARENT ) ), p, new ValuePair<>( new LabelMultisetType(), new ByteType( overlayValueAtPoint ) ), new LongType( selectionController.getActiveFragmentId() ), new DiamondShape( 1 ), filter );
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
-			}
+				ScanlineFill.fill( new RandomAccessiblePair<>( Views.extendValue( labels, new LabelMultisetType() ), interpolatedAndTransformed ), Views.extendValue( paintedLabels, new LongType( TRANSPARENT ) ), labels, p, new ValuePair<>( new LabelMultisetType(), new ByteType( overlayValueAtPoint ) ), new LongType( fillLabel ), filter, task );
+			} );
 			action.run();
 		}
 	}
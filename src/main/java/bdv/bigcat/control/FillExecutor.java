@@ -0,0 +1,323 @@
+package bdv.bigcat.control;
+
+import java.awt.Cursor;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import bdv.labels.labelset.ScanlineFill;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Runs fills on a dedicated thread such that the viewer stays responsive
+ * while a large region is filled.  Fills are executed one at a time in the
+ * order they were submitted.
+ *
+ * Every {@link Task} is a {@link ScanlineFill.Monitor} that stops its fill when
+ * it was cancelled or has exceeded the voxel or time budget, keeps track of
+ * the bounding box of what has been filled, and requests a repaint of the
+ * viewer at most every {@link #REPAINT_INTERVAL} ms such that the fill can be
+ * watched while it grows.
+ */
+public class FillExecutor
+{
+	final static public long DEFAULT_MAX_VOXELS = 1l << 27;
+
+	final static public long DEFAULT_MAX_MILLIS = 120000;
+
+	final static public long REPAINT_INTERVAL = 100;
+
+	public enum State
+	{
+		QUEUED, RUNNING, DONE, CANCELLED, BUDGET_EXCEEDED, FAILED
+	}
+
+	/**
+	 * A fill to be run by the {@link FillExecutor}.
+	 */
+	public interface Fill
+	{
+		/**
+		 * Run the fill, passing {@code task} as {@link ScanlineFill.Monitor}
+		 * to every {@link ScanlineFill}.
+		 */
+		public void run( Task task ) throws Exception;
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called on the fill thread whenever a {@link Task} starts, has made
+		 * progress (at most every {@link FillExecutor#REPAINT_INTERVAL} ms),
+		 * or has finished.
+		 */
+		public void progress( Task task );
+	}
+
+	public class Task implements ScanlineFill.Monitor, Runnable
+	{
+		final protected String name;
+
+		final protected Fill fill;
+
+		protected volatile State state = State.QUEUED;
+
+		protected volatile boolean cancelled = false;
+
+		protected volatile long numFilled = 0;
+
+		protected long[] min = null;
+
+		protected long[] max = null;
+
+		protected long t0;
+
+		protected long tRepaint;
+
+		protected long numFilledAtRepaint = 0;
+
+		protected long numFilledBefore = 0;
+
+		protected Task( final String name, final Fill fill )
+		{
+			this.name = name;
+			this.fill = fill;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public State getState()
+		{
+			return state;
+		}
+
+		/**
+		 * @return number of voxels filled so far
+		 */
+		public long getNumFilled()
+		{
+			return numFilled;
+		}
+
+		/**
+		 * @return bounding box of the spans filled so far or null if nothing
+		 *         was reported yet, only safe to call from the fill thread
+		 *         or after the task has finished
+		 */
+		public Interval getFilledInterval()
+		{
+			return min == null ? null : new FinalInterval( min, max );
+		}
+
+		/**
+		 * Stop the fill at the next span, or do not start it if it is still
+		 * queued.  What has been filled so far is kept.
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		/**
+		 * @return true if the fill should continue, otherwise the state is
+		 *         updated accordingly
+		 */
+		public boolean proceed()
+		{
+			if ( cancelled )
+			{
+				state = State.CANCELLED;
+				return false;
+			}
+			if ( numFilled > maxVoxels || System.currentTimeMillis() - t0 > maxMillis )
+			{
+				state = State.BUDGET_EXCEEDED;
+				return false;
+			}
+			final long t = System.currentTimeMillis();
+			if ( t - tRepaint > REPAINT_INTERVAL && numFilled != numFilledAtRepaint )
+			{
+				tRepaint = t;
+				numFilledAtRepaint = numFilled;
+				viewer.requestRepaint();
+				notifyListeners( this );
+			}
+			return true;
+		}
+
+		@Override
+		public boolean span( final long x0, final long x1, final long[] position, final long numFilled )
+		{
+			/*
+			 * consecutive fills of one task (e.g. the front and back slice in
+			 * 2D) are counted together
+			 */
+			this.numFilled = numFilledBefore + numFilled;
+			if ( min == null )
+			{
+				min = position.clone();
+				max = position.clone();
+				min[ 0 ] = x0;
+				max[ 0 ] = x1;
+			}
+			else
+			{
+				min[ 0 ] = Math.min( min[ 0 ], x0 );
+				max[ 0 ] = Math.max( max[ 0 ], x1 );
+				for ( int d = 1; d < position.length; ++d )
+				{
+					min[ d ] = Math.min( min[ d ], position[ d ] );
+					max[ d ] = Math.max( max[ d ], position[ d ] );
+				}
+			}
+			return proceed();
+		}
+
+		/**
+		 * Call between two {@link ScanlineFill fills} of the same task such
+		 * that {@link #getNumFilled()} accumulates over both.
+		 */
+		public void nextFill()
+		{
+			numFilledBefore = numFilled;
+		}
+
+		@Override
+		public void run()
+		{
+			if ( cancelled )
+			{
+				state = State.CANCELLED;
+				pending.remove( this );
+				if ( pending.isEmpty() )
+					viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				notifyListeners( this );
+				return;
+			}
+
+			state = State.RUNNING;
+			t0 = System.currentTimeMillis();
+			tRepaint = t0;
+			viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			notifyListeners( this );
+			try
+			{
+				fill.run( this );
+				if ( state == State.RUNNING )
+					state = State.DONE;
+			}
+			catch ( final Exception e )
+			{
+				state = State.FAILED;
+				e.printStackTrace();
+			}
+			finally
+			{
+				if ( state == State.BUDGET_EXCEEDED )
+					viewer.showMessage( name + " stopped after " + numFilled + " voxels" );
+				else if ( state == State.FAILED )
+					viewer.showMessage( name + " failed" );
+				pending.remove( this );
+				if ( pending.isEmpty() )
+					viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				viewer.requestRepaint();
+				notifyListeners( this );
+			}
+		}
+	}
+
+	final protected ViewerPanel viewer;
+
+	final protected long maxVoxels;
+
+	final protected long maxMillis;
+
+	final protected ExecutorService executor;
+
+	/**
+	 * queued and running tasks
+	 */
+	final protected Set< Task > pending = ConcurrentHashMap.newKeySet();
+
+	final protected List< Listener > listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param viewer
+	 *            repainted while filling
+	 * @param maxVoxels
+	 *            a fill stops after having filled more than this many voxels
+	 * @param maxMillis
+	 *            a fill stops after having run longer than this
+	 */
+	public FillExecutor( final ViewerPanel viewer, final long maxVoxels, final long maxMillis )
+	{
+		this.viewer = viewer;
+		this.maxVoxels = maxVoxels;
+		this.maxMillis = maxMillis;
+		executor = Executors.newSingleThreadExecutor( r -> {
+			final Thread thread = new Thread( r, "fill" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	public FillExecutor( final ViewerPanel viewer )
+	{
+		this( viewer, DEFAULT_MAX_VOXELS, DEFAULT_MAX_MILLIS );
+	}
+
+	public void addListener( final Listener listener )
+	{
+		listeners.add( listener );
+	}
+
+	public void removeListener( final Listener listener )
+	{
+		listeners.remove( listener );
+	}
+
+	protected void notifyListeners( final Task task )
+	{
+		for ( final Listener listener : listeners )
+			listener.progress( task );
+	}
+
+	/**
+	 * Queue a fill.
+	 *
+	 * @param name
+	 *            for reporting
+	 * @param fill
+	 *
+	 * @return the queued {@link Task}
+	 */
+	public Task submit( final String name, final Fill fill )
+	{
+		final Task task = new Task( name, fill );
+		pending.add( task );
+		executor.execute( task );
+		return task;
+	}
+
+	/**
+	 * Cancel the running and all queued fills.
+	 */
+	public void cancel()
+	{
+		for ( final Task task : pending )
+			task.cancel();
+	}
+}
@@ -4,7 +4,7 @@ import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset;
+import bdv.labels.labelset.ScanlineFill;
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.*;
@@ -33,8 +33,6 @@ import org.apache.commons.lang.math.NumberUtils;
 import org.scijava.ui.behaviour.*;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
-import java.awt.Cursor;
-
 /**
  *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
@@ -67,6 +65,8 @@ public class LabelFillController
 
 	private final IdPicker idPicker;
 
+	private final FillExecutor fillExecutor;
+
 	public BehaviourMap getBehaviourMap()
 	{
 		return behaviourMap;
@@ -89,6 +89,26 @@ public class LabelFillController
 			final Shape shape,
 			final IdPicker idPicker,
 			final InputTriggerConfig config )
+	{
+		this( viewer, new FillExecutor( viewer ), labels, paintedLabels, labelTransform, assignment, selectionController, shape, idPicker, config );
+	}
+
+	/**
+	 * @param fillExecutor
+	 *            runs the fills, share it with other controllers that fill
+	 *            such that fills never run concurrently
+	 */
+	public LabelFillController(
+			final ViewerPanel viewer,
+			final FillExecutor fillExecutor,
+			final RandomAccessibleInterval< LabelMultisetType > labels,
+			final RandomAccessibleInterval< LongType > paintedLabels,
+			final AffineTransform3D labelTransform,
+			final FragmentSegmentAssignment assignment,
+			final SelectionController selectionController,
+			final Shape shape,
+			final IdPicker idPicker,
+			final InputTriggerConfig config )
 	{
 		this.viewer = viewer;
 		this.labels = labels;
@@ -98,6 +118,7 @@ public class LabelFillController
 		this.selectionController = selectionController;
 		this.shape = shape;
 		this.idPicker = idPicker;
+		this.fillExecutor = fillExecutor;
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "fill" );
 
 		labelLocation = new RealPoint( 3 );
@@ -111,6 +132,7 @@ public class LabelFillController
 
 		new Fill( "fill", "M button1" ).register();
 		new Fill2D( "fill 2D", "shift M button1" ).register();
+		new CancelFill( "cancel fill", "ESCAPE" ).register();
 	}
 
 	private void setCoordinates( final int x, final int y )
@@ -157,41 +179,50 @@ public class LabelFillController
 		@Override
 		public void click( final int x, final int y )
 		{
-			synchronized ( viewer )
-			{
-				if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
-					return;
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				setCoordinates( x, y );
-				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() );
-
-				final Point p = new Point(
-						Math.round( labelLocation.getDoublePosition( 0 ) ),
-						Math.round( labelLocation.getDoublePosition( 1 ) ),
-						Math.round( labelLocation.getDoublePosition( 2 ) ) );
-
+			if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
+				return;
+			setCoordinates( x, y );
+			final long fillLabel = selectionController.getActiveFragmentId();
+			System.out.println( "Filling " + labelLocation + " with " + fillLabel );
+
+			final Point p = new Point(
+					Math.round( labelLocation.getDoublePosition( 0 ) ),
+					Math.round( labelLocation.getDoublePosition( 1 ) ),
+					Math.round( labelLocation.getDoublePosition( 2 ) ) );
+
+			fillExecutor.submit( "Filling " + p + " with " + fillLabel, task -> {
 				final RandomAccess< LongType > paintAccess = Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ).randomAccess();
 				paintAccess.setPosition( p );
 				final long seedPaint = paintAccess.get().getIntegerLong();
 				final long seedFragmentLabel = getBiggestLabel( labels, p );
 
-				final long t0 = System.currentTimeMillis();
-				FloodFill.fill(
+				ScanlineFill.fill(
 						Views.extendValue( labels, new LabelMultisetType() ),
 						Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ),
+						labels,
 						p,
 						new LabelMultisetType(),
-						new LongType( selectionController.getActiveFragmentId() ),
-						new DiamondShape( 1 ),
+						new LongType( fillLabel ),
 						new SegmentAndPaintFilter1(
 								seedPaint,
 								seedFragmentLabel,
-								assignment ) );
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
-			}
+								assignment ),
+						task );
+			} );
+		}
+	}
+
+	private class CancelFill extends SelfRegisteringBehaviour implements ClickBehaviour
+	{
+		public CancelFill( final String name, final String... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void click( final int x, final int y )
+		{
+			fillExecutor.cancel();
 		}
 	}
 
@@ -207,40 +238,40 @@ public class LabelFillController
 		@Override
 		public void click( final int x, final int y )
 		{
-			synchronized ( viewer )
-			{
-				if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
-					return;
-				AffineTransform3D transform = new AffineTransform3D();
-				viewer.getState().getViewerTransform( transform );
-				double scale = Affine3DHelpers.extractScale(transform, 0) * minLabelScale / Math.sqrt( 3 );
-				System.out.println( labelTransform );
-				final int xScale = (int) Math.round( x / scale );
-				final int yScale = (int) Math.round( y / scale );
-				final long[] initialMin = { xScale-16, yScale-16 };
-				final long[] initialMax = { xScale+15, yScale+15 };
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				setCoordinates( x, y );
-				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() + " (2D)" );
-
-
+			if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
+				return;
+			AffineTransform3D transform = new AffineTransform3D();
+			viewer.getState().getViewerTransform( transform );
+			double scale = Affine3DHelpers.extractScale(transform, 0) * minLabelScale / Math.sqrt( 3 );
+			System.out.println( labelTransform );
+			final int xScale = (int) Math.round( x / scale );
+			final int yScale = (int) Math.round( y / scale );
+			final long[] initialMin = { xScale-16, yScale-16 };
+			final long[] initialMax = { xScale+15, yScale+15 };
+			setCoordinates( x, y );
+			final long label = selectionController.getActiveFragmentId();
+			System.out.println( "Filling " + labelLocation + " with " + label + " (2D)" );
 
-				RealPoint rp = new RealPoint( 3 );
-				transform.apply( labelLocation, rp );
-				final Point p = new Point( xScale, yScale );
 
-				System.out.println( x + " " + y + " " + p + " " + rp );
 
-				AffineTransform3D tf = labelTransform.copy();
-				tf.preConcatenate( transform );
-				tf.preConcatenate( new Scale3D( 1.0 / scale, 1.0 / scale, 1.0 / scale ) );
+			RealPoint rp = new RealPoint( 3 );
+			transform.apply( labelLocation, rp );
+			final Point p = new Point( xScale, yScale );
 
-				AffineTransform3D tfFront = tf.copy().preConcatenate(new Translation3D(0, 0, -1.0 / Math.sqrt(3)));
-				AffineTransform3D tfBack = tf.copy().preConcatenate(new Translation3D(0, 0, 1.0 / Math.sqrt(3)));
+			System.out.println( x + " " + y + " " + p + " " + rp );
 
+			AffineTransform3D tf = labelTransform.copy();
+			tf.preConcatenate( transform );
+			tf.preConcatenate( new Scale3D( 1.0 / scale, 1.0 / scale, 1.0 / scale ) );
 
+			AffineTransform3D tfFront = tf.copy().preConcatenate(new Translation3D(0, 0, -1.0 / Math.sqrt(3)));
+			AffineTransform3D tfBack = tf.copy().preConcatenate(new Translation3D(0, 0, 1.0 / Math.sqrt(3)));
 
-				final long t0 = System.currentTimeMillis();
+			/*
+			 * the masks are written into the canvas only after both have been
+			 * filled, so a cancelled 2D fill leaves the canvas untouched
+			 */
+			fillExecutor.submit( "Filling " + rp + " with " + label + " (2D)", task -> {
 
 				BitType notVisited = new BitType( false );
 				BitType fillLabel  = new BitType( true );
@@ -248,21 +279,16 @@ public class LabelFillController
 
 				GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillFront =
 						fillMask( tfFront, initialMin, initialMax, p, notVisited.copy(), fillLabel.copy() );
+				if ( !task.proceed() )
+					return;
 				GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillBack =
 						fillMask( tfBack, initialMin, initialMax, p, notVisited.copy(), fillLabel.copy() );
-
-				final long label = selectionController.getActiveFragmentId();
+				if ( !task.proceed() )
+					return;
 
 				writeMask( tmpFillFront, tfFront, label );
 				writeMask( tmpFillBack, tfBack, label );
-
-
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
-
-			}
+			} );
 		}
 
 		private < T extends BooleanType< T > & NativeType< T >> GrowingStoreRandomAccessibleSingletonAccess< T > fillMask(
@@ -458,12 +484,13 @@ public class LabelFillController
 	{
 		int maxCount = Integer.MIN_VALUE;
 		long maxLabel = -1;
-		for ( final Multiset.Entry< Label > e : t.entrySet() )
+		final int n = t.numEntries();
+		for ( int i = 0; i < n; ++i )
 		{
-			final int c = e.getCount();
+			final int c = t.getEntryCount( i );
 			if ( c > maxCount )
 			{
-				maxLabel = e.getElement().id();
+				maxLabel = t.getEntryId( i );
 				maxCount = c;
 			}
 		}
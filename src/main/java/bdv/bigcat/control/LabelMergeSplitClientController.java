@@ -23,6 +23,8 @@ import java.awt.event.MouseListener;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
+import javax.swing.SwingUtilities;
+
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Socket;
@@ -30,6 +32,8 @@ import org.zeromq.ZMQ.Socket;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import bdv.bigcat.MessageCodec;
+import bdv.bigcat.label.AssignmentDeltaSync;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.FragmentSegmentAssignment.FragmentSegmentSerializer;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
@@ -50,6 +54,10 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 {
 	protected class SocketListener extends Thread
 	{
+		/**
+		 * Legacy full lookup tables, a string of the segment ids of all
+		 * fragments.
+		 */
 		final void updateAssignment( String msg )
 		{
 //			System.out.println( "Received : " + msg );
@@ -64,16 +72,71 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 
 			assignment.initLut( lut );
 			colorStream.clearCache();
-			viewer.requestRepaint();
+		}
+
+		/**
+		 * Apply a legacy lookup table or a {@link Message}.  If the message
+		 * cannot be read or applied, deltas are dropped until a snapshot has
+		 * been received.
+		 *
+		 * @return true if the assignment was updated
+		 */
+		final boolean updateAssignment( final byte[] bytes )
+		{
+			if ( bytes.length == 0 )
+				return false;
+
+			try
+			{
+				if ( bytes[ 0 ] != '{' && bytes[ 0 ] != MessageCodec.BINARY_MAGIC )
+				{
+					updateAssignment( new String( bytes, Charset.defaultCharset() ) );
+					return true;
+				}
+
+				return sync.apply( codec.decode( bytes ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				System.err.println( "Could not apply assignment update, requesting a snapshot." );
+				e.printStackTrace();
+				sync.requestSnapshot();
+				return false;
+			}
+		}
+
+		/**
+		 * Request a snapshot once if deltas are dropped.  The socket is not
+		 * thread safe, so the request is sent on the event dispatch thread
+		 * like all other messages.
+		 */
+		final void sendSnapshotRequest()
+		{
+			if ( !sync.needsResync() )
+				resyncRequested = false;
+			else if ( !resyncRequested )
+			{
+				resyncRequested = true;
+				final byte[] request = codec.encode( sync.resyncMessage() );
+				SwingUtilities.invokeLater( () -> socket.send( request ) );
+			}
 		}
 
 		@Override
 		final public void run()
 		{
+			sendSnapshotRequest();
 			while ( !isInterrupted() )
 			{
-				final String msg = socket.recvStr( Charset.defaultCharset() );
-				updateAssignment( msg );
+				boolean updated = updateAssignment( socket.recv( 0 ) );
+
+				/* apply bursts of updates before repainting once */
+				for ( byte[] bytes = socket.recv( ZMQ.DONTWAIT ); bytes != null; bytes = socket.recv( ZMQ.DONTWAIT ) )
+					updated |= updateAssignment( bytes );
+
+				sendSnapshotRequest();
+				if ( updated )
+					viewer.requestRepaint();
 			}
 		}
 	}
@@ -86,6 +149,12 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 	protected long activeFragmentId = 0;
 	final protected Socket socket;
 	final protected SocketListener socketListener;
+	final protected MessageCodec codec = new MessageCodec();
+	final protected AssignmentDeltaSync sync;
+	/**
+	 * only accessed by the {@link SocketListener}
+	 */
+	protected boolean resyncRequested = false;
 
 	final GsonBuilder gsonBuilder = new GsonBuilder();
 	{
@@ -108,6 +177,9 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 		this.assignment = assignment;
 		this.socket = socket;
 		labelAccess = labels.realRandomAccess();
+		sync = new AssignmentDeltaSync( assignment );
+		/* the assignment has not been synchronized with the server yet */
+		sync.requestSnapshot();
 
 		socketListener = new SocketListener();
 		socketListener.start();
@@ -3,6 +3,9 @@ package bdv.bigcat.control;
 import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
@@ -10,7 +13,9 @@ import javax.swing.InputMap;
 import org.scijava.ui.behaviour.KeyStrokeAdder;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.label.AssignmentHistory;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.h5.H5LongCanvas;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.AbstractNamedAction;
@@ -19,6 +24,7 @@ import bdv.util.IdService;
 import bdv.viewer.InputActionBindings;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellImg;
 import net.imglib2.type.numeric.integer.LongType;
 
 /**
@@ -41,6 +47,22 @@ public class LabelPersistenceController
 	final protected int[] labelsCellDimensions;
 	final protected String assignmentDataset;
 
+	/**
+	 * if set, assignments are saved by appending the edits since the last
+	 * save to the edit log and lookup table deltas of the history
+	 */
+	protected AssignmentHistory history = null;
+
+	/**
+	 * saves run in the background, one at a time, such that painting can
+	 * continue while saving
+	 */
+	final protected ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor( r -> {
+		final Thread thread = new Thread( r, "save" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
 	// for keystroke actions
 	private final ActionMap ksActionMap = new ActionMap();
 	private final InputMap ksInputMap = new InputMap();
@@ -97,6 +119,32 @@ public class LabelPersistenceController
 		}
 	}
 
+	public void setHistory( final AssignmentHistory history )
+	{
+		this.history = history;
+	}
+
+	/**
+	 * Periodically save the next id and the fragment segment assignment.
+	 *
+	 * @param period
+	 * @param unit
+	 */
+	public void startAutosave( final long period, final TimeUnit unit )
+	{
+		saveExecutor.scheduleWithFixedDelay( () -> {
+			try
+			{
+				saveNextId();
+				saveFragmentSegmentAssignment();
+			}
+			catch ( final Exception ex )
+			{
+				ex.printStackTrace();
+			}
+		}, period, period, unit );
+	}
+
 	public void saveNextId()
 	{
 		System.out.println( "Saving next id " + h5Path + ":/next_id" );
@@ -107,24 +155,63 @@ public class LabelPersistenceController
 				"next_id" );
 	}
 
+	/**
+	 * Save the fragment segment assignment.  With a
+	 * {@link #setHistory(AssignmentHistory) history}, only the changes since
+	 * the last save are appended, otherwise the whole lookup table is
+	 * rewritten.
+	 */
 	public void saveFragmentSegmentAssignment()
 	{
-		System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
-		H5Utils.saveLongLongLut(
-				assignment.getLut(),
-				h5Path,
-				assignmentDataset,
-				1024 );
+		if ( history != null )
+		{
+			System.out.println( "Appending fragment-segment assignment changes " + h5Path + ":" + assignmentDataset );
+			final long t0 = System.currentTimeMillis();
+			history.save( h5Path, assignmentDataset );
+			System.out.println( "Appended changes in " + ( System.currentTimeMillis() - t0 ) + " ms" );
+		}
+		else
+		{
+			System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
+			H5Utils.replaceLongLongLut(
+					assignment.getLut(),
+					h5Path,
+					assignmentDataset,
+					1024 );
+		}
 	}
 
+	/**
+	 * Save painted labels.  If they are stored in a {@link CellImg}, only
+	 * modified cells are saved.
+	 */
+	@SuppressWarnings( "unchecked" )
 	public void savePaintedLabels()
 	{
 		System.out.println( "Saving painted labels into " + h5Path + ":" + paintedLabelsDataset );
-		H5Utils.saveUnsignedLong(
-				labelSource,
-				new File( h5Path ),
-				paintedLabelsDataset,
-				labelsCellDimensions );
+		if ( labelSource instanceof H5LongCanvas )
+		{
+			/* the canvas writes into the file and dataset it was opened from */
+			final long t0 = System.currentTimeMillis();
+			final long numSavedCells = ( ( H5LongCanvas ) labelSource ).save();
+			System.out.println( "Saved " + numSavedCells + " modified cells in " + ( System.currentTimeMillis() - t0 ) + " ms" );
+		}
+		else if ( labelSource instanceof CellImg )
+		{
+			final long t0 = System.currentTimeMillis();
+			final long numSavedCells = H5Utils.saveModifiedUnsignedLong(
+					( CellImg< LongType, ?, ? > ) labelSource,
+					new File( h5Path ),
+					paintedLabelsDataset,
+					labelsCellDimensions );
+			System.out.println( "Saved " + numSavedCells + " modified cells in " + ( System.currentTimeMillis() - t0 ) + " ms" );
+		}
+		else
+			H5Utils.saveUnsignedLong(
+					labelSource,
+					new File( h5Path ),
+					paintedLabelsDataset,
+					labelsCellDimensions );
 	}
 
 	public void saveMergedLabels()
@@ -181,15 +268,21 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveNextId();
-				saveFragmentSegmentAssignment();
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
-			viewer.showMessage( "Saved fragment-segment assignments and painted labels." );
+			viewer.showMessage( "Saving fragment-segment assignments and painted labels..." );
+			saveExecutor.execute( () -> {
+				try
+				{
+					saveNextId();
+					saveFragmentSegmentAssignment();
+					savePaintedLabels();
+					viewer.showMessage( "Saved fragment-segment assignments and painted labels." );
+				}
+				catch ( final Exception ex )
+				{
+					ex.printStackTrace();
+					viewer.showMessage( "Saving fragment-segment assignments and painted labels failed." );
+				}
+			} );
 		}
 	}
 
@@ -203,12 +296,7 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-			}
+			saveExecutor.execute( () -> savePaintedLabels() );
 		}
 	}
 
@@ -12,6 +12,7 @@ import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.ScanlineFill;
 import bdv.viewer.ViewerPanel;
 import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TLongArrayList;
@@ -23,7 +24,6 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.fill.Filter;
-import net.imglib2.algorithm.fill.FloodFill;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.Shape;
@@ -136,6 +136,8 @@ public class LabelRestrictToSegmentController
 
 	private final InputTriggerAdder inputAdder;
 
+	private final FillExecutor fillExecutor;
+
 	public BehaviourMap getBehaviourMap()
 	{
 		return behaviourMap;
@@ -155,6 +157,25 @@ public class LabelRestrictToSegmentController
 			final SelectionController selectionController,
 			final Shape shape,
 			final InputTriggerConfig config )
+	{
+		this( viewer, new FillExecutor( viewer ), labels, paintedLabels, labelTransform, assignment, selectionController, shape, config );
+	}
+
+	/**
+	 * @param fillExecutor
+	 *            runs the fills, share it with other controllers that fill
+	 *            such that fills never run concurrently
+	 */
+	public LabelRestrictToSegmentController(
+			final ViewerPanel viewer,
+			final FillExecutor fillExecutor,
+			final RandomAccessibleInterval< LabelMultisetType > labels,
+			final RandomAccessibleInterval< LongType > paintedLabels,
+			final AffineTransform3D labelTransform,
+			final FragmentSegmentAssignment assignment,
+			final SelectionController selectionController,
+			final Shape shape,
+			final InputTriggerConfig config )
 	{
 		this.viewer = viewer;
 		this.labels = labels;
@@ -163,6 +184,7 @@ public class LabelRestrictToSegmentController
 		this.assignment = assignment;
 		this.selectionController = selectionController;
 		this.shape = shape;
+		this.fillExecutor = fillExecutor;
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "restrict" );
 
 		labelLocation = new RealPoint( 3 );
@@ -215,61 +237,56 @@ public class LabelRestrictToSegmentController
 		@Override
 		public void click( final int x, final int y )
 		{
-			synchronized ( viewer )
-			{
-				viewer.setCursor( java.awt.Cursor.getPredefinedCursor( java.awt.Cursor.WAIT_CURSOR ) );
-				setCoordinates( x, y );
-				System.out.println( "Intersecting " + labelLocation + " with " + selectionController.getActiveFragmentId() );
+			setCoordinates( x, y );
+			System.out.println( "Intersecting " + labelLocation + " with " + selectionController.getActiveFragmentId() );
 
-				final Point p = new Point(
-						Math.round( labelLocation.getDoublePosition( 0 ) ),
-						Math.round( labelLocation.getDoublePosition( 1 ) ),
-						Math.round( labelLocation.getDoublePosition( 2 ) ) );
+			final Point p = new Point(
+					Math.round( labelLocation.getDoublePosition( 0 ) ),
+					Math.round( labelLocation.getDoublePosition( 1 ) ),
+					Math.round( labelLocation.getDoublePosition( 2 ) ) );
 
+			fillExecutor.submit( "Intersecting " + p, task -> {
 				final RandomAccess< LongType > paintAccess = paintedLabels.randomAccess();
 				paintAccess.setPosition( p );
 				final long seedPaint = paintAccess.get().getIntegerLong();
 
-                if ( seedPaint != Label.TRANSPARENT ) {
-                    final long seedFragmentLabel = getBiggestLabel(labels, p);
-                    final long seedSegmentLabel = assignment.getSegment(seedFragmentLabel);
-                    final long[] fragmentsInSeedSegment = assignment.getFragments(seedSegmentLabel);
-
-                    final long t0 = System.currentTimeMillis();
-                    // current work around: fill intersect with dummy color, then
-                    // fill dummy color with initial color
-                    FloodFill.fill(
-                            Views.extendValue(labels, new LabelMultisetType()),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            p,
-                            new LabelMultisetType(),
-                            new LongType(DUMMY_PAINT),
-                            new DiamondShape(1),
-                            new LabelFillController.SegmentAndPaintFilter1(
-                                    seedPaint,
-                                    seedFragmentLabel,
-                                    assignment));
-                    final long t1 = System.currentTimeMillis();
-                    // current work around: fill intersect with dummy color, then
-                    // fill dummy color with initial color
-                    intersect(
-                            Views.extendValue(labels, new LabelMultisetType()),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            new DiamondShape(1),
-                            p,
-                            new ValuePair<>(new ValuePair<>(new LabelMultisetType(), new LongType(DUMMY_PAINT)), new LongType(DUMMY_PAINT)),
-                            LABEL_FILTER,
-                            new WriteTransparentIfDifferentSegment<>(fragmentsInSeedSegment, DUMMY_PAINT, seedPaint) // to
-                            // proper
-                            // newPaint
-                    );
-                    System.out.println( "Intersecting took " + ( t1 - t0 ) + " ms" );
-                }
-
-                viewer.setCursor( java.awt.Cursor.getPredefinedCursor( java.awt.Cursor.DEFAULT_CURSOR ) );
-                viewer.requestRepaint();
-			}
+				if ( seedPaint != Label.TRANSPARENT )
+				{
+					final long seedFragmentLabel = getBiggestLabel( labels, p );
+					final long seedSegmentLabel = assignment.getSegment( seedFragmentLabel );
+					final long[] fragmentsInSeedSegment = assignment.getFragments( seedSegmentLabel );
+
+					// current work around: fill intersect with dummy color, then
+					// fill dummy color with initial color
+					ScanlineFill.fill(
+							Views.extendValue( labels, new LabelMultisetType() ),
+							Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ),
+							labels,
+							p,
+							new LabelMultisetType(),
+							new LongType( DUMMY_PAINT ),
+							new LabelFillController.SegmentAndPaintFilter1(
+									seedPaint,
+									seedFragmentLabel,
+									assignment ),
+							task );
+					// the dummy color is replaced even if the first fill was
+					// cancelled or has exceeded its budget, otherwise it would
+					// remain in the canvas
+					intersect(
+							Views.extendValue( labels, new LabelMultisetType() ),
+							Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ),
+							Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ),
+							new DiamondShape( 1 ),
+							p,
+							new ValuePair<>( new ValuePair<>( new LabelMultisetType(), new LongType( DUMMY_PAINT ) ), new LongType( DUMMY_PAINT ) ),
+							LABEL_FILTER,
+							new WriteTransparentIfDifferentSegment<>( fragmentsInSeedSegment, DUMMY_PAINT, seedPaint ) // to
+							// proper
+							// newPaint
+					);
+				}
+			} );
 		}
 	}
 
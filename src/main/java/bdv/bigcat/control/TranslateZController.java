@@ -16,6 +16,8 @@
  */
 package bdv.bigcat.control;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import net.imglib2.realtransform.AffineTransform3D;
 
 import org.scijava.ui.behaviour.Behaviour;
@@ -34,8 +36,23 @@ import bdv.viewer.ViewerPanel;
  */
 public class TranslateZController
 {
+	/**
+	 * Notified of each step before the viewer transform is changed.
+	 */
+	public interface StepListener
+	{
+		/**
+		 * @param dZ
+		 *            screen z of the slice that will be shown, its sign is
+		 *            the direction.
+		 */
+		public void step( double dZ );
+	}
+
 	final protected ViewerPanel viewer;
 
+	final private CopyOnWriteArrayList< StepListener > stepListeners = new CopyOnWriteArrayList<>();
+
 	// for behavioUrs
 	private final BehaviourMap behaviourMap = new BehaviourMap();
 	private final InputTriggerMap inputTriggerMap = new InputTriggerMap();
@@ -76,6 +93,16 @@ public class TranslateZController
 		return behaviourMap;
 	}
 
+	public void addStepListener( final StepListener listener )
+	{
+		stepListeners.add( listener );
+	}
+
+	public void removeStepListener( final StepListener listener )
+	{
+		stepListeners.remove( listener );
+	}
+
 	////////////////
 	// behavioUrs //
 	////////////////
@@ -120,6 +147,8 @@ public class TranslateZController
 			{
 				viewer.getState().getViewerTransform( affine );
 				final double dZ = speed * direction * Affine3DHelpers.extractScale( affine, 0 );
+				for ( final StepListener listener : stepListeners )
+					listener.step( dZ );
 				affine.set( affine.get( 2, 3 ) - dZ, 2, 3 );
 				viewer.setCurrentViewerTransform( affine );
 			}
@@ -0,0 +1,225 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import bdv.bigcat.Message;
+import bdv.bigcat.Message.FragmentSegmentLUTData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.Message.SeparateData;
+import bdv.labels.labelset.Label;
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Applies sequenced assignment updates from a server to a
+ * {@link FragmentSegmentAssignment}.  Merge, separate and isolate messages
+ * are applied incrementally in sequence order, duplicates and messages
+ * older than the last applied one are ignored.  A gap in the sequence
+ * means that updates were lost, all deltas are then dropped until a
+ * {@link FragmentSegmentLUTData snapshot} arrives, which is requested with
+ * {@link #resyncMessage()}.  Messages without sequence number are applied
+ * as they arrive.
+ *
+ * Not thread safe, messages are expected to be applied by one thread.
+ */
+public class AssignmentDeltaSync
+{
+	final protected FragmentSegmentAssignment assignment;
+
+	protected long lastSequence = Message.NO_SEQUENCE;
+
+	protected boolean needsResync = false;
+
+	public AssignmentDeltaSync( final FragmentSegmentAssignment assignment )
+	{
+		this.assignment = assignment;
+	}
+
+	public long getLastSequence()
+	{
+		return lastSequence;
+	}
+
+	/**
+	 * Whether deltas are dropped until the next snapshot.
+	 */
+	public boolean needsResync()
+	{
+		return needsResync;
+	}
+
+	/**
+	 * Drop deltas until the next snapshot, e.g. before the first snapshot
+	 * or after a message could not be read.  The snapshot is requested with
+	 * {@link #resyncMessage()}.
+	 */
+	public void requestSnapshot()
+	{
+		needsResync = true;
+	}
+
+	/**
+	 * Request for a snapshot after the last applied sequence number.
+	 */
+	public Message resyncMessage()
+	{
+		final ResyncData resync = new ResyncData();
+		resync.lastSequence = lastSequence;
+		return new Message( resync );
+	}
+
+	/**
+	 * Apply a message.
+	 *
+	 * @param msg
+	 * @return true if the assignment was updated
+	 */
+	public boolean apply( final Message msg )
+	{
+		final long sequence = msg.getSequence();
+		final Object data = msg.getData();
+
+		if ( data instanceof FragmentSegmentLUTData )
+		{
+			/* a snapshot older than the applied deltas is outdated */
+			if ( sequence != Message.NO_SEQUENCE && lastSequence != Message.NO_SEQUENCE && sequence < lastSequence && !needsResync )
+				return false;
+			applySnapshot( ( FragmentSegmentLUTData )data );
+			lastSequence = sequence;
+			needsResync = false;
+			return true;
+		}
+
+		if ( sequence != Message.NO_SEQUENCE )
+		{
+			if ( needsResync || lastSequence != Message.NO_SEQUENCE && sequence <= lastSequence )
+				return false;
+			if ( lastSequence != Message.NO_SEQUENCE && sequence > lastSequence + 1 )
+			{
+				System.out.println( "Missed assignment updates " + ( lastSequence + 1 ) + " to " + ( sequence - 1 ) + ", waiting for resync." );
+				needsResync = true;
+				return false;
+			}
+			lastSequence = sequence;
+		}
+
+		if ( data instanceof MergeData )
+			applyMerge( ( MergeData )data );
+		else if ( data instanceof SeparateData )
+			applySeparate( ( SeparateData )data );
+		else if ( data instanceof IsolateData )
+			applyIsolate( ( IsolateData )data );
+		else
+			return false;
+
+		return true;
+	}
+
+	protected void applySnapshot( final FragmentSegmentLUTData data )
+	{
+		final TLongLongHashMap lut = new TLongLongHashMap(
+				Math.max( Constants.DEFAULT_CAPACITY, data.fragments.length ),
+				Constants.DEFAULT_LOAD_FACTOR,
+				Label.TRANSPARENT,
+				Label.TRANSPARENT );
+		for ( int i = 0; i < data.fragments.length; ++i )
+			lut.put( data.fragments[ i ], data.segments[ i ] );
+		assignment.initLut( lut );
+	}
+
+	/**
+	 * Merge the segments of all fragments into the segment with the id of the
+	 * message, or of the first fragment.  Fragments are moved explicitly
+	 * such that no ids are drawn from the {@link bdv.util.IdService} of the
+	 * client, and a new segment id does not become a fragment.
+	 */
+	protected void applyMerge( final MergeData data )
+	{
+		if ( data.fragments.length == 0 )
+			return;
+
+		synchronized ( assignment )
+		{
+			final long segmentId = data.segment == Label.TRANSPARENT ? assignment.getSegment( data.fragments[ 0 ] ) : data.segment;
+			final TLongHashSet fragments = new TLongHashSet();
+			for ( final long fragmentId : data.fragments )
+			{
+				final long[] segmentFragments = assignment.getFragments( assignment.getSegment( fragmentId ) );
+				if ( segmentFragments != null )
+					fragments.addAll( segmentFragments );
+				fragments.add( fragmentId );
+			}
+			assignment.moveFragments( fragments.toArray(), segmentId, false );
+		}
+	}
+
+	/**
+	 * Detach the second fragment if it is in the segment of the first.
+	 */
+	protected void applySeparate( final SeparateData data )
+	{
+		synchronized ( assignment )
+		{
+			if ( assignment.getSegment( data.fragmentA ) == assignment.getSegment( data.fragmentB ) )
+				detach( data.fragmentB, data.segment );
+		}
+	}
+
+	protected void applyIsolate( final IsolateData data )
+	{
+		synchronized ( assignment )
+		{
+			detach( data.fragment, data.segment );
+		}
+	}
+
+	/**
+	 * Detach a fragment into a segment with its own id and move the remaining
+	 * fragments to {@code remainingSegmentId}.  Without
+	 * {@code remainingSegmentId}, the remaining fragments keep their segment
+	 * id, or get the id of the first remaining fragment if the segment had the
+	 * id of the detached fragment.  Unlike
+	 * {@link FragmentSegmentAssignment#detachFragment(long)}, this does not
+	 * draw ids from the {@link bdv.util.IdService} of the client, which are
+	 * not synchronized with the server and may be in use already.
+	 */
+	protected void detach( final long fragmentId, final long remainingSegmentId )
+	{
+		final long segmentId = assignment.getSegment( fragmentId );
+		final long[] fragments = assignment.getFragments( segmentId );
+		if ( fragments == null || fragments.length < 2 )
+			return;
+
+		final TLongArrayList remaining = new TLongArrayList( fragments.length - 1 );
+		for ( final long id : fragments )
+			if ( id != fragmentId )
+				remaining.add( id );
+
+		long targetSegmentId = remainingSegmentId;
+		if ( targetSegmentId == Label.TRANSPARENT || targetSegmentId == fragmentId )
+			targetSegmentId = segmentId == fragmentId ? remaining.get( 0 ) : segmentId;
+
+		if ( targetSegmentId != segmentId )
+			assignment.moveFragments( remaining.toArray(), targetSegmentId, false );
+		if ( segmentId != fragmentId )
+			assignment.moveFragments( new long[]{ fragmentId }, fragmentId, false );
+	}
+}
@@ -0,0 +1,639 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import bdv.img.h5.H5Utils;
+import bdv.labels.labelset.Label;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Undoable history of the merges, assigns and detaches of a
+ * {@link FragmentSegmentAssignment}.
+ *
+ * Edits are recorded as a flat log of long words, one record per edit:
+ *
+ * <pre>
+ * MERGE  segmentId1 segmentId2 mergedSegmentId smallerIsFirst n fragment[0] ... fragment[n-1]
+ * DETACH fragmentId segmentId remainingSegmentId
+ * UNDO
+ * REDO
+ * RESET
+ * </pre>
+ *
+ * A merge stores the fragments of its smaller segment only, which is enough
+ * to split it again.  Undo and redo move a cursor over the records, so the
+ * bookkeeping is constant time, applying an edit costs as much as moving
+ * the fragments of the segments that it touches.  A new edit after an undo
+ * drops the undone records.
+ *
+ * The log is persisted by appending the words written since the last save
+ * to an extendable uint64 dataset next to the lookup table,
+ * {@link #logDataset(String) &lt;lut&gt;_log}.  The lookup table is
+ * persisted by appending the current segments of all fragments of segments
+ * that were touched by edits since the last save as
+ * {@link H5Utils#appendLongLongLutDeltas lookup table deltas}.  Both are
+ * cheap regardless of the size of the lookup table.  The deltas are
+ * compacted into the lookup table when they outgrow it.  A checkpoint
+ * rewrites the lookup table from memory.  The length of the log that the
+ * lookup table and its deltas reflect is stored as attribute
+ * {@value #LOG_OFFSET_ATTRIBUTE} of the lookup table.  Loading replays the
+ * log after that offset, records before it only restore the undo stack.
+ * Replacing the lookup table with {@link FragmentSegmentAssignment#initLut}
+ * clears the history and the next save is a checkpoint.
+ */
+public class AssignmentHistory implements FragmentSegmentAssignment.EditListener
+{
+	final static public long MERGE = 1;
+	final static public long DETACH = 2;
+	final static public long UNDO = 3;
+	final static public long REDO = 4;
+	final static public long RESET = 5;
+
+	final static public String LOG_OFFSET_ATTRIBUTE = "log_offset";
+
+	final static private int blockSize = 1024;
+
+	/**
+	 * deltas are compacted when there are more deltas than entries in the
+	 * lookup table and at least this many
+	 */
+	final static private long minDeltasBeforeCompaction = 1 << 16;
+
+	final protected FragmentSegmentAssignment assignment;
+
+	/**
+	 * words of the records on the undo and redo stacks
+	 */
+	final protected TLongArrayList records = new TLongArrayList();
+
+	/**
+	 * offset of each record in {@link #records}
+	 */
+	final protected TIntArrayList offsets = new TIntArrayList();
+
+	/**
+	 * number of applied records, records after the cursor can be redone
+	 */
+	protected int cursor = 0;
+
+	/**
+	 * words of the log that were not yet saved
+	 */
+	final protected TLongArrayList pending = new TLongArrayList();
+
+	/**
+	 * length of the saved log
+	 */
+	protected long savedLength = 0;
+
+	protected boolean needsCheckpoint = false;
+
+	/**
+	 * segments whose fragments may have changed since the last save
+	 */
+	protected TLongHashSet dirtySegments = new TLongHashSet();
+
+	/**
+	 * set while edits are applied by the history itself
+	 */
+	protected boolean replaying = false;
+
+	/**
+	 * The history state is guarded by the monitor of {@link #assignment},
+	 * which is held when edits are reported.  Saves are serialized by the
+	 * monitor of the history and do not hold the monitor of the assignment
+	 * while writing.
+	 */
+	public AssignmentHistory( final FragmentSegmentAssignment assignment )
+	{
+		this.assignment = assignment;
+		assignment.addEditListener( this );
+	}
+
+	static public String logDataset( final String lutDataset )
+	{
+		return lutDataset + "_log";
+	}
+
+	static private int recordLength( final TLongArrayList words, final int offset )
+	{
+		final long type = words.get( offset );
+		if ( type == MERGE )
+			return 6 + ( int )words.get( offset + 5 );
+		else if ( type == DETACH )
+			return 4;
+		else if ( type == UNDO || type == REDO || type == RESET )
+			return 1;
+		throw new IllegalArgumentException( "Unknown edit log record type " + type + " at " + offset );
+	}
+
+	/**
+	 * Start a new record, dropping all undone records.
+	 */
+	private void beginRecord()
+	{
+		if ( cursor < offsets.size() )
+		{
+			final int offset = offsets.get( cursor );
+			records.remove( offset, records.size() - offset );
+			offsets.remove( cursor, offsets.size() - cursor );
+		}
+		offsets.add( records.size() );
+	}
+
+	private void endRecord()
+	{
+		cursor = offsets.size();
+	}
+
+	private void write( final long word )
+	{
+		records.add( word );
+		pending.add( word );
+	}
+
+	/**
+	 * Mark the segments of the record at {@code offset} of {@code words}
+	 * dirty.  All fragments that change their segment by applying or
+	 * reverting the record end up in one of them.
+	 */
+	private void markDirty( final TLongArrayList words, final int offset )
+	{
+		dirtySegments.add( words.get( offset + 1 ) );
+		dirtySegments.add( words.get( offset + 2 ) );
+		dirtySegments.add( words.get( offset + 3 ) );
+	}
+
+	private void clear()
+	{
+		records.resetQuick();
+		offsets.resetQuick();
+		cursor = 0;
+	}
+
+	@Override
+	public void merged(
+			final long segmentId1,
+			final long segmentId2,
+			final long mergedSegmentId,
+			final long[] smallerFragments,
+			final boolean smallerIsFirst )
+	{
+		if ( replaying )
+			return;
+
+		beginRecord();
+		write( MERGE );
+		write( segmentId1 );
+		write( segmentId2 );
+		write( mergedSegmentId );
+		write( smallerIsFirst ? 1 : 0 );
+		write( smallerFragments.length );
+		for ( final long fragmentId : smallerFragments )
+			write( fragmentId );
+		markDirty( records, offsets.get( cursor ) );
+		endRecord();
+	}
+
+	@Override
+	public void detached( final long fragmentId, final long segmentId, final long remainingSegmentId )
+	{
+		if ( replaying )
+			return;
+
+		beginRecord();
+		write( DETACH );
+		write( fragmentId );
+		write( segmentId );
+		write( remainingSegmentId );
+		markDirty( records, offsets.get( cursor ) );
+		endRecord();
+	}
+
+	@Override
+	public void lutInitialized()
+	{
+		if ( replaying )
+			return;
+
+		clear();
+		pending.add( RESET );
+		dirtySegments.clear();
+		needsCheckpoint = true;
+	}
+
+	/**
+	 * Fragments of {@code segmentId} that are not in {@code excluded}.  Must
+	 * be called while holding the monitor of {@link #assignment}.
+	 */
+	private long[] fragmentsWithout( final long segmentId, final long... excluded )
+	{
+		final long[] fragments = assignment.getFragments( segmentId );
+		if ( fragments == null )
+			return new long[ 0 ];
+		final TLongHashSet excludedSet = new TLongHashSet( excluded );
+		final TLongArrayList remaining = new TLongArrayList( fragments.length );
+		for ( final long fragmentId : fragments )
+			if ( !excludedSet.contains( fragmentId ) )
+				remaining.add( fragmentId );
+		return remaining.toArray();
+	}
+
+	/**
+	 * Apply the record at {@code offset} of {@code words}.  Fragments are
+	 * moved explicitly such that segment ids of the record that are not
+	 * assigned yet do not become fragments of themselves.  Must be called
+	 * while holding the monitor of {@link #assignment} with
+	 * {@link #replaying} set.
+	 */
+	private void apply( final TLongArrayList words, final int offset )
+	{
+		if ( words.get( offset ) == MERGE )
+		{
+			final long segmentId1 = words.get( offset + 1 );
+			final long segmentId2 = words.get( offset + 2 );
+			final long mergedSegmentId = words.get( offset + 3 );
+			final TLongArrayList fragments = new TLongArrayList( fragmentsWithout( segmentId1 ) );
+			fragments.add( fragmentsWithout( segmentId2 ) );
+			assignment.moveFragments( fragments.toArray(), mergedSegmentId, false );
+		}
+		else
+		{
+			final long fragmentId = words.get( offset + 1 );
+			final long segmentId = words.get( offset + 2 );
+			final long remainingSegmentId = words.get( offset + 3 );
+			if ( segmentId == fragmentId )
+				assignment.moveFragments( fragmentsWithout( segmentId, fragmentId ), remainingSegmentId, false );
+			else
+				assignment.moveFragments( new long[]{ fragmentId }, fragmentId, false );
+		}
+	}
+
+	/**
+	 * Revert the record at {@code offset} of {@code words}.  The fragments
+	 * of the larger merged segment are the fragments of the merged segment
+	 * that are not in the recorded smaller segment.  Must be called while
+	 * holding the monitor of {@link #assignment} with {@link #replaying}
+	 * set.
+	 */
+	private void revert( final TLongArrayList words, final int offset )
+	{
+		if ( words.get( offset ) == MERGE )
+		{
+			final long segmentId1 = words.get( offset + 1 );
+			final long segmentId2 = words.get( offset + 2 );
+			final long mergedSegmentId = words.get( offset + 3 );
+			final boolean smallerIsFirst = words.get( offset + 4 ) != 0;
+			final long[] smallerFragments = words.toArray( offset + 6, ( int )words.get( offset + 5 ) );
+			final long smallerSegmentId = smallerIsFirst ? segmentId1 : segmentId2;
+			final long largerSegmentId = smallerIsFirst ? segmentId2 : segmentId1;
+			if ( mergedSegmentId != largerSegmentId )
+				assignment.moveFragments( fragmentsWithout( mergedSegmentId, smallerFragments ), largerSegmentId, false );
+			if ( mergedSegmentId != smallerSegmentId )
+				assignment.moveFragments( smallerFragments, smallerSegmentId, false );
+		}
+		else
+		{
+			final long fragmentId = words.get( offset + 1 );
+			final long segmentId = words.get( offset + 2 );
+			final long remainingSegmentId = words.get( offset + 3 );
+			if ( segmentId == fragmentId )
+				assignment.moveFragments( fragmentsWithout( remainingSegmentId ), fragmentId, false );
+			else
+				assignment.moveFragments( new long[]{ fragmentId }, segmentId, false );
+		}
+	}
+
+	public boolean canUndo()
+	{
+		synchronized ( assignment )
+		{
+			return cursor > 0;
+		}
+	}
+
+	public boolean canRedo()
+	{
+		synchronized ( assignment )
+		{
+			return cursor < offsets.size();
+		}
+	}
+
+	/**
+	 * Revert the last applied edit.
+	 *
+	 * @return false if there was nothing to undo
+	 */
+	public boolean undo()
+	{
+		synchronized ( assignment )
+		{
+			if ( cursor == 0 )
+				return false;
+
+			replaying = true;
+			try
+			{
+				revert( records, offsets.get( cursor - 1 ) );
+				markDirty( records, offsets.get( cursor - 1 ) );
+			}
+			finally
+			{
+				replaying = false;
+			}
+			--cursor;
+			pending.add( UNDO );
+			return true;
+		}
+	}
+
+	/**
+	 * Re-apply the last undone edit.
+	 *
+	 * @return false if there was nothing to redo
+	 */
+	public boolean redo()
+	{
+		synchronized ( assignment )
+		{
+			if ( cursor == offsets.size() )
+				return false;
+
+			replaying = true;
+			try
+			{
+				apply( records, offsets.get( cursor ) );
+				markDirty( records, offsets.get( cursor ) );
+			}
+			finally
+			{
+				replaying = false;
+			}
+			++cursor;
+			pending.add( REDO );
+			return true;
+		}
+	}
+
+	/**
+	 * Append {@code words} to the log dataset, creating it if necessary.
+	 */
+	static private void appendLog( final IHDF5Writer writer, final String dataset, final long[] words, final long offset )
+	{
+		if ( !writer.exists( dataset ) )
+			writer.uint64().createArray( dataset, 0, blockSize, HDF5IntStorageFeatures.INT_DEFLATE );
+		if ( words.length > 0 )
+			writer.uint64().writeArrayBlockWithOffset( dataset, words, words.length, offset );
+	}
+
+	/**
+	 * Current segments of all fragments of the dirty segments.  Segment ids
+	 * that are no longer assigned are skipped, they are not fragments.  Must
+	 * be called while holding the monitor of {@link #assignment}.
+	 */
+	private TLongLongHashMap deltas( final TLongHashSet segments )
+	{
+		final TLongLongHashMap deltas = new TLongLongHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		final TLongIterator iterator = segments.iterator();
+		while ( iterator.hasNext() )
+		{
+			final long segmentId = iterator.next();
+			final long[] fragments = assignment.getFragments( segmentId );
+			if ( fragments != null && !( fragments.length == 1 && fragments[ 0 ] == segmentId && !assignment.isAssigned( segmentId ) ) )
+				for ( final long fragmentId : fragments )
+					deltas.put( fragmentId, segmentId );
+		}
+		return deltas;
+	}
+
+	/**
+	 * Append the edits since the last save to the log and the changed
+	 * entries of the lookup table to its deltas, compact the deltas if
+	 * necessary.  Writes a {@link #checkpoint(IHDF5Writer, String)
+	 * checkpoint} if there is no lookup table yet or it was replaced.
+	 *
+	 * @param writer
+	 * @param lutDataset
+	 */
+	synchronized public void save( final IHDF5Writer writer, final String lutDataset )
+	{
+		final long[] words;
+		final long offset;
+		final TLongHashSet segments;
+		final TLongLongHashMap deltas;
+		synchronized ( assignment )
+		{
+			if ( needsCheckpoint || !writer.exists( lutDataset ) )
+				words = null;
+			else
+				words = pending.toArray();
+			offset = savedLength;
+			segments = dirtySegments;
+			deltas = words == null ? null : deltas( segments );
+			dirtySegments = new TLongHashSet();
+		}
+		if ( words == null )
+		{
+			checkpoint( writer, lutDataset );
+			return;
+		}
+
+		try
+		{
+			appendLog( writer, logDataset( lutDataset ), words, offset );
+			if ( deltas.size() > 0 )
+				H5Utils.appendLongLongLutDeltas( deltas, writer, lutDataset, blockSize );
+			final long numDeltas = H5Utils.lutSize( writer, H5Utils.lutDeltasDataset( lutDataset ) );
+			if ( numDeltas > Math.max( minDeltasBeforeCompaction, H5Utils.lutSize( writer, lutDataset ) ) )
+			{
+				System.out.println( "Compacting " + numDeltas + " deltas into " + lutDataset );
+				H5Utils.compactLongLongLut( writer, lutDataset, blockSize );
+			}
+			H5Utils.saveUint64Attribute( offset + words.length, writer, lutDataset, LOG_OFFSET_ATTRIBUTE );
+		}
+		catch ( final RuntimeException e )
+		{
+			synchronized ( assignment )
+			{
+				dirtySegments.addAll( segments.toArray() );
+			}
+			throw e;
+		}
+
+		synchronized ( assignment )
+		{
+			pending.remove( 0, words.length );
+			savedLength += words.length;
+		}
+	}
+
+	public void save( final String filePath, final String lutDataset )
+	{
+		final IHDF5Writer writer = HDF5Factory.open( filePath );
+		save( writer, lutDataset );
+		writer.close();
+	}
+
+	/**
+	 * Append the edits since the last save to the log and replace the lookup
+	 * table and its deltas by the current lookup table with the length of
+	 * the log as its {@value #LOG_OFFSET_ATTRIBUTE}.
+	 *
+	 * @param writer
+	 * @param lutDataset
+	 */
+	synchronized public void checkpoint( final IHDF5Writer writer, final String lutDataset )
+	{
+		final TLongLongHashMap lut;
+		final long[] words;
+		final long offset;
+		synchronized ( assignment )
+		{
+			lut = assignment.getLut();
+			words = pending.toArray();
+			offset = savedLength;
+			needsCheckpoint = false;
+			dirtySegments.clear();
+		}
+
+		appendLog( writer, logDataset( lutDataset ), words, offset );
+		H5Utils.replaceLongLongLut( lut, writer, lutDataset, blockSize );
+		H5Utils.saveUint64Attribute( offset + words.length, writer, lutDataset, LOG_OFFSET_ATTRIBUTE );
+
+		synchronized ( assignment )
+		{
+			pending.remove( 0, words.length );
+			savedLength += words.length;
+		}
+	}
+
+	public void checkpoint( final String filePath, final String lutDataset )
+	{
+		final IHDF5Writer writer = HDF5Factory.open( filePath );
+		checkpoint( writer, lutDataset );
+		writer.close();
+	}
+
+	/**
+	 * Initialize the assignment from the lookup table and its deltas and
+	 * replay the log after its {@value #LOG_OFFSET_ATTRIBUTE}.  A lookup table without
+	 * {@value #LOG_OFFSET_ATTRIBUTE} was not written by a checkpoint and is
+	 * taken as is.  Segment ids of replayed edits are
+	 * {@link bdv.util.IdService#invalidate(long) invalidated}.
+	 *
+	 * @param reader
+	 * @param lutDataset
+	 */
+	public void load( final IHDF5Reader reader, final String lutDataset )
+	{
+		final TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, lutDataset, blockSize );
+
+		final String logDataset = logDataset( lutDataset );
+		final TLongArrayList log = new TLongArrayList();
+		if ( reader.exists( logDataset ) )
+		{
+			final long size = reader.object().getDimensions( logDataset )[ 0 ];
+			for ( long offset = 0; offset < size; offset += blockSize )
+				log.add( reader.uint64().readArrayBlockWithOffset( logDataset, ( int )Math.min( blockSize, size - offset ), offset ) );
+		}
+
+		final Long logOffsetObject = H5Utils.loadAttribute( reader, lutDataset, LOG_OFFSET_ATTRIBUTE );
+		final long logOffset = logOffsetObject == null ? ( lut == null ? 0 : log.size() ) : logOffsetObject.longValue();
+
+		synchronized ( assignment )
+		{
+			replaying = true;
+			try
+			{
+				if ( lut != null )
+					assignment.initLut( lut );
+				clear();
+				dirtySegments.clear();
+				needsCheckpoint = false;
+				for ( int offset = 0; offset < log.size(); offset += recordLength( log, offset ) )
+				{
+					final boolean isReplayed = offset >= logOffset;
+					final long type = log.get( offset );
+					if ( type == MERGE || type == DETACH )
+					{
+						final int length = recordLength( log, offset );
+						beginRecord();
+						records.add( log.toArray( offset, length ) );
+						endRecord();
+						assignment.idService.invalidate( log.get( offset + 3 ) );
+						if ( isReplayed )
+						{
+							apply( log, offset );
+							markDirty( log, offset );
+						}
+					}
+					else if ( type == UNDO )
+					{
+						--cursor;
+						if ( isReplayed )
+						{
+							revert( records, offsets.get( cursor ) );
+							markDirty( records, offsets.get( cursor ) );
+						}
+					}
+					else if ( type == REDO )
+					{
+						if ( isReplayed )
+						{
+							apply( records, offsets.get( cursor ) );
+							markDirty( records, offsets.get( cursor ) );
+						}
+						++cursor;
+					}
+					else
+					{
+						clear();
+						if ( isReplayed )
+						{
+							System.err.println( "Edit log of " + lutDataset + " continues on a replaced lookup table, stopped replay at " + offset );
+							needsCheckpoint = true;
+							break;
+						}
+					}
+				}
+			}
+			finally
+			{
+				replaying = false;
+			}
+			pending.resetQuick();
+			savedLength = log.size();
+		}
+	}
+
+	public void load( final String filePath, final String lutDataset )
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( filePath );
+		load( reader, lutDataset );
+		reader.close();
+	}
+}
@@ -19,6 +19,7 @@ package bdv.bigcat.label;
 import java.lang.reflect.Type;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.lang.ArrayUtils;
 
@@ -34,14 +35,18 @@ import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
 import bdv.labels.labelset.Label;
+import bdv.util.ConcurrentLongLongHashMap;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import gnu.trove.impl.Constants;
-import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.iterator.TLongIterator;
 import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongLongProcedure;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.set.hash.TLongHashSet;
 
 /**
  *
@@ -68,12 +73,15 @@ public class FragmentSegmentAssignment
 		public JsonElement serialize( final FragmentSegmentAssignment src, final Type typeOfSrc, final JsonSerializationContext context )
 		{
 			final JsonObject jsonLut = new JsonObject();
-			final TLongLongIterator lutIterator = src.lut.iterator();
-			while ( lutIterator.hasNext() )
+			src.forEachFragment( new TLongLongProcedure()
 			{
-				lutIterator.advance();
-				jsonLut.addProperty( Long.toString( lutIterator.key() ), lutIterator.value() );
-			}
+				@Override
+				public boolean execute( final long fragmentId, final long segmentId )
+				{
+					jsonLut.addProperty( Long.toString( fragmentId ), segmentId );
+					return true;
+				}
+			} );
 
 			final JsonObject jsonObject = new JsonObject();
 			jsonObject.add( "lut", jsonLut );
@@ -103,13 +111,16 @@ public class FragmentSegmentAssignment
 		{
 			final JsonArray fragments = new JsonArray();
 			final JsonArray segments = new JsonArray();
-			final TLongLongIterator lutIterator = src.lut.iterator();
-			while ( lutIterator.hasNext() )
+			src.forEachFragment( new TLongLongProcedure()
 			{
-				lutIterator.advance();
-				fragments.add( new JsonPrimitive( lutIterator.key() ) );
-				segments.add( new JsonPrimitive( lutIterator.value() ) );
-			}
+				@Override
+				public boolean execute( final long fragmentId, final long segmentId )
+				{
+					fragments.add( new JsonPrimitive( fragmentId ) );
+					segments.add( new JsonPrimitive( segmentId ) );
+					return true;
+				}
+			} );
 
 			final JsonObject jsonObject = new JsonObject();
 			jsonObject.add( "fragments", fragments );
@@ -139,14 +150,15 @@ public class FragmentSegmentAssignment
 			final Gson gson = new Gson();
 
 			final JsonObject jsonILut = new JsonObject();
-			final TLongObjectIterator< long[] > ilutIterator = src.ilut.iterator();
-			while ( ilutIterator.hasNext() )
+			src.forEachSegment( new TLongObjectProcedure< long[] >()
 			{
-				ilutIterator.advance();
-				jsonILut.add(
-						Long.toString( ilutIterator.key() ),
-						gson.toJsonTree( ilutIterator.value() ) );
-			}
+				@Override
+				public boolean execute( final long segmentId, final long[] fragments )
+				{
+					jsonILut.add( Long.toString( segmentId ), gson.toJsonTree( fragments ) );
+					return true;
+				}
+			} );
 
 			final JsonObject jsonObject = new JsonObject();
 			jsonObject.add( "ilut", jsonILut );
@@ -283,16 +295,70 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 				final LocalIdService idService = new LocalIdService();
 				final long maxId = IdService.max( IdService.max( fragments ), IdService.max( segments ) );
 				idService.setNext( maxId + 1 );
-				return new FragmentSegmentAssignment( fragments, segments, idService );
+				return create( fragments, segments, idService );
 			}
 		}
+
+		/**
+		 * Create the deserialized assignment, override to deserialize into
+		 * another implementation.
+		 */
+		protected FragmentSegmentAssignment create( final long[] fragments, final long[] segments, final IdService idService )
+		{
+			return new FragmentSegmentAssignment( fragments, segments, idService );
+		}
+	}
+
+	/**
+	 * Notified of merges and detaches while the monitor of the assignment is
+	 * held, such that notifications arrive in the order of the changes.
+	 */
+	public interface EditListener
+	{
+		/**
+		 * Two segments were merged into {@code mergedSegmentId}, which is
+		 * {@code segmentId2} if the fragments of {@code segmentId1} were
+		 * assigned to {@code segmentId2}.
+		 *
+		 * @param smallerFragments
+		 *            the fragments of the segment with fewer fragments, do not
+		 *            modify
+		 * @param smallerIsFirst
+		 *            whether {@code smallerFragments} were the fragments of
+		 *            {@code segmentId1}
+		 */
+		public void merged( long segmentId1, long segmentId2, long mergedSegmentId, long[] smallerFragments, boolean smallerIsFirst );
+
+		/**
+		 * A fragment was detached from {@code segmentId}, the remaining
+		 * fragments are now {@code remainingSegmentId}.
+		 */
+		public void detached( long fragmentId, long segmentId, long remainingSegmentId );
+
+		/**
+		 * The lookup was replaced by
+		 * {@link FragmentSegmentAssignment#initLut(TLongLongHashMap)}.
+		 */
+		public void lutInitialized();
 	}
 
-	final protected TLongLongHashMap lut = new TLongLongHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT);
+	/**
+	 * fragment > segment, read without locking, written only while holding
+	 * the monitor of this assignment.  Fragments that are not in the lookup
+	 * are their own segment.
+	 */
+	final protected ConcurrentLongLongHashMap lut = new ConcurrentLongLongHashMap(Constants.DEFAULT_CAPACITY, Label.TRANSPARENT, Label.TRANSPARENT);
 	final protected TLongObjectHashMap< long[] > ilut = new TLongObjectHashMap< long[] >(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT);
 
+	/**
+	 * incremented after each change of the fragment to segment assignment
+	 */
+	protected volatile long version = 0;
+
 	protected IdService idService;
 
+	final protected CopyOnWriteArrayList< EditListener > editListeners = new CopyOnWriteArrayList<>();
+
 	public FragmentSegmentAssignment( final IdService idService )
 	{
 		this.idService = idService;
@@ -310,9 +376,27 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		syncILut();
 	}
 
+	/**
+	 * Get a copy of the current fragment > segment lookup.  Fragments that
+	 * are their own segment are not included unless they were merged,
+	 * detached or moved before.
+	 */
 	public TLongLongHashMap getLut()
 	{
-		return lut;
+		synchronized ( this )
+		{
+			return lut.toTLongLongHashMap();
+		}
+	}
+
+	/**
+	 * Get the current version of the assignment.  The version is incremented
+	 * after every merge, detach, or re-initialization and can be used to
+	 * invalidate anything derived from the assignment.
+	 */
+	public long getVersion()
+	{
+		return version;
 	}
 
 	public void setIdService( final IdService idService )
@@ -320,12 +404,62 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		this.idService = idService;
 	}
 
+	public void addEditListener( final EditListener listener )
+	{
+		editListeners.add( listener );
+	}
+
+	public void removeEditListener( final EditListener listener )
+	{
+		editListeners.remove( listener );
+	}
+
+	protected void notifyMerged(
+			final long segmentId1,
+			final long segmentId2,
+			final long mergedSegmentId,
+			final long[] fragments1,
+			final long[] fragments2 )
+	{
+		final long[] empty = new long[ 0 ];
+		final long[] f1 = fragments1 == null ? empty : fragments1;
+		final long[] f2 = fragments2 == null ? empty : fragments2;
+		final boolean smallerIsFirst = f1.length <= f2.length;
+		notifyMerged( segmentId1, segmentId2, mergedSegmentId, smallerIsFirst ? f1 : f2, smallerIsFirst );
+	}
+
+	protected void notifyMerged(
+			final long segmentId1,
+			final long segmentId2,
+			final long mergedSegmentId,
+			final long[] smallerFragments,
+			final boolean smallerIsFirst )
+	{
+		for ( final EditListener listener : editListeners )
+			listener.merged( segmentId1, segmentId2, mergedSegmentId, smallerFragments, smallerIsFirst );
+	}
+
+	protected void notifyDetached( final long fragmentId, final long segmentId, final long remainingSegmentId )
+	{
+		for ( final EditListener listener : editListeners )
+			listener.detached( fragmentId, segmentId, remainingSegmentId );
+	}
+
+	protected void notifyLutInitialized()
+	{
+		for ( final EditListener listener : editListeners )
+			listener.lutInitialized();
+	}
+
 	public void initLut( final TLongLongHashMap lut )
 	{
-		this.lut.clear();
-		this.ilut.clear();
-		this.lut.putAll( lut );
-		syncILut();
+		synchronized ( this )
+		{
+			this.lut.replaceAll( lut );
+			syncILut();
+			++version;
+			notifyLutInitialized();
+		}
 
 		System.out.println( "Done" );
 	}
@@ -337,42 +471,93 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	protected void syncILut()
 	{
+		final TLongObjectHashMap< TLongArrayList > fragmentLists = new TLongObjectHashMap< TLongArrayList >( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+		lut.forEachEntry( new TLongLongProcedure()
+		{
+			@Override
+			public boolean execute( final long fragmentId, final long segmentId )
+			{
+				TLongArrayList fragments = fragmentLists.get( segmentId );
+				if ( fragments == null )
+				{
+					fragments = new TLongArrayList( 1 );
+					fragmentLists.put( segmentId, fragments );
+				}
+				fragments.add( fragmentId );
+				return true;
+			}
+		} );
+
 		ilut.clear();
-		final TLongLongIterator lutIterator =  lut.iterator();
-		while ( lutIterator.hasNext() )
+		ilut.ensureCapacity( fragmentLists.size() );
+		final TLongObjectIterator< TLongArrayList > iterator = fragmentLists.iterator();
+		while ( iterator.hasNext() )
 		{
-			lutIterator.advance();
-			final long fragmentId = lutIterator.key();
-			final long segmentId = lutIterator.value();
-			long[] fragments = ilut.get( segmentId );
-			if ( fragments == null )
-				fragments = new long[]{ fragmentId };
-			else
-				fragments = ArrayUtils.add( fragments, fragmentId );
-			ilut.put( segmentId, fragments);
+			iterator.advance();
+			ilut.put( iterator.key(), iterator.value().toArray() );
 		}
 	}
 
 	/**
-	 * Get the body that is assigned to a fragment id.
-	 *
-	 * @param id
+	 * Pass all fragment &gt; segment assignments to {@code procedure}.  Does
+	 * not lock, assignments changed concurrently may or may not be visited.
 	 */
-	public long getSegment( final long fragmentId )
+	protected void forEachFragment( final TLongLongProcedure procedure )
+	{
+		lut.forEachEntry( procedure );
+	}
+
+	/**
+	 * Pass all segments and their fragments to {@code procedure} while
+	 * holding the monitor of this assignment.
+	 */
+	protected void forEachSegment( final TLongObjectProcedure< long[] > procedure )
 	{
-		final long id;
 		synchronized ( this )
 		{
-			final long segmentId = lut.get( fragmentId );
-			if ( segmentId == lut.getNoEntryValue() ) {
-				id = fragmentId;
-				lut.put( fragmentId, id );
-				ilut.put( id, new long[]{ fragmentId } );
-			}
-			else
-				id = segmentId;
+			ilut.forEachEntry( procedure );
 		}
-		return id;
+	}
+
+	/**
+	 * Get the body that is assigned to a fragment id.  Fragments that are
+	 * not in the lookup are their own segment.  Does not lock and does not
+	 * modify the assignment, so it can be called from many rendering threads
+	 * for any number of fragments while the assignment is being modified.
+	 * While a merge is in progress, some of the merged fragments may still
+	 * map to their old segment; {@link #getVersion()} is incremented when the
+	 * merge is complete.
+	 *
+	 * @param id
+	 */
+	public long getSegment( final long fragmentId )
+	{
+		final long segmentId = lut.get( fragmentId );
+		return segmentId == lut.getNoEntryValue() ? fragmentId : segmentId;
+	}
+
+	/**
+	 * Whether a fragment is in the lookup, i.e. it was merged, detached or
+	 * moved at some point and is not only implicitly its own segment.
+	 *
+	 * @param fragmentId
+	 */
+	protected boolean isAssigned( final long fragmentId )
+	{
+		return lut.get( fragmentId ) != lut.getNoEntryValue();
+	}
+
+	/**
+	 * Get the fragments of a segment, the segment id itself if no fragments
+	 * are assigned to it and it is not a fragment of another segment.  Must
+	 * be called while holding the monitor.
+	 */
+	protected long[] fragmentsOf( final long segmentId )
+	{
+		final long[] fragments = ilut.get( segmentId );
+		if ( fragments == null && lut.get( segmentId ) == lut.getNoEntryValue() )
+			return new long[]{ segmentId };
+		return fragments;
 	}
 
 	/**
@@ -385,7 +570,7 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		final long[] fragments;
 		synchronized ( this )
 		{
-			fragments = ilut.get( segmentId );
+			fragments = fragmentsOf( segmentId );
 		}
 		return fragments;
 	}
@@ -403,12 +588,90 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
+			final long[] fragments1 = fragmentsOf( segmentId1 );
+			final long[] fragments2 = fragmentsOf( segmentId2 );
+			if ( fragments1 == null )
+				return;
 			for ( final long fragmentId : fragments1 )
 				lut.put( fragmentId, segmentId2 );
+			/* all fragments of segments with more than one fragment are in the lookup */
+			if ( fragments2 != null && fragments2.length == 1 && fragments2[ 0 ] == segmentId2 )
+				lut.put( segmentId2, segmentId2 );
 			ilut.put( segmentId2, ArrayUtils.addAll( fragments1, fragments2 ) );
 			ilut.remove( segmentId1 );
+			++version;
+			notifyMerged( segmentId1, segmentId2, segmentId2, fragments1, fragments2 );
+		}
+	}
+
+	/**
+	 * Assign fragments to a segment, removing them from the segments they
+	 * are currently assigned to.  This is the inverse of a merge or assign
+	 * and is not reported to {@link EditListener}s.
+	 *
+	 * @param fragments
+	 * @param segmentId
+	 */
+	public void moveFragments( final long[] fragments, final long segmentId )
+	{
+		moveFragments( fragments, segmentId, true );
+	}
+
+	/**
+	 * Assign fragments to a segment like
+	 * {@link #moveFragments(long[], long)}.  If {@code implicitIdentity} is
+	 * false, a {@code segmentId} that is not assigned yet is a new segment
+	 * id and not a fragment that is its own segment, i.e. the segment
+	 * contains exactly {@code fragments}.
+	 *
+	 * @param fragments
+	 * @param segmentId
+	 * @param implicitIdentity
+	 */
+	public void moveFragments( final long[] fragments, final long segmentId, final boolean implicitIdentity )
+	{
+		if ( fragments.length == 0 )
+			return;
+
+		synchronized ( this )
+		{
+			final TLongHashSet moved = new TLongHashSet( fragments );
+			final TLongHashSet oldSegments = new TLongHashSet();
+			for ( final long fragmentId : fragments )
+				oldSegments.add( getSegment( fragmentId ) );
+			final boolean isImplicitSingleton = implicitIdentity && ilut.get( segmentId ) == null && lut.get( segmentId ) == lut.getNoEntryValue() && !moved.contains( segmentId );
+			oldSegments.remove( segmentId );
+
+			final TLongIterator oldSegmentIterator = oldSegments.iterator();
+			while ( oldSegmentIterator.hasNext() )
+			{
+				final long oldSegmentId = oldSegmentIterator.next();
+				final long[] oldFragments = ilut.get( oldSegmentId );
+				if ( oldFragments == null )
+					continue;
+				final TLongArrayList remaining = new TLongArrayList( oldFragments.length );
+				for ( final long fragmentId : oldFragments )
+					if ( !moved.contains( fragmentId ) )
+						remaining.add( fragmentId );
+				if ( remaining.isEmpty() )
+					ilut.remove( oldSegmentId );
+				else
+					ilut.put( oldSegmentId, remaining.toArray() );
+			}
+
+			final TLongHashSet newFragments = new TLongHashSet( moved );
+			final long[] targetFragments = ilut.get( segmentId );
+			if ( targetFragments != null )
+				newFragments.addAll( targetFragments );
+			else if ( isImplicitSingleton )
+			{
+				lut.put( segmentId, segmentId );
+				newFragments.add( segmentId );
+			}
+			for ( final long fragmentId : fragments )
+				lut.put( fragmentId, segmentId );
+			ilut.put( segmentId, newFragments.toArray() );
+			++version;
 		}
 	}
 
@@ -426,14 +689,18 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		final long mergedSegmentId = idService.next();
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
+			final long[] fragments1 = fragmentsOf( segmentId1 );
+			final long[] fragments2 = fragmentsOf( segmentId2 );
 			final long[] fragments = ArrayUtils.addAll( fragments1, fragments2 );
+			if ( fragments == null )
+				return;
 			for ( final long fragmentId : fragments )
 				lut.put( fragmentId, mergedSegmentId );
 			ilut.put( mergedSegmentId, fragments );
 			ilut.remove( segmentId1 );
 			ilut.remove( segmentId2 );
+			++version;
+			notifyMerged( segmentId1, segmentId2, mergedSegmentId, fragments1, fragments2 );
 		}
 	}
 
@@ -452,7 +719,9 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	}
 
 	/**
-	 * Detach a segment from the body that it has been associated with
+	 * Detach a segment from the body that it has been associated with.  If
+	 * the body has the id of the detached fragment, the remaining fragments
+	 * are assigned to a new body.
 	 *
 	 * @param fragmentId
 	 */
@@ -460,16 +729,22 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	{
 		synchronized ( this )
 		{
-			final long segmentId = lut.get( fragmentId );
+			final long segmentId = getSegment( fragmentId );
 			final long[] fragments = ilut.get( segmentId );
 			if ( fragments != null && fragments.length > 1 )
 			{
 				final long[] newFragments = ArrayUtils.removeElement( fragments, fragmentId );
-				ilut.put( segmentId, newFragments );
+				final long remainingSegmentId = segmentId == fragmentId ? idService.next() : segmentId;
+				if ( remainingSegmentId != segmentId )
+					for ( final long id : newFragments )
+						lut.put( id, remainingSegmentId );
+				ilut.put( remainingSegmentId, newFragments );
 
 				final long newSegmentId = fragmentId;
 				lut.put( fragmentId, newSegmentId );
 				ilut.put( newSegmentId, new long[]{ fragmentId } );
+				++version;
+				notifyDetached( fragmentId, segmentId, remainingSegmentId );
 			}
 		}
 	}
@@ -0,0 +1,603 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import bdv.labels.labelset.Label;
+import bdv.util.ConcurrentLongLongHashMap;
+import bdv.util.IdService;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongLongProcedure;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * {@link FragmentSegmentAssignment} that keeps segments as a disjoint-set
+ * forest of fragments, such that merges do not touch the fragments of the
+ * merged segments.
+ *
+ * Each fragment points to a parent fragment, the root fragment of each tree
+ * carries the segment id.  Merges link the root of the smaller tree to the
+ * root of the larger tree (union by size) and splice the circular member
+ * lists of both trees, both in constant time.  Paths are compressed by
+ * lookups that hold the monitor of the assignment.  {@link #getSegment(long)}
+ * follows parents without locking and without compressing, which is
+ * O(log n) by union by size.  Fragments that are not in the forest are
+ * their own segment, they are added when they are merged, detached or
+ * moved.  Fragment lists are materialized from the member lists only when
+ * requested and cached until the segment changes.
+ *
+ * Detaching a fragment cannot be expressed as a union and rebuilds the tree
+ * of the detached fragment's segment.  Moving fragments rebuilds the trees
+ * of the source and target segments.
+ */
+public class UnionFindFragmentSegmentAssignment extends FragmentSegmentAssignment
+{
+	/**
+	 * Deserializes into a {@link UnionFindFragmentSegmentAssignment}.
+	 */
+	static public class GSONDeserializer extends FragmentSegmentAssignment.GSONDeserializer
+	{
+		@Override
+		protected FragmentSegmentAssignment create( final long[] fragments, final long[] segments, final IdService idService )
+		{
+			return new UnionFindFragmentSegmentAssignment( fragments, segments, idService );
+		}
+	}
+
+	/**
+	 * Trees are at most log<sub>2</sub> n deep by union by size.  Lock-free
+	 * lookups that take more steps have crossed a concurrent
+	 * {@link #initLut(TLongLongHashMap)} and are repeated while holding the
+	 * monitor.
+	 */
+	final static private int MAX_DEPTH = 64;
+
+	/**
+	 * fragment &gt; parent fragment, roots are their own parent, read without
+	 * locking
+	 */
+	final protected ConcurrentLongLongHashMap parents = new ConcurrentLongLongHashMap( Constants.DEFAULT_CAPACITY, Label.TRANSPARENT, Label.TRANSPARENT );
+
+	/**
+	 * root fragment &gt; segment, read without locking, entries of fragments
+	 * that are no longer roots are stale
+	 */
+	final protected ConcurrentLongLongHashMap rootSegments = new ConcurrentLongLongHashMap( Constants.DEFAULT_CAPACITY, Label.TRANSPARENT, Label.TRANSPARENT );
+
+	/**
+	 * segment &gt; root fragment
+	 */
+	final protected TLongLongHashMap segmentRoots = new TLongLongHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+
+	/**
+	 * root fragment &gt; number of fragments in its tree
+	 */
+	final protected TLongIntHashMap sizes = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, 0 );
+
+	/**
+	 * fragment &gt; next fragment of the same segment, a circular list per
+	 * segment
+	 */
+	final protected TLongLongHashMap next = new TLongLongHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+
+	/**
+	 * materialized fragment lists, segment &gt; fragments
+	 */
+	final protected TLongObjectHashMap< long[] > fragmentLists = new TLongObjectHashMap< long[] >( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT );
+
+	public UnionFindFragmentSegmentAssignment( final IdService idService )
+	{
+		super( idService );
+	}
+
+	public UnionFindFragmentSegmentAssignment( final long[] fragments, final long[] segments, final IdService idService )
+	{
+		super( idService );
+
+		assert fragments.length == segments.length : "segments and bodies must be of same length";
+
+		final TLongLongHashMap lut = new TLongLongHashMap( fragments.length, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		for ( int i = 0; i < fragments.length; ++i )
+			lut.put( fragments[ i ], segments[ i ] );
+		build( lut );
+	}
+
+	/**
+	 * Replace the forest by one tree of depth one per segment of
+	 * {@code lut}.  Must be called while holding the monitor.
+	 */
+	private void build( final TLongLongHashMap lut )
+	{
+		final TLongLongHashMap newParents = new TLongLongHashMap( lut.size(), Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		final TLongLongHashMap newRootSegments = new TLongLongHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		segmentRoots.clear();
+		sizes.clear();
+		next.clear();
+		fragmentLists.clear();
+		next.ensureCapacity( lut.size() );
+
+		final TLongLongIterator iterator = lut.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			final long fragmentId = iterator.key();
+			final long segmentId = iterator.value();
+			final long root = segmentRoots.get( segmentId );
+			if ( root == segmentRoots.getNoEntryValue() )
+			{
+				segmentRoots.put( segmentId, fragmentId );
+				newParents.put( fragmentId, fragmentId );
+				newRootSegments.put( fragmentId, segmentId );
+				sizes.put( fragmentId, 1 );
+				next.put( fragmentId, fragmentId );
+			}
+			else
+			{
+				newParents.put( fragmentId, root );
+				sizes.adjustValue( root, 1 );
+				next.put( fragmentId, next.get( root ) );
+				next.put( root, fragmentId );
+			}
+		}
+
+		/* roots before parents, such that lock-free lookups find the segments of new roots */
+		rootSegments.replaceAll( newRootSegments );
+		parents.replaceAll( newParents );
+	}
+
+	/**
+	 * Root of {@code fragmentId} without locking, or
+	 * {@link Label#TRANSPARENT} if {@code fragmentId} is not in the forest
+	 * or the lookup did not converge.
+	 */
+	private long findRootLockFree( final long fragmentId )
+	{
+		long id = fragmentId;
+		for ( int i = 0; i < MAX_DEPTH; ++i )
+		{
+			final long parent = parents.get( id );
+			if ( parent == id || parent == Label.TRANSPARENT )
+				return parent;
+			id = parent;
+		}
+		return Label.TRANSPARENT;
+	}
+
+	/**
+	 * Root of {@code fragmentId} with path compression, or
+	 * {@link Label#TRANSPARENT} if {@code fragmentId} is not in the forest.
+	 * Must be called while holding the monitor.
+	 */
+	private long findRoot( final long fragmentId )
+	{
+		long root = fragmentId;
+		for ( long parent = parents.get( root ); parent != root; parent = parents.get( root ) )
+		{
+			if ( parent == Label.TRANSPARENT )
+				return Label.TRANSPARENT;
+			root = parent;
+		}
+		for ( long id = fragmentId; id != root; )
+		{
+			final long parent = parents.get( id );
+			if ( parent != root )
+				parents.put( id, root );
+			id = parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Add {@code fragmentId} as its own segment.  Must be called while
+	 * holding the monitor.
+	 *
+	 * @return {@code fragmentId}, the root of the new tree
+	 */
+	private long addSingleton( final long fragmentId, final long segmentId )
+	{
+		rootSegments.put( fragmentId, segmentId );
+		parents.put( fragmentId, fragmentId );
+		segmentRoots.put( segmentId, fragmentId );
+		sizes.put( fragmentId, 1 );
+		next.put( fragmentId, fragmentId );
+		return fragmentId;
+	}
+
+	/**
+	 * Link the trees of {@code root1} and {@code root2}, and assign the
+	 * merged tree to {@code segmentId}.  Must be called while holding the
+	 * monitor.
+	 */
+	private void union( final long root1, final long root2, final long segmentId )
+	{
+		final int size1 = sizes.get( root1 );
+		final int size2 = sizes.get( root2 );
+		final long root, child;
+		if ( size1 < size2 )
+		{
+			root = root2;
+			child = root1;
+		}
+		else
+		{
+			root = root1;
+			child = root2;
+		}
+		rootSegments.put( root, segmentId );
+		parents.put( child, root );
+		segmentRoots.put( segmentId, root );
+		sizes.put( root, size1 + size2 );
+		sizes.remove( child );
+
+		/* splice the circular member lists */
+		final long next1 = next.get( root1 );
+		next.put( root1, next.get( root2 ) );
+		next.put( root2, next1 );
+	}
+
+	/**
+	 * Replace the tree of {@code segmentId} by one tree of depth one rooted
+	 * at the first of {@code fragments}.  Sizes of previous roots must have
+	 * been removed by the caller.  Must be called while holding the monitor.
+	 */
+	private void rebuild( final long segmentId, final long[] fragments )
+	{
+		final long root = fragments[ 0 ];
+
+		/* the new root first, such that lock-free lookups never see a cycle */
+		rootSegments.put( root, segmentId );
+		parents.put( root, root );
+		long tail = root;
+		for ( int i = 1; i < fragments.length; ++i )
+		{
+			final long id = fragments[ i ];
+			parents.put( id, root );
+			next.put( tail, id );
+			tail = id;
+		}
+		next.put( tail, root );
+		sizes.put( root, fragments.length );
+		segmentRoots.put( segmentId, root );
+		fragmentLists.remove( segmentId );
+	}
+
+	private int size( final long root )
+	{
+		return root == Label.TRANSPARENT ? 0 : sizes.get( root );
+	}
+
+	/**
+	 * Fragments of the smaller of two trees for {@link EditListener}s,
+	 * empty for {@link Label#TRANSPARENT}.  Must be called while holding the
+	 * monitor and before the trees are linked.
+	 */
+	private long[] smallerMembers( final long root1, final long root2 )
+	{
+		final long root = size( root1 ) <= size( root2 ) ? root1 : root2;
+		return root == Label.TRANSPARENT ? new long[ 0 ] : members( root );
+	}
+
+	/**
+	 * Fragments of the tree of {@code root}.  Must be called while holding
+	 * the monitor.
+	 */
+	private long[] members( final long root )
+	{
+		final long[] fragments = new long[ sizes.get( root ) ];
+		long id = root;
+		for ( int i = 0; i < fragments.length; ++i )
+		{
+			fragments[ i ] = id;
+			id = next.get( id );
+		}
+		return fragments;
+	}
+
+	@Override
+	public TLongLongHashMap getLut()
+	{
+		final TLongLongHashMap lut = new TLongLongHashMap( parents.size(), Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		forEachFragment( new TLongLongProcedure()
+		{
+			@Override
+			public boolean execute( final long fragmentId, final long segmentId )
+			{
+				lut.put( fragmentId, segmentId );
+				return true;
+			}
+		} );
+		return lut;
+	}
+
+	@Override
+	public void initLut( final TLongLongHashMap lut )
+	{
+		synchronized ( this )
+		{
+			build( lut );
+			++version;
+			notifyLutInitialized();
+		}
+
+		System.out.println( "Done" );
+	}
+
+	/**
+	 * Visits each segment's fragments from its member list while holding
+	 * the monitor of this assignment.
+	 */
+	@Override
+	protected void forEachFragment( final TLongLongProcedure procedure )
+	{
+		synchronized ( this )
+		{
+			final TLongLongIterator iterator = segmentRoots.iterator();
+			while ( iterator.hasNext() )
+			{
+				iterator.advance();
+				final long segmentId = iterator.key();
+				final long root = iterator.value();
+				long id = root;
+				do
+				{
+					if ( !procedure.execute( id, segmentId ) )
+						return;
+					id = next.get( id );
+				}
+				while ( id != root );
+			}
+		}
+	}
+
+	@Override
+	protected void forEachSegment( final TLongObjectProcedure< long[] > procedure )
+	{
+		synchronized ( this )
+		{
+			final TLongLongIterator iterator = segmentRoots.iterator();
+			while ( iterator.hasNext() )
+			{
+				iterator.advance();
+				if ( !procedure.execute( iterator.key(), getFragments( iterator.key() ) ) )
+					return;
+			}
+		}
+	}
+
+	@Override
+	public long getSegment( final long fragmentId )
+	{
+		final long root = findRootLockFree( fragmentId );
+		if ( root != Label.TRANSPARENT )
+		{
+			final long segmentId = rootSegments.get( root );
+			if ( segmentId != Label.TRANSPARENT )
+				return segmentId;
+		}
+		else if ( parents.get( fragmentId ) == Label.TRANSPARENT )
+			return fragmentId;
+
+		synchronized ( this )
+		{
+			final long r = findRoot( fragmentId );
+			return r == Label.TRANSPARENT ? fragmentId : rootSegments.get( r );
+		}
+	}
+
+	@Override
+	protected boolean isAssigned( final long fragmentId )
+	{
+		return parents.get( fragmentId ) != Label.TRANSPARENT;
+	}
+
+	/**
+	 * Root of the tree of {@code segmentId}.  A segment id that is neither
+	 * a segment nor a fragment in the forest is an implicit singleton
+	 * segment and added to the forest.  Must be called while holding the
+	 * monitor.
+	 *
+	 * @return the root or {@link Label#TRANSPARENT} if {@code segmentId} is
+	 *         a fragment of another segment
+	 */
+	private long materializeRoot( final long segmentId )
+	{
+		final long root = segmentRoots.get( segmentId );
+		if ( root != segmentRoots.getNoEntryValue() )
+			return root;
+		if ( parents.get( segmentId ) != Label.TRANSPARENT )
+			return Label.TRANSPARENT;
+		return addSingleton( segmentId, segmentId );
+	}
+
+	@Override
+	public long[] getFragments( final long segmentId )
+	{
+		synchronized ( this )
+		{
+			long[] fragments = fragmentLists.get( segmentId );
+			if ( fragments == null )
+			{
+				final long root = segmentRoots.get( segmentId );
+				if ( root == segmentRoots.getNoEntryValue() )
+					return parents.get( segmentId ) == Label.TRANSPARENT ? new long[]{ segmentId } : null;
+				fragments = members( root );
+				fragmentLists.put( segmentId, fragments );
+			}
+			return fragments;
+		}
+	}
+
+	@Override
+	public void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		synchronized ( this )
+		{
+			final long root1 = materializeRoot( segmentId1 );
+			final long root2 = materializeRoot( segmentId2 );
+			if ( root1 == Label.TRANSPARENT )
+				return;
+			final long[] smallerFragments = editListeners.isEmpty() ? null : smallerMembers( root1, root2 );
+			final boolean smallerIsFirst = size( root1 ) <= size( root2 );
+			segmentRoots.remove( segmentId1 );
+			if ( root2 == Label.TRANSPARENT )
+			{
+				rootSegments.put( root1, segmentId2 );
+				segmentRoots.put( segmentId2, root1 );
+			}
+			else
+				union( root1, root2, segmentId2 );
+			fragmentLists.remove( segmentId1 );
+			fragmentLists.remove( segmentId2 );
+			++version;
+			if ( smallerFragments != null )
+				notifyMerged( segmentId1, segmentId2, segmentId2, smallerFragments, smallerIsFirst );
+		}
+	}
+
+	@Override
+	public void mergeSegments( final long segmentId1, final long segmentId2 )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		final long mergedSegmentId = idService.next();
+		synchronized ( this )
+		{
+			final long root1 = materializeRoot( segmentId1 );
+			final long root2 = materializeRoot( segmentId2 );
+			final boolean has1 = root1 != Label.TRANSPARENT;
+			final boolean has2 = root2 != Label.TRANSPARENT;
+			if ( !( has1 || has2 ) )
+				return;
+			final long[] smallerFragments = editListeners.isEmpty() ? null : smallerMembers( root1, root2 );
+			final boolean smallerIsFirst = size( root1 ) <= size( root2 );
+			segmentRoots.remove( segmentId1 );
+			segmentRoots.remove( segmentId2 );
+			if ( has1 && has2 )
+				union( root1, root2, mergedSegmentId );
+			else if ( has1 || has2 )
+			{
+				final long root = has1 ? root1 : root2;
+				rootSegments.put( root, mergedSegmentId );
+				segmentRoots.put( mergedSegmentId, root );
+			}
+			fragmentLists.remove( segmentId1 );
+			fragmentLists.remove( segmentId2 );
+			++version;
+			if ( smallerFragments != null )
+				notifyMerged( segmentId1, segmentId2, mergedSegmentId, smallerFragments, smallerIsFirst );
+		}
+	}
+
+	/**
+	 * Detach a fragment from its segment.  The remaining fragments are
+	 * rebuilt into a tree of depth one, O(size of the segment).  If the
+	 * segment has the id of the detached fragment, the remaining fragments
+	 * are assigned to a new segment.
+	 */
+	@Override
+	public void detachFragment( final long fragmentId )
+	{
+		synchronized ( this )
+		{
+			final long oldRoot = findRoot( fragmentId );
+			if ( oldRoot == Label.TRANSPARENT || sizes.get( oldRoot ) < 2 )
+				return;
+
+			final long oldSegmentId = rootSegments.get( oldRoot );
+			final long segmentId = oldSegmentId == fragmentId ? idService.next() : oldSegmentId;
+			final long[] fragments = members( oldRoot );
+			final long[] remaining = new long[ fragments.length - 1 ];
+			int i = 0;
+			for ( final long id : fragments )
+				if ( id != fragmentId )
+					remaining[ i++ ] = id;
+
+			sizes.remove( oldRoot );
+			if ( segmentId != oldSegmentId )
+				segmentRoots.remove( oldSegmentId );
+			fragmentLists.remove( oldSegmentId );
+			rebuild( segmentId, remaining );
+
+			addSingleton( fragmentId, fragmentId );
+			fragmentLists.remove( fragmentId );
+			++version;
+			notifyDetached( fragmentId, oldSegmentId, segmentId );
+		}
+	}
+
+	/**
+	 * Rebuilds the trees of all segments that lose fragments and of the
+	 * target segment, O(size of these segments).
+	 */
+	@Override
+	public void moveFragments( final long[] fragments, final long segmentId, final boolean implicitIdentity )
+	{
+		if ( fragments.length == 0 )
+			return;
+
+		synchronized ( this )
+		{
+			final TLongHashSet moved = new TLongHashSet( fragments );
+			final long targetRoot = segmentRoots.get( segmentId );
+			final TLongHashSet targetFragments = new TLongHashSet( moved );
+			if ( targetRoot != segmentRoots.getNoEntryValue() )
+				targetFragments.addAll( members( targetRoot ) );
+			else if ( implicitIdentity && parents.get( segmentId ) == Label.TRANSPARENT )
+				targetFragments.add( segmentId );
+
+			final TLongHashSet oldRoots = new TLongHashSet();
+			for ( final long fragmentId : fragments )
+			{
+				final long root = findRoot( fragmentId );
+				if ( root != Label.TRANSPARENT && root != targetRoot )
+					oldRoots.add( root );
+			}
+
+			final TLongIterator oldRootIterator = oldRoots.iterator();
+			while ( oldRootIterator.hasNext() )
+			{
+				final long oldRoot = oldRootIterator.next();
+				final long oldSegmentId = rootSegments.get( oldRoot );
+				final TLongArrayList remaining = new TLongArrayList();
+				for ( final long id : members( oldRoot ) )
+					if ( !moved.contains( id ) )
+						remaining.add( id );
+				sizes.remove( oldRoot );
+				fragmentLists.remove( oldSegmentId );
+				if ( remaining.isEmpty() )
+					segmentRoots.remove( oldSegmentId );
+				else
+					rebuild( oldSegmentId, remaining.toArray() );
+			}
+
+			if ( targetRoot != segmentRoots.getNoEntryValue() )
+				sizes.remove( targetRoot );
+			rebuild( segmentId, targetFragments.toArray() );
+			++version;
+		}
+	}
+}
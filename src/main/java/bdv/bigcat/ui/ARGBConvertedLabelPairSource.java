@@ -41,7 +41,7 @@ public class ARGBConvertedLabelPairSource extends AbstractARGBConvertedLabelsSou
 				// [ERROR] method <A,B>convert(net.imglib2.IterableInterval<A>,net.imglib2.converter.Converter<? super A,? super B>,B) in net.imglib2.converter.Converters match
 				( RandomAccessibleInterval< Pair< VolatileLabelMultisetType, LongType > > )Views.interval( source, interval ),
 				//Views.interval( source, interval ),
-				new PairVolatileLabelMultisetLongARGBConverter( argbStream ),
+				new PairVolatileLabelMultisetLongARGBConverter( argbStream, listCache ),
 				new VolatileARGBType() );
 	}
 
@@ -31,7 +31,7 @@ public class ARGBConvertedLabelsSource extends AbstractARGBConvertedLabelsSource
 	{
 		return Converters.convert(
 				multisetImageLoader.getVolatileImage( t, level ),
-				new VolatileLabelMultisetARGBConverter( argbStream ),
+				new VolatileLabelMultisetARGBConverter( argbStream, listCache ),
 				new VolatileARGBType() );
 	}
 
@@ -30,4 +30,13 @@ public interface ARGBStream
 	 * @return
 	 */
 	public int argb( long id );
+
+	/**
+	 * Get the current generation of the stream.  The generation changes
+	 * whenever the color generated for any id may have changed, so it can be
+	 * used to invalidate cached colors or anything computed from them.
+	 *
+	 * @return
+	 */
+	public long getGeneration();
 }
@@ -17,6 +17,7 @@ import net.imglib2.view.Views;
 abstract public class AbstractARGBConvertedLabelsSource implements Source< VolatileARGBType >
 {
 	final protected ARGBStream argbStream;
+	final protected LabelMultisetARGBCache listCache;
 	final protected long setupId;
 
 	final protected InterpolatorFactory< VolatileARGBType, RandomAccessible< VolatileARGBType > >[] interpolatorFactories;
@@ -33,6 +34,7 @@ abstract public class AbstractARGBConvertedLabelsSource implements Source< Volat
 	{
 		this.setupId = setupId;
 		this.argbStream = argbStream;
+		listCache = new LabelMultisetARGBCache( argbStream );
 	}
 
 	@Override
@@ -16,15 +16,26 @@
  */
 package bdv.bigcat.ui;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import bdv.bigcat.label.FragmentSegmentAssignment;
-import bdv.labels.labelset.Label;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import bdv.util.ConcurrentLongIntCache;
 
 
 /**
  * Generates and caches a stream of colors.
  *
+ * Two caches are used, both can be read and written by all rendering threads
+ * without locking: {@link #argbCache} maps segment ids to their base color
+ * and is valid until {@link #clearCache()} is called.
+ * {@link #fragmentArgbCache} maps fragment ids to their final color, i.e. the
+ * complete fragment &gt; segment &gt; color chain including the alpha of
+ * active fragments and segments.  It is replaced whenever the
+ * {@link FragmentSegmentAssignment#getVersion() assignment changes} or any
+ * setting of the stream changes, such that repeated fragment ids cost only a
+ * single lookup.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 abstract public class AbstractARGBStream implements ARGBStream
@@ -41,18 +52,46 @@ abstract public class AbstractARGBStream implements ARGBStream
 	protected long activeFragment = 0l;
 	protected long activeSegment = 0l;
 
+	final static protected int CACHE_SIZE = 1 << 16;
+
+	final static private AtomicLong generations = new AtomicLong();
+
+	/**
+	 * Fragment color cache for one version of the assignment.
+	 */
+	final static protected class FragmentArgbCache extends ConcurrentLongIntCache
+	{
+		final protected long assignmentVersion;
+
+		/**
+		 * unique over all streams
+		 */
+		final protected long generation = generations.incrementAndGet();
+
+		public FragmentArgbCache( final long assignmentVersion )
+		{
+			super( CACHE_SIZE );
+			this.assignmentVersion = assignmentVersion;
+		}
+	}
+
 	final protected FragmentSegmentAssignment assignment;
 
 	public AbstractARGBStream( final FragmentSegmentAssignment assignment )
 	{
 		this.assignment = assignment;
+		fragmentArgbCache = new AtomicReference<>( new FragmentArgbCache( assignment.getVersion() ) );
 	}
 
-	protected TLongIntHashMap argbCache = new TLongIntHashMap(
-			Constants.DEFAULT_CAPACITY ,
-			Constants.DEFAULT_LOAD_FACTOR,
-			Label.TRANSPARENT,
-			0 );
+	/**
+	 * segment &gt; color
+	 */
+	protected volatile ConcurrentLongIntCache argbCache = new ConcurrentLongIntCache( CACHE_SIZE );
+
+	/**
+	 * fragment &gt; color
+	 */
+	final protected AtomicReference< FragmentArgbCache > fragmentArgbCache;
 
 	final static protected int argb( final int r, final int g, final int b, final int alpha )
 	{
@@ -61,6 +100,66 @@ abstract public class AbstractARGBStream implements ARGBStream
 
 	abstract protected double getDouble( final long id );
 
+	/**
+	 * Generate the color of a fragment without looking into
+	 * {@link #fragmentArgbCache}.
+	 *
+	 * @param fragmentId
+	 */
+	abstract protected int argbUncached( final long fragmentId );
+
+	@Override
+	public int argb( final long fragmentId )
+	{
+		final FragmentArgbCache cache = getFragmentArgbCache();
+		int argb = cache.get( fragmentId );
+		if ( argb == 0x00000000 )
+		{
+			argb = argbUncached( fragmentId );
+			cache.put( fragmentId, argb );
+		}
+		return argb;
+	}
+
+	/**
+	 * The generation changes whenever the fragment color cache is replaced,
+	 * i.e. whenever the assignment or a setting of this stream changes.
+	 */
+	@Override
+	public long getGeneration()
+	{
+		return getFragmentArgbCache().generation;
+	}
+
+	/**
+	 * Get the fragment color cache for the current version of the
+	 * assignment.  The cache is read before any of the settings of this
+	 * stream, so colors generated with outdated settings end up in a cache
+	 * that has already been replaced.
+	 */
+	protected FragmentArgbCache getFragmentArgbCache()
+	{
+		while ( true )
+		{
+			final FragmentArgbCache cache = fragmentArgbCache.get();
+			final long version = assignment.getVersion();
+			if ( cache.assignmentVersion == version )
+				return cache;
+			final FragmentArgbCache newCache = new FragmentArgbCache( version );
+			if ( fragmentArgbCache.compareAndSet( cache, newCache ) )
+				return newCache;
+		}
+	}
+
+	/**
+	 * Drop all cached fragment colors, call after any change of a setting
+	 * that affects the final color of a fragment.
+	 */
+	protected void clearFragmentCache()
+	{
+		fragmentArgbCache.set( new FragmentArgbCache( assignment.getVersion() ) );
+	}
+
 	/**
 	 * Change the seed.
 	 *
@@ -69,6 +168,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setSeed( final long seed )
 	{
 		this.seed = seed;
+		clearFragmentCache();
 	}
 
 	/**
@@ -77,6 +177,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void incSeed()
 	{
 		++seed;
+		clearFragmentCache();
 	}
 
 	/**
@@ -85,6 +186,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void decSeed()
 	{
 		--seed;
+		clearFragmentCache();
 	}
 
 	/**
@@ -94,6 +196,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	{
 		activeFragment = fragmentId;
 		activeSegment = assignment.getSegment( fragmentId );
+		clearFragmentCache();
 	}
 
 
@@ -105,6 +208,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setAlpha( final int alpha )
 	{
 		this.alpha = alpha << 24;
+		clearFragmentCache();
 	}
 
 	/**
@@ -115,6 +219,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveFragmentAlpha( final int alpha )
 	{
 		this.activeFragmentAlpha = alpha << 24;
+		clearFragmentCache();
 	}
 
 	/**
@@ -125,10 +230,12 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveSegmentAlpha( final int alpha )
 	{
 		this.activeSegmentAlpha = alpha << 24;
+		clearFragmentCache();
 	}
 
 	public void clearCache()
 	{
-		argbCache.clear();
+		argbCache = new ConcurrentLongIntCache( CACHE_SIZE );
+		clearFragmentCache();
 	}
 }
\ No newline at end of file
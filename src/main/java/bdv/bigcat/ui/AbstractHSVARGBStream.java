@@ -18,6 +18,7 @@ package bdv.bigcat.ui;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.labels.labelset.Label;
+import bdv.util.ConcurrentLongIntCache;
 
 
 /**
@@ -34,16 +35,17 @@ abstract public class AbstractHSVARGBStream extends AbstractARGBStream
 	}
 
 	@Override
-	public int argb( final long fragmentId )
+	protected int argbUncached( final long fragmentId )
 	{
 		if ( fragmentId == Label.TRANSPARENT )
 			return 0;
 		final long segmentId = assignment.getSegment( fragmentId );
-		int argb = argbCache.get( segmentId );
+		final ConcurrentLongIntCache cache = argbCache;
+		int argb = cache.get( segmentId );
 		if ( argb == 0x00000000 )
 		{
 			argb = id2argb( seed + segmentId );
-			argbCache.put( segmentId, argb );
+			cache.put( segmentId, argb );
 		}
 		if ( activeFragment == fragmentId )
 			argb = argb & 0x00ffffff | activeFragmentAlpha;
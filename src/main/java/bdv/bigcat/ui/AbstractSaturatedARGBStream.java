@@ -18,6 +18,7 @@ package bdv.bigcat.ui;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.labels.labelset.Label;
+import bdv.util.ConcurrentLongIntCache;
 
 
 /**
@@ -39,11 +40,15 @@ abstract public class AbstractSaturatedARGBStream extends AbstractARGBStream
 		return ( int )( ( v * xs[ k ] + u * xs[ l ] ) * 255.0 + 0.5 );
 	}
 
-	@Override
-	public int argb( final long fragmentId )
+	/**
+	 * Get the color of a segment from {@link #argbCache} or generate it.
+	 *
+	 * @param segmentId
+	 */
+	protected int segmentArgb( final long segmentId )
 	{
-		final long segmentId = assignment.getSegment( fragmentId );
-		int argb = argbCache.get( segmentId );
+		final ConcurrentLongIntCache cache = argbCache;
+		int argb = cache.get( segmentId );
 		if ( argb == 0x00000000 )
 		{
 			double x = getDouble( seed + segmentId );
@@ -58,13 +63,17 @@ abstract public class AbstractSaturatedARGBStream extends AbstractARGBStream
 			final int b = interpolate( bs, k, l, u, v );
 
 			argb = argb( r, g, b, alpha );
-
-			synchronized ( argbCache )
-			{
-				argbCache.put( segmentId, argb );
-			}
+			cache.put( segmentId, argb );
 		}
-		if ( Label.INVALID == segmentId )
+		return argb;
+	}
+
+	@Override
+	protected int argbUncached( final long fragmentId )
+	{
+		final long segmentId = assignment.getSegment( fragmentId );
+		int argb = segmentArgb( segmentId );
+		if ( Label.INVALID == segmentId || Label.OTHER == fragmentId )
 			argb = argb & 0x00ffffff | invalidSegmentAlpha;
 		else if ( activeFragment == fragmentId )
 			argb = argb & 0x00ffffff | activeFragmentAlpha;
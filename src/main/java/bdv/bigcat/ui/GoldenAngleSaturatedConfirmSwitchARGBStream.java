@@ -44,12 +44,14 @@ public class GoldenAngleSaturatedConfirmSwitchARGBStream extends GoldenAngleSatu
 	public void toggleSwitch()
 	{
 		hideConfirmed = !hideConfirmed;
+		clearFragmentCache();
 	}
 
 	@Override
 	public void setSwitch( final boolean value )
 	{
 		hideConfirmed = value;
+		clearFragmentCache();
 	}
 
 	@Override
@@ -59,32 +61,12 @@ public class GoldenAngleSaturatedConfirmSwitchARGBStream extends GoldenAngleSatu
 	}
 
 	@Override
-	public int argb( final long fragmentId )
+	protected int argbUncached( final long fragmentId )
 	{
 		long segmentId = assignment.getSegment( fragmentId );
 		if ( Label.INVALID == segmentId && !hideConfirmed )
 			segmentId = fragmentId;
-		int argb = argbCache.get( segmentId );
-		if ( argb == 0x00000000 )
-		{
-			double x = getDouble( seed + segmentId );
-			x *= 6.0;
-			final int k = ( int )x;
-			final int l = k + 1;
-			final double u = x - k;
-			final double v = 1.0 - u;
-
-			final int r = interpolate( rs, k, l, u, v );
-			final int g = interpolate( gs, k, l, u, v );
-			final int b = interpolate( bs, k, l, u, v );
-
-			argb = argb( r, g, b, alpha );
-
-			synchronized ( argbCache )
-			{
-				argbCache.put( segmentId, argb );
-			}
-		}
+		int argb = segmentArgb( segmentId );
 		if ( Label.INVALID == segmentId )
 			argb = argb & 0x00ffffff | invalidSegmentAlpha;
 		else if ( activeFragment == fragmentId )
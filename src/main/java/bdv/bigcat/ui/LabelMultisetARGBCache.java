@@ -0,0 +1,119 @@
+package bdv.bigcat.ui;
+
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.util.ConcurrentLongIntCache;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Blends the colors of all entries of a {@link LabelMultisetType} weighted by
+ * their count and alpha, and caches the result per
+ * ({@link VolatileLabelMultisetArray cell}, list offset).
+ *
+ * Lists in a {@link VolatileLabelMultisetArray} are deduplicated, so
+ * neighbouring pixels often share a list offset and the blending is done only
+ * once per unique list instead of once per pixel and frame.  The cache is
+ * cleared, not reallocated, whenever the
+ * {@link ARGBStream#getGeneration() generation} of the {@link ARGBStream}
+ * changes.
+ */
+public class LabelMultisetARGBCache
+{
+	final static private double iFF = 1.0 / 255.0;
+
+	final static private int CACHE_SIZE = 1 << 18;
+
+	/**
+	 * Blending does not produce colors with zero alpha but non-zero RGB (and
+	 * if it did, they would only not be cached).
+	 */
+	final static private int NO_ENTRY = 0x00ffffff;
+
+	final protected ARGBStream argbStream;
+
+	final private ConcurrentLongIntCache cache = new ConcurrentLongIntCache( CACHE_SIZE, NO_ENTRY );
+
+	/**
+	 * {@link ARGBStream#getGeneration() generation} of the colors in
+	 * {@link #cache}
+	 */
+	private volatile long generation;
+
+	public LabelMultisetARGBCache( final ARGBStream argbStream )
+	{
+		this.argbStream = argbStream;
+		generation = argbStream.getGeneration();
+	}
+
+	/**
+	 * Clear the cache for a new generation of colors.
+	 */
+	synchronized private void clear( final long streamGeneration )
+	{
+		if ( generation != streamGeneration )
+		{
+			cache.clear();
+			generation = streamGeneration;
+		}
+	}
+
+	/**
+	 * Get the blended color of {@code labels} from the cache or blend it.
+	 *
+	 * @param labels
+	 */
+	public int argb( final LabelMultisetType labels )
+	{
+		final long streamGeneration = argbStream.getGeneration();
+		if ( generation != streamGeneration )
+			clear( streamGeneration );
+
+		final VolatileLabelMultisetArray access = labels.getAccess();
+		final long key = ( access.getSerialNumber() << 32 ) | ( labels.getListOffset() & 0xffffffffl );
+		int argb = cache.get( key );
+		if ( argb == NO_ENTRY )
+		{
+			argb = blend( labels, argbStream );
+			cache.put( key, argb );
+			/* if the colors changed while blending, the cache may have been cleared before the put */
+			if ( argbStream.getGeneration() != streamGeneration )
+				cache.remove( key );
+		}
+		return argb;
+	}
+
+	/**
+	 * Blend the colors of all entries of {@code labels} weighted by their
+	 * count and alpha.
+	 *
+	 * @param labels
+	 * @param argbStream
+	 */
+	public static int blend( final LabelMultisetType labels, final ARGBStream argbStream )
+	{
+		double a = 0;
+		double r = 0;
+		double g = 0;
+		double b = 0;
+		double alphaCountSize = 0;
+
+		final int n = labels.numEntries();
+		for ( int i = 0; i < n; ++i )
+		{
+			final int argb = argbStream.argb( labels.getEntryId( i ) );
+			final double alpha = ARGBType.alpha( argb );
+			final double alphaCount = alpha * iFF * labels.getEntryCount( i );
+			a += alphaCount * alpha;
+			r += alphaCount * ARGBType.red( argb );
+			g += alphaCount * ARGBType.green( argb );
+			b += alphaCount * ARGBType.blue( argb );
+			alphaCountSize += alphaCount;
+		}
+		final double iAlphaCountSize = 1.0 / alphaCountSize;
+		final int aInt = Math.min( 255, ( int )( a * iAlphaCountSize ) );
+		final int rInt = Math.min( 255, ( int )( r * iAlphaCountSize ) );
+		final int gInt = Math.min( 255, ( int )( g * iAlphaCountSize ) );
+		final int bInt = Math.min( 255, ( int )( b * iAlphaCountSize ) );
+		return ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt;
+	}
+}
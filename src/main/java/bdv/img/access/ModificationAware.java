@@ -47,4 +47,13 @@ public interface ModificationAware
 	 * @return
 	 */
 	public boolean modified();
+
+	/**
+	 * Mark this entity as not modified.  Modifications that happen after this
+	 * call are visible to the caller, such that an entity can be saved while
+	 * it is being modified by first resetting, then copying it.
+	 *
+	 * @return true if this entity had been modified
+	 */
+	public boolean resetModified();
 }
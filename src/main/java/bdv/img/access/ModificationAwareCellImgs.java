@@ -0,0 +1,91 @@
+package bdv.img.access;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.img.access.array.ModificationAwareLongArray;
+import net.imglib2.Cursor;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.AbstractCell;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.cell.DefaultCell;
+import net.imglib2.img.cell.ListImgCells;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Create {@link CellImg CellImgs} whose cells are {@link ModificationAware}
+ * and find the cells that have been modified since the last time they were
+ * {@link ModificationAware#resetModified() reset}.
+ */
+public class ModificationAwareCellImgs
+{
+	private ModificationAwareCellImgs() {}
+
+	/**
+	 * Create a {@link CellImg} of {@link LongType} backed by
+	 * {@link ModificationAwareLongArray ModificationAwareLongArrays}.
+	 *
+	 * @param dimensions
+	 * @param cellDimensions
+	 */
+	static public CellImg< LongType, LongArray, DefaultCell< LongArray > > longs(
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final ListImgCells< LongArray > cells = new ListImgCells< LongArray >(
+				new ModificationAwareLongArray( 1 ),
+				new Fraction(),
+				dimensions,
+				cellDimensions );
+		final CellImg< LongType, LongArray, DefaultCell< LongArray > > img =
+				new CellImg< LongType, LongArray, DefaultCell< LongArray > >(
+						new CellImgFactory< LongType >( cellDimensions ),
+						cells );
+		img.setLinkedType( new LongType( img ) );
+		return img;
+	}
+
+	/**
+	 * Reset the modification flag of all cells, e.g. after the img has been
+	 * loaded or saved entirely.
+	 *
+	 * @param img
+	 */
+	static public void resetModified( final CellImg< ?, ?, ? > img )
+	{
+		final Cursor< ? extends AbstractCell< ? > > cells = img.getCells().cursor();
+		while ( cells.hasNext() )
+		{
+			final Object data = cells.next().getData();
+			if ( data instanceof ModificationAware )
+				( ( ModificationAware ) data ).resetModified();
+		}
+	}
+
+	/**
+	 * Find all cells that have been modified.  This does not reset their
+	 * modification flag, use {@link ModificationAware#resetModified()} before
+	 * copying a cell's data.
+	 *
+	 * @param img
+	 *
+	 * @return the modified cells, cells that are not {@link ModificationAware}
+	 *         are always included
+	 */
+	static public < A extends ArrayDataAccess< A >, C extends AbstractCell< A > > List< C > modifiedCells( final CellImg< ?, A, C > img )
+	{
+		final ArrayList< C > modifiedCells = new ArrayList< C >();
+		final Cursor< C > cells = img.getCells().cursor();
+		while ( cells.hasNext() )
+		{
+			final C cell = cells.next();
+			final Object data = cell.getData();
+			if ( !( data instanceof ModificationAware ) || ( ( ModificationAware ) data ).modified() )
+				modifiedCells.add( cell );
+		}
+		return modifiedCells;
+	}
+}
@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.ByteArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareByteArray extends ByteArray implements Modificatio
 {
 	private static final long serialVersionUID = -9055013256166733337L;
 	
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareByteArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareByteArray extends ByteArray implements Modificatio
 	@Override
 	public void setValue( final int index, final byte value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareByteArray createArray( final int numEntities )
+	{
+		return new ModificationAwareByteArray( numEntities );
 	}
 }
@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.CharArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareCharArray extends CharArray implements Modificatio
 {
 	private static final long serialVersionUID = 5647021072396983410L;
 
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareCharArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareCharArray extends CharArray implements Modificatio
 	@Override
 	public void setValue( final int index, final char value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareCharArray createArray( final int numEntities )
+	{
+		return new ModificationAwareCharArray( numEntities );
 	}
 }
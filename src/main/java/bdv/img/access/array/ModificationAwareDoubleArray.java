@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.DoubleArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareDoubleArray extends DoubleArray implements Modific
 {
 	private static final long serialVersionUID = -9134989889433563465L;
 
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareDoubleArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareDoubleArray extends DoubleArray implements Modific
 	@Override
 	public void setValue( final int index, final double value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareDoubleArray createArray( final int numEntities )
+	{
+		return new ModificationAwareDoubleArray( numEntities );
 	}
 }
@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareFloatArray extends FloatArray implements Modificat
 {
 	private static final long serialVersionUID = 2300608226882302366L;
 
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareFloatArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareFloatArray extends FloatArray implements Modificat
 	@Override
 	public void setValue( final int index, final float value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareFloatArray createArray( final int numEntities )
+	{
+		return new ModificationAwareFloatArray( numEntities );
 	}
 }
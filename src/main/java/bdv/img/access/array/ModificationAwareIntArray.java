@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.IntArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareIntArray extends IntArray implements ModificationA
 {
 	private static final long serialVersionUID = -8607836922035505506L;
 
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareIntArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareIntArray extends IntArray implements ModificationA
 	@Override
 	public void setValue( final int index, final int value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareIntArray createArray( final int numEntities )
+	{
+		return new ModificationAwareIntArray( numEntities );
 	}
 }
@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.LongArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareLongArray extends LongArray implements Modificatio
 {
 	private static final long serialVersionUID = -4757866568025131615L;
 
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareLongArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareLongArray extends LongArray implements Modificatio
 	@Override
 	public void setValue( final int index, final long value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareLongArray createArray( final int numEntities )
+	{
+		return new ModificationAwareLongArray( numEntities );
 	}
 }
@@ -34,6 +34,8 @@
 
 package bdv.img.access.array;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import bdv.img.access.ModificationAware;
 import net.imglib2.img.basictypeaccess.array.ShortArray;
 
@@ -46,7 +48,7 @@ public class ModificationAwareShortArray extends ShortArray implements Modificat
 {
 	private static final long serialVersionUID = -2397179687986754262L;
 	
-	protected boolean modified = false;
+	final protected AtomicBoolean modified = new AtomicBoolean( false );
 
 	public ModificationAwareShortArray( final int numEntities )
 	{
@@ -61,13 +63,25 @@ public class ModificationAwareShortArray extends ShortArray implements Modificat
 	@Override
 	public void setValue( final int index, final short value )
 	{
-		modified = true;
 		data[ index ] = value;
+		modified.lazySet( true );
 	}
 
 	@Override
 	public boolean modified()
 	{
-		return modified;
+		return modified.get();
+	}
+
+	@Override
+	public boolean resetModified()
+	{
+		return modified.getAndSet( false );
+	}
+
+	@Override
+	public ModificationAwareShortArray createArray( final int numEntities )
+	{
+		return new ModificationAwareShortArray( numEntities );
 	}
 }
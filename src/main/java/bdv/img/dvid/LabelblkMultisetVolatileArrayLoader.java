@@ -6,11 +6,9 @@ import java.net.URL;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
-import bdv.labels.labelset.LabelMultisetEntry;
-import bdv.labels.labelset.LabelMultisetEntryList;
-import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.CompressedVolatileLabelMultisetArray;
+import bdv.labels.labelset.SingletonLabelMultisetDecoder;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import gnu.trove.list.array.TLongArrayList;
 
 /**
  * Loads a full resolution label block from a DVID labels64 source where each
@@ -46,61 +44,6 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 		return 8;
 	}
 
-	static private void readBlock(
-			final String urlString,
-			final int[] data,
-			final LongMappedAccessData listData ) throws IOException
-	{
-		final byte[] bytes = new byte[ data.length * 8 ];
-		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
-
-		int off = 0, l = 0;
-		do
-		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
-		}
-		while ( l > 0 && off < bytes.length );
-		in.close();
-
-		final TLongArrayList idAndOffsetList = new TLongArrayList();
-		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
-		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
-		long nextListOffset = 0;
-A:		for ( int i = 0, j = -1; i < data.length; ++i )
-		{
-			final long id =
-					( 0xffl & bytes[ ++j ] ) |
-					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 56 );
-
-			// does the list [id x 1] already exist?
-			for ( int k = 0; k < idAndOffsetList.size(); k += 2 )
-			{
-				if ( idAndOffsetList.getQuick( k ) == id )
-				{
-					final long offset = idAndOffsetList.getQuick( k + 1 );
-					data[ i ] = ( int ) offset;
-					continue A;
-				}
-			}
-
-			list.createListAt( listData, nextListOffset );
-			entry.setId( id );
-			list.add( entry );
-			idAndOffsetList.add( id );
-			idAndOffsetList.add( nextListOffset );
-			data[ i ] = ( int ) nextListOffset;
-			nextListOffset += list.getSizeInBytes();
-		}
-	}
-
 	private String makeUrl(
 			final long[] min,
 			final int[] dimensions )
@@ -152,13 +95,21 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 //				+ "   min = " + Util.printCoordinates( min ) + "\n"
 //				+ ")"
 //				);
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final VolatileLabelMultisetArray array;
 
 		try
 		{
-			final String urlString = makeUrl( min, dimensions );
-			readBlock( urlString, data, listData );
+			final URL url = new URL( makeUrl( min, dimensions ) );
+			final InputStream in = url.openStream();
+			try
+			{
+				array = SingletonLabelMultisetDecoder.decode( in, 8, numElements );
+			}
+			finally
+			{
+				in.close();
+			}
 		}
 		catch ( final IOException e )
 		{
@@ -170,7 +121,7 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 			return emptyArray( dimensions );
 		}
 
-		return new VolatileLabelMultisetArray( data, listData, true );
+		return CompressedVolatileLabelMultisetArray.compress( array );
 	}
 
 	@Override
@@ -1,35 +1,146 @@
 package bdv.img.h5;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
 import bdv.img.cache.CacheArrayLoader;
+import bdv.labels.labelset.CompressedVolatileLabelMultisetArray;
+import bdv.labels.labelset.DownscaleToHdf5.H5PackedPyramidWriter;
 import bdv.labels.labelset.LongMappedAccess;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
-import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.util.IntervalIndexer;
 
 /**
  * {@link CacheArrayLoader} for
  * Jan Funke's and other's h5 files
  *
+ * Blocks are kept {@link CompressedVolatileLabelMultisetArray compressed}.
+ *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
 abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
 {
 	protected VolatileLabelMultisetArray theEmptyArray;
 
-	protected final IHDF5IntReader scaleReader;
+	final protected H5ReaderPool readers;
+
+	final protected H5ReaderPool scaleReaders;
 
 	final protected String dataset;
 
+	/**
+	 * @param readers
+	 *            full resolution blocks are read through this pool
+	 * @param scaleReaders
+	 *            downscaled blocks are read through this pool, may be null
+	 * @param dataset
+	 */
 	public AbstractH5LabelMultisetArrayLoader(
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileLabelMultisetArray( 1, false );
-		this.scaleReader = ( scaleReader == null ) ? null : scaleReader.uint32();
+		this.readers = readers;
+		this.scaleReaders = scaleReaders;
 		this.dataset = dataset;
 	}
 
+	/**
+	 * Block index of a level stored in the packed layout written by
+	 * {@link H5PackedPyramidWriter}.
+	 */
+	static protected class PackedLevel
+	{
+		final protected String path;
+
+		final protected long[] numCells;
+
+		final protected long[] blocksize;
+
+		/**
+		 * (start, length) per block
+		 */
+		final protected long[] index;
+
+		protected PackedLevel( final String path, final long[] numCells, final long[] blocksize, final long[] index )
+		{
+			this.path = path;
+			this.numCells = numCells;
+			this.blocksize = blocksize;
+			this.index = index;
+		}
+	}
+
+	final static protected PackedLevel NOT_PACKED = new PackedLevel( null, null, null, null );
+
+	/**
+	 * Block indices of the levels read so far, {@link #NOT_PACKED} for levels
+	 * that store two datasets per block.
+	 */
+	final protected ConcurrentHashMap< Integer, PackedLevel > packedLevels = new ConcurrentHashMap< Integer, PackedLevel >();
+
+	protected PackedLevel packedLevel( final int level )
+	{
+		return packedLevels.computeIfAbsent( level, key -> {
+			final String indexPath = String.format( H5PackedPyramidWriter.INDEX_PATH_FORMAT, level );
+			return scaleReaders.read( indexPath, 0, r -> {
+				if ( !r.exists( indexPath ) )
+					return NOT_PACKED;
+
+				final long[] dimensions = r.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+				final long[] blocksize = r.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+				final long[] numCells = new long[ dimensions.length ];
+				for ( int d = 0; d < dimensions.length; ++d )
+					numCells[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ] + 1;
+				return new PackedLevel(
+						String.format( H5PackedPyramidWriter.PACKED_PATH_FORMAT, level ),
+						numCells,
+						blocksize,
+						r.uint64().readArray( indexPath ) );
+			} );
+		} );
+	}
+
+	/**
+	 * Load a block of the packed layout with a single read.
+	 */
+	protected VolatileLabelMultisetArray loadPackedArray(
+			final PackedLevel level,
+			final int[] dimensions,
+			final long[] min )
+	{
+		final long[] cellPosition = new long[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			cellPosition[ d ] = min[ d ] / level.blocksize[ d ];
+		final int i = 2 * ( int ) IntervalIndexer.positionToIndex( cellPosition, level.numCells );
+		final long start = level.index[ i ];
+		final int length = ( int ) level.index[ i + 1 ];
+		if ( length == 0 )
+		{
+			System.out.println(
+					"H5 label multiset array loader found no block at min = " +
+					Arrays.toString( min ) +
+					" in " + level.path );
+			return emptyArray( dimensions );
+		}
+
+		final int[] packed = scaleReaders.read(
+				level.path,
+				4l * length,
+				r -> r.uint32().readArrayBlockWithOffset( level.path, length, start ) );
+
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final int[] offsets = Arrays.copyOf( packed, numElements );
+		final int listsSize = length - numElements;
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listsSize * 4 );
+		final LongMappedAccess access = listData.createAccess();
+		for ( int j = 0; j < listsSize; ++j )
+			access.putInt( packed[ numElements + j ], j * 4 );
+		return new VolatileLabelMultisetArray( offsets, listData, listsSize * 4, true );
+	}
+
 	abstract protected VolatileLabelMultisetArray loadArrayLevel0(
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException;
@@ -43,18 +154,29 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 			final long[] min ) throws InterruptedException
 	{
 		if ( level == 0 )
-			return loadArrayLevel0( dimensions, min );
+			return CompressedVolatileLabelMultisetArray.compress( loadArrayLevel0( dimensions, min ) );
+
+		final PackedLevel packedLevel = packedLevel( level );
+		if ( packedLevel != NOT_PACKED )
+			return CompressedVolatileLabelMultisetArray.compress( loadPackedArray( packedLevel, dimensions, min ) );
 
 		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
 		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
 
-		final int[] offsets = scaleReader.readMDArray( dataPath ).getAsFlatArray();
-		final int[] lists = scaleReader.readArray( listsPath );
+		/* statistics per level, the size of the lists is not known in advance */
+		final int[][] offsetsAndLists = scaleReaders.read(
+				String.format( "l%02d", level ),
+				4l * dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ],
+				r -> new int[][]{
+					r.uint32().readMDArray( dataPath ).getAsFlatArray(),
+					r.uint32().readArray( listsPath ) } );
+		final int[] offsets = offsetsAndLists[ 0 ];
+		final int[] lists = offsetsAndLists[ 1 ];
 		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
 		final LongMappedAccess access = listData.createAccess();
 		for ( int i = 0; i < lists.length; ++i )
 			access.putInt( lists[ i ], i * 4 );
-		return new VolatileLabelMultisetArray( offsets, listData, 0, true );
+		return CompressedVolatileLabelMultisetArray.compress( new VolatileLabelMultisetArray( offsets, listData, lists.length * 4, true ) );
 	}
 
 	/**
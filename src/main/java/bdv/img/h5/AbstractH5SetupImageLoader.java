@@ -136,6 +136,14 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T > , V
 		return new AffineTransform3D[]{ mipmapTransform };
 	}
 
+	/**
+	 * @return the cell dimensions of all mipmap levels.
+	 */
+	public int[][] getBlockDimensions()
+	{
+		return new int[][]{ blockDimension };
+	}
+
 	@Override
 	public void setCache( final VolatileGlobalCellCache cache )
 	{
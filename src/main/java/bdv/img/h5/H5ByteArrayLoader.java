@@ -4,7 +4,6 @@ import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
-import ch.systemsx.cisd.hdf5.IHDF5ByteReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 
@@ -18,19 +17,31 @@ public class H5ByteArrayLoader implements CacheArrayLoader< VolatileByteArray >
 {
 	private VolatileByteArray theEmptyArray;
 
-	final private IHDF5ByteReader reader;
+	final private H5ReaderPool readers;
 
 	final private String dataset;
 
+	/**
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 */
 	public H5ByteArrayLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileByteArray( 1, false );
-		this.reader = reader.uint8();
+		this.readers = readers;
 		this.dataset = dataset;
 	}
 
+	public H5ByteArrayLoader(
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		this( H5ReaderPool.wrap( reader ), dataset );
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -47,10 +58,13 @@ public class H5ByteArrayLoader implements CacheArrayLoader< VolatileByteArray >
 			final long[] min ) throws InterruptedException
 	{
 		byte[] data = null;
-		final MDByteArray slice = reader.readMDArrayBlockWithOffset(
+		final MDByteArray slice = readers.read(
 				dataset,
-				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				( long )dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ],
+				r -> r.uint8().readMDArrayBlockWithOffset(
+						dataset,
+						new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
+						new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = slice.getAsFlatArray();
 
@@ -24,8 +24,18 @@ public class H5FloatSetupImageLoader
 	extends AbstractH5SetupImageLoader< FloatType, VolatileFloatType, VolatileFloatArray >
 	implements ViewerImgLoader
 {
+	/**
+	 * @param reader
+	 *            for meta data
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 */
 	public H5FloatSetupImageLoader(
 			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension ) throws IOException
@@ -37,7 +47,16 @@ public class H5FloatSetupImageLoader
 				blockDimension,
 				new FloatType(),
 				new VolatileFloatType(),
-				new H5FloatArrayLoader( reader, dataset ) );
+				new H5FloatArrayLoader( readers, dataset ) );
+	}
+
+	public H5FloatSetupImageLoader(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		this( reader, H5ReaderPool.wrap( reader ), dataset, setupId, blockDimension );
 	}
 
 	@Override
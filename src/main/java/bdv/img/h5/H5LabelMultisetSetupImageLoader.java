@@ -6,7 +6,9 @@ import bdv.ViewerSetupImgLoader;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.CachedCellImg;
 import bdv.img.cache.LoadingStrategy;
+import bdv.labels.labelset.DownscaleToHdf5;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LabelRetention;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import bdv.util.MipmapTransforms;
@@ -37,27 +39,47 @@ public class H5LabelMultisetSetupImageLoader
 
 	final private AffineTransform3D[] mipmapTransforms;
 
+	final private LabelRetention[] retentions;
+
 	static private CacheArrayLoader<VolatileLabelMultisetArray> typedLoader(
 			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset )
 	{
 		final HDF5DataSetInformation typeInfo = reader.object().getDataSetInformation( dataset );
 		final Class< ? > cls = typeInfo.getTypeInformation().tryGetJavaType();
 //		System.out.println( typeInfo.getTypeInformation().tryGetJavaType().toString() );
 		if ( short.class == cls )
-			return new H5ShortLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5ShortLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else if ( int.class == cls )
-			return new H5IntLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5IntLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else if ( long.class == cls )
-			return new H5LongLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5LongLabelMultisetArrayLoader( readers, scaleReaders, dataset );
 		else
 			return null;
 	}
 
+	/**
+	 * @param reader
+	 *            for meta data
+	 * @param scaleReader
+	 *            for meta data of the downscaled levels, may be null
+	 * @param readers
+	 *            full resolution blocks are read through this pool
+	 * @param scaleReaders
+	 *            downscaled blocks are read through this pool, may be null if
+	 *            {@code scaleReader} is null
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 * @param resolution
+	 */
 	public H5LabelMultisetSetupImageLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
@@ -71,7 +93,7 @@ public class H5LabelMultisetSetupImageLoader
 				resolution,
 				new LabelMultisetType(),
 				new VolatileLabelMultisetType(),
-				typedLoader( reader, scaleReader, dataset ) );
+				typedLoader( reader, readers, scaleReaders, dataset ) );
 
 		if ( scaleReader == null )
 		{
@@ -80,6 +102,7 @@ public class H5LabelMultisetSetupImageLoader
 			blockDimensions = new int[][] { blockDimension };
 			mipmapResolutions = new double[][] { resolution };
 			mipmapTransforms = new AffineTransform3D[] { mipmapTransform };
+			retentions = new LabelRetention[] { LabelRetention.ALL };
 		}
 		else
 		{
@@ -88,11 +111,13 @@ public class H5LabelMultisetSetupImageLoader
 			blockDimensions = new int[ numMipmapLevels ][];
 			mipmapResolutions = new double[ numMipmapLevels ][];
 			mipmapTransforms = new AffineTransform3D[ numMipmapLevels ];
+			retentions = new LabelRetention[ numMipmapLevels ];
 
 			dimensions[ 0 ] = dimension;
 			blockDimensions[ 0 ] = blockDimension;
 			mipmapResolutions[ 0 ] = resolution;
 			mipmapTransforms[ 0 ] = mipmapTransform;
+			retentions[ 0 ] = LabelRetention.ALL;
 
 			for ( int level = 1; level < numMipmapLevels; ++level )
 			{
@@ -113,11 +138,36 @@ public class H5LabelMultisetSetupImageLoader
 				mipmapTransforms[ level ].concatenate(
 						MipmapTransforms.getMipmapTransformDefault(
 								bdv.img.hdf5.Util.castToDoubles( Util.long2int( factors ) ) ) );
+
+				retentions[ level ] = DownscaleToHdf5.readRetention( scaleReader, level );
 			}
 		}
 	}
 
 
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension,
+			final double[] resolution ) throws IOException
+	{
+		this( reader, scaleReader, H5ReaderPool.wrap( reader ), H5ReaderPool.wrap( scaleReader ), dataset, setupId, blockDimension, resolution );
+	}
+
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		this( reader, scaleReader, readers, scaleReaders, dataset, setupId, blockDimension, readResolution( reader, dataset ) );
+	}
+
 	public H5LabelMultisetSetupImageLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
@@ -173,4 +223,32 @@ public class H5LabelMultisetSetupImageLoader
 	{
 		return mipmapTransforms;
 	}
+
+	@Override
+	public int[][] getBlockDimensions()
+	{
+		return blockDimensions;
+	}
+
+	/**
+	 * @return which labels were kept when {@code level} was downscaled.
+	 */
+	public LabelRetention getRetention( final int level )
+	{
+		return retentions[ level ];
+	}
+
+	/**
+	 * Levels are downscaled from finer levels, so {@code level} is
+	 * approximate if it or any finer level was downscaled lossily.
+	 *
+	 * @return whether the label multisets of {@code level} are approximate.
+	 */
+	public boolean isApproximate( final int level )
+	{
+		for ( int l = 1; l <= level; ++l )
+			if ( !retentions[ l ].isLossless() )
+				return true;
+		return false;
+	}
 }
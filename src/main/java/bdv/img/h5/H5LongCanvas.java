@@ -0,0 +1,547 @@
+package bdv.img.h5;
+
+import static bdv.img.hdf5.Util.reorder;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bdv.img.access.ModificationAware;
+import bdv.img.cache.CacheHints;
+import bdv.img.cache.CachedCellImg;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileImgCells;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import bdv.labels.labelset.Label;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5LongWriter;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5D;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5F;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5P;
+import ch.systemsx.cisd.hdf5.hdf5lib.H5S;
+import ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Writable painted label canvas backed by an HDF5 uint64 dataset.
+ *
+ * Cells are read from the dataset only when they are first accessed and are
+ * softly referenced such that unmodified cells can be garbage collected and
+ * re-read later.  Cells that have been modified are pinned until they have
+ * been {@link #save() saved}.  Cells that are not in the dataset or that
+ * contain only {@link Label#TRANSPARENT} share one read-only array per cell
+ * size, which is copied on the first write.
+ *
+ * Reading a cell blocks until it has been loaded, there are no invalid
+ * (volatile) cells.  While saving, cells are read through the writer,
+ * loading is paused only while the file is re-opened for writing.
+ */
+public class H5LongCanvas extends CachedCellImg< LongType, H5LongCanvas.CanvasArray >
+{
+	/**
+	 * {@link LongAccess} of a single cell.  Copy on write if it shares its
+	 * data with other cells, and pins itself in the cache on modification.
+	 */
+	static public class CanvasArray extends AbstractVolatileArray< CanvasArray > implements LongAccess, ModificationAware
+	{
+		protected volatile long[] data;
+
+		protected volatile boolean shared;
+
+		final protected AtomicBoolean modified = new AtomicBoolean( false );
+
+		protected volatile boolean pinned = false;
+
+		final protected CanvasCellCache cache;
+
+		final protected long cellIndex;
+
+		/**
+		 * strong reference to the cell such that it cannot be collected while
+		 * this array is in use
+		 */
+		protected VolatileCell< CanvasArray > cell;
+
+		protected CanvasArray(
+				final long[] data,
+				final boolean shared,
+				final CanvasCellCache cache,
+				final long cellIndex )
+		{
+			super( true );
+			this.data = data;
+			this.shared = shared;
+			this.cache = cache;
+			this.cellIndex = cellIndex;
+		}
+
+		public CanvasArray( final int numEntities )
+		{
+			this( new long[ numEntities ], false, null, -1 );
+		}
+
+		@Override
+		public long getValue( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		public void setValue( final int index, final long value )
+		{
+			/* shared must be read before data */
+			final long[] d = shared ? unshare() : data;
+			d[ index ] = value;
+			modified.set( true );
+			if ( !pinned && cache != null )
+				cache.pin( this );
+		}
+
+		synchronized protected long[] unshare()
+		{
+			if ( shared )
+			{
+				data = data.clone();
+				shared = false;
+			}
+			return data;
+		}
+
+		@Override
+		public boolean modified()
+		{
+			return modified.get();
+		}
+
+		@Override
+		public boolean resetModified()
+		{
+			return modified.getAndSet( false );
+		}
+
+		public boolean isShared()
+		{
+			return shared;
+		}
+
+		@Override
+		public CanvasArray createArray( final int numEntities )
+		{
+			return new CanvasArray( numEntities );
+		}
+
+		/**
+		 * Do not write into the returned array, it may be shared with other
+		 * cells.
+		 */
+		@Override
+		public long[] getCurrentStorageArray()
+		{
+			return data;
+		}
+	}
+
+	/**
+	 * Soft reference to a cached cell that knows its index, such that it
+	 * can be removed from the cache after the cell has been collected.
+	 */
+	static protected class CellReference extends SoftReference< VolatileCell< CanvasArray > >
+	{
+		final protected long index;
+
+		protected CellReference(
+				final long index,
+				final VolatileCell< CanvasArray > cell,
+				final ReferenceQueue< VolatileCell< CanvasArray > > queue )
+		{
+			super( cell, queue );
+			this.index = index;
+		}
+	}
+
+	static protected class CanvasCellCache implements CellCache< CanvasArray >
+	{
+		final protected File file;
+
+		final protected String dataset;
+
+		final protected long[] dimensions;
+
+		final protected int[] cellDimensions;
+
+		/**
+		 * reader of the dataset, the writer while saving
+		 */
+		protected IHDF5Reader reader = null;
+
+		/**
+		 * serializes saves
+		 */
+		final protected Object writerLock = new Object();
+
+		final protected ConcurrentHashMap< Long, CellReference > cells = new ConcurrentHashMap<>();
+
+		final protected ReferenceQueue< VolatileCell< CanvasArray > > collectedCells = new ReferenceQueue<>();
+
+		final protected ConcurrentHashMap< Long, VolatileCell< CanvasArray > > pinned = new ConcurrentHashMap<>();
+
+		final protected ConcurrentHashMap< Integer, long[] > transparentArrays = new ConcurrentHashMap<>();
+
+		protected CanvasCellCache(
+				final File file,
+				final String dataset,
+				final long[] dimensions,
+				final int[] cellDimensions )
+		{
+			this.file = file;
+			this.dataset = dataset;
+			this.dimensions = dimensions;
+			this.cellDimensions = cellDimensions;
+			open();
+		}
+
+		protected long[] transparentArray( final int numElements )
+		{
+			return transparentArrays.computeIfAbsent( numElements, k -> {
+				final long[] array = new long[ k ];
+				Arrays.fill( array, Label.TRANSPARENT );
+				return array;
+			} );
+		}
+
+		/**
+		 * Remove the entries of collected cells.
+		 */
+		protected void purge()
+		{
+			for ( Reference< ? extends VolatileCell< CanvasArray > > ref = collectedCells.poll(); ref != null; ref = collectedCells.poll() )
+				cells.remove( ( ( CellReference )ref ).index, ref );
+		}
+
+		@Override
+		public VolatileCell< CanvasArray > get( final long index )
+		{
+			final VolatileCell< CanvasArray > pinnedCell = pinned.get( index );
+			if ( pinnedCell != null )
+				return pinnedCell;
+			final CellReference ref = cells.get( index );
+			return ref == null ? null : ref.get();
+		}
+
+		@Override
+		public VolatileCell< CanvasArray > load( final long index, final int[] cellDims, final long[] cellMin )
+		{
+			VolatileCell< CanvasArray > cell = get( index );
+			if ( cell != null )
+				return cell;
+
+			purge();
+
+			int numElements = 1;
+			for ( final int d : cellDims )
+				numElements *= d;
+
+			long[] data = null;
+			synchronized ( this )
+			{
+				if ( reader != null )
+					data = reader.uint64().readMDArrayBlockWithOffset(
+							dataset,
+							reorder( cellDims ),
+							reorder( cellMin ) ).getAsFlatArray();
+			}
+
+			boolean transparent = true;
+			if ( data != null )
+				for ( int i = 0; i < data.length && transparent; ++i )
+					transparent = data[ i ] == Label.TRANSPARENT;
+
+			final CanvasArray array = transparent ?
+					new CanvasArray( transparentArray( numElements ), true, this, index ) :
+					new CanvasArray( data, false, this, index );
+			cell = new VolatileCell< CanvasArray >( cellDims, cellMin, array );
+			array.cell = cell;
+
+			/* another thread may have loaded the same cell in the meantime */
+			synchronized ( cells )
+			{
+				final VolatileCell< CanvasArray > existing = get( index );
+				if ( existing != null )
+					return existing;
+				cells.put( index, new CellReference( index, cell, collectedCells ) );
+			}
+			return cell;
+		}
+
+		@Override
+		public void setCacheHints( final CacheHints cacheHints )
+		{}
+
+		/**
+		 * Pin the array's cell.  The pinned map is updated before the flag,
+		 * and {@link #unpin(CanvasArray)} resets the flag before it checks
+		 * for modifications, so a modified array is always pinned.
+		 */
+		protected void pin( final CanvasArray array )
+		{
+			pinned.put( array.cellIndex, array.cell );
+			array.pinned = true;
+		}
+
+		protected void unpin( final CanvasArray array )
+		{
+			array.pinned = false;
+			pinned.remove( array.cellIndex, array.cell );
+			if ( array.modified() )
+				pin( array );
+		}
+
+		/**
+		 * Open the reader if the dataset exists.
+		 */
+		synchronized protected void open()
+		{
+			if ( reader == null && file.exists() )
+			{
+				final IHDF5Reader r = HDF5Factory.openForReading( file );
+				if ( r.exists( dataset ) )
+					reader = r;
+				else
+					r.close();
+			}
+		}
+
+		synchronized protected void close()
+		{
+			if ( reader != null )
+				reader.close();
+			reader = null;
+		}
+	}
+
+	final protected CanvasCellCache canvasCache;
+
+	protected H5LongCanvas( final CanvasCellCache canvasCache )
+	{
+		super( new VolatileImgCells< CanvasArray >( canvasCache, new Fraction(), canvasCache.dimensions, canvasCache.cellDimensions ) );
+		this.canvasCache = canvasCache;
+		setLinkedType( new LongType( this ) );
+	}
+
+	/**
+	 * @param file
+	 * @param dataset
+	 *            if it exists, its dimensions are used, otherwise the canvas
+	 *            is transparent and the dataset is created when it is saved
+	 *            for the first time
+	 * @param dimensions
+	 *            used if the dataset does not exist
+	 * @param cellDimensions
+	 */
+	public H5LongCanvas(
+			final File file,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		this( new CanvasCellCache( file, dataset, datasetDimensions( file, dataset, dimensions ), cellDimensions ) );
+	}
+
+	static protected long[] datasetDimensions( final File file, final String dataset, final long[] dimensions )
+	{
+		if ( !file.exists() )
+			return dimensions;
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		final long[] datasetDimensions = reader.exists( dataset ) ? reorder( reader.object().getDimensions( dataset ) ) : dimensions;
+		reader.close();
+		return datasetDimensions;
+	}
+
+	/**
+	 * @return the number of cells that have been modified and not yet saved
+	 */
+	public int getNumPinnedCells()
+	{
+		return canvasCache.pinned.size();
+	}
+
+	/**
+	 * @return the number of cells that are currently referenced by the
+	 *         cache, some of which may have been collected recently
+	 */
+	public int getNumCachedCells()
+	{
+		canvasCache.purge();
+		return canvasCache.cells.size();
+	}
+
+	/**
+	 * Save all modified cells into the dataset and unpin them.  Creates the
+	 * dataset with {@link Label#TRANSPARENT} as fill value if it does not
+	 * exist, such that only modified cells are stored.  Painting can continue
+	 * while saving, cells that are modified after they have been saved, or
+	 * that could not be saved, remain pinned and will be saved the next time.
+	 *
+	 * The modified cells are copied first, the copies are then written
+	 * while holding only the lock of the writer, cells that are not cached
+	 * are meanwhile loaded through the writer.
+	 *
+	 * @return the number of saved cells
+	 */
+	public long save()
+	{
+		synchronized ( canvasCache.writerLock )
+		{
+			/* reset before copying such that concurrent modifications are saved next time */
+			final ArrayList< VolatileCell< CanvasArray > > modifiedCells = new ArrayList<>();
+			final ArrayList< long[] > copies = new ArrayList<>();
+			for ( final VolatileCell< CanvasArray > cell : new ArrayList<>( canvasCache.pinned.values() ) )
+			{
+				final CanvasArray array = cell.getData();
+				if ( array.resetModified() )
+				{
+					modifiedCells.add( cell );
+					copies.add( array.data.clone() );
+				}
+				else
+					canvasCache.unpin( array );
+			}
+
+			final IHDF5Writer writer;
+			synchronized ( canvasCache )
+			{
+				/* the writer has to be opened while the reader is closed */
+				canvasCache.close();
+				try
+				{
+					createTransparentDataset( canvasCache.file, canvasCache.dataset, canvasCache.dimensions, canvasCache.cellDimensions );
+					writer = HDF5Factory.open( canvasCache.file );
+				}
+				catch ( final RuntimeException e )
+				{
+					for ( final VolatileCell< CanvasArray > cell : modifiedCells )
+						cell.getData().modified.set( true );
+					canvasCache.open();
+					throw e;
+				}
+				canvasCache.reader = writer;
+			}
+
+			int i = 0;
+			try
+			{
+				final int n = numDimensions();
+				final IHDF5LongWriter uint64Writer = writer.uint64();
+				for ( ; i < modifiedCells.size(); ++i )
+				{
+					final VolatileCell< CanvasArray > cell = modifiedCells.get( i );
+					final int[] cellDims = new int[ n ];
+					final long[] cellMin = new long[ n ];
+					cell.dimensions( cellDims );
+					cell.min( cellMin );
+					uint64Writer.writeMDArrayBlockWithOffset(
+							canvasCache.dataset,
+							new MDLongArray( copies.get( i ), reorder( cellDims ) ),
+							reorder( cellMin ) );
+					canvasCache.unpin( cell.getData() );
+				}
+				return modifiedCells.size();
+			}
+			finally
+			{
+				/* cells that were not written remain modified */
+				for ( ; i < modifiedCells.size(); ++i )
+					modifiedCells.get( i ).getData().modified.set( true );
+
+				synchronized ( canvasCache )
+				{
+					canvasCache.reader = null;
+					writer.close();
+					canvasCache.open();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a chunked uint64 dataset with {@link Label#TRANSPARENT} as fill
+	 * value if it does not exist.  Chunks that have never been written are
+	 * not stored and read as {@link Label#TRANSPARENT}.  The fill value
+	 * cannot be set through the JHDF5 high-level API, so the dataset is
+	 * created with the low-level API.
+	 */
+	static protected void createTransparentDataset(
+			final File file,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		try
+		{
+			if ( writer.exists( dataset ) )
+				return;
+			final int i = dataset.lastIndexOf( '/' );
+			if ( i > 0 && !writer.exists( dataset.substring( 0, i ) ) )
+				writer.object().createGroup( dataset.substring( 0, i ) );
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		final int n = dimensions.length;
+		final long[] chunkDimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			chunkDimensions[ d ] = Math.min( cellDimensions[ d ], dimensions[ d ] );
+		final byte[] fillValue = new byte[ 8 ];
+		Arrays.fill( fillValue, ( byte )( Label.TRANSPARENT & 0xff ) );
+
+		final int fileId = H5F.H5Fopen( file.getAbsolutePath(), HDF5Constants.H5F_ACC_RDWR, HDF5Constants.H5P_DEFAULT );
+		try
+		{
+			final int spaceId = H5S.H5Screate_simple( n, reorder( dimensions ), null );
+			try
+			{
+				final int propertiesId = H5P.H5Pcreate( HDF5Constants.H5P_DATASET_CREATE );
+				try
+				{
+					H5P.H5Pset_chunk( propertiesId, n, reorder( chunkDimensions ) );
+					H5P.H5Pset_deflate( propertiesId, 6 );
+					H5P.H5Pset_fill_value( propertiesId, HDF5Constants.H5T_NATIVE_UINT64, fillValue );
+					H5D.H5Dclose( H5D.H5Dcreate(
+							fileId,
+							dataset,
+							HDF5Constants.H5T_STD_U64LE,
+							spaceId,
+							HDF5Constants.H5P_DEFAULT,
+							propertiesId,
+							HDF5Constants.H5P_DEFAULT ) );
+				}
+				finally
+				{
+					H5P.H5Pclose( propertiesId );
+				}
+			}
+			finally
+			{
+				H5S.H5Sclose( spaceId );
+			}
+		}
+		finally
+		{
+			H5F.H5Fclose( fileId );
+		}
+	}
+}
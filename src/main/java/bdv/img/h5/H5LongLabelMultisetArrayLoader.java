@@ -3,15 +3,10 @@ package bdv.img.h5;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
-import bdv.labels.labelset.LabelMultisetEntry;
-import bdv.labels.labelset.LabelMultisetEntryList;
-import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.SingletonLabelMultisetDecoder;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDLongArray;
-import ch.systemsx.cisd.hdf5.IHDF5LongReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
 
 /**
  * {@link CacheArrayLoader} for simple HDF5 files
@@ -20,15 +15,20 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5LongLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5LongReader reader;
+	public H5LongLabelMultisetArrayLoader(
+			final H5ReaderPool readers,
+			final H5ReaderPool scaleReaders,
+			final String dataset )
+	{
+		super( readers, scaleReaders, dataset );
+	}
 
 	public H5LongLabelMultisetArrayLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.uint64();
+		this( H5ReaderPool.wrap( reader ), H5ReaderPool.wrap( scaleReader ), dataset );
 	}
 
 	@Override
@@ -44,10 +44,13 @@ public class H5LongLabelMultisetArrayLoader extends AbstractH5LabelMultisetArray
 	{
 		long[] data = null;
 
-		final MDLongArray block = reader.readMDArrayBlockWithOffset(
+		final MDLongArray block = readers.read(
 				dataset,
-				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				8 * ( long )dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ],
+				r -> r.uint64().readMDArrayBlockWithOffset(
+						dataset,
+						new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
+						new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -62,39 +65,6 @@ public class H5LongLabelMultisetArrayLoader extends AbstractH5LabelMultisetArray
 			data = new long[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		}
 
-		final int[] offsets = new int[ dimensions[ 2 ] * dimensions[ 1 ] * dimensions[ 0 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
-		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
-		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
-		int nextListOffset = 0;
-		final TLongIntHashMap idOffsetHash = new TLongIntHashMap(
-				Constants.DEFAULT_CAPACITY,
-				Constants.DEFAULT_LOAD_FACTOR,
-				-1,
-				-1 );
-A:		for ( int i = 0; i < data.length; ++i )
-		{
-			final long id = data[ i ];
-
-//			does the list [id x 1] already exist?
-			final int offset = idOffsetHash.get( id );
-			if ( offset == idOffsetHash.getNoEntryValue() )
-			{
-				list.createListAt( listData, nextListOffset );
-				entry.setId( id );
-				list.add( entry );
-				offsets[ i ] = nextListOffset;
-				idOffsetHash.put( id, nextListOffset );
-				nextListOffset += list.getSizeInBytes();
-			}
-			else
-			{
-				offsets[ i ] = offset;
-				continue A;
-			}
-		}
-//		System.out.println( listData.size() );
-
-		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+		return SingletonLabelMultisetDecoder.decode( data );
 	}
 }
@@ -0,0 +1,282 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Read access to an HDF5 file for concurrent cache fetcher threads.
+ *
+ * An {@link IHDF5Reader} must not be used by several threads at the same
+ * time.  The pool opens up to {@code maxReaders} readers for the file and
+ * pins one to each thread that reads through it, such that the fetcher
+ * threads do not queue behind a single reader.  Threads beyond
+ * {@code maxReaders} share the existing readers round robin, and every read
+ * holds the lock of its reader.
+ *
+ * Reads are recorded per dataset: number of reads, bytes, time spent reading,
+ * and time spent waiting for the reader.
+ *
+ * Note that JHDF5 serializes calls into the native HDF5 library unless it was
+ * built thread-safe, so reads scale with threads only as far as the work
+ * around the native calls (decompression in Java, conversion) goes.
+ */
+public class H5ReaderPool
+{
+	/**
+	 * A read from an {@link IHDF5Reader} that is used by no other thread
+	 * while the read runs.
+	 */
+	public interface Read< T >
+	{
+		public T read( IHDF5Reader reader );
+	}
+
+	static public class Statistics
+	{
+		final protected AtomicLong numReads = new AtomicLong();
+
+		final protected AtomicLong numBytes = new AtomicLong();
+
+		final protected AtomicLong readNanos = new AtomicLong();
+
+		final protected AtomicLong waitNanos = new AtomicLong();
+
+		protected void add( final long bytes, final long wait, final long read )
+		{
+			numReads.incrementAndGet();
+			numBytes.addAndGet( bytes );
+			waitNanos.addAndGet( wait );
+			readNanos.addAndGet( read );
+		}
+
+		public long getNumReads()
+		{
+			return numReads.get();
+		}
+
+		public long getNumBytes()
+		{
+			return numBytes.get();
+		}
+
+		/**
+		 * @return total time spent reading in ns
+		 */
+		public long getReadNanos()
+		{
+			return readNanos.get();
+		}
+
+		/**
+		 * @return total time spent waiting for a reader in ns
+		 */
+		public long getWaitNanos()
+		{
+			return waitNanos.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			final long n = Math.max( 1, getNumReads() );
+			return String.format(
+					"%d reads, %.1f MB, %.3f ms/read, %.3f ms wait/read, %.1f MB/s",
+					getNumReads(),
+					getNumBytes() / 1e6,
+					getReadNanos() / 1e6 / n,
+					getWaitNanos() / 1e6 / n,
+					getNumBytes() * 1e3 / Math.max( 1, getReadNanos() ) );
+		}
+	}
+
+	final protected File file;
+
+	final protected int maxReaders;
+
+	/**
+	 * readers opened by this pool, guarded by {@code this}
+	 */
+	final protected ArrayList< IHDF5Reader > readers = new ArrayList< IHDF5Reader >();
+
+	final protected boolean ownsReaders;
+
+	protected int nextSharedReader = 0;
+
+	protected volatile boolean closed = false;
+
+	final protected ThreadLocal< IHDF5Reader > pinnedReaders = new ThreadLocal< IHDF5Reader >();
+
+	final protected ConcurrentHashMap< String, Statistics > statistics = new ConcurrentHashMap< String, Statistics >();
+
+	/**
+	 * @param file
+	 * @param maxReaders
+	 *            maximum number of readers that are opened
+	 */
+	public H5ReaderPool( final File file, final int maxReaders )
+	{
+		this.file = file;
+		this.maxReaders = Math.max( 1, maxReaders );
+		ownsReaders = true;
+	}
+
+	/**
+	 * Up to one reader per available processor.
+	 *
+	 * @param path
+	 */
+	public H5ReaderPool( final String path )
+	{
+		this( new File( path ), Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * A pool that shares {@code reader} between all threads.  It is not
+	 * closed by {@link #close()}.
+	 *
+	 * @param reader
+	 */
+	protected H5ReaderPool( final IHDF5Reader reader )
+	{
+		file = reader.file().getFile();
+		maxReaders = 1;
+		readers.add( reader );
+		ownsReaders = false;
+	}
+
+	/**
+	 * Access an existing reader through the pool interface, all reads are
+	 * serialized.
+	 *
+	 * @param reader
+	 *
+	 * @return a pool of {@code reader} or null if {@code reader} is null
+	 */
+	static public H5ReaderPool wrap( final IHDF5Reader reader )
+	{
+		return reader == null ? null : new H5ReaderPool( reader );
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the reader pinned to the current thread, pins one if there is
+	 *         none yet
+	 */
+	protected IHDF5Reader reader()
+	{
+		if ( closed )
+			throw new IllegalStateException( "Reader pool for " + file + " is closed." );
+		IHDF5Reader reader = pinnedReaders.get();
+		if ( reader == null )
+		{
+			synchronized ( this )
+			{
+				if ( closed )
+					throw new IllegalStateException( "Reader pool for " + file + " is closed." );
+				if ( readers.size() < maxReaders )
+				{
+					reader = HDF5Factory.openForReading( file );
+					readers.add( reader );
+				}
+				else
+					reader = readers.get( nextSharedReader++ % readers.size() );
+			}
+			pinnedReaders.set( reader );
+		}
+		return reader;
+	}
+
+	protected Statistics statistics( final String dataset )
+	{
+		Statistics s = statistics.get( dataset );
+		if ( s == null )
+		{
+			final Statistics newStatistics = new Statistics();
+			s = statistics.putIfAbsent( dataset, newStatistics );
+			if ( s == null )
+				s = newStatistics;
+		}
+		return s;
+	}
+
+	/**
+	 * Run {@code read} with the reader pinned to the current thread.
+	 *
+	 * @param dataset
+	 *            the statistics are recorded for
+	 * @param numBytes
+	 *            number of bytes read, for statistics
+	 * @param read
+	 *
+	 * @return the result of {@code read}
+	 */
+	public < T > T read( final String dataset, final long numBytes, final Read< T > read )
+	{
+		final IHDF5Reader reader = reader();
+		final long t0 = System.nanoTime();
+		synchronized ( reader )
+		{
+			final long t1 = System.nanoTime();
+			try
+			{
+				return read.read( reader );
+			}
+			finally
+			{
+				statistics( dataset ).add( numBytes, t1 - t0, System.nanoTime() - t1 );
+			}
+		}
+	}
+
+	/**
+	 * @return the number of readers currently open
+	 */
+	synchronized public int getNumReaders()
+	{
+		return readers.size();
+	}
+
+	/**
+	 * @return read statistics by dataset
+	 */
+	public Map< String, Statistics > getStatistics()
+	{
+		return new TreeMap< String, Statistics >( statistics );
+	}
+
+	public void printStatistics()
+	{
+		System.out.println( "Reads from " + file + " through " + getNumReaders() + " readers:" );
+		for ( final Map.Entry< String, Statistics > entry : getStatistics().entrySet() )
+			System.out.println( "  " + entry.getKey() + ": " + entry.getValue() );
+	}
+
+	/**
+	 * Close all readers opened by this pool.  Reading through the pool
+	 * afterwards fails.
+	 */
+	synchronized public void close()
+	{
+		closed = true;
+		if ( ownsReaders )
+			for ( final IHDF5Reader reader : readers )
+			{
+				synchronized ( reader )
+				{
+					reader.close();
+				}
+			}
+		readers.clear();
+	}
+}
@@ -5,7 +5,6 @@ import java.util.Arrays;
 import bdv.img.cache.CacheArrayLoader;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import ch.systemsx.cisd.hdf5.IHDF5ShortReader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 
 /**
@@ -18,19 +17,31 @@ public class H5ShortArrayLoader implements CacheArrayLoader< VolatileShortArray
 {
 	private VolatileShortArray theEmptyArray;
 
-	final private IHDF5ShortReader reader;
+	final private H5ReaderPool readers;
 
 	final private String dataset;
 
+	/**
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 */
 	public H5ShortArrayLoader(
-			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileShortArray( 1, false );
-		this.reader = reader.int16();
+		this.readers = readers;
 		this.dataset = dataset;
 	}
 
+	public H5ShortArrayLoader(
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		this( H5ReaderPool.wrap( reader ), dataset );
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -47,10 +58,13 @@ public class H5ShortArrayLoader implements CacheArrayLoader< VolatileShortArray
 			final long[] min ) throws InterruptedException
 	{
 		short[] data = null;
-		final MDShortArray slice = reader.readMDArrayBlockWithOffset(
+		final MDShortArray slice = readers.read(
 				dataset,
-				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				2 * ( long )dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ],
+				r -> r.int16().readMDArrayBlockWithOffset(
+						dataset,
+						new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
+						new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = slice.getAsFlatArray();
 
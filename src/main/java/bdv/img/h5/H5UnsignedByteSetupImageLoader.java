@@ -21,8 +21,19 @@ import net.imglib2.type.volatiles.VolatileUnsignedByteType;
 public class H5UnsignedByteSetupImageLoader
 	extends AbstractH5SetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray >
 {
+	/**
+	 * @param reader
+	 *            for meta data
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 * @param resolution
+	 */
 	public H5UnsignedByteSetupImageLoader(
 			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
@@ -36,13 +47,33 @@ public class H5UnsignedByteSetupImageLoader
 				resolution,
 				new UnsignedByteType(),
 				new VolatileUnsignedByteType(),
-				new H5ByteArrayLoader( reader, dataset ) );
+				new H5ByteArrayLoader( readers, dataset ) );
 	}
 
 	public H5UnsignedByteSetupImageLoader(
 			final IHDF5Reader reader,
 			final String dataset,
 			final int setupId,
+			final int[] blockDimension,
+			final double[] resolution ) throws IOException
+	{
+		this( reader, H5ReaderPool.wrap( reader ), dataset, setupId, blockDimension, resolution );
+	}
+
+	/**
+	 * @param reader
+	 *            for meta data
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 */
+	public H5UnsignedByteSetupImageLoader(
+			final IHDF5Reader reader,
+			final H5ReaderPool readers,
+			final String dataset,
+			final int setupId,
 			final int[] blockDimension ) throws IOException
 	{
 		super(
@@ -52,7 +83,16 @@ public class H5UnsignedByteSetupImageLoader
 				blockDimension,
 				new UnsignedByteType(),
 				new VolatileUnsignedByteType(),
-				new H5ByteArrayLoader( reader, dataset ) );
+				new H5ByteArrayLoader( readers, dataset ) );
+	}
+
+	public H5UnsignedByteSetupImageLoader(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		this( reader, H5ReaderPool.wrap( reader ), dataset, setupId, blockDimension );
 	}
 
 	@Override
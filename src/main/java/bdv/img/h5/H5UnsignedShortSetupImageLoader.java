@@ -21,8 +21,18 @@ import net.imglib2.type.volatiles.VolatileUnsignedShortType;
 public class H5UnsignedShortSetupImageLoader
 	extends AbstractH5SetupImageLoader< UnsignedShortType, VolatileUnsignedShortType, VolatileShortArray >
 {
+	/**
+	 * @param reader
+	 *            for meta data
+	 * @param readers
+	 *            blocks are read through this pool
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 */
 	public H5UnsignedShortSetupImageLoader(
 			final IHDF5Reader reader,
+			final H5ReaderPool readers,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension ) throws IOException
@@ -34,7 +44,16 @@ public class H5UnsignedShortSetupImageLoader
 				blockDimension,
 				new UnsignedShortType(),
 				new VolatileUnsignedShortType(),
-				new H5ShortArrayLoader( reader, dataset ) );
+				new H5ShortArrayLoader( readers, dataset ) );
+	}
+
+	public H5UnsignedShortSetupImageLoader(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		this( reader, H5ReaderPool.wrap( reader ), dataset, setupId, blockDimension );
 	}
 
 	@Override
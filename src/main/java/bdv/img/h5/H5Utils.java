@@ -6,6 +6,8 @@ import java.io.File;
 import java.util.Arrays;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.access.ModificationAware;
+import bdv.img.access.ModificationAwareCellImgs;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultiset;
 import bdv.labels.labelset.LabelMultisetType;
@@ -14,21 +16,27 @@ import ch.systemsx.cisd.base.mdarray.MDLongArray;
 import ch.systemsx.cisd.hdf5.HDF5DataTypeInformation;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5StorageLayout;
 import ch.systemsx.cisd.hdf5.IHDF5ByteWriter;
 import ch.systemsx.cisd.hdf5.IHDF5LongReader;
 import ch.systemsx.cisd.hdf5.IHDF5LongWriter;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.cell.AbstractCell;
 import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Intervals;
@@ -58,6 +66,9 @@ public class H5Utils
 
 	/**
 	 * Load an HDF5 uint64 dataset into a {@link CellImg} of {@link LongType}.
+	 * The cells are {@link ModificationAware} such that only modified cells
+	 * can be saved with
+	 * {@link #saveModifiedUnsignedLong(CellImg, File, String, int[])}.
 	 *
 	 * @param file
 	 * @param dataset
@@ -74,7 +85,7 @@ public class H5Utils
 		final long[] dimensions = reorder( reader.object().getDimensions( dataset ) );
 		final int n = dimensions.length;
 
-		final CellImg< LongType, ?, ? > target = new CellImgFactory< LongType >( cellDimensions ).create( dimensions, new LongType() );
+		final CellImg< LongType, ?, ? > target = ModificationAwareCellImgs.longs( dimensions, cellDimensions );
 
 		final long[] offset = new long[ n ];
 		final long[] targetCellDimensions = new long[ n ];
@@ -104,6 +115,8 @@ public class H5Utils
 		}
 		reader.close();
 
+		ModificationAwareCellImgs.resetModified( target );
+
 		return target;
 	}
 	
@@ -213,6 +226,74 @@ public class H5Utils
 		writer.close();
 	}
 
+	/**
+	 * Save the {@link ModificationAware#modified() modified} cells of a
+	 * {@link CellImg} of {@link LongType} into an HDF5 uint64 dataset, cells
+	 * that are not {@link ModificationAware} are always saved.  If the
+	 * dataset does not exist yet, it is created and all cells are saved.
+	 *
+	 * The modification flag of each cell is reset before its data is copied,
+	 * so the img can be modified while it is being saved, modifications that
+	 * are missed will be saved the next time.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 *            chunk size of the dataset if it has to be created
+	 *
+	 * @return the number of saved cells
+	 */
+	static public long saveModifiedUnsignedLong(
+			final CellImg< LongType, ?, ? > source,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions )
+	{
+		final int n = source.numDimensions();
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		final boolean saveAll = !writer.exists( dataset );
+		if ( saveAll )
+			uint64Writer.createMDArray(
+					dataset,
+					reorder( Intervals.dimensionsAsLongArray( source ) ),
+					reorder( cellDimensions ),
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+
+		final long[] min = new long[ n ];
+		final int[] dimensions = new int[ n ];
+		long numSavedCells = 0;
+		final Cursor< ? extends AbstractCell< ? > > cells = source.getCells().cursor();
+		while ( cells.hasNext() )
+		{
+			final AbstractCell< ? > cell = cells.next();
+			final Object access = cell.getData();
+			if ( access instanceof ModificationAware && !( ( ModificationAware ) access ).resetModified() && !saveAll )
+				continue;
+
+			cell.min( min );
+			cell.dimensions( dimensions );
+			int numElements = 1;
+			for ( int d = 0; d < n; ++d )
+				numElements *= dimensions[ d ];
+
+			final LongAccess longAccess = ( LongAccess ) access;
+			final long[] data = new long[ numElements ];
+			for ( int i = 0; i < numElements; ++i )
+				data[ i ] = longAccess.getValue( i );
+
+			uint64Writer.writeMDArrayBlockWithOffset(
+					dataset,
+					new MDLongArray( data, reorder( dimensions ) ),
+					reorder( min ) );
+			++numSavedCells;
+		}
+		writer.close();
+
+		return numSavedCells;
+	}
+
 	/**
 	 * Save the combination of a single element {@link LabelMultiset} source
 	 * and a {@link LongType} overlay with transparent pixels into an HDF5
@@ -325,38 +406,83 @@ public class H5Utils
 	}
 
 	/**
-	 * Load a long to long lookup table from an HDF5 dataset
+	 * Dataset of the deltas appended to the lookup table in {@code dataset}
+	 * by {@link #appendLongLongLutDeltas(TLongLongHashMap, IHDF5Writer, String, int)}.
+	 *
+	 * @param dataset
+	 */
+	static public String lutDeltasDataset( final String dataset )
+	{
+		return dataset + "_deltas";
+	}
+
+	/**
+	 * Dataset that a replacing lookup table is written to by
+	 * {@link #replaceLongLongLut(TLongLongHashMap, IHDF5Writer, String, int)}
+	 * before it is moved to {@code dataset}.
+	 *
+	 * @param dataset
+	 */
+	static private String lutReplacementDataset( final String dataset )
+	{
+		return dataset + "_new";
+	}
+
+	/**
+	 * Dataset that holds the lookup table {@code dataset}.  If the process
+	 * died while {@code dataset} was being replaced, this is the complete
+	 * replacement.
+	 *
+	 * @return the dataset, or null if there is none
+	 */
+	static private String lutBaseDataset( final IHDF5Reader reader, final String dataset )
+	{
+		if ( reader.exists( dataset ) )
+			return dataset;
+		final String replacementDataset = lutReplacementDataset( dataset );
+		if ( reader.exists( replacementDataset ) )
+			return replacementDataset;
+		return null;
+	}
+
+	/**
+	 * Number of entries of a [2, n] lookup table dataset, or 0 if it does not
+	 * exist.
 	 *
 	 * @param reader
 	 * @param dataset
-	 * @param blockSize
 	 */
-	static public TLongLongHashMap loadLongLongLut(
+	static public long lutSize( final IHDF5Reader reader, final String dataset )
+	{
+		if ( !reader.exists( dataset ) )
+			return 0;
+		final long[] dimensions = reader.object().getDimensions( dataset );
+		return dimensions.length == 2 && dimensions[ 0 ] == 2 ? dimensions[ 1 ] : 0;
+	}
+
+	/**
+	 * Put all entries of a [2, n] uint64 dataset into {@code lut} in order.
+	 *
+	 * @return false if the dataset is not a lookup table
+	 */
+	static private boolean readLongLongLut(
 			final IHDF5Reader reader,
 			final String dataset,
-			final int blockSize )
+			final int blockSize,
+			final TLongLongHashMap lut )
 	{
 		final IHDF5LongReader uint64Reader = reader.uint64();
 
-		if ( !reader.exists( dataset ) )
-			return null;
-
 		final long[] dimensions = reader.object().getDimensions( dataset );
 		if ( !( dimensions.length == 2 && dimensions[ 0 ] == 2 ) )
 		{
 			System.err.println( "LUT is not a lookup table, dimensions = " + Arrays.toString( dimensions ) );
-			return null;
+			return false;
 		}
 
 		final long size = dimensions[ 1 ];
 
-		final TLongLongHashMap lut = new TLongLongHashMap(
-				Constants.DEFAULT_CAPACITY,
-				Constants.DEFAULT_LOAD_FACTOR,
-				Label.TRANSPARENT,
-				Label.TRANSPARENT );
-
-		for ( int offset = 0; offset < size; offset += blockSize )
+		for ( long offset = 0; offset < size; offset += blockSize )
 		{
 			final MDLongArray block = uint64Reader.readMDArrayBlockWithOffset(
 					dataset,
@@ -368,6 +494,45 @@ public class H5Utils
 
 		}
 
+		return true;
+	}
+
+	/**
+	 * Load a long to long lookup table from an HDF5 dataset and apply the
+	 * deltas that were appended to it by
+	 * {@link #appendLongLongLutDeltas(TLongLongHashMap, IHDF5Writer, String, int)},
+	 * later deltas overriding earlier ones.
+	 *
+	 * @param reader
+	 * @param dataset
+	 * @param blockSize
+	 */
+	static public TLongLongHashMap loadLongLongLut(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int blockSize )
+	{
+		final String deltasDataset = lutDeltasDataset( dataset );
+		final String baseDataset = lutBaseDataset( reader, dataset );
+		final boolean hasBase = baseDataset != null;
+		final boolean hasDeltas = reader.exists( deltasDataset );
+		if ( !( hasBase || hasDeltas ) )
+			return null;
+
+		final long size = ( hasBase ? lutSize( reader, baseDataset ) : 0 ) + lutSize( reader, deltasDataset );
+
+		final TLongLongHashMap lut = new TLongLongHashMap(
+				( int )Math.min( Integer.MAX_VALUE / 2, Math.max( Constants.DEFAULT_CAPACITY, size ) ),
+				Constants.DEFAULT_LOAD_FACTOR,
+				Label.TRANSPARENT,
+				Label.TRANSPARENT );
+
+		if ( hasBase && !readLongLongLut( reader, baseDataset, blockSize, lut ) )
+			return null;
+
+		if ( hasDeltas && !readLongLongLut( reader, deltasDataset, blockSize, lut ) )
+			return null;
+
 		return lut;
 	}
 
@@ -420,19 +585,32 @@ public class H5Utils
 			final IHDF5Writer writer,
 			final String dataset,
 			final int blockSize )
+	{
+		writeLongLongLut( lut, lut.keys(), writer, dataset, blockSize );
+	}
+
+	/**
+	 * Write the entries of {@code lut} for {@code keys} into the rows of
+	 * an HDF5 uint64 dataset in the order of {@code keys}.
+	 */
+	static private void writeLongLongLut(
+			final TLongLongHashMap lut,
+			final long[] keys,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int blockSize )
 	{
 		final IHDF5LongWriter uint64Writer = writer.uint64();
 		if ( !writer.exists( dataset ) )
 			uint64Writer.createMDArray(
 					dataset,
-					new long[]{ 2, lut.size() },
+					new long[]{ 2, keys.length },
 					new int[]{ 2, blockSize },
 					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
 
-		final long[] keys = lut.keys();
-		for ( int offset = 0, i = 0; offset < lut.size(); offset += blockSize )
+		for ( int offset = 0, i = 0; offset < keys.length; offset += blockSize )
 		{
-			final int size = Math.min( blockSize, lut.size() - offset );
+			final int size = Math.min( blockSize, keys.length - offset );
 			final MDLongArray targetCell = new MDLongArray( new int[]{ 2, size } );
 			for ( int j = 0; j < size; ++j, ++i )
 			{
@@ -444,6 +622,203 @@ public class H5Utils
 		}
 	}
 
+	/**
+	 * Whether two lookup tables have the same entries.
+	 */
+	static private boolean sameLut( final TLongLongHashMap lut1, final TLongLongHashMap lut2 )
+	{
+		if ( lut2 == null || lut1.size() != lut2.size() )
+			return false;
+		final TLongLongIterator iterator = lut1.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			if ( !lut2.containsKey( iterator.key() ) || lut2.get( iterator.key() ) != iterator.value() )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Keys of a [2, n] lookup table dataset in the order of its rows
+	 * followed by the keys of {@code lut} that are not in the dataset.
+	 */
+	static private long[] lutRowOrder(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int blockSize,
+			final TLongLongHashMap lut )
+	{
+		final IHDF5LongReader uint64Reader = reader.uint64();
+		final long size = lutSize( reader, dataset );
+		final TLongArrayList keys = new TLongArrayList( ( int )Math.max( size, lut.size() ) );
+		final TLongHashSet rowKeys = new TLongHashSet( ( int )size );
+		for ( long offset = 0; offset < size; offset += blockSize )
+		{
+			final MDLongArray block = uint64Reader.readMDArrayBlockWithOffset(
+					dataset,
+					new int[]{ 1, ( int )Math.min( blockSize, size - offset ) },
+					new long[]{ 0, offset } );
+			for ( int i = 0; i < block.size( 1 ); ++i )
+			{
+				keys.add( block.get( 0, i ) );
+				rowKeys.add( block.get( 0, i ) );
+			}
+		}
+		for ( final long key : lut.keys() )
+			if ( !rowKeys.contains( key ) )
+				keys.add( key );
+		return keys.toArray();
+	}
+
+	/**
+	 * Append changed entries of a long to long lookup table to the extendable
+	 * uint64 dataset {@link #lutDeltasDataset(String) &lt;dataset&gt;_deltas},
+	 * such that saving costs as much as the number of changes and not the
+	 * size of the lookup table.
+	 * {@link #loadLongLongLut(IHDF5Reader, String, int)} applies the deltas
+	 * after loading {@code dataset}, {@link #compactLongLongLut(IHDF5Writer, String, int)}
+	 * merges them into {@code dataset}.
+	 *
+	 * @param deltas
+	 * @param writer
+	 * @param dataset
+	 * @param blockSize
+	 */
+	static public void appendLongLongLutDeltas(
+			final TLongLongHashMap deltas,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int blockSize )
+	{
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		final String deltasDataset = lutDeltasDataset( dataset );
+		if ( !writer.exists( deltasDataset ) )
+			uint64Writer.createMDArray(
+					deltasDataset,
+					new long[]{ 2, 0 },
+					new int[]{ 2, blockSize },
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+
+		final long size = lutSize( writer, deltasDataset );
+		final long[] keys = deltas.keys();
+		for ( int offset = 0, i = 0; offset < keys.length; offset += blockSize )
+		{
+			final int n = Math.min( blockSize, keys.length - offset );
+			final MDLongArray targetCell = new MDLongArray( new int[]{ 2, n } );
+			for ( int j = 0; j < n; ++j, ++i )
+			{
+				targetCell.set( keys[ i ], 0, j );
+				targetCell.set( deltas.get( keys[ i ] ), 1, j );
+			}
+
+			uint64Writer.writeMDArrayBlockWithOffset( deltasDataset, targetCell, new long[]{ 0, size + offset } );
+		}
+	}
+
+	/**
+	 * Merge the deltas of a long to long lookup table into its dataset and
+	 * remove them, see
+	 * {@link #replaceLongLongLut(TLongLongHashMap, IHDF5Writer, String, int)}.
+	 *
+	 * @param writer
+	 * @param dataset
+	 * @param blockSize
+	 * @return the compacted lookup table
+	 */
+	static public TLongLongHashMap compactLongLongLut(
+			final IHDF5Writer writer,
+			final String dataset,
+			final int blockSize )
+	{
+		final TLongLongHashMap lut = loadLongLongLut( writer, dataset, blockSize );
+		if ( lut == null )
+			return null;
+
+		replaceLongLongLut( lut, writer, dataset, blockSize );
+		return lut;
+	}
+
+	/**
+	 * Replace a long to long lookup table and its deltas by {@code lut}.
+	 *
+	 * If {@code lut} is the current lookup table with its deltas applied,
+	 * e.g. when compacting, the lookup table is overwritten in place such
+	 * that the file does not grow by a lookup table on every compaction.
+	 * The rows keep their keys, only their values change, and new keys are
+	 * appended.  The deltas are removed after that, so if the process dies
+	 * while overwriting, every row has its old or its new value and the
+	 * deltas still override all rows whose value changed.
+	 *
+	 * Other lookup tables are written next to the old one first and then
+	 * replace it, attributes of the old one are not kept.
+	 * {@link #loadLongLongLut(IHDF5Reader, String, int)} falls back to the
+	 * new lookup table if the process died after the old one was deleted.
+	 *
+	 * @param lut
+	 * @param writer
+	 * @param dataset
+	 * @param blockSize
+	 */
+	static public void replaceLongLongLut(
+			final TLongLongHashMap lut,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int blockSize )
+	{
+		final String newDataset = lutReplacementDataset( dataset );
+		if ( !writer.exists( dataset ) && writer.exists( newDataset ) )
+			writer.object().move( newDataset, dataset );
+
+		final long size = lutSize( writer, dataset );
+		long[] rowOrder = null;
+		if ( size > 0 && sameLut( lut, loadLongLongLut( writer, dataset, blockSize ) ) )
+		{
+			rowOrder = lutRowOrder( writer, dataset, blockSize, lut );
+			/* contiguous datasets cannot be extended */
+			if ( rowOrder.length != size && writer.object().getDataSetInformation( dataset ).getStorageLayout() != HDF5StorageLayout.CHUNKED )
+				rowOrder = null;
+		}
+
+		if ( rowOrder != null )
+			writeLongLongLut( lut, rowOrder, writer, dataset, blockSize );
+		else
+		{
+			if ( writer.exists( newDataset ) )
+				writer.object().delete( newDataset );
+			saveLongLongLut( lut, writer, newDataset, blockSize );
+			if ( writer.exists( dataset ) )
+				writer.object().delete( dataset );
+			writer.object().move( newDataset, dataset );
+		}
+
+		final String deltasDataset = lutDeltasDataset( dataset );
+		if ( writer.exists( deltasDataset ) )
+			writer.object().delete( deltasDataset );
+		/* left over from an interrupted replacement */
+		if ( writer.exists( newDataset ) )
+			writer.object().delete( newDataset );
+	}
+
+	/**
+	 * Replace a long to long lookup table and its deltas by {@code lut}.
+	 *
+	 * @param lut
+	 * @param filePath
+	 * @param dataset
+	 * @param blockSize
+	 */
+	static public void replaceLongLongLut(
+			final TLongLongHashMap lut,
+			final String filePath,
+			final String dataset,
+			final int blockSize )
+	{
+		final IHDF5Writer writer = HDF5Factory.open( filePath );
+		replaceLongLongLut( lut, writer, dataset, blockSize );
+		writer.close();
+	}
+
 	/**
 	 * Save a long to long lookup table into an HDF5 uint64 dataset.
 	 *
@@ -0,0 +1,58 @@
+package bdv.labels.labelset;
+
+/**
+ * A {@link MappedAccessData} that is accessed through {@link LongMappedAccess}.
+ * Implementations differ in where the bytes live, see
+ * {@link LongMappedAccessData} ({@code long[]} on the heap) and
+ * {@link DirectLongMappedAccessData} (direct buffers off the heap).
+ *
+ * Positions are absolute byte offsets into the container.  Values are stored
+ * in native byte order.
+ */
+public abstract class AbstractLongMappedAccessData implements MappedAccessData< LongMappedAccess >
+{
+	@Override
+	public LongMappedAccess createAccess()
+	{
+		return new LongMappedAccess( this, 0 );
+	}
+
+	@Override
+	public void updateAccess( final LongMappedAccess access, final long baseOffset )
+	{
+		access.setDataArray( this );
+		access.setBaseOffset( baseOffset );
+	}
+
+	abstract void putByte( final byte value, final long position );
+
+	abstract byte getByte( final long position );
+
+	abstract void putInt( final int value, final long position );
+
+	abstract int getInt( final long position );
+
+	abstract void putLong( final long value, final long position );
+
+	abstract long getLong( final long position );
+
+	/**
+	 * Copy {@code numBytes} from {@code src} at {@code srcPosition} to this
+	 * container at {@code position}.  Overlapping regions of the same
+	 * container are copied as if through a temporary buffer.
+	 */
+	void copyFrom( final AbstractLongMappedAccessData src, final long srcPosition, final long position, final int numBytes )
+	{
+		if ( src == this && srcPosition < position && position < srcPosition + numBytes )
+			for ( int i = numBytes - 1; i >= 0; --i )
+				putByte( src.getByte( srcPosition + i ), position + i );
+		else
+		{
+			int i = 0;
+			for ( ; i + ByteUtils.LONG_SIZE <= numBytes; i += ByteUtils.LONG_SIZE )
+				putLong( src.getLong( srcPosition + i ), position + i );
+			for ( ; i < numBytes; ++i )
+				putByte( src.getByte( srcPosition + i ), position + i );
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package bdv.labels.labelset;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * A {@link VolatileLabelMultisetArray} that stores the list offsets of its
+ * voxels as a palette of the distinct offsets and a bit-packed palette index
+ * per voxel.
+ *
+ * Lists are deduplicated, so a block references few distinct offsets, most
+ * blocks of real segmentations only a handful.  Indices take 0, 1, 2, 4, 8,
+ * or 16 bits per voxel instead of 32, such that an index never crosses a
+ * {@code long} and is decoded with one shift and mask.  A block with a
+ * single list stores no indices at all.
+ *
+ * The list data is shared with the source array, or copied to its used size
+ * if that is known and the source over-allocated it.
+ */
+public class CompressedVolatileLabelMultisetArray extends VolatileLabelMultisetArray
+{
+	/**
+	 * Blocks with more distinct lists than this are not compressed.
+	 */
+	final static public int MAX_PALETTE_SIZE = 1 << 16;
+
+	final private int numElements;
+
+	final private int[] palette;
+
+	/**
+	 * log2 of the bits per index, -1 for a single list
+	 */
+	final private int bitsShift;
+
+	/**
+	 * log2 of the indices per {@code long}
+	 */
+	final private int indicesShift;
+
+	final private int indicesPerLongMask;
+
+	final private int indexMask;
+
+	final private long[] indices;
+
+	private CompressedVolatileLabelMultisetArray(
+			final int numElements,
+			final int[] palette,
+			final int bitsShift,
+			final long[] indices,
+			final MappedAccessData< LongMappedAccess > listData,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid )
+	{
+		super( listData, listDataUsedSizeInBytes, isValid );
+		this.numElements = numElements;
+		this.palette = palette;
+		this.bitsShift = bitsShift;
+		this.indices = indices;
+		indicesShift = 6 - bitsShift;
+		indicesPerLongMask = ( 1 << indicesShift ) - 1;
+		indexMask = bitsShift < 0 ? 0 : ( int ) ( ( 1l << ( 1 << bitsShift ) ) - 1 );
+	}
+
+	/**
+	 * Compress {@code array}.
+	 *
+	 * @return the compressed array, or {@code array} itself if it is
+	 *         compressed already or references more than
+	 *         {@link #MAX_PALETTE_SIZE} distinct lists
+	 */
+	static public VolatileLabelMultisetArray compress( final VolatileLabelMultisetArray array )
+	{
+		if ( array instanceof CompressedVolatileLabelMultisetArray )
+			return array;
+
+		final int[] data = array.getCurrentStorageArray();
+		final TIntIntHashMap paletteIndices = new TIntIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+		final TIntArrayList palette = new TIntArrayList();
+
+		/* only look up offsets that differ from their predecessor, voxels mostly come in runs */
+		for ( int i = 0, previous = -1; i < data.length; ++i )
+		{
+			final int offset = data[ i ];
+			if ( i != 0 && offset == previous )
+				continue;
+			previous = offset;
+			if ( !paletteIndices.containsKey( offset ) )
+			{
+				if ( palette.size() == MAX_PALETTE_SIZE )
+					return array;
+				paletteIndices.put( offset, palette.size() );
+				palette.add( offset );
+			}
+		}
+
+		/* smallest power of two number of bits that indexes the palette */
+		int bitsShift = -1;
+		if ( palette.size() > 1 )
+		{
+			bitsShift = 0;
+			while ( palette.size() > 1 << ( 1 << bitsShift ) )
+				++bitsShift;
+		}
+
+		final long[] indices;
+		if ( bitsShift < 0 )
+			indices = new long[ 0 ];
+		else
+		{
+			final int indicesShift = 6 - bitsShift;
+			final int indicesPerLongMask = ( 1 << indicesShift ) - 1;
+			indices = new long[ ( data.length + indicesPerLongMask ) >>> indicesShift ];
+			for ( int i = 0, previous = -1, index = 0; i < data.length; ++i )
+			{
+				final int offset = data[ i ];
+				if ( i == 0 || offset != previous )
+				{
+					previous = offset;
+					index = paletteIndices.get( offset );
+				}
+				indices[ i >>> indicesShift ] |= ( long ) index << ( ( i & indicesPerLongMask ) << bitsShift );
+			}
+		}
+
+		return new CompressedVolatileLabelMultisetArray(
+				data.length,
+				palette.toArray(),
+				bitsShift,
+				indices,
+				trim( array.getListData(), array.getListDataUsedSizeInBytes() ),
+				array.getListDataUsedSizeInBytes(),
+				array.isValid() );
+	}
+
+	/**
+	 * Copy {@code listData} to {@code usedSizeInBytes} if it is larger.
+	 * A used size of 0 or less is unknown (or wrong, for arrays that were
+	 * created with a default list) and leaves {@code listData} as it is.
+	 */
+	static private MappedAccessData< LongMappedAccess > trim(
+			final MappedAccessData< LongMappedAccess > listData,
+			final long usedSizeInBytes )
+	{
+		if ( usedSizeInBytes <= 0 || !( listData instanceof LongMappedAccessData ) || listData.size() <= usedSizeInBytes )
+			return listData;
+
+		final LongMappedAccessData trimmed = LongMappedAccessData.factory.createStorage( usedSizeInBytes );
+		final long[] trimmedData = trimmed.getData();
+		System.arraycopy( ( ( LongMappedAccessData ) listData ).getData(), 0, trimmedData, 0, trimmedData.length );
+		return trimmed;
+	}
+
+	@Override
+	public void getValue( final int index, final LabelMultisetEntryList ref )
+	{
+		ref.referToDataAt( getListData(), getListOffset( index ) );
+	}
+
+	@Override
+	public int getListOffset( final int index )
+	{
+		if ( bitsShift < 0 )
+			return palette[ 0 ];
+		final long word = indices[ index >>> indicesShift ];
+		return palette[ ( int ) ( word >>> ( ( index & indicesPerLongMask ) << bitsShift ) ) & indexMask ];
+	}
+
+	/**
+	 * @return a decoded copy of the list offsets, changes to it do not
+	 *         affect this array
+	 */
+	@Override
+	public int[] getCurrentStorageArray()
+	{
+		final int[] data = new int[ numElements ];
+		for ( int i = 0; i < numElements; ++i )
+			data[ i ] = getListOffset( i );
+		return data;
+	}
+
+	/**
+	 * @return the number of distinct lists referenced by this array
+	 */
+	public int getPaletteSize()
+	{
+		return palette.length;
+	}
+
+	/**
+	 * @return the number of bits per voxel index, 0 if all voxels reference
+	 *         the same list
+	 */
+	public int getBitsPerIndex()
+	{
+		return bitsShift < 0 ? 0 : 1 << bitsShift;
+	}
+
+	@Override
+	public long getSizeInBytes()
+	{
+		return 4l * palette.length + 8l * indices.length + getListData().size();
+	}
+}
@@ -0,0 +1,203 @@
+package bdv.labels.labelset;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link MappedAccessData} that stores its bytes off the heap in direct
+ * {@link ByteBuffer ByteBuffers}.
+ *
+ * The storage is a sequence of chunks that double in size, the first chunk
+ * has the initial size rounded up to a power of two.  {@link #resize(long)
+ * Growing} appends chunks and never copies existing data, and the list data
+ * of a block adds only a few small objects to the heap regardless of its
+ * size.  A value that straddles two chunks is read and written byte by byte.
+ *
+ * The memory is released when the buffers are garbage collected, and counts
+ * against {@code -XX:MaxDirectMemorySize}.
+ */
+public class DirectLongMappedAccessData extends AbstractLongMappedAccessData
+{
+	/**
+	 * Minimum size of the first chunk.
+	 */
+	final static public int MIN_CHUNK_SIZE = 1 << 12;
+
+	final static private int MAX_NUM_CHUNKS = 32;
+
+	final static private boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * log2 of the size of the first chunk
+	 */
+	final private int firstChunkShift;
+
+	final private long firstChunkSize;
+
+	final private ByteBuffer[] chunks = new ByteBuffer[ MAX_NUM_CHUNKS ];
+
+	private int numChunks = 0;
+
+	private long size;
+
+	private DirectLongMappedAccessData( final long size )
+	{
+		int shift = 0;
+		while ( ( 1l << shift ) < Math.max( MIN_CHUNK_SIZE, size ) )
+			++shift;
+		if ( shift > 30 )
+			throw new IllegalArgumentException(
+					"trying to create a " + getClass().getName() + " with a first chunk of more than " + ( 1 << 30 ) + " bytes." );
+		firstChunkShift = shift;
+		firstChunkSize = 1l << shift;
+		resize( size );
+	}
+
+	/**
+	 * @return the number of bytes allocated in chunks
+	 */
+	public long capacity()
+	{
+		return ( firstChunkSize << numChunks ) - firstChunkSize;
+	}
+
+	@Override
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc} Chunks are appended or dropped, the contents of the
+	 * remaining chunks are not copied.
+	 */
+	@Override
+	public void resize( final long size )
+	{
+		while ( capacity() < size || numChunks == 0 )
+		{
+			if ( numChunks == MAX_NUM_CHUNKS || firstChunkShift + numChunks > 30 )
+				throw new IllegalArgumentException(
+						"trying to resize a " + getClass().getName() + " to " + size + " bytes." );
+			chunks[ numChunks ] = ByteBuffer.allocateDirect( ( int ) ( firstChunkSize << numChunks ) ).order( ByteOrder.nativeOrder() );
+			++numChunks;
+		}
+		while ( numChunks > 1 && ( firstChunkSize << ( numChunks - 1 ) ) - firstChunkSize >= size )
+			chunks[ --numChunks ] = null;
+		this.size = size;
+	}
+
+	/**
+	 * @return index of the chunk that contains {@code position}
+	 */
+	private int chunk( final long position )
+	{
+		return 63 - Long.numberOfLeadingZeros( ( position >>> firstChunkShift ) + 1 );
+	}
+
+	/**
+	 * @return offset of {@code position} in chunk {@code k}
+	 */
+	private int offsetInChunk( final long position, final int k )
+	{
+		return ( int ) ( position + firstChunkSize - ( firstChunkSize << k ) );
+	}
+
+	private long getBytes( final long position, final int numBytes )
+	{
+		long value = 0;
+		for ( int i = 0; i < numBytes; ++i )
+		{
+			final long b = getByte( position + i ) & 0xffl;
+			value |= LITTLE_ENDIAN ? b << ( 8 * i ) : b << ( 8 * ( numBytes - 1 - i ) );
+		}
+		return value;
+	}
+
+	private void putBytes( final long value, final long position, final int numBytes )
+	{
+		for ( int i = 0; i < numBytes; ++i )
+			putByte( ( byte ) ( LITTLE_ENDIAN ? value >>> ( 8 * i ) : value >>> ( 8 * ( numBytes - 1 - i ) ) ), position + i );
+	}
+
+	@Override
+	void putByte( final byte value, final long position )
+	{
+		final int k = chunk( position );
+		chunks[ k ].put( offsetInChunk( position, k ), value );
+	}
+
+	@Override
+	byte getByte( final long position )
+	{
+		final int k = chunk( position );
+		return chunks[ k ].get( offsetInChunk( position, k ) );
+	}
+
+	@Override
+	void putInt( final int value, final long position )
+	{
+		final int k = chunk( position );
+		final int offset = offsetInChunk( position, k );
+		final ByteBuffer chunk = chunks[ k ];
+		if ( offset <= chunk.capacity() - ByteUtils.INT_SIZE )
+			chunk.putInt( offset, value );
+		else
+			putBytes( value, position, ByteUtils.INT_SIZE );
+	}
+
+	@Override
+	int getInt( final long position )
+	{
+		final int k = chunk( position );
+		final int offset = offsetInChunk( position, k );
+		final ByteBuffer chunk = chunks[ k ];
+		if ( offset <= chunk.capacity() - ByteUtils.INT_SIZE )
+			return chunk.getInt( offset );
+		else
+			return ( int ) getBytes( position, ByteUtils.INT_SIZE );
+	}
+
+	@Override
+	void putLong( final long value, final long position )
+	{
+		final int k = chunk( position );
+		final int offset = offsetInChunk( position, k );
+		final ByteBuffer chunk = chunks[ k ];
+		if ( offset <= chunk.capacity() - ByteUtils.LONG_SIZE )
+			chunk.putLong( offset, value );
+		else
+			putBytes( value, position, ByteUtils.LONG_SIZE );
+	}
+
+	@Override
+	long getLong( final long position )
+	{
+		final int k = chunk( position );
+		final int offset = offsetInChunk( position, k );
+		final ByteBuffer chunk = chunks[ k ];
+		if ( offset <= chunk.capacity() - ByteUtils.LONG_SIZE )
+			return chunk.getLong( offset );
+		else
+			return getBytes( position, ByteUtils.LONG_SIZE );
+	}
+
+	/**
+	 * A factory for {@link DirectLongMappedAccessData}s.
+	 */
+	public static final MappedAccessData.Factory< DirectLongMappedAccessData, LongMappedAccess > factory =
+			new MappedAccessData.Factory< DirectLongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public DirectLongMappedAccessData createStorage( final long size )
+				{
+					return new DirectLongMappedAccessData( size );
+				}
+
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+}
@@ -0,0 +1,384 @@
+package bdv.labels.labelset;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * {@link LabelMultisetBlockCache} that stores one file per block below a root
+ * directory, with a cap on the total size of all files.
+ *
+ * <p>
+ * Blocks are stored as a 32 byte header (magic number, format version, number
+ * of elements, used list data size, CRC32 of the payload) followed by the
+ * {@code int[]} offsets and the {@code long[]} list data in native byte order.
+ * They are read back through memory mapping and bulk copied into the
+ * {@code int[]} and {@link LongMappedAccessData}. Files with wrong magic
+ * number (e.g. written with different byte order), version, size or checksum
+ * are treated as missing.
+ *
+ * <p>
+ * Several instances (also in different processes) can share the same root
+ * directory: blocks are written to a temporary file that is atomically moved
+ * into place, reads update the file modification time which serves as LRU
+ * stamp, and eviction holds an exclusive lock on a lock file in the root
+ * directory.
+ */
+public class DiskLabelMultisetBlockCache implements LabelMultisetBlockCache
+{
+	private static final int MAGIC = 0x4c4d4243; // "LMBC"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+
+	private static final String LOCK_FILE_NAME = ".lock";
+
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+
+	/**
+	 * When the size cap is exceeded, least recently used files are deleted
+	 * until the total size is below this fraction of the cap.
+	 */
+	private static final double EVICT_TO_FRACTION = 0.9;
+
+	/**
+	 * {@link FileChannel#lock()} is held on behalf of the whole JVM, so
+	 * instances in the same JVM must not try to acquire it concurrently.
+	 */
+	private static final Object evictionLock = new Object();
+
+	private final Path root;
+
+	private final long maxSizeInBytes;
+
+	/**
+	 * Approximate total size of all files in the cache. Other processes
+	 * sharing the directory are only accounted for when {@link #evict()}
+	 * re-scans the directory.
+	 */
+	private final AtomicLong sizeInBytes;
+
+	/**
+	 * @param root
+	 *            root directory of the cache.
+	 * @param maxSizeInBytes
+	 *            cap on the total size of all cached files.
+	 */
+	public DiskLabelMultisetBlockCache( final Path root, final long maxSizeInBytes )
+	{
+		this.root = root;
+		this.maxSizeInBytes = maxSizeInBytes;
+		this.sizeInBytes = new AtomicLong( 0 );
+		try
+		{
+			Files.createDirectories( root );
+			sizeInBytes.set( scan( new ArrayList< CachedFile >() ) );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Cache in {@code <java.io.tmpdir>/labelcache}, limited to 1GB.
+	 */
+	public DiskLabelMultisetBlockCache()
+	{
+		this( Paths.get( System.getProperty( "java.io.tmpdir" ), "labelcache" ), 1l << 30 );
+	}
+
+	public Path getRoot()
+	{
+		return root;
+	}
+
+	public long getMaxSizeInBytes()
+	{
+		return maxSizeInBytes;
+	}
+
+	Path getPath( final Key key )
+	{
+		final long[] min = key.getMin();
+		final StringBuilder name = new StringBuilder();
+		name.append( key.getTimepoint() ).append( '_' ).append( key.getSetup() );
+		for ( final long m : min )
+			name.append( '_' ).append( m );
+		return root
+				.resolve( datasetDirectoryName( key.getDatasetId(), key.getModificationStamp() ) )
+				.resolve( String.format( "l%02d", key.getLevel() ) )
+				.resolve( name.toString() );
+	}
+
+	private static String datasetDirectoryName( final String datasetId, final long modificationStamp )
+	{
+		try
+		{
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			digest.update( datasetId.getBytes( StandardCharsets.UTF_8 ) );
+			final byte[] hash = digest.digest( Long.toString( modificationStamp ).getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : hash )
+				hex.append( String.format( "%02x", b ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	@Override
+	public VolatileLabelMultisetArray get( final Key key, final int numElements )
+	{
+		final Path path = getPath( key );
+		try ( final FileChannel channel = FileChannel.open( path, READ ) )
+		{
+			final long fileSize = channel.size();
+			if ( fileSize < HEADER_SIZE )
+				return null;
+
+			final MappedByteBuffer buffer = channel.map( MapMode.READ_ONLY, 0, fileSize );
+			buffer.order( ByteOrder.nativeOrder() );
+			if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION || buffer.getInt( 8 ) != numElements )
+				return null;
+
+			final long listDataSize = buffer.getLong( 16 );
+			final int numListDataLongs = ( int ) ( ( listDataSize + ByteUtils.LONG_SIZE - 1 ) / ByteUtils.LONG_SIZE );
+			if ( fileSize != HEADER_SIZE + 4l * numElements + 8l * numListDataLongs )
+				return null;
+
+			buffer.position( HEADER_SIZE );
+			final CRC32 crc = new CRC32();
+			crc.update( buffer );
+			if ( crc.getValue() != buffer.getLong( 24 ) )
+				return null;
+
+			final int[] data = new int[ numElements ];
+			buffer.position( HEADER_SIZE );
+			buffer.asIntBuffer().get( data );
+
+			final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listDataSize );
+			buffer.position( HEADER_SIZE + 4 * numElements );
+			buffer.asLongBuffer().get( listData.data, 0, numListDataLongs );
+
+			touch( path );
+			return new VolatileLabelMultisetArray( data, listData, listDataSize, true );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public void put( final Key key, final VolatileLabelMultisetArray block )
+	{
+		final int[] data = block.getCurrentStorageArray();
+		final MappedAccessData< LongMappedAccess > listData = block.getListData();
+		final long listDataSize = block.getListDataUsedSizeInBytes() >= 0 ?
+				block.getListDataUsedSizeInBytes() :
+				listData.size();
+		final int numListDataLongs = ( int ) ( ( listDataSize + ByteUtils.LONG_SIZE - 1 ) / ByteUtils.LONG_SIZE );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + 4 * data.length + 8 * numListDataLongs );
+		buffer.order( ByteOrder.nativeOrder() );
+		buffer.position( HEADER_SIZE );
+		buffer.asIntBuffer().put( data );
+		buffer.position( HEADER_SIZE + 4 * data.length );
+		if ( listData instanceof LongMappedAccessData )
+			buffer.asLongBuffer().put( ( ( LongMappedAccessData ) listData ).data, 0, numListDataLongs );
+		else
+		{
+			final LongMappedAccess access = listData.createAccess();
+			for ( int i = 0; i < numListDataLongs; ++i )
+				buffer.putLong( HEADER_SIZE + 4 * data.length + 8 * i, access.getLong( 8 * i ) );
+		}
+
+		buffer.position( HEADER_SIZE );
+		final CRC32 crc = new CRC32();
+		crc.update( buffer );
+
+		buffer.putInt( 0, MAGIC );
+		buffer.putInt( 4, VERSION );
+		buffer.putInt( 8, data.length );
+		buffer.putLong( 16, listDataSize );
+		buffer.putLong( 24, crc.getValue() );
+		buffer.rewind();
+
+		final Path path = getPath( key );
+		try
+		{
+			final Path dir = path.getParent();
+			Files.createDirectories( dir );
+			final Path tmp = Files.createTempFile( dir, "", TMP_FILE_SUFFIX );
+			try
+			{
+				try ( final FileChannel channel = FileChannel.open( tmp, WRITE ) )
+				{
+					while ( buffer.hasRemaining() )
+						channel.write( buffer );
+				}
+				try
+				{
+					Files.move( tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				}
+				catch ( final AtomicMoveNotSupportedException e )
+				{
+					Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING );
+				}
+			}
+			finally
+			{
+				Files.deleteIfExists( tmp );
+			}
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		if ( sizeInBytes.addAndGet( buffer.capacity() ) > maxSizeInBytes )
+			evict();
+	}
+
+	/**
+	 * Delete least recently used files until the total size is below
+	 * {@link #EVICT_TO_FRACTION} of the size cap.
+	 */
+	public void evict()
+	{
+		synchronized ( evictionLock )
+		{
+			evictLocked();
+		}
+	}
+
+	private void evictLocked()
+	{
+		try ( final FileChannel lockChannel = FileChannel.open( root.resolve( LOCK_FILE_NAME ), CREATE, WRITE );
+				final FileLock lock = lockChannel.lock() )
+		{
+			final ArrayList< CachedFile > files = new ArrayList<>();
+			long size = scan( files );
+			if ( size > maxSizeInBytes )
+			{
+				final long targetSize = ( long ) ( EVICT_TO_FRACTION * maxSizeInBytes );
+				Collections.sort( files, new Comparator< CachedFile >()
+				{
+					@Override
+					public int compare( final CachedFile o1, final CachedFile o2 )
+					{
+						return Long.compare( o1.lastModified, o2.lastModified );
+					}
+				} );
+				for ( final CachedFile file : files )
+				{
+					if ( size <= targetSize )
+						break;
+					if ( Files.deleteIfExists( file.path ) )
+						size -= file.size;
+				}
+			}
+			sizeInBytes.set( size );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static void touch( final Path path )
+	{
+		try
+		{
+			Files.setLastModifiedTime( path, FileTime.fromMillis( System.currentTimeMillis() ) );
+		}
+		catch ( final IOException e )
+		{
+			// the file may have been evicted by another instance in the meantime
+		}
+	}
+
+	private static class CachedFile
+	{
+		final Path path;
+
+		final long size;
+
+		final long lastModified;
+
+		CachedFile( final Path path, final long size, final long lastModified )
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Collect all block files below {@link #root}.
+	 *
+	 * @return total size of all block files.
+	 */
+	private long scan( final ArrayList< CachedFile > files ) throws IOException
+	{
+		final long[] size = new long[ 1 ];
+		Files.walkFileTree( root, new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+			{
+				final String name = file.getFileName().toString();
+				if ( attrs.isRegularFile() && !name.equals( LOCK_FILE_NAME ) && !name.endsWith( TMP_FILE_SUFFIX ) )
+				{
+					files.add( new CachedFile( file, attrs.size(), attrs.lastModifiedTime().toMillis() ) );
+					size[ 0 ] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed( final Path file, final IOException e )
+			{
+				// deleted concurrently
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+		return size[ 0 ];
+	}
+}
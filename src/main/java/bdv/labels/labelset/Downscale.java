@@ -1,5 +1,10 @@
 package bdv.labels.labelset;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import gnu.trove.impl.Constants;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
@@ -39,6 +44,22 @@ public class Downscale
 			final long[] factors,
 			final long[] dimensions,
 			final long[] min )
+	{
+		return downscale( input, factors, dimensions, min, LabelRetention.ALL );
+	}
+
+	/**
+	 * Downscale as
+	 * {@link #downscale(RandomAccessibleInterval, long[], long[], long[])},
+	 * keeping only the labels of each merged list selected by
+	 * {@code retention}.
+	 */
+	public static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final long[] min,
+			final LabelRetention retention )
 	{
 		final int numElements = ( int ) Intervals.numElements( dimensions ); // num elements in output block
 		final int[] data = new int[ numElements ];
@@ -61,6 +82,7 @@ public class Downscale
 			list.createListAt( listData, nextListOffset );
 			for ( final LabelMultisetType ms : inNeighborhoods.next() )
 				list.mergeWith(	ms );
+			retention.apply( list );
 
 			int offset = lists.putIfAbsent( list );
 			if ( offset == -1 )
@@ -74,10 +96,150 @@ public class Downscale
 		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
 	}
 
+	/**
+	 * Downscale as
+	 * {@link #downscale(RandomAccessibleInterval, long[], long[], long[])},
+	 * but split the output block into slabs along the last dimension that are
+	 * downscaled in parallel on {@code pool}. The result is identical to the
+	 * serial result.
+	 *
+	 * @param pool
+	 *            if {@code null}, the block is downscaled serially.
+	 */
+	public static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final long[] min,
+			final ForkJoinPool pool )
+	{
+		return downscale( input, factors, dimensions, min, LabelRetention.ALL, pool );
+	}
+
+	/**
+	 * Downscale as
+	 * {@link #downscale(RandomAccessibleInterval, long[], long[], long[], ForkJoinPool)},
+	 * keeping only the labels of each merged list selected by
+	 * {@code retention}.
+	 */
+	public static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final long[] min,
+			final LabelRetention retention,
+			final ForkJoinPool pool )
+	{
+		if ( pool == null )
+			return downscale( input, factors, dimensions, min, retention );
+		return downscaleInSlabs(
+				dimensions,
+				min,
+				pool,
+				LongMappedAccessData.factory,
+				( slabDimensions, slabMin ) -> downscale( input, factors, slabDimensions, slabMin, retention ) );
+	}
+
+	/**
+	 * Serially downscales one slab of an output block.
+	 */
+	interface SlabDownscaler
+	{
+		public VolatileLabelMultisetArray downscale( final long[] dimensions, final long[] min );
+	}
+
+	/**
+	 * Split the output block {@code (min, dimensions)} into up to
+	 * {@link ForkJoinPool#getParallelism()} slabs along the last dimension,
+	 * downscale them on {@code pool} and {@link #concatenate concatenate} the
+	 * results.
+	 */
+	static VolatileLabelMultisetArray downscaleInSlabs(
+			final long[] dimensions,
+			final long[] min,
+			final ForkJoinPool pool,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory,
+			final SlabDownscaler slabDownscaler )
+	{
+		final int last = dimensions.length - 1;
+		final int numSlabs = ( int ) Math.min( dimensions[ last ], pool.getParallelism() );
+		if ( numSlabs < 2 )
+			return slabDownscaler.downscale( dimensions, min );
+
+		final List< ForkJoinTask< VolatileLabelMultisetArray > > tasks = new ArrayList<>();
+		for ( int s = 0; s < numSlabs; ++s )
+		{
+			final long start = dimensions[ last ] * s / numSlabs;
+			final long end = dimensions[ last ] * ( s + 1 ) / numSlabs;
+			final long[] slabDimensions = dimensions.clone();
+			final long[] slabMin = min.clone();
+			slabDimensions[ last ] = end - start;
+			slabMin[ last ] += start;
+			tasks.add( pool.submit( () -> slabDownscaler.downscale( slabDimensions, slabMin ) ) );
+		}
+
+		final VolatileLabelMultisetArray[] slabs = new VolatileLabelMultisetArray[ numSlabs ];
+		for ( int s = 0; s < numSlabs; ++s )
+			slabs[ s ] = tasks.get( s ).join();
+		return concatenate( slabs, ( int ) Intervals.numElements( dimensions ), listDataFactory );
+	}
+
+	/**
+	 * Concatenate the list offsets of {@code slabs} and merge their list data
+	 * into one deduplicated list data.
+	 *
+	 * Lists are copied in the order in which they are first referenced, and
+	 * deduplicated with a {@link LabelMultisetEntryListIndex} as in
+	 * {@link #downscale(RandomAccessibleInterval, long[], long[], long[])},
+	 * so concatenating the slabs of a block produces the same offsets and list
+	 * data as downscaling the block in one piece. Each slab must be
+	 * deduplicated itself.
+	 */
+	static VolatileLabelMultisetArray concatenate(
+			final VolatileLabelMultisetArray[] slabs,
+			final int numElements,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory )
+	{
+		final int[] data = new int[ numElements ];
+		final MappedAccessData< LongMappedAccess > listData = listDataFactory.createStorage( 32 );
+
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntryList slabList = new LabelMultisetEntryList();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final TIntIntMap slabToOffset = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		int nextListOffset = 0;
+		int o = 0;
+		for ( final VolatileLabelMultisetArray slab : slabs )
+		{
+			slabToOffset.clear();
+			final int[] slabData = slab.getCurrentStorageArray();
+			for ( int i = 0; i < slabData.length; ++i, ++o )
+			{
+				final int slabOffset = slabData[ i ];
+				int offset = slabToOffset.get( slabOffset );
+				if ( offset == -1 )
+				{
+					slabList.referToDataAt( slab.getListData(), slabOffset );
+					list.createListAt( listData, nextListOffset );
+					list.mergeWith( slabList );
+					offset = lists.putIfAbsent( list );
+					if ( offset == -1 )
+					{
+						offset = nextListOffset;
+						nextListOffset += list.getSizeInBytes();
+					}
+					slabToOffset.put( slabOffset, offset );
+				}
+				data[ o ] = offset;
+			}
+		}
+
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
 
 	final static class LabelMultisetEntryListIndex
 	{
-		private final LongMappedAccessData listData;
+		private final MappedAccessData< LongMappedAccess > listData;
 
 		private final LabelMultisetEntryList list2;
 
@@ -85,7 +247,7 @@ public class Downscale
 
 		private TIntObjectMap< TIntList > collisions;
 
-		public LabelMultisetEntryListIndex( final LongMappedAccessData listData )
+		public LabelMultisetEntryListIndex( final MappedAccessData< LongMappedAccess > listData )
 		{
 			this.listData = listData;
 			list2 = new LabelMultisetEntryList();
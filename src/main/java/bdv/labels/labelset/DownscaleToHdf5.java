@@ -2,6 +2,7 @@ package bdv.labels.labelset;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
 
 import bdv.export.ExportMipmapInfo;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
@@ -13,15 +14,41 @@ import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class DownscaleToHdf5
 {
-	public static void main( final String[] args ) throws IOException
+	/**
+	 * First level that is downscaled lossily by {@link #main(String[])} if
+	 * {@code topK} is given.
+	 */
+	final static public int FIRST_LOSSY_LEVEL = 3;
+
+	/**
+	 * Usage: {@code DownscaleToHdf5 <input.h5> <dataset> <output.h5> [numThreads [blocks|packed [topK]]]}
+	 *
+	 * The {@code packed} layout (default) stores each level in one dataset,
+	 * the {@code blocks} layout stores each block in two datasets. With
+	 * {@code topK}, levels from {@link #FIRST_LOSSY_LEVEL} on keep only the
+	 * {@code topK} labels with the largest counts per voxel plus the
+	 * aggregated remainder, see {@link LabelRetention}.
+	 */
+	public static void main( final String[] args ) throws IOException, InterruptedException, ExecutionException
 	{
-		final String fn = "/Users/pietzsch/workspace/data/bigcat/davi_v7_4k_refix_export.h5";
-		final String fnscaled = "/Users/pietzsch/Desktop/downscale-test.h5";
+		if ( args.length < 3 )
+		{
+			System.out.println( "usage: DownscaleToHdf5 <input.h5> <dataset> <output.h5> [numThreads [blocks|packed [topK]]]" );
+			return;
+		}
+		final String fn = args[ 0 ];
+		final String dataset = args[ 1 ];
+		final String fnscaled = args[ 2 ];
+		final int numThreads = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : Runtime.getRuntime().availableProcessors();
+		final boolean packed = args.length > 4 ? args[ 4 ].equals( "packed" ) : true;
+		final int topK = args.length > 5 ? Integer.parseInt( args[ 5 ] ) : 0;
 
 		final int[][] resolutions = new int[][] {
 			{ 1, 1, 1 },
@@ -42,67 +69,245 @@ public class DownscaleToHdf5
 			{ 32, 32, 32 },
 		};
 		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, subdivisions );
-		final int numLevels = resolutions.length;
 
-		for ( int level = 1; level < numLevels; ++level )
+		final IHDF5Reader reader = HDF5Factory.openForReading( fn );
+		final IHDF5Writer writer = HDF5Factory.open( fnscaled );
+		final H5LabelMultisetSetupImageLoader fragments = new H5LabelMultisetSetupImageLoader(
+				reader,
+				null,
+				dataset,
+				1,
+				new int[] {64, 64, 8} );
+
+		final LabelRetention[] retentions = new LabelRetention[ resolutions.length ];
+		if ( topK > 0 )
+			for ( int level = FIRST_LOSSY_LEVEL; level < resolutions.length; ++level )
+				retentions[ level ] = LabelRetention.topK( topK, true );
+
+		final LabelMultisetPyramidBuilder builder = new LabelMultisetPyramidBuilder( fragments.getImage( 0, 0 ), mipmapInfo, numThreads, 8 * numThreads, retentions );
+		if ( packed )
 		{
-			final IHDF5Reader reader = HDF5Factory.openForReading( fn );
-			final IHDF5Writer writer = HDF5Factory.open( fnscaled );
-			final H5LabelMultisetSetupImageLoader fragments = new H5LabelMultisetSetupImageLoader(
-					reader,
-					level == 1 ? null : writer,
-					"/bodies",
-					1,
-					new int[] {64, 64, 8} );
-
-
-			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs = new ArrayList<>();
-			for ( int i = 0; i < level; ++i )
-				imgs.add( fragments.getImage( 0, i ) );
-
-			writer.uint32().write( "levels", level + 1 );
-			final int l = level;
-			final BlockWriter hdfBlockWriter = new BlockWriter()
-			{
-				@Override
-				public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
-				{
-//					System.out.println( Util.printCoordinates( min ) );
-					final LongMappedAccess access = data.getListData().createAccess();
-					final int intSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
-					final int[] lists = new int[ intSize ];
-					for ( int i = 0; i < intSize; ++i )
-						lists[ i ] = access.getInt( i * 4 );
-					final MDIntArray block = new MDIntArray( data.getCurrentStorageArray(), bdv.img.hdf5.Util.reorder( blocksize ) );
-
-					final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					writer.uint32().writeArray( listsPath, lists, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-					writer.uint32().writeMDArray( dataPath, block, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-				}
-			};
-			final LevelInfoWriter hdfLevelInfoWriter = new LevelInfoWriter()
-			{
-				@Override
-				public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
-				{
-					System.out.println( "writing level " + l );
-					System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
-					System.out.println( "factors = " + Util.printCoordinates( factors ) );
-					System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
-
-					final String dimensionsPath = String.format( "l%02d/dimensions", l );
-					final String factorsPath = String.format( "l%02d/factors", l );
-					final String blocksizePath = String.format( "l%02d/blocksize", l );
-					writer.uint64().writeArray( dimensionsPath, dimensions );
-					writer.uint64().writeArray( factorsPath, factors );
-					writer.uint64().writeArray( blocksizePath, blocksize );
-				}
-			};
-			writeLevelToHdf5File( imgs, mipmapInfo, level, hdfBlockWriter, hdfLevelInfoWriter );
-			writer.close();
-			reader.close();
+			final H5PackedPyramidWriter packedWriter = new H5PackedPyramidWriter( writer );
+			builder.build( packedWriter );
+			packedWriter.writeIndex();
+		}
+		else
+			builder.build( new H5PyramidWriter( writer ) );
+
+		writer.close();
+		reader.close();
+	}
+
+	/**
+	 * Writes levels {@code > 0} of a label multiset pyramid to an HDF5 file,
+	 * as read by {@link H5LabelMultisetSetupImageLoader}.
+	 */
+	public static class H5PyramidWriter implements LabelMultisetPyramidBuilder.PyramidWriter
+	{
+		private final IHDF5Writer writer;
+
+		public H5PyramidWriter( final IHDF5Writer writer )
+		{
+			this.writer = writer;
+		}
+
+		@Override
+		public void writeNumLevels( final int numLevels )
+		{
+			writer.uint32().write( "levels", numLevels );
+		}
+
+		@Override
+		public void writeLevelInfo( final int level, final long[] dimensions, final long[] factors, final long[] blocksize, final LabelRetention retention )
+		{
+			DownscaleToHdf5.writeLevelInfo( writer, level, dimensions, factors, blocksize );
+			DownscaleToHdf5.writeRetention( writer, level, retention );
+		}
+
+		@Override
+		public void writeBlock( final int level, final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			DownscaleToHdf5.writeBlock( writer, level, data, min, blocksize );
+		}
+	}
+
+	/**
+	 * Writes levels {@code > 0} of a label multiset pyramid to an HDF5 file
+	 * with one dataset per level instead of two datasets per block.  The
+	 * offsets of a block followed by its lists are appended to the uint32
+	 * dataset {@code lXX/packed}.  The uint64 dataset {@code lXX/index} holds
+	 * a (start, length) pair per block in flattened cell grid order, a length
+	 * of 0 marks a missing block.  {@link #writeIndex()} must be called after
+	 * all blocks have been written.
+	 */
+	public static class H5PackedPyramidWriter implements LabelMultisetPyramidBuilder.PyramidWriter
+	{
+		final static public String PACKED_PATH_FORMAT = "l%02d/packed";
+
+		final static public String INDEX_PATH_FORMAT = "l%02d/index";
+
+		final static public int CHUNK_SIZE = 1 << 16;
+
+		private final IHDF5Writer writer;
+
+		private long[][] indices;
+
+		private long[][] numCells;
+
+		private long[][] blocksizes;
+
+		private long[] sizes;
+
+		public H5PackedPyramidWriter( final IHDF5Writer writer )
+		{
+			this.writer = writer;
 		}
+
+		@Override
+		public void writeNumLevels( final int numLevels )
+		{
+			writer.uint32().write( "levels", numLevels );
+			indices = new long[ numLevels ][];
+			numCells = new long[ numLevels ][];
+			blocksizes = new long[ numLevels ][];
+			sizes = new long[ numLevels ];
+		}
+
+		@Override
+		public void writeLevelInfo( final int level, final long[] dimensions, final long[] factors, final long[] blocksize, final LabelRetention retention )
+		{
+			DownscaleToHdf5.writeLevelInfo( writer, level, dimensions, factors, blocksize );
+			DownscaleToHdf5.writeRetention( writer, level, retention );
+
+			final int n = dimensions.length;
+			numCells[ level ] = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				numCells[ level ][ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ] + 1;
+			blocksizes[ level ] = blocksize.clone();
+			indices[ level ] = new long[ 2 * ( int ) Intervals.numElements( numCells[ level ] ) ];
+			writer.uint32().createArray(
+					String.format( PACKED_PATH_FORMAT, level ),
+					0,
+					CHUNK_SIZE,
+					HDF5IntStorageFeatures.INT_DEFLATE_UNSIGNED_DELETE );
+		}
+
+		@Override
+		public void writeBlock( final int level, final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			final int numElements = ( int ) Intervals.numElements( blocksize );
+			final int listsSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
+			final int[] packed = new int[ numElements + listsSize ];
+			System.arraycopy( data.getCurrentStorageArray(), 0, packed, 0, numElements );
+			final LongMappedAccess access = data.getListData().createAccess();
+			for ( int i = 0; i < listsSize; ++i )
+				packed[ numElements + i ] = access.getInt( i * 4 );
+
+			final long start = sizes[ level ];
+			writer.uint32().writeArrayBlockWithOffset( String.format( PACKED_PATH_FORMAT, level ), packed, packed.length, start );
+			sizes[ level ] += packed.length;
+
+			final long[] cellPosition = new long[ min.length ];
+			for ( int d = 0; d < min.length; ++d )
+				cellPosition[ d ] = min[ d ] / blocksizes[ level ][ d ];
+			final int i = ( int ) IntervalIndexer.positionToIndex( cellPosition, numCells[ level ] );
+			indices[ level ][ 2 * i ] = start;
+			indices[ level ][ 2 * i + 1 ] = packed.length;
+		}
+
+		/**
+		 * Write the block index of all levels.
+		 */
+		public void writeIndex()
+		{
+			for ( int level = 1; level < indices.length; ++level )
+				writer.uint64().writeArray(
+						String.format( INDEX_PATH_FORMAT, level ),
+						indices[ level ],
+						HDF5IntStorageFeatures.INT_DEFLATE_UNSIGNED_DELETE );
+		}
+	}
+
+	public static void writeBlock(
+			final IHDF5Writer writer,
+			final int level,
+			final VolatileLabelMultisetArray data,
+			final long[] min,
+			final long[] blocksize )
+	{
+		final LongMappedAccess access = data.getListData().createAccess();
+		final int intSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
+		final int[] lists = new int[ intSize ];
+		for ( int i = 0; i < intSize; ++i )
+			lists[ i ] = access.getInt( i * 4 );
+		final MDIntArray block = new MDIntArray( data.getCurrentStorageArray(), bdv.img.hdf5.Util.reorder( blocksize ) );
+
+		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+		writer.uint32().writeArray( listsPath, lists, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
+		writer.uint32().writeMDArray( dataPath, block, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
+	}
+
+	public static void writeLevelInfo(
+			final IHDF5Writer writer,
+			final int level,
+			final long[] dimensions,
+			final long[] factors,
+			final long[] blocksize )
+	{
+		System.out.println( "writing level " + level );
+		System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
+		System.out.println( "factors = " + Util.printCoordinates( factors ) );
+		System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
+
+		final String dimensionsPath = String.format( "l%02d/dimensions", level );
+		final String factorsPath = String.format( "l%02d/factors", level );
+		final String blocksizePath = String.format( "l%02d/blocksize", level );
+		writer.uint64().writeArray( dimensionsPath, dimensions );
+		writer.uint64().writeArray( factorsPath, factors );
+		writer.uint64().writeArray( blocksizePath, blocksize );
+	}
+
+	/**
+	 * Record a lossy {@code retention} of {@code level} in datasets
+	 * {@code lXX/retention/maxNumEntries}, {@code minCountFraction} and
+	 * {@code aggregateRemainder}. Nothing is written for
+	 * {@link LabelRetention#ALL lossless} levels.
+	 */
+	public static void writeRetention(
+			final IHDF5Writer writer,
+			final int level,
+			final LabelRetention retention )
+	{
+		if ( retention.isLossless() )
+			return;
+
+		System.out.println( "retention = " + retention );
+
+		final String retentionPath = String.format( "l%02d/retention", level );
+		writer.int32().write( retentionPath + "/maxNumEntries", retention.getMaxNumEntries() );
+		writer.float64().write( retentionPath + "/minCountFraction", retention.getMinCountFraction() );
+		writer.bool().write( retentionPath + "/aggregateRemainder", retention.isAggregateRemainder() );
+	}
+
+	/**
+	 * Read the retention of {@code level} as written by
+	 * {@link #writeRetention(IHDF5Writer, int, LabelRetention)}.
+	 *
+	 * @return {@link LabelRetention#ALL} if none was recorded.
+	 */
+	public static LabelRetention readRetention(
+			final IHDF5Reader reader,
+			final int level )
+	{
+		final String retentionPath = String.format( "l%02d/retention", level );
+		if ( !reader.exists( retentionPath ) )
+			return LabelRetention.ALL;
+
+		return new LabelRetention(
+				reader.int32().read( retentionPath + "/maxNumEntries" ),
+				reader.float64().read( retentionPath + "/minCountFraction" ),
+				reader.bool().read( retentionPath + "/aggregateRemainder" ) );
 	}
 
 	public interface BlockWriter
@@ -1,22 +1,15 @@
 package bdv.labels.labelset;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
-import static java.nio.file.StandardOpenOption.WRITE;
-import gnu.trove.list.array.TIntArrayList;
-
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.dvid.LabelblkMultisetSetupImageLoader.MultisetSource;
-import bdv.labels.labelset.Multiset.Entry;
+import bdv.labels.labelset.Downscale.LabelMultisetEntryListIndex;
+import bdv.labels.labelset.SortedPeekIteratorHeap.SortedPeekIterator;
 
 
 public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
@@ -25,10 +18,107 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 
 	private final MultisetSource multisetSource;
 
-	public DownscalingVolatileSuperVoxelMultisetArrayLoader( final MultisetSource multisetSource )
+	private final LabelMultisetBlockCache blockCache;
+
+	private final String datasetId;
+
+	private final long modificationStamp;
+
+	private final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory;
+
+	private final ForkJoinPool pool;
+
+	private final LabelRetention retention;
+
+	/**
+	 * @param multisetSource
+	 *            provides the source levels that are downscaled.
+	 * @param blockCache
+	 *            persistent cache for the computed blocks.
+	 * @param datasetId
+	 *            identifies the dataset of {@code multisetSource} in
+	 *            {@code blockCache}.
+	 * @param modificationStamp
+	 *            modification stamp of the dataset. Blocks cached for a
+	 *            different stamp are not used.
+	 * @param listDataFactory
+	 *            creates the list data of computed blocks, e.g.
+	 *            {@link LongMappedAccessData#factory} on the heap or
+	 *            {@link DirectLongMappedAccessData#factory} off the heap.
+	 * @param pool
+	 *            if not {@code null}, computed blocks are split into slabs
+	 *            that are downscaled in parallel on {@code pool}. Should not
+	 *            be a pool that loads blocks of {@code multisetSource}.
+	 * @param retention
+	 *            which labels of computed blocks are kept. Blocks computed
+	 *            with a lossy retention are cached separately.
+	 */
+	public DownscalingVolatileSuperVoxelMultisetArrayLoader(
+			final MultisetSource multisetSource,
+			final LabelMultisetBlockCache blockCache,
+			final String datasetId,
+			final long modificationStamp,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory,
+			final ForkJoinPool pool,
+			final LabelRetention retention )
 	{
 		theEmptyArray = new VolatileLabelMultisetArray( 1, false );
 		this.multisetSource = multisetSource;
+		this.blockCache = blockCache;
+		this.datasetId = retention.isLossless() ? datasetId : datasetId + "/" + retention;
+		this.modificationStamp = modificationStamp;
+		this.listDataFactory = listDataFactory;
+		this.pool = pool;
+		this.retention = retention;
+	}
+
+	/**
+	 * Keeps all labels.
+	 */
+	public DownscalingVolatileSuperVoxelMultisetArrayLoader(
+			final MultisetSource multisetSource,
+			final LabelMultisetBlockCache blockCache,
+			final String datasetId,
+			final long modificationStamp,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory,
+			final ForkJoinPool pool )
+	{
+		this( multisetSource, blockCache, datasetId, modificationStamp, listDataFactory, pool, LabelRetention.ALL );
+	}
+
+	/**
+	 * Computes blocks serially.
+	 */
+	public DownscalingVolatileSuperVoxelMultisetArrayLoader(
+			final MultisetSource multisetSource,
+			final LabelMultisetBlockCache blockCache,
+			final String datasetId,
+			final long modificationStamp,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory )
+	{
+		this( multisetSource, blockCache, datasetId, modificationStamp, listDataFactory, null );
+	}
+
+	/**
+	 * Stores the list data of computed blocks on the heap.
+	 */
+	public DownscalingVolatileSuperVoxelMultisetArrayLoader(
+			final MultisetSource multisetSource,
+			final LabelMultisetBlockCache blockCache,
+			final String datasetId,
+			final long modificationStamp )
+	{
+		this( multisetSource, blockCache, datasetId, modificationStamp, LongMappedAccessData.factory );
+	}
+
+	/**
+	 * Does not cache computed blocks, {@code multisetSource} does not
+	 * identify its dataset such that blocks of different datasets could not
+	 * be told apart in a persistent cache.
+	 */
+	public DownscalingVolatileSuperVoxelMultisetArrayLoader( final MultisetSource multisetSource )
+	{
+		this( multisetSource, LabelMultisetBlockCache.NONE, "", 0 );
 	}
 
 	@Override
@@ -42,14 +132,16 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 //				+ "   min = " + Util.printCoordinates( min ) + "\n"
 //				+ ")"
 //				);
-		final String filename = getFilename( timepoint, setup, level, min );
-		final VolatileLabelMultisetArray cached = tryLoadCached( dimensions, filename );
+		final LabelMultisetBlockCache.Key key = new LabelMultisetBlockCache.Key( datasetId, modificationStamp, timepoint, setup, level, min );
+		final VolatileLabelMultisetArray cached = blockCache.get( key, dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
 		if ( cached != null )
-			return cached;
+			return CompressedVolatileLabelMultisetArray.compress( cached );
 
 		final RandomAccessibleInterval< LabelMultisetType > input = multisetSource.getSource( timepoint, level - 1 );
 		final int[] factors = new int[] { 2, 2, 2 };
-		return downscale( input, factors, dimensions, min, filename );
+		final VolatileLabelMultisetArray downscaled = downscale( input, factors, dimensions, min, listDataFactory, retention, pool );
+		blockCache.put( key, downscaled );
+		return CompressedVolatileLabelMultisetArray.compress( downscaled );
 	}
 
 	@Override
@@ -58,86 +150,98 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 		return 8;
 	}
 
-	private String getFilename( final int timepoint, final int setup, final int level, final long[] min )
+	/**
+	 * Downscale a block of {@code input} by merging the multisets of all
+	 * contributing input voxels. Identical merged lists are stored only once,
+	 * using a {@link Downscale.LabelMultisetEntryListIndex hash index}.
+	 *
+	 * @param input
+	 * @param factors
+	 *            downsampling factors of output block relative to input.
+	 * @param dimensions
+	 *            dimensions of the output block (in output resolution)
+	 * @param min
+	 *            minimum coordinate of output block (in output resolution).
+	 */
+	static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors, // (relative to to input)
+			final int[] dimensions,
+			final long[] min )
 	{
-		return String.format( "/tmp/labelcache/%d_%d_%d/%d_%d_%d", timepoint, setup, level, min[ 0 ], min[ 1 ], min[ 2 ] );
+		return downscale( input, factors, dimensions, min, LongMappedAccessData.factory );
 	}
 
-	private VolatileLabelMultisetArray tryLoadCached(
+	/**
+	 * Downscale a block of {@code input} as
+	 * {@link #downscale(RandomAccessibleInterval, int[], int[], long[], MappedAccessData.Factory)},
+	 * split into slabs that are downscaled in parallel on {@code pool} as in
+	 * {@link Downscale#downscale(RandomAccessibleInterval, long[], long[], long[], ForkJoinPool)}.
+	 * The result is identical to the serial result, slabs are downscaled into
+	 * temporary list data on the heap.
+	 *
+	 * @param retention
+	 *            which labels of each merged list are kept.
+	 * @param pool
+	 *            if {@code null}, the block is downscaled serially.
+	 */
+	static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors, // (relative to to input)
 			final int[] dimensions,
-			final String filename )
+			final long[] min,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory,
+			final LabelRetention retention,
+			final ForkJoinPool pool )
 	{
-		if ( ! Paths.get( filename ).toFile().exists() )
-			return null;
-
-		byte[] bytes;
-		try
-		{
-			bytes = Files.readAllBytes( Paths.get( filename ) );
-		}
-		catch ( final IOException e )
-		{
-			e.printStackTrace();
-			return null;
-		}
-
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final int listDataSize = bytes.length - 4 * data.length;
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listDataSize );
-		int j = -1;
-		for ( int i = 0; i < data.length; ++i )
-		{
-			data[ i ] = ( 0xff & bytes[ ++j ] ) |
-					( ( 0xff & bytes[ ++j ] ) << 8 ) |
-					( ( 0xff & bytes[ ++j ] ) << 16 ) |
-					( ( 0xff & bytes[ ++j ] ) << 24 );
-		}
-		for ( int i = 0; i < listDataSize; ++i )
-			ByteUtils.putByte( bytes[ ++j ], listData.data, i );
-		return new VolatileLabelMultisetArray( data, listData, true );
+		if ( pool == null )
+			return downscale( input, factors, dimensions, min, listDataFactory, retention );
+		return Downscale.downscaleInSlabs(
+				Util.int2long( dimensions ),
+				min,
+				pool,
+				listDataFactory,
+				( slabDimensions, slabMin ) -> downscale(
+						input,
+						factors,
+						Util.long2int( slabDimensions ),
+						slabMin,
+						LongMappedAccessData.factory,
+						retention ) );
 	}
 
-	private static class SortedPeekIterator implements Comparable< SortedPeekIterator >
+	/**
+	 * Downscale a block of {@code input} as
+	 * {@link #downscale(RandomAccessibleInterval, int[], int[], long[])},
+	 * creating the list data with {@code listDataFactory}.
+	 */
+	static VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors, // (relative to to input)
+			final int[] dimensions,
+			final long[] min,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory )
 	{
-		Iterator< Entry< Label > > iter;
-
-		Entry< Label > head;
-
-		void init( final Iterator< Entry< Label > > iter )
-		{
-			this.iter = iter;
-			head = iter.hasNext() ? iter.next() : null;
-		}
-
-		void fwd()
-		{
-			head = iter.hasNext() ? iter.next() : null;
-		}
-
-		@Override
-		public int compareTo( final SortedPeekIterator o )
-		{
-			if ( head == null )
-				return o.head == null ?
-					0 :
-					1; // o is smaller because it still has elements
-			else
-				return o.head == null ?
-					-1 : // o is greater because we still have elements
-					Long.compare( head.getElement().id(), o.head.getElement().id() );
-		}
+		return downscale( input, factors, dimensions, min, listDataFactory, LabelRetention.ALL );
 	}
 
-	private VolatileLabelMultisetArray downscale(
+	/**
+	 * Downscale a block of {@code input} as
+	 * {@link #downscale(RandomAccessibleInterval, int[], int[], long[], MappedAccessData.Factory)},
+	 * keeping only the labels of each merged list selected by
+	 * {@code retention}.
+	 */
+	static VolatileLabelMultisetArray downscale(
 			final RandomAccessibleInterval< LabelMultisetType > input,
 			final int[] factors, // (relative to to input)
 			final int[] dimensions,
 			final long[] min,
-			final String filename ) throws InterruptedException
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory,
+			final LabelRetention retention )
 	{
 		final int n = 3;
 		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final MappedAccessData< LongMappedAccess > listData = listDataFactory.createStorage( 32 );
 
 		int numEntities = 1;
 		for ( int i = 0; i < n; ++i )
@@ -155,14 +259,14 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 		final SortedPeekIterator[] iters = new SortedPeekIterator[ numContribs ];
 		for ( int i = 0; i < numContribs; ++i )
 			iters[ i ] = new SortedPeekIterator();
+		final SortedPeekIteratorHeap heap = new SortedPeekIteratorHeap( iters );
 
 		final int[] outputPos = new int[ n ];
 		final int[] inputOffset = new int[ n ];
 		final int[] inputPos = new int[ n ];
 
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
-		final LabelMultisetEntryList list2 = new LabelMultisetEntryList();
-		final TIntArrayList listHashesAndOffsets = new TIntArrayList();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		int nextListOffset = 0;
 		for ( int o = 0; o < numEntities; ++o )
@@ -179,19 +283,17 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 			}
 
 			list.createListAt( listData, nextListOffset );
-			Arrays.sort( iters );
-			if ( iters[ 0 ].head != null )
+			heap.heapify();
+			if ( !heap.isEmpty() )
 			{
-				long id = iters[ 0 ].head.getElement().id();
-				int count = iters[ 0 ].head.getCount();
+				long id = heap.peek().headId;
+				int count = heap.peek().head.getCount();
+				heap.fwd();
 
-				iters[ 0 ].fwd();
-				Arrays.sort( iters );
-
-				while ( iters[ 0 ].head != null )
+				while ( !heap.isEmpty() )
 				{
-					final long headId = iters[ 0 ].head.getElement().id();
-					final int headCount = iters[ 0 ].head.getCount();
+					final long headId = heap.peek().headId;
+					final int headCount = heap.peek().head.getCount();
 
 					if ( headId == id )
 					{
@@ -207,61 +309,25 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 						count = headCount;
 					}
 
-					iters[ 0 ].fwd();
-					Arrays.sort( iters );
+					heap.fwd();
 				}
 
 				entry.setId( id );
 				entry.setCount( count );
 				list.add( entry );
 			}
+			retention.apply( list );
 
-			boolean makeNewList = true;
-			final int hash = list.hashCode();
-			for ( int i = 0; i < listHashesAndOffsets.size(); i += 2 )
-			{
-				if ( hash == listHashesAndOffsets.get( i ) )
-				{
-					list2.referToDataAt( listData, listHashesAndOffsets.get( i + 1 ) );
-					if ( list.equals( list2 ) )
-					{
-						makeNewList = false;
-						data[ o ] = listHashesAndOffsets.get( i + 1 ) ;
-						break;
-					}
-				}
-			}
-			if ( makeNewList )
+			int offset = lists.putIfAbsent( list );
+			if ( offset == -1 )
 			{
-				data[ o ] = nextListOffset;
-				listHashesAndOffsets.add( hash );
-				listHashesAndOffsets.add( nextListOffset );
+				offset = nextListOffset;
 				nextListOffset += list.getSizeInBytes();
 			}
+			data[ o ] = offset;
 		}
 
-		final byte[] bytes = new byte[ 4 * data.length + nextListOffset ];
-		int j = -1;
-		for ( final int d : data )
-		{
-			bytes[ ++j ] = ( byte ) d;
-			bytes[ ++j ] = ( byte ) ( d >> 8 );
-			bytes[ ++j ] = ( byte ) ( d >> 16 );
-			bytes[ ++j ] = ( byte ) ( d >> 24 );
-		}
-		for ( int i = 0; i < nextListOffset; ++i )
-			bytes[ ++j ] = ByteUtils.getByte( listData.data, i );
-		try
-		{
-			Paths.get( filename ).getParent().toFile().mkdirs();
-			Files.write( Paths.get( filename ), bytes, WRITE, CREATE, TRUNCATE_EXISTING );
-		}
-		catch ( final IOException e )
-		{
-			e.printStackTrace();
-		}
-
-		return new VolatileLabelMultisetArray( data, listData, true );
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
 	}
 
 	@Override
@@ -5,6 +5,7 @@ public interface Label
 	static public long TRANSPARENT = 0xffffffffffffffffL; // -1L or uint64.MAX_VALUE
 	static public long INVALID = 0xfffffffffffffffeL; // -2L or uint64.MAX_VALUE - 1
 	static public long OUTSIDE = 0xfffffffffffffffdL; // -3L or uint64.MAX_VALUE - 2
+	static public long OTHER = 0xfffffffffffffffcL; // -4L or uint64.MAX_VALUE - 3, aggregated count of labels dropped by LabelRetention
 
 	public long id();
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+
+/**
+ * Persistent cache for computed {@link VolatileLabelMultisetArray} blocks,
+ * e.g., blocks of downscaled mipmap levels.
+ */
+public interface LabelMultisetBlockCache
+{
+	/**
+	 * Get the cached block for {@code key}.
+	 *
+	 * @param numElements
+	 *            the expected number of elements in the block.
+	 * @return the cached block, or {@code null} if there is no (valid) block
+	 *         for {@code key}.
+	 */
+	public VolatileLabelMultisetArray get( final Key key, final int numElements );
+
+	/**
+	 * Store {@code block} for {@code key}.
+	 */
+	public void put( final Key key, final VolatileLabelMultisetArray block );
+
+	/**
+	 * A cache that doesn't cache anything.
+	 */
+	public static final LabelMultisetBlockCache NONE = new LabelMultisetBlockCache()
+	{
+		@Override
+		public VolatileLabelMultisetArray get( final Key key, final int numElements )
+		{
+			return null;
+		}
+
+		@Override
+		public void put( final Key key, final VolatileLabelMultisetArray block )
+		{}
+	};
+
+	/**
+	 * Identifies a block. Besides the position of the block, this contains the
+	 * identity of the dataset and a modification stamp of the data it was
+	 * computed from, such that blocks become invalid if the source data
+	 * changes.
+	 */
+	public static final class Key
+	{
+		private final String datasetId;
+
+		private final long modificationStamp;
+
+		private final int timepoint;
+
+		private final int setup;
+
+		private final int level;
+
+		private final long[] min;
+
+		private final int hashcode;
+
+		public Key(
+				final String datasetId,
+				final long modificationStamp,
+				final int timepoint,
+				final int setup,
+				final int level,
+				final long[] min )
+		{
+			this.datasetId = datasetId;
+			this.modificationStamp = modificationStamp;
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.min = min.clone();
+
+			int value = datasetId.hashCode();
+			value = 31 * value + Long.hashCode( modificationStamp );
+			value = 31 * value + timepoint;
+			value = 31 * value + setup;
+			value = 31 * value + level;
+			value = 31 * value + Arrays.hashCode( min );
+			hashcode = value;
+		}
+
+		public String getDatasetId()
+		{
+			return datasetId;
+		}
+
+		public long getModificationStamp()
+		{
+			return modificationStamp;
+		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		public int getSetup()
+		{
+			return setup;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		public long[] getMin()
+		{
+			return min;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key that = ( Key ) other;
+			return that.modificationStamp == modificationStamp &&
+					that.timepoint == timepoint &&
+					that.setup == setup &&
+					that.level == level &&
+					Arrays.equals( that.min, min ) &&
+					that.datasetId.equals( datasetId );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+}
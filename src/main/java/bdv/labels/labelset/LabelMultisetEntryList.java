@@ -1,5 +1,8 @@
 package bdv.labels.labelset;
 
+import static bdv.labels.labelset.ByteUtils.INT_SIZE;
+
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Set;
@@ -25,7 +28,7 @@ public class LabelMultisetEntryList
 		super( LabelMultisetEntry.type );
 	}
 
-	public LabelMultisetEntryList( final LongMappedAccessData data, final long baseOffset )
+	public LabelMultisetEntryList( final MappedAccessData< LongMappedAccess > data, final long baseOffset )
 	{
 		super( LabelMultisetEntry.type, data, baseOffset );
 	}
@@ -33,11 +36,52 @@ public class LabelMultisetEntryList
 	protected int multisetSize()
 	{
 		int size = 0;
-		for ( final LabelMultisetEntry e : this )
-			size += e.getCount();
+		for ( int i = size() - 1; i >= 0; --i )
+			size += getCount( i );
 		return size;
 	}
 
+	private static int entryOffset( final int index )
+	{
+		return INT_SIZE + index * LabelMultisetEntry.SIZE_IN_BYTES;
+	}
+
+	/**
+	 * Get the id of the entry at {@code index} without a
+	 * {@link LabelMultisetEntry} ref.  {@code index} is not checked.
+	 */
+	public long getId( final int index )
+	{
+		return access.getLong( entryOffset( index ) + LabelMultisetEntry.SUPERVOXEL_ID_OFFSET );
+	}
+
+	/**
+	 * Get the count of the entry at {@code index} without a
+	 * {@link LabelMultisetEntry} ref.  {@code index} is not checked.
+	 */
+	public int getCount( final int index )
+	{
+		return access.getInt( entryOffset( index ) + LabelMultisetEntry.COUNT_OFFSET );
+	}
+
+	private void setEntry( final int index, final long id, final int count )
+	{
+		final int offset = entryOffset( index );
+		access.putLong( id, offset + LabelMultisetEntry.SUPERVOXEL_ID_OFFSET );
+		access.putInt( count, offset + LabelMultisetEntry.COUNT_OFFSET );
+	}
+
+	/**
+	 * Pass the id and count of all entries to {@code consumer}, in list
+	 * order.
+	 */
+	public void forEachEntry( final LabelMultisetType.EntryConsumer consumer )
+	{
+		final int size = size();
+		for ( int i = 0; i < size; ++i )
+			consumer.accept( getId( i ), getCount( i ) );
+	}
+
 	/**
 	 * Performs a binary search for entry with
 	 * {@link LabelMultisetEntry#getId()} <tt>id</tt> in the entire list.
@@ -79,10 +123,9 @@ public class LabelMultisetEntryList
         int low = fromIndex;
         int high = toIndex - 1;
 
-        final LabelMultisetEntry ref = createRef();
         while ( low <= high ) {
             final int mid = ( low + high ) >>> 1;
-            final long midVal = get( mid, ref ).getId();
+            final long midVal = getId( mid );
             if ( midVal < id ) {
                 low = mid + 1;
             }
@@ -90,11 +133,9 @@ public class LabelMultisetEntryList
                 high = mid - 1;
             }
             else {
-                releaseRef( ref );
                 return mid; // value found
             }
         }
-        releaseRef( ref );
         return -( low + 1 );  // value not found.
     }
 
@@ -157,63 +198,142 @@ public class LabelMultisetEntryList
 	/**
 	 * Merge with other list. Both lists must be sorted.
 	 *
+	 * The number of new ids is counted first, then both lists are merged
+	 * from the back into the grown list, such that no entry is moved more
+	 * than once and no refs are borrowed.
+	 *
 	 * @param list
 	 */
 	public void mergeWith( final LabelMultisetEntryList list )
 	{
-		if ( list.isEmpty() )
+		final int size2 = list.size();
+		if ( size2 == 0 )
 			return;
 
-		if ( isEmpty() )
+		final int size1 = size();
+		int numNew = 0;
+		for ( int i = 0, j = 0; j < size2; ++j )
 		{
-			for ( final LabelMultisetEntry e : list )
-				this.add( e );
-			return;
+			final long id2 = list.getId( j );
+			while ( i < size1 && getId( i ) < id2 )
+				++i;
+			if ( i < size1 && getId( i ) == id2 )
+				++i;
+			else
+				++numNew;
 		}
 
-		final LabelMultisetEntry e1 = createRef();
-		final LabelMultisetEntry e2 = createRef();
-		int i = 0;
-		int j = 0;
-		long id1 = this.get( i, e1 ).getId();
-		long id2 = list.get( j, e2 ).getId();
-		A: while ( true )
+		final int size = size1 + numNew;
+		ensureCapacity( size );
+		setSize( size );
+		for ( int i = size1 - 1, j = size2 - 1, k = size - 1; j >= 0; --k )
 		{
-			if ( id1 == id2 )
+			final long id2 = list.getId( j );
+			final long id1 = i >= 0 ? getId( i ) : Long.MIN_VALUE;
+			if ( i >= 0 && id1 > id2 )
 			{
-				e1.setCount( e1.getCount() + e2.getCount() );
-				if ( ++j >= list.size() )
-					break;
-				id2 = list.get( j, e2 ).getId();
+				setEntry( k, id1, getCount( i ) );
+				--i;
 			}
-			else if ( id2 < id1 )
+			else if ( i >= 0 && id1 == id2 )
 			{
-				this.add( i, e2 ); // insert e2 at i
-				get( ++i, e1 ).getId(); // e1 ends up at same element which is now shifted
-				if ( ++j >= list.size() )
-					break;
-				id2 = list.get( j, e2 ).getId();
+				setEntry( k, id1, getCount( i ) + list.getCount( j ) );
+				--i;
+				--j;
 			}
-			else // ( id2 > id1 )
+			else
 			{
-				while ( ++i < size() )
-				{
-					id1 = get( i, e1 ).getId();
-					if ( id2 <= id1 )
-						continue A;
-				}
-				for ( ; j < list.size(); ++j )
-					this.add( list.get( j, e2 ) );
-				break;
+				setEntry( k, id2, list.getCount( j ) );
+				--j;
 			}
 		}
-		releaseRef( e2 );
-		releaseRef( e1 );
+	}
+
+	/**
+	 * Keep at most {@code maxNumEntries} entries with the largest counts (ties
+	 * are broken by smaller id), and only entries with a count of at least
+	 * {@code minCount}. The entry with the largest count is always kept. If
+	 * {@code aggregateRemainder}, the counts of dropped entries are added to
+	 * entry {@link Label#OTHER}, which counts towards {@code maxNumEntries}.
+	 * The list must be sorted and stays sorted.
+	 *
+	 * @param keys
+	 *            scratch space for at least {@link #size()} elements.
+	 */
+	void limit( final int maxNumEntries, final int minCount, final boolean aggregateRemainder, final long[] keys )
+	{
+		final int size = size();
+		int maxCount = 0;
+		for ( int i = 0; i < size; ++i )
+			maxCount = Math.max( maxCount, getCount( i ) );
+		final int threshold = Math.min( minCount, maxCount );
+
+		final long maxKey;
+		if ( size > maxNumEntries )
+		{
+			for ( int i = 0; i < size; ++i )
+				keys[ i ] = rankKey( i );
+			Arrays.sort( keys, 0, size );
+			maxKey = keys[ aggregateRemainder ? maxNumEntries - 2 : maxNumEntries - 1 ];
+		}
+		else
+			maxKey = Long.MAX_VALUE;
+
+		int numKept = 0;
+		int remainder = 0;
+		for ( int i = 0; i < size; ++i )
+		{
+			final int count = getCount( i );
+			if ( count >= threshold && rankKey( i ) <= maxKey )
+				setEntry( numKept++, getId( i ), count );
+			else
+				remainder += count;
+		}
+		if ( numKept == size )
+			return;
+		setSize( numKept );
+
+		if ( aggregateRemainder )
+		{
+			final int i = binarySearch( Label.OTHER );
+			if ( i >= 0 )
+				setEntry( i, Label.OTHER, getCount( i ) + remainder );
+			else
+			{
+				final int insertionPoint = -( i + 1 );
+				ensureCapacity( numKept + 1 );
+				setSize( numKept + 1 );
+				for ( int j = numKept; j > insertionPoint; --j )
+					setEntry( j, getId( j - 1 ), getCount( j - 1 ) );
+				setEntry( insertionPoint, Label.OTHER, remainder );
+			}
+		}
+	}
+
+	/**
+	 * Orders entries by descending count and then by index.
+	 */
+	private long rankKey( final int index )
+	{
+		return ( ( long ) ( Integer.MAX_VALUE - getCount( index ) ) << 32 ) | index;
+	}
+
+	/**
+	 * Merge with the list of {@code multiset}.  The list must be sorted.
+	 *
+	 * @param multiset
+	 */
+	public void mergeWith( final LabelMultisetType multiset )
+	{
+		mergeWith( multiset.entries() );
 	}
 
 	public void mergeWith( final Multiset< Label > multiset )
 	{
-		mergeWith( multiset.entrySet() );
+		if ( multiset instanceof LabelMultisetType )
+			mergeWith( ( LabelMultisetType ) multiset );
+		else
+			mergeWith( multiset.entrySet() );
 	}
 
 	public void mergeWith( final Set< Entry< Label > > entrySet )
@@ -32,7 +32,7 @@ import net.imglib2.view.Views;
 public class LabelMultisetFill
 {
 
-    interface FillPolicy<T>
+    public interface FillPolicy<T>
 	{
 		void fill( T t );
 
@@ -40,12 +40,101 @@ public class LabelMultisetFill
 	}
 
 
-	interface FillPolicyFactory<T>
+	public interface FillPolicyFactory<T>
 	{
 		FillPolicy<T> call(T seedLabel );
 	}
 
 
+	/**
+	 * Memoizes a predicate on {@link LabelMultisetType} for the most recently
+	 * tested list.  Lists are deduplicated per {@link VolatileLabelMultisetArray},
+	 * so runs of voxels along a scanline usually share one list and the
+	 * predicate is evaluated once per run instead of once per voxel.
+	 */
+	public static abstract class ListPredicate
+	{
+		private VolatileLabelMultisetArray access = null;
+
+		private int listOffset = -1;
+
+		private boolean value;
+
+		protected abstract boolean evaluate( LabelMultisetType labels );
+
+		public boolean test( final LabelMultisetType labels )
+		{
+			final VolatileLabelMultisetArray labelsAccess = labels.getAccess();
+			final int labelsListOffset = labels.getListOffset();
+			if ( labelsAccess != access || labelsListOffset != listOffset )
+			{
+				value = evaluate( labels );
+				access = labelsAccess;
+				listOffset = labelsListOffset;
+			}
+			return value;
+		}
+	}
+
+
+	/**
+	 * {@link ListPredicate} for {@link LabelMultisetType#contains(long)}.
+	 */
+	public static class ContainsPredicate extends ListPredicate
+	{
+		private final long id;
+
+		public ContainsPredicate( final long id )
+		{
+			this.id = id;
+		}
+
+		@Override
+		protected boolean evaluate( final LabelMultisetType labels )
+		{
+			return labels.contains( id );
+		}
+	}
+
+
+	/**
+	 * Span flood fill with face connectivity (see {@link ScanlineFill}).
+	 * Other than {@link #fill(RandomAccessible, RandomAccessible, Localizable,
+	 * Shape, FillPolicyFactory)}, this does not store visited voxels, so
+	 * memory does not grow with the size of the filled region.
+	 *
+	 * @param labels
+	 *            {@link RandomAccessibleInterval} containing
+	 *            {@link LabelMultisetType} for each pixel
+	 * @param canvas
+	 *            {@link RandomAccessibleInterval} canvas containing region to
+	 *            be filled
+	 * @param bounds
+	 *            voxels outside of bounds are not filled, if null, the fill is
+	 *            bounded only by the fill policy
+	 * @param seed
+	 *            {@link Localizable} initial seed for fill
+	 * @param fillerFactory
+	 *            factory for policy for comparing neighboring pixels (check if visited) and
+	 *            fill/write into pixel
+	 *
+	 * @return the number of filled pixels
+	 */
+	public static < T > long fill(
+			final RandomAccessible< LabelMultisetType > labels,
+			final RandomAccessible< T > canvas,
+			final Interval bounds,
+			final Localizable seed,
+			final FillPolicyFactory< Pair< LabelMultisetType, T > > fillerFactory
+	)
+	{
+		final RandomAccessiblePair<LabelMultisetType, T> pairAccessible = new RandomAccessiblePair<>(labels, canvas);
+		final RandomAccessiblePair<LabelMultisetType, T>.RandomAccess pairAccess = pairAccessible.randomAccess();
+		pairAccess.setPosition( seed );
+		return ScanlineFill.fill( pairAccessible, bounds, seed, fillerFactory.call( pairAccess.get() ) );
+	}
+
+
     /**
      *
      *
@@ -155,11 +244,11 @@ public class LabelMultisetFill
         }
 
         private final long newLabel;
-        private final long seedLabel;
+        private final ContainsPredicate containsSeedLabel;
 
         public IntegerTypeFillPolicyFragments(final long newLabel, final long seedLabel) {
             this.newLabel = newLabel;
-            this.seedLabel = seedLabel;
+            this.containsSeedLabel = new ContainsPredicate( seedLabel );
         }
 
         @Override
@@ -171,7 +260,7 @@ public class LabelMultisetFill
         public boolean isValidNeighbor(final Pair< LabelMultisetType, T > p) {
             final LabelMultisetType l = p.getA();
             final T t = p.getB();
-            return t.getIntegerLong() != this.newLabel && l.contains( this.seedLabel );
+            return t.getIntegerLong() != this.newLabel && containsSeedLabel.test( l );
         }
     }
 
@@ -196,10 +285,12 @@ public class LabelMultisetFill
 
         private final long newLabel;
         private final long seedLabel;
+        private final ContainsPredicate containsSeedLabel;
 
         public IntegerTypeFillPolicyFragmentsConsiderBackgroundAndCanvas(final long newLabel, final long seedLabel) {
             this.newLabel = newLabel;
             this.seedLabel = seedLabel;
+            this.containsSeedLabel = new ContainsPredicate( seedLabel );
         }
 
         @Override
@@ -211,7 +302,7 @@ public class LabelMultisetFill
         public boolean isValidNeighbor(final Pair< LabelMultisetType, T > p) {
             final LabelMultisetType l = p.getA();
             final long t = p.getB().getIntegerLong();
-            return ( ( t == seedLabel ) || ( ( t == Label.TRANSPARENT ) && l.contains( seedLabel ) ) );
+            return ( ( t == seedLabel ) || ( ( t == Label.TRANSPARENT ) && containsSeedLabel.test( l ) ) );
         }
     }
 
@@ -223,6 +314,14 @@ public class LabelMultisetFill
 
         private final long newLabel;
         private final long segmentSeedLabel;
+        private final ListPredicate partOfSeedSegment = new ListPredicate()
+        {
+            @Override
+            protected boolean evaluate( final LabelMultisetType labels )
+            {
+                return anyLabelInMultisetIsPartOfSeedSegment( labels );
+            }
+        };
 
         public AbstractIntegerTypeFillPolicySegmentsConsiderBackgroundAndCanvas(final long newLabel, final long segmentSeedLabel) {
             this.newLabel = newLabel;
@@ -238,7 +337,7 @@ public class LabelMultisetFill
         public boolean isValidNeighbor(final Pair< LabelMultisetType, T > p) {
             final LabelMultisetType l = p.getA();
             final long t = p.getB().getIntegerLong();
-            return ( ( t == segmentSeedLabel ) || ( ( t == Label.TRANSPARENT ) ) &&  anyLabelInMultisetIsPartOfSeedSegment( l ) );
+            return ( ( t == segmentSeedLabel ) || ( ( t == Label.TRANSPARENT ) ) &&  partOfSeedSegment.test( l ) );
 //            return t.getIntegerLong() != this.newLabel && l.contains( this.seedLabel );
         }
 
@@ -258,11 +357,12 @@ public class LabelMultisetFill
         long seedLabel = -1;
         long seedCount = -1;
 
-        for ( final Multiset.Entry<Label> e : labels.entrySet() ) {//seedPair.getA().entrySet() ) {
-            final int count = e.getCount();
+        final int n = labels.numEntries();
+        for ( int i = 0; i < n; ++i ) {
+            final int count = labels.getEntryCount( i );
             if ( count > seedCount )
             {
-                seedLabel = e.getElement().id();
+                seedLabel = labels.getEntryId( i );
                 seedCount = count;
             }
         }
@@ -349,12 +449,7 @@ public class LabelMultisetFill
 
         @Override
         protected boolean anyLabelInMultisetIsPartOfSeedSegment(final LabelMultisetType label) {
-            for ( final Multiset.Entry<Label> l : label.entrySet())
-            {
-                if ( Arrays.binarySearch( this.fragmentsContainedInSegment, l.getElement().id() ) >= 0 )
-                    return true;
-            }
-            return false;
+            return label.containsAny( this.fragmentsContainedInSegment );
         }
     }
 
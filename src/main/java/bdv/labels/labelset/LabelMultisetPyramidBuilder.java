@@ -0,0 +1,550 @@
+package bdv.labels.labelset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.CacheHints;
+import bdv.img.cache.CachedCellImg;
+import bdv.img.cache.LoadingStrategy;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.cache.VolatileImgCells;
+import bdv.img.cache.VolatileImgCells.CellCache;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Builds all levels of a label multiset mipmap pyramid in one pass.
+ *
+ * <p>
+ * Output cells of all levels are downscaled on a {@link ForkJoinPool}. Each
+ * level (except level 0) is backed by an in-memory block store, such that the
+ * cells of level <em>N+1</em> are computed from the blocks of level <em>N</em>
+ * while they are still in memory. A block is dropped from the store as soon as
+ * it was written and all cells of coarser levels depending on it have been
+ * computed. Cells are scheduled in z-order of their extent in level 0 and
+ * handed to the {@link PyramidWriter} in that order from the thread calling
+ * {@link #build(PyramidWriter)}, so the writer does not need to be
+ * thread-safe.
+ */
+public class LabelMultisetPyramidBuilder
+{
+	/**
+	 * Receives level metadata and downscaled blocks. All methods are called
+	 * from the thread that calls {@link LabelMultisetPyramidBuilder#build}.
+	 */
+	public interface PyramidWriter
+	{
+		public void writeNumLevels( final int numLevels );
+
+		public void writeLevelInfo( final int level, final long[] dimensions, final long[] factors, final long[] blocksize, final LabelRetention retention );
+
+		public void writeBlock( final int level, final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize );
+	}
+
+	private final RandomAccessibleInterval< LabelMultisetType > source;
+
+	private final ExportMipmapInfo mipmapInfo;
+
+	private final int numThreads;
+
+	private final int maxPendingBlocks;
+
+	private final LabelRetention[] retentions;
+
+	/**
+	 * @param source
+	 *            full resolution (level 0) labels.
+	 * @param mipmapInfo
+	 *            resolutions (relative to level 0) and block sizes of all
+	 *            levels.
+	 * @param numThreads
+	 *            number of threads used for downscaling.
+	 */
+	public LabelMultisetPyramidBuilder(
+			final RandomAccessibleInterval< LabelMultisetType > source,
+			final ExportMipmapInfo mipmapInfo,
+			final int numThreads )
+	{
+		this( source, mipmapInfo, numThreads, 8 * numThreads );
+	}
+
+	/**
+	 * @param source
+	 *            full resolution (level 0) labels.
+	 * @param mipmapInfo
+	 *            resolutions (relative to level 0) and block sizes of all
+	 *            levels.
+	 * @param numThreads
+	 *            number of threads used for downscaling.
+	 * @param maxPendingBlocks
+	 *            maximum number of scheduled blocks that have not been written
+	 *            yet.
+	 */
+	public LabelMultisetPyramidBuilder(
+			final RandomAccessibleInterval< LabelMultisetType > source,
+			final ExportMipmapInfo mipmapInfo,
+			final int numThreads,
+			final int maxPendingBlocks )
+	{
+		this( source, mipmapInfo, numThreads, maxPendingBlocks, null );
+	}
+
+	/**
+	 * @param source
+	 *            full resolution (level 0) labels.
+	 * @param mipmapInfo
+	 *            resolutions (relative to level 0) and block sizes of all
+	 *            levels.
+	 * @param numThreads
+	 *            number of threads used for downscaling.
+	 * @param maxPendingBlocks
+	 *            maximum number of scheduled blocks that have not been written
+	 *            yet.
+	 * @param retentions
+	 *            which labels are kept when downscaling to each level, index
+	 *            0 is ignored. Missing or {@code null} entries keep all
+	 *            labels. Levels computed from a lossy level are approximate
+	 *            as well.
+	 */
+	public LabelMultisetPyramidBuilder(
+			final RandomAccessibleInterval< LabelMultisetType > source,
+			final ExportMipmapInfo mipmapInfo,
+			final int numThreads,
+			final int maxPendingBlocks,
+			final LabelRetention[] retentions )
+	{
+		this.source = source;
+		this.mipmapInfo = mipmapInfo;
+		this.numThreads = numThreads;
+		this.maxPendingBlocks = maxPendingBlocks;
+		this.retentions = retentions;
+	}
+
+	private LabelRetention retention( final int level )
+	{
+		if ( retentions == null || level >= retentions.length || retentions[ level ] == null )
+			return LabelRetention.ALL;
+		return retentions[ level ];
+	}
+
+	/**
+	 * Compute all levels {@code > 0} and pass them to {@code writer}.
+	 */
+	public void build( final PyramidWriter writer ) throws InterruptedException, ExecutionException
+	{
+		final int[][] resolutions = mipmapInfo.getExportResolutions();
+		final int numLevels = resolutions.length;
+		final VolatileGlobalCellCache cache = new VolatileGlobalCellCache( 1, 1, numLevels, 1 );
+		try
+		{
+			build( writer, resolutions, cache );
+		}
+		finally
+		{
+			/* stop the fetcher threads of the cache */
+			cache.finish();
+		}
+	}
+
+	private void build( final PyramidWriter writer, final int[][] resolutions, final VolatileGlobalCellCache cache ) throws InterruptedException, ExecutionException
+	{
+		final int numLevels = resolutions.length;
+		final Level[] levels = new Level[ numLevels ];
+		levels[ 0 ] = new Level( source, mipmapInfo.getSubdivisions()[ 0 ] );
+		writer.writeNumLevels( numLevels );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			levels[ level ] = createLevel( levels, level, cache );
+			writer.writeLevelInfo(
+					level,
+					levels[ level ].dimensions,
+					Util.int2long( resolutions[ level ] ),
+					Util.int2long( levels[ level ].cellDimensions ),
+					levels[ level ].retention );
+		}
+
+		final List< BlockTask > tasks = new ArrayList<>();
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final Level l = levels[ level ];
+			for ( int i = 0; i < l.numCellsTotal; ++i )
+			{
+				l.source.retain( l, i );
+				tasks.add( new BlockTask( l, i, ( l.cellMax( i, l.n - 1 ) + 1 ) * resolutions[ level ][ l.n - 1 ] ) );
+			}
+		}
+		tasks.sort( Comparator
+				.comparingLong( ( final BlockTask t ) -> t.sweepPosition )
+				.thenComparingInt( t -> t.level.index )
+				.thenComparingInt( t -> t.cellIndex ) );
+
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		final Semaphore pending = new Semaphore( maxPendingBlocks );
+		final BlockingQueue< ForkJoinTask< VolatileLabelMultisetArray > > submitted = new LinkedBlockingQueue<>();
+		final Thread submitter = new Thread( () -> {
+			try
+			{
+				for ( final BlockTask task : tasks )
+				{
+					pending.acquire();
+					submitted.put( pool.submit( task ) );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, "pyramid block submitter" );
+		submitter.setDaemon( true );
+		submitter.start();
+
+		try
+		{
+			for ( final BlockTask task : tasks )
+			{
+				final VolatileLabelMultisetArray block = submitted.take().get();
+				final Level l = task.level;
+				writer.writeBlock( l.index, block, l.cellMin( task.cellIndex ), l.cellDimensions( task.cellIndex ) );
+				pending.release();
+			}
+		}
+		finally
+		{
+			submitter.interrupt();
+			pool.shutdownNow();
+		}
+	}
+
+	private Level createLevel( final Level[] levels, final int level, final VolatileGlobalCellCache cache )
+	{
+		final int n = source.numDimensions();
+		final int[][] resolutions = mipmapInfo.getExportResolutions();
+
+		// Are downsampling factors a multiple of a level that we have
+		// already computed?
+		int[] factorsToPreviousLevel = null;
+		int previousLevel = -1;
+		A: for ( int l = level - 1; l >= 0; --l )
+		{
+			final int[] f = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				f[ d ] = resolutions[ level ][ d ] / resolutions[ l ][ d ];
+				if ( f[ d ] * resolutions[ l ][ d ] != resolutions[ level ][ d ] )
+					continue A;
+			}
+			factorsToPreviousLevel = f;
+			previousLevel = l;
+			break;
+		}
+
+		final Level sourceLevel = levels[ previousLevel ];
+		final long[] factors = Util.int2long( factorsToPreviousLevel );
+		final long[] dimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			dimensions[ d ] = Math.max( sourceLevel.dimensions[ d ] / factors[ d ], 1 );
+
+		return new Level( level, sourceLevel, factors, dimensions, mipmapInfo.getSubdivisions()[ level ], retention( level ), cache );
+	}
+
+	private static class BlockTask implements Callable< VolatileLabelMultisetArray >
+	{
+		final Level level;
+
+		final int cellIndex;
+
+		final long sweepPosition;
+
+		BlockTask( final Level level, final int cellIndex, final long sweepPosition )
+		{
+			this.level = level;
+			this.cellIndex = cellIndex;
+			this.sweepPosition = sweepPosition;
+		}
+
+		@Override
+		public VolatileLabelMultisetArray call() throws Exception
+		{
+			final VolatileLabelMultisetArray block = level.getBlock( cellIndex );
+			level.release( cellIndex );
+			return block;
+		}
+	}
+
+	/**
+	 * One level of the pyramid. For levels {@code > 0} this is the
+	 * {@link CacheArrayLoader} of the level image, serving blocks from the
+	 * in-memory block store or computing them from the source level.
+	 */
+	private static class Level implements CacheArrayLoader< VolatileLabelMultisetArray >
+	{
+		final int index;
+
+		final int n;
+
+		final Level source;
+
+		final long[] factors;
+
+		final long[] dimensions;
+
+		final int[] cellDimensions;
+
+		final LabelRetention retention;
+
+		final long[] numCells;
+
+		final int numCellsTotal;
+
+		final RandomAccessibleInterval< LabelMultisetType > img;
+
+		final RandomAccessibleInterval< LabelMultisetType > extendedSource;
+
+		/**
+		 * Blocks that have been computed (or are being computed) and are still
+		 * needed. {@code null} for level 0.
+		 */
+		final ConcurrentHashMap< Integer, FutureTask< VolatileLabelMultisetArray > > blocks;
+
+		/**
+		 * Number of pending users (the write task and depending cells of
+		 * coarser levels) for each block.
+		 */
+		final AtomicIntegerArray users;
+
+		private VolatileLabelMultisetArray theEmptyArray;
+
+		/**
+		 * Level 0
+		 */
+		Level( final RandomAccessibleInterval< LabelMultisetType > img, final int[] cellDimensions )
+		{
+			this.index = 0;
+			this.n = img.numDimensions();
+			this.source = null;
+			this.factors = null;
+			this.dimensions = new long[ n ];
+			img.dimensions( dimensions );
+			this.cellDimensions = cellDimensions;
+			this.retention = LabelRetention.ALL;
+			this.numCells = numCells( dimensions, cellDimensions );
+			this.numCellsTotal = ( int ) Intervals.numElements( numCells );
+			this.img = img;
+			this.extendedSource = null;
+			this.blocks = null;
+			this.users = null;
+		}
+
+		Level(
+				final int index,
+				final Level source,
+				final long[] factors,
+				final long[] dimensions,
+				final int[] cellDimensions,
+				final LabelRetention retention,
+				final VolatileGlobalCellCache cache )
+		{
+			this.index = index;
+			this.n = dimensions.length;
+			this.source = source;
+			this.factors = factors;
+			this.dimensions = dimensions;
+			this.cellDimensions = cellDimensions;
+			this.retention = retention;
+			this.numCells = numCells( dimensions, cellDimensions );
+			this.numCellsTotal = ( int ) Intervals.numElements( numCells );
+			this.blocks = new ConcurrentHashMap<>();
+			this.users = new AtomicIntegerArray( numCellsTotal );
+			for ( int i = 0; i < numCellsTotal; ++i )
+				users.set( i, 1 );
+			theEmptyArray = new VolatileLabelMultisetArray( 1, false );
+
+			final long[] minRequiredInput = new long[ n ];
+			final long[] maxRequiredInput = new long[ n ];
+			source.img.min( minRequiredInput );
+			for ( int d = 0; d < n; ++d )
+				maxRequiredInput[ d ] = minRequiredInput[ d ] + dimensions[ d ] * factors[ d ] - 1;
+			extendedSource = Views.interval( Views.extendBorder( source.img ), new FinalInterval( minRequiredInput, maxRequiredInput ) );
+
+			final CacheHints cacheHints = new CacheHints( LoadingStrategy.BLOCKING, 0, false );
+			final CellCache< VolatileLabelMultisetArray > c = cache.new VolatileCellCache< VolatileLabelMultisetArray >( 0, 0, index, cacheHints, this );
+			final VolatileImgCells< VolatileLabelMultisetArray > cells = new VolatileImgCells< VolatileLabelMultisetArray >( c, new Fraction(), dimensions, cellDimensions );
+			final CachedCellImg< LabelMultisetType, VolatileLabelMultisetArray > cachedImg = new CachedCellImg< LabelMultisetType, VolatileLabelMultisetArray >( cells );
+			cachedImg.setLinkedType( new LabelMultisetType( cachedImg ) );
+			img = cachedImg;
+		}
+
+		private static long[] numCells( final long[] dimensions, final int[] cellDimensions )
+		{
+			final long[] numCells = new long[ dimensions.length ];
+			for ( int d = 0; d < dimensions.length; ++d )
+				numCells[ d ] = ( dimensions[ d ] - 1 ) / cellDimensions[ d ] + 1;
+			return numCells;
+		}
+
+		long[] cellMin( final int cellIndex )
+		{
+			final long[] min = new long[ n ];
+			IntervalIndexer.indexToPosition( cellIndex, numCells, min );
+			for ( int d = 0; d < n; ++d )
+				min[ d ] *= cellDimensions[ d ];
+			return min;
+		}
+
+		long cellMax( final int cellIndex, final int d )
+		{
+			final long[] min = cellMin( cellIndex );
+			return Math.min( min[ d ] + cellDimensions[ d ], dimensions[ d ] ) - 1;
+		}
+
+		long[] cellDimensions( final int cellIndex )
+		{
+			final long[] min = cellMin( cellIndex );
+			final long[] dim = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				dim[ d ] = Math.min( min[ d ] + cellDimensions[ d ], dimensions[ d ] ) - min[ d ];
+			return dim;
+		}
+
+		/**
+		 * Call {@code action} for the index of every cell of this level that
+		 * is required to compute cell {@code cellIndex} of {@code target}.
+		 */
+		void forEachInputCell( final Level target, final int cellIndex, final IntConsumer action )
+		{
+			final long[] targetMin = target.cellMin( cellIndex );
+			final long[] targetDim = target.cellDimensions( cellIndex );
+			final long[] minCell = new long[ n ];
+			final long[] maxCell = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				final long min = Math.min( targetMin[ d ] * target.factors[ d ], dimensions[ d ] - 1 );
+				final long max = Math.min( ( targetMin[ d ] + targetDim[ d ] ) * target.factors[ d ] - 1, dimensions[ d ] - 1 );
+				minCell[ d ] = min / cellDimensions[ d ];
+				maxCell[ d ] = max / cellDimensions[ d ];
+			}
+			final long[] pos = minCell.clone();
+			while ( true )
+			{
+				action.accept( ( int ) IntervalIndexer.positionToIndex( pos, numCells ) );
+				int d = 0;
+				for ( ; d < n; ++d )
+				{
+					if ( ++pos[ d ] <= maxCell[ d ] )
+						break;
+					pos[ d ] = minCell[ d ];
+				}
+				if ( d == n )
+					return;
+			}
+		}
+
+		/**
+		 * Register cell {@code cellIndex} of {@code target} as a user of the
+		 * blocks of this level it depends on.
+		 */
+		void retain( final Level target, final int cellIndex )
+		{
+			if ( users != null )
+				forEachInputCell( target, cellIndex, users::incrementAndGet );
+		}
+
+		void release( final int cellIndex )
+		{
+			if ( users != null && users.decrementAndGet( cellIndex ) <= 0 )
+				blocks.remove( cellIndex );
+		}
+
+		VolatileLabelMultisetArray getBlock( final int cellIndex ) throws InterruptedException
+		{
+			FutureTask< VolatileLabelMultisetArray > f = blocks.get( cellIndex );
+			if ( f == null )
+			{
+				final FutureTask< VolatileLabelMultisetArray > computation = new FutureTask<>( () -> computeBlock( cellIndex ) );
+				f = blocks.putIfAbsent( cellIndex, computation );
+				if ( f == null )
+				{
+					f = computation;
+					computation.run();
+				}
+			}
+			try
+			{
+				return f.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+
+		private VolatileLabelMultisetArray computeBlock( final int cellIndex )
+		{
+			final VolatileLabelMultisetArray block = Downscale.downscale(
+					extendedSource,
+					factors,
+					cellDimensions( cellIndex ),
+					cellMin( cellIndex ),
+					retention );
+			source.forEachInputCell( this, cellIndex, source::release );
+			return block;
+		}
+
+		@Override
+		public VolatileLabelMultisetArray loadArray(
+				final int timepoint,
+				final int setup,
+				final int level,
+				final int[] dimensions,
+				final long[] min ) throws InterruptedException
+		{
+			final long[] cellPos = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				cellPos[ d ] = min[ d ] / cellDimensions[ d ];
+			return getBlock( ( int ) IntervalIndexer.positionToIndex( cellPos, numCells ) );
+		}
+
+		@Override
+		public int getBytesPerElement()
+		{
+			return 8;
+		}
+
+		@Override
+		public VolatileLabelMultisetArray emptyArray( final int[] dimensions )
+		{
+			int numEntities = 1;
+			for ( int i = 0; i < dimensions.length; ++i )
+				numEntities *= dimensions[ i ];
+			if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
+				theEmptyArray = new VolatileLabelMultisetArray( numEntities, false );
+			return theEmptyArray;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "level " + index + " " + Arrays.toString( dimensions );
+		}
+	}
+}
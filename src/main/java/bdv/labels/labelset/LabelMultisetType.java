@@ -1,6 +1,7 @@
 package bdv.labels.labelset;
 
 import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
@@ -15,6 +16,15 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 {
 	public static final LabelMultisetType type = new LabelMultisetType();
 
+	/**
+	 * Receives the entries of a {@link LabelMultisetType}, see
+	 * {@link LabelMultisetType#forEachEntry(EntryConsumer)}.
+	 */
+	public interface EntryConsumer
+	{
+		public void accept( long id, int count );
+	}
+
 	private final NativeImg< ?, VolatileLabelMultisetArray > img;
 
 	private VolatileLabelMultisetArray access;
@@ -210,6 +220,135 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 		return entries.toString();
 	}
 
+	// ==== primitive access to the entries =====
+	//
+	// Unlike entrySet(), these neither box nor borrow refs from the shared
+	// pool of the list, so they can be used per pixel.
+
+	/**
+	 * @return the entries of the current list
+	 */
+	LabelMultisetEntryList entries()
+	{
+		access.getValue( i, entries );
+		return entries;
+	}
+
+	/**
+	 * Pass the id and count of all entries to {@code consumer}, in ascending
+	 * order of ids.
+	 */
+	public void forEachEntry( final EntryConsumer consumer )
+	{
+		access.getValue( i, entries );
+		entries.forEachEntry( consumer );
+	}
+
+	/**
+	 * @return the number of distinct labels, i.e. the number of entries
+	 */
+	public int numEntries()
+	{
+		access.getValue( i, entries );
+		return entries.size();
+	}
+
+	/**
+	 * Get the id of entry {@code index} in
+	 * {@code [0, }{@link #numEntries()}{@code )}, entries are sorted by id.
+	 */
+	public long getEntryId( final int index )
+	{
+		access.getValue( i, entries );
+		return entries.getId( index );
+	}
+
+	/**
+	 * Get the count of entry {@code index} in
+	 * {@code [0, }{@link #numEntries()}{@code )}.
+	 */
+	public int getEntryCount( final int index )
+	{
+		access.getValue( i, entries );
+		return entries.getCount( index );
+	}
+
+	/**
+	 * Copy the ids of all entries into {@code ids} if it is large enough,
+	 * otherwise into a new array.
+	 *
+	 * @return the array with the ids in its first {@link #numEntries()}
+	 *         elements
+	 */
+	public long[] ids( final long[] ids )
+	{
+		access.getValue( i, entries );
+		final int n = entries.size();
+		final long[] dst = ids != null && ids.length >= n ? ids : new long[ n ];
+		for ( int k = 0; k < n; ++k )
+			dst[ k ] = entries.getId( k );
+		return dst;
+	}
+
+	public long[] ids()
+	{
+		return ids( null );
+	}
+
+	/**
+	 * Copy the counts of all entries into {@code counts} if it is large
+	 * enough, otherwise into a new array.
+	 *
+	 * @return the array with the counts in its first {@link #numEntries()}
+	 *         elements
+	 */
+	public int[] counts( final int[] counts )
+	{
+		access.getValue( i, entries );
+		final int n = entries.size();
+		final int[] dst = counts != null && counts.length >= n ? counts : new int[ n ];
+		for ( int k = 0; k < n; ++k )
+			dst[ k ] = entries.getCount( k );
+		return dst;
+	}
+
+	public int[] counts()
+	{
+		return counts( null );
+	}
+
+	/**
+	 * @param sortedIds
+	 *            sorted in ascending order
+	 * @return whether any entry has an id in {@code sortedIds}
+	 */
+	public boolean containsAny( final long[] sortedIds )
+	{
+		access.getValue( i, entries );
+		final int n = entries.size();
+		for ( int k = 0; k < n; ++k )
+			if ( Arrays.binarySearch( sortedIds, entries.getId( k ) ) >= 0 )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Get the array that this type currently refers to.
+	 */
+	public VolatileLabelMultisetArray getAccess()
+	{
+		return access;
+	}
+
+	/**
+	 * Get the offset of the current list in the list data of
+	 * {@link #getAccess()}.
+	 */
+	public int getListOffset()
+	{
+		return access.getListOffset( i );
+	}
+
 	// for volatile type
 	boolean isValid()
 	{
@@ -0,0 +1,137 @@
+package bdv.labels.labelset;
+
+/**
+ * Which labels of a downscaled {@link LabelMultisetType} are kept.
+ *
+ * Downscaling keeps every distinct label of the contributing voxels by
+ * default ({@link #ALL}), such that lists grow with the level. A lossy
+ * retention keeps at most {@link #getMaxNumEntries()} labels with the
+ * largest counts, and only labels with at least
+ * {@link #getMinCountFraction()} of the total count. The label with the
+ * largest count is always kept. If {@link #isAggregateRemainder()}, the
+ * counts of all dropped labels are added to an entry {@link Label#OTHER},
+ * such that the total count is preserved, and this entry counts towards
+ * {@link #getMaxNumEntries()}.
+ *
+ * Levels downscaled with a lossy retention are approximate, see
+ * {@link DownscaleToHdf5#writeRetention} and
+ * {@link DownscaleToHdf5#readRetention}.
+ */
+public class LabelRetention
+{
+	/**
+	 * Keep all labels.
+	 */
+	final static public LabelRetention ALL = new LabelRetention( Integer.MAX_VALUE, 0, false );
+
+	final static private ThreadLocal< long[] > keys = ThreadLocal.withInitial( () -> new long[ 64 ] );
+
+	private final int maxNumEntries;
+
+	private final double minCountFraction;
+
+	private final boolean aggregateRemainder;
+
+	/**
+	 * @param maxNumEntries
+	 *            maximum number of entries per list, including the remainder
+	 *            entry.
+	 * @param minCountFraction
+	 *            minimum count of kept labels relative to the total count, in
+	 *            {@code [0, 1]}.
+	 * @param aggregateRemainder
+	 *            whether the counts of dropped labels are kept as label
+	 *            {@link Label#OTHER}.
+	 */
+	public LabelRetention( final int maxNumEntries, final double minCountFraction, final boolean aggregateRemainder )
+	{
+		if ( maxNumEntries < ( aggregateRemainder ? 2 : 1 ) )
+			throw new IllegalArgumentException( "maxNumEntries = " + maxNumEntries + " leaves no room for labels." );
+		if ( !( minCountFraction >= 0 && minCountFraction <= 1 ) )
+			throw new IllegalArgumentException( "minCountFraction = " + minCountFraction + " is not in [0, 1]." );
+		this.maxNumEntries = maxNumEntries;
+		this.minCountFraction = minCountFraction;
+		this.aggregateRemainder = aggregateRemainder;
+	}
+
+	/**
+	 * Keep the {@code k} labels with the largest counts, plus the remainder
+	 * entry if {@code aggregateRemainder}.
+	 */
+	public static LabelRetention topK( final int k, final boolean aggregateRemainder )
+	{
+		return new LabelRetention( aggregateRemainder ? k + 1 : k, 0, aggregateRemainder );
+	}
+
+	/**
+	 * Keep labels with at least {@code fraction} of the total count.
+	 */
+	public static LabelRetention minCountFraction( final double fraction, final boolean aggregateRemainder )
+	{
+		return new LabelRetention( Integer.MAX_VALUE, fraction, aggregateRemainder );
+	}
+
+	public int getMaxNumEntries()
+	{
+		return maxNumEntries;
+	}
+
+	public double getMinCountFraction()
+	{
+		return minCountFraction;
+	}
+
+	public boolean isAggregateRemainder()
+	{
+		return aggregateRemainder;
+	}
+
+	/**
+	 * @return whether all labels are kept.
+	 */
+	public boolean isLossless()
+	{
+		return maxNumEntries == Integer.MAX_VALUE && minCountFraction == 0;
+	}
+
+	/**
+	 * Drop labels from {@code list} in place. The list must be sorted.
+	 */
+	public void apply( final LabelMultisetEntryList list )
+	{
+		if ( isLossless() )
+			return;
+
+		final int minCount = minCountFraction == 0 ? 0 : ( int ) Math.ceil( minCountFraction * list.multisetSize() );
+		long[] k = keys.get();
+		if ( k.length < list.size() )
+		{
+			k = new long[ list.size() ];
+			keys.set( k );
+		}
+		list.limit( maxNumEntries, minCount, aggregateRemainder, k );
+	}
+
+	@Override
+	public boolean equals( final Object o )
+	{
+		if ( !( o instanceof LabelRetention ) )
+			return false;
+		final LabelRetention r = ( LabelRetention ) o;
+		return maxNumEntries == r.maxNumEntries && minCountFraction == r.minCountFraction && aggregateRemainder == r.aggregateRemainder;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return ( 31 * maxNumEntries + Double.hashCode( minCountFraction ) ) * 2 + ( aggregateRemainder ? 1 : 0 );
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( isLossless() )
+			return "all";
+		return "max" + maxNumEntries + "-min" + minCountFraction + ( aggregateRemainder ? "-remainder" : "" );
+	}
+}
@@ -1,8 +1,9 @@
 package bdv.labels.labelset;
 
 /**
- * A {@link MappedAccess} that stores its data in a portion of a {@code long[]}
- * array.
+ * A {@link MappedAccess} that stores its data in a portion of an
+ * {@link AbstractLongMappedAccessData}, a {@code long[]} array or off-heap
+ * memory.
  *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
@@ -10,18 +11,18 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 {
 	/**
 	 * The current base offset (in bytes) into the underlying
-	 * {@link LongMappedAccessData#data storage array}.
+	 * {@link AbstractLongMappedAccessData storage}.
 	 */
 	private long baseOffset;
 
 	/**
-	 * Contains the {@link LongMappedAccessData#data storage array}.
+	 * The storage.
 	 */
-	private LongMappedAccessData dataArray;
+	private AbstractLongMappedAccessData dataArray;
 
 //	static Object lock = new Object();
 
-	LongMappedAccess( final LongMappedAccessData dataArray, final long baseOffset )
+	LongMappedAccess( final AbstractLongMappedAccessData dataArray, final long baseOffset )
 	{
 //		synchronized( lock )
 //		{
@@ -35,7 +36,7 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 		this.baseOffset = baseOffset;
 	}
 
-	void setDataArray( final LongMappedAccessData dataArray )
+	void setDataArray( final AbstractLongMappedAccessData dataArray )
 	{
 		this.dataArray = dataArray;
 	}
@@ -48,73 +49,73 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void putByte( final byte value, final int offset )
 	{
-		ByteUtils.putByte( value, dataArray.data, baseOffset + offset );
+		dataArray.putByte( value, baseOffset + offset );
 	}
 
 	@Override
 	public byte getByte( final int offset )
 	{
-		return ByteUtils.getByte( dataArray.data, baseOffset + offset );
+		return dataArray.getByte( baseOffset + offset );
 	}
 
 	@Override
 	public void putBoolean( final boolean value, final int offset )
 	{
-		ByteUtils.putBoolean( value, dataArray.data, baseOffset + offset );
+		dataArray.putByte( value ? ( byte ) 1 : ( byte ) 0, baseOffset + offset );
 	}
 
 	@Override
 	public boolean getBoolean( final int offset )
 	{
-		return ByteUtils.getBoolean( dataArray.data, baseOffset + offset );
+		return dataArray.getByte( baseOffset + offset ) != ( byte ) 0;
 	}
 
 	@Override
 	public void putInt( final int value, final int offset )
 	{
-		ByteUtils.putInt( value, dataArray.data, baseOffset + offset );
+		dataArray.putInt( value, baseOffset + offset );
 	}
 
 	@Override
 	public int getInt( final int offset )
 	{
-		return ByteUtils.getInt( dataArray.data, baseOffset + offset );
+		return dataArray.getInt( baseOffset + offset );
 	}
 
 	@Override
 	public void putLong( final long value, final int offset )
 	{
-		ByteUtils.putLong( value, dataArray.data, baseOffset + offset );
+		dataArray.putLong( value, baseOffset + offset );
 	}
 
 	@Override
 	public long getLong( final int offset )
 	{
-		return ByteUtils.getLong( dataArray.data, baseOffset + offset );
+		return dataArray.getLong( baseOffset + offset );
 	}
 
 	@Override
 	public void putFloat( final float value, final int offset )
 	{
-		ByteUtils.putFloat( value, dataArray.data, baseOffset + offset );
+		dataArray.putInt( Float.floatToRawIntBits( value ), baseOffset + offset );
 	}
 
 	@Override
 	public float getFloat( final int offset )
 	{
-		return ByteUtils.getFloat( dataArray.data, baseOffset + offset );
+		return Float.intBitsToFloat( dataArray.getInt( baseOffset + offset ) );
 	}
 
 	@Override
 	public void putDouble( final double value, final int offset )
 	{
-		ByteUtils.putDouble( value, dataArray.data, baseOffset + offset );
+		dataArray.putLong( Double.doubleToRawLongBits( value ), baseOffset + offset );
 	}
 
 	@Override
 	public double getDouble( final int offset )
 	{
-		return ByteUtils.getDouble( dataArray.data, baseOffset + offset );
+		return Double.longBitsToDouble( dataArray.getLong( baseOffset + offset ) );
 	}
 
 	/**
@@ -142,18 +143,18 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void copyFrom( final LongMappedAccess fromAccess, final int numBytes )
 	{
-		ByteUtils.copyBytes( fromAccess.dataArray.data, fromAccess.baseOffset, dataArray.data, baseOffset, numBytes );
+		dataArray.copyFrom( fromAccess.dataArray, fromAccess.baseOffset, baseOffset, numBytes );
 	}
 
-	private long[] swapTmp = new long[ 0 ];
+	private LongMappedAccessData swapTmp = LongMappedAccessData.factory.createStorage( 0 );
 
 	@Override
 	public void swapWith( final LongMappedAccess access, final int numBytes )
 	{
-		if ( ( swapTmp.length << 3 ) < numBytes )
-			swapTmp = new long[ ( numBytes >> 3 ) + 1 ];
-		ByteUtils.copyBytes( dataArray.data, baseOffset, swapTmp, 0, numBytes );
-		ByteUtils.copyBytes( access.dataArray.data, access.baseOffset, dataArray.data, baseOffset, numBytes );
-		ByteUtils.copyBytes( swapTmp, 0, access.dataArray.data, access.baseOffset, numBytes );
+		if ( swapTmp.size() < numBytes )
+			swapTmp = LongMappedAccessData.factory.createStorage( numBytes );
+		swapTmp.copyFrom( dataArray, baseOffset, 0, numBytes );
+		dataArray.copyFrom( access.dataArray, access.baseOffset, baseOffset, numBytes );
+		access.dataArray.copyFrom( swapTmp, 0, access.baseOffset, numBytes );
 	}
 }
@@ -7,7 +7,7 @@ package bdv.labels.labelset;
  *
  * @author Tobias Pietzsch <tobias.pietzsch@gmail.com>
  */
-public class LongMappedAccessData implements MappedAccessData< LongMappedAccess >
+public class LongMappedAccessData extends AbstractLongMappedAccessData
 {
 	/**
 	 * The current data storage. This is changed when the array is
@@ -23,16 +23,48 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 	}
 
 	@Override
-	public LongMappedAccess createAccess()
+	void putByte( final byte value, final long position )
 	{
-		return new LongMappedAccess( this, 0 );
+		ByteUtils.putByte( value, data, position );
 	}
 
 	@Override
-	public void updateAccess( final LongMappedAccess access, final long baseOffset )
+	byte getByte( final long position )
 	{
-		access.setDataArray( this );
-		access.setBaseOffset( baseOffset );
+		return ByteUtils.getByte( data, position );
+	}
+
+	@Override
+	void putInt( final int value, final long position )
+	{
+		ByteUtils.putInt( value, data, position );
+	}
+
+	@Override
+	int getInt( final long position )
+	{
+		return ByteUtils.getInt( data, position );
+	}
+
+	@Override
+	void putLong( final long value, final long position )
+	{
+		ByteUtils.putLong( value, data, position );
+	}
+
+	@Override
+	long getLong( final long position )
+	{
+		return ByteUtils.getLong( data, position );
+	}
+
+	@Override
+	void copyFrom( final AbstractLongMappedAccessData src, final long srcPosition, final long position, final int numBytes )
+	{
+		if ( src instanceof LongMappedAccessData )
+			ByteUtils.copyBytes( ( ( LongMappedAccessData ) src ).data, srcPosition, data, position, numBytes );
+		else
+			super.copyFrom( src, srcPosition, position, numBytes );
 	}
 
 	private long longSizeFromByteSize( final long byteSize )
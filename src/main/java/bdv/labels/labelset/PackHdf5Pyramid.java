@@ -0,0 +1,86 @@
+package bdv.labels.labelset;
+
+import bdv.labels.labelset.DownscaleToHdf5.H5PackedPyramidWriter;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+
+/**
+ * Converts a label multiset pyramid written with two datasets per block
+ * ({@code lXX/zXXXXX/yXXXXX/xXXXXX/lists} and {@code /data}) into the packed
+ * layout with one dataset and one block index per level, see
+ * {@link H5PackedPyramidWriter}.
+ */
+public class PackHdf5Pyramid
+{
+	/**
+	 * Usage: {@code PackHdf5Pyramid <input.h5> <output.h5>}
+	 */
+	public static void main( final String[] args )
+	{
+		if ( args.length < 2 )
+		{
+			System.out.println( "usage: PackHdf5Pyramid <input.h5> <output.h5>" );
+			return;
+		}
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( args[ 0 ] );
+		final IHDF5Writer writer = HDF5Factory.open( args[ 1 ] );
+
+		convert( reader, new H5PackedPyramidWriter( writer ) );
+
+		writer.close();
+		reader.close();
+	}
+
+	/**
+	 * Copy all levels and blocks from {@code reader} into {@code writer} and
+	 * write the block index.
+	 */
+	public static void convert( final IHDF5Reader reader, final H5PackedPyramidWriter writer )
+	{
+		final int numLevels = reader.uint32().read( "levels" );
+		writer.writeNumLevels( numLevels );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final long[] dimensions = reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+			final long[] factors = reader.uint64().readArray( String.format( "l%02d/factors", level ) );
+			final long[] blocksize = reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+			writer.writeLevelInfo( level, dimensions, factors, blocksize, DownscaleToHdf5.readRetention( reader, level ) );
+
+			final int n = dimensions.length;
+			final long[] maxCell = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				maxCell[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ];
+
+			final LocalizingIntervalIterator i = new LocalizingIntervalIterator( new long[ n ], maxCell );
+			final long[] min = new long[ n ];
+			final long[] cellDimensions = new long[ n ];
+			while ( i.hasNext() )
+			{
+				i.fwd();
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = i.getLongPosition( d ) * blocksize[ d ];
+					cellDimensions[ d ] = Math.min( blocksize[ d ], dimensions[ d ] - min[ d ] );
+				}
+
+				final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+				final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+				if ( !reader.exists( dataPath ) )
+					continue;
+
+				final int[] offsets = reader.uint32().readMDArray( dataPath ).getAsFlatArray();
+				final int[] lists = reader.uint32().readArray( listsPath );
+				final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
+				final LongMappedAccess access = listData.createAccess();
+				for ( int j = 0; j < lists.length; ++j )
+					access.putInt( lists[ j ], j * 4 );
+
+				writer.writeBlock( level, new VolatileLabelMultisetArray( offsets, listData, lists.length * 4, true ), min, cellDimensions );
+			}
+		}
+		writer.writeIndex();
+	}
+}
@@ -0,0 +1,392 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+
+import bdv.labels.labelset.LabelMultisetFill.FillPolicy;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.type.Type;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.RandomAccessiblePair;
+
+/**
+ * Span (scanline) flood fill for n-dimensional images with face connectivity
+ * (the 4-neighborhood in 2D, 6-neighborhood in 3D, i.e. the neighborhood of
+ * {@link net.imglib2.algorithm.neighborhood.DiamondShape DiamondShape(1)}).
+ *
+ * Voxels are visited by moving a single {@link RandomAccess} along dimension
+ * 0, so cell backed images are traversed in memory order and no neighborhood
+ * cursors are created.  Instead of every filled voxel, only the pending spans
+ * (runs of filled voxels along dimension 0 whose neighbor lines have not been
+ * scanned yet) are stored, packed into a single long[] stack that is reused
+ * for the whole fill.  Its size is proportional to the surface rather than
+ * the volume of the filled region.
+ *
+ * Like {@link LabelMultisetFill#fill(RandomAccessible, Localizable,
+ * net.imglib2.algorithm.neighborhood.Shape, FillPolicy)}, this relies on
+ * {@link FillPolicy#isValidNeighbor(Object)} returning false for voxels that
+ * have been filled.
+ */
+public class ScanlineFill
+{
+	/**
+	 * Observes a running fill and can stop it.
+	 */
+	public interface Monitor
+	{
+		/**
+		 * Called for every span after it has been filled and before its
+		 * neighbor lines are scanned.
+		 *
+		 * @param x0
+		 *            first x of the span
+		 * @param x1
+		 *            last x of the span
+		 * @param position
+		 *            position of the line, do not modify
+		 * @param numFilled
+		 *            number of voxels filled so far
+		 *
+		 * @return false to stop the fill, leaving it incomplete
+		 */
+		public boolean span( long x0, long x1, long[] position, long numFilled );
+	}
+
+	/**
+	 * Adapts a {@link FillPolicy} to an imglib2 {@link Filter} that compares
+	 * (source, target) pairs against a reference like
+	 * {@link net.imglib2.algorithm.fill.FloodFill} does.
+	 */
+	public static class FilterFillPolicy< T, U extends Type< U > > implements FillPolicy< Pair< T, U > >
+	{
+		final protected Pair< T, U > reference;
+
+		final protected U fillLabel;
+
+		final protected Filter< Pair< T, U >, Pair< T, U > > filter;
+
+		public FilterFillPolicy( final T sourceReference, final U fillLabel, final Filter< Pair< T, U >, Pair< T, U > > filter )
+		{
+			this.reference = new ValuePair<>( sourceReference, fillLabel );
+			this.fillLabel = fillLabel;
+			this.filter = filter;
+		}
+
+		@Override
+		public void fill( final Pair< T, U > t )
+		{
+			t.getB().set( fillLabel );
+		}
+
+		@Override
+		public boolean isValidNeighbor( final Pair< T, U > t )
+		{
+			return filter.accept( t, reference );
+		}
+	}
+
+	/**
+	 * Stack of spans, each stored as {@code [x0, x1, p1, ..., pn-1]}.
+	 */
+	protected static class SpanStack
+	{
+		final int stride;
+
+		long[] data;
+
+		int size = 0;
+
+		SpanStack( final int n )
+		{
+			stride = n + 1;
+			data = new long[ 1024 * stride ];
+		}
+
+		void push( final long x0, final long x1, final long[] position )
+		{
+			if ( size + stride > data.length )
+				data = Arrays.copyOf( data, data.length * 2 );
+			data[ size ] = x0;
+			data[ size + 1 ] = x1;
+			for ( int d = 1; d < position.length; ++d )
+				data[ size + d + 1 ] = position[ d ];
+			size += stride;
+		}
+
+		/**
+		 * Pop the top span, its line position is written into
+		 * {@code position}.
+		 *
+		 * @return the offset of x0, x1 in {@link #data}, valid until the next
+		 *         {@link #push(long, long, long[])}
+		 */
+		int pop( final long[] position )
+		{
+			size -= stride;
+			for ( int d = 1; d < position.length; ++d )
+				position[ d ] = data[ size + d + 1 ];
+			return size;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+	}
+
+	final protected long[] min;
+
+	final protected long[] max;
+
+	final protected Monitor monitor;
+
+	/**
+	 * @param n
+	 *            number of dimensions
+	 * @param bounds
+	 *            voxels outside of bounds are never visited, if null, the
+	 *            fill is only bounded by the {@link FillPolicy}.
+	 * @param monitor
+	 *            notified of every filled span, may be null
+	 */
+	protected ScanlineFill( final int n, final Interval bounds, final Monitor monitor )
+	{
+		this.monitor = monitor;
+		min = new long[ n ];
+		max = new long[ n ];
+		if ( bounds == null )
+		{
+			Arrays.fill( min, Long.MIN_VALUE );
+			Arrays.fill( max, Long.MAX_VALUE );
+		}
+		else
+		{
+			bounds.min( min );
+			bounds.max( max );
+		}
+	}
+
+	/**
+	 * Flood fill {@code source} starting at {@code seed}.  The seed is filled
+	 * unconditionally.
+	 *
+	 * @param source
+	 * @param bounds
+	 *            voxels outside of bounds are never visited, if null, the
+	 *            fill is only bounded by {@code filler}
+	 * @param seed
+	 * @param filler
+	 *            policy for checking whether a voxel should be filled and
+	 *            filling it
+	 *
+	 * @param monitor
+	 *            notified of every filled span and may stop the fill, may be
+	 *            null
+	 *
+	 * @return the number of filled voxels
+	 */
+	public static < T > long fill(
+			final RandomAccessible< T > source,
+			final Interval bounds,
+			final Localizable seed,
+			final FillPolicy< T > filler,
+			final Monitor monitor )
+	{
+		return new ScanlineFill( source.numDimensions(), bounds, monitor ).run( source, seed, filler );
+	}
+
+	/**
+	 * Flood fill {@code source} starting at {@code seed}.  The seed is filled
+	 * unconditionally.
+	 *
+	 * @return the number of filled voxels
+	 */
+	public static < T > long fill(
+			final RandomAccessible< T > source,
+			final Interval bounds,
+			final Localizable seed,
+			final FillPolicy< T > filler )
+	{
+		return fill( source, bounds, seed, filler, null );
+	}
+
+	/**
+	 * Flood fill {@code source} starting at {@code seed}.  The seed is filled
+	 * unconditionally.
+	 *
+	 * @return the number of filled voxels
+	 */
+	public static < T > long fill(
+			final RandomAccessible< T > source,
+			final Localizable seed,
+			final FillPolicy< T > filler )
+	{
+		return fill( source, null, seed, filler, null );
+	}
+
+	/**
+	 * Span based replacement for
+	 * {@link net.imglib2.algorithm.fill.FloodFill#fill(RandomAccessible,
+	 * RandomAccessible, Localizable, Object, Type,
+	 * net.imglib2.algorithm.neighborhood.Shape, Filter)} with a
+	 * {@link net.imglib2.algorithm.neighborhood.DiamondShape DiamondShape(1)}.
+	 * Writes {@code fillLabel} into {@code target} where {@code filter}
+	 * accepts the (source, target) pair.  {@code filter} must reject voxels
+	 * that have been filled.
+	 *
+	 * @return the number of filled voxels
+	 */
+	public static < T, U extends Type< U > > long fill(
+			final RandomAccessible< T > source,
+			final RandomAccessible< U > target,
+			final Interval bounds,
+			final Localizable seed,
+			final T sourceReference,
+			final U fillLabel,
+			final Filter< Pair< T, U >, Pair< T, U > > filter,
+			final Monitor monitor )
+	{
+		return fill(
+				new RandomAccessiblePair<>( source, target ),
+				bounds,
+				seed,
+				new FilterFillPolicy<>( sourceReference, fillLabel, filter ),
+				monitor );
+	}
+
+	protected < T > long run(
+			final RandomAccessible< T > source,
+			final Localizable seed,
+			final FillPolicy< T > filler )
+	{
+		final int n = source.numDimensions();
+		final RandomAccess< T > access = source.randomAccess();
+		final long[] position = new long[ n ];
+		final SpanStack stack = new SpanStack( n );
+
+		seed.localize( position );
+		access.setPosition( position );
+		filler.fill( access.get() );
+		final long seedX = position[ 0 ];
+		final long x0 = extendLeft( access, seedX, filler );
+		access.setPosition( seedX, 0 );
+		final long x1 = extendRight( access, seedX, filler );
+		long numFilled = x1 - x0 + 1;
+		stack.push( x0, x1, position );
+
+		while ( !stack.isEmpty() )
+		{
+			final int i = stack.pop( position );
+			final long spanX0 = stack.data[ i ];
+			final long spanX1 = stack.data[ i + 1 ];
+			if ( monitor != null && !monitor.span( spanX0, spanX1, position, numFilled ) )
+				break;
+			for ( int d = 1; d < n; ++d )
+			{
+				final long p = position[ d ];
+				if ( p > min[ d ] )
+				{
+					position[ d ] = p - 1;
+					numFilled += scanLine( access, spanX0, spanX1, position, filler, stack );
+				}
+				if ( p < max[ d ] )
+				{
+					position[ d ] = p + 1;
+					numFilled += scanLine( access, spanX0, spanX1, position, filler, stack );
+				}
+				position[ d ] = p;
+			}
+		}
+
+		return numFilled;
+	}
+
+	/**
+	 * Fill all voxels in {@code [x0, x1]} of the line at {@code position}
+	 * that are valid, extend the filled runs beyond {@code [x0, x1]}, and
+	 * push them.
+	 *
+	 * @return the number of filled voxels
+	 */
+	protected < T > long scanLine(
+			final RandomAccess< T > access,
+			final long x0,
+			final long x1,
+			final long[] position,
+			final FillPolicy< T > filler,
+			final SpanStack stack )
+	{
+		long numFilled = 0;
+		position[ 0 ] = x0;
+		access.setPosition( position );
+		long x = x0;
+		while ( x <= x1 )
+		{
+			final T t = access.get();
+			if ( filler.isValidNeighbor( t ) )
+			{
+				filler.fill( t );
+				final long runX0 = x == x0 ? extendLeft( access, x, filler ) : x;
+				access.setPosition( x, 0 );
+				final long runX1 = extendRight( access, x, filler );
+				stack.push( runX0, runX1, position );
+				numFilled += runX1 - runX0 + 1;
+				/* runX1 + 1 is either invalid or out of bounds */
+				x = runX1 + 2;
+				access.setPosition( x, 0 );
+			}
+			else
+			{
+				++x;
+				access.fwd( 0 );
+			}
+		}
+		return numFilled;
+	}
+
+	/**
+	 * Fill valid voxels left of {@code x}, leaves {@code access} at an
+	 * undefined position.
+	 *
+	 * @return the leftmost filled x
+	 */
+	protected < T > long extendLeft( final RandomAccess< T > access, final long x, final FillPolicy< T > filler )
+	{
+		long left = x;
+		while ( left > min[ 0 ] )
+		{
+			access.bck( 0 );
+			final T t = access.get();
+			if ( !filler.isValidNeighbor( t ) )
+				break;
+			filler.fill( t );
+			--left;
+		}
+		return left;
+	}
+
+	/**
+	 * Fill valid voxels right of {@code x}, leaves {@code access} at an
+	 * undefined position.
+	 *
+	 * @return the rightmost filled x
+	 */
+	protected < T > long extendRight( final RandomAccess< T > access, final long x, final FillPolicy< T > filler )
+	{
+		long right = x;
+		while ( right < max[ 0 ] )
+		{
+			access.fwd( 0 );
+			final T t = access.get();
+			if ( !filler.isValidNeighbor( t ) )
+				break;
+			filler.fill( t );
+			++right;
+		}
+		return right;
+	}
+}
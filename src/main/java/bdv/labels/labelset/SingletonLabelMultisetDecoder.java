@@ -0,0 +1,286 @@
+package bdv.labels.labelset;
+
+import static bdv.labels.labelset.ByteUtils.INT_SIZE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Converts blocks of primitive labels (one label per voxel) into a
+ * {@link VolatileLabelMultisetArray} with one singleton
+ * {@link LabelMultisetEntryList} per distinct label.  All label multiset
+ * loaders for uint8, uint16, uint32, and uint64 sources share this kernel.
+ *
+ * A single pass over the voxels maps each label to the offset of its list
+ * through a primitive hash map.  Because all singleton lists have the same
+ * size, the offsets are known before any list is written, so the
+ * {@link LongMappedAccessData} is allocated once with its final size after
+ * the pass instead of growing by repeated resizing.
+ *
+ * The hash map, the list of distinct labels, and the read buffer are kept
+ * per thread and reused across blocks.  Lists are created in the order in
+ * which their labels first occur in the block.
+ */
+public class SingletonLabelMultisetDecoder
+{
+	/**
+	 * size of a list with one {@link LabelMultisetEntry}
+	 */
+	final static public int SINGLETON_LIST_SIZE_IN_BYTES = INT_SIZE + LabelMultisetEntry.SIZE_IN_BYTES;
+
+	/**
+	 * Size of the buffer that {@link InputStream InputStreams} are read
+	 * through, a multiple of 8.
+	 */
+	final static private int BUFFER_SIZE = 1 << 16;
+
+	final static private ThreadLocal< SingletonLabelMultisetDecoder > decoders = new ThreadLocal< SingletonLabelMultisetDecoder >()
+	{
+		@Override
+		protected SingletonLabelMultisetDecoder initialValue()
+		{
+			return new SingletonLabelMultisetDecoder();
+		}
+	};
+
+	final private TLongIntHashMap idOffsetHash = new TLongIntHashMap(
+			Constants.DEFAULT_CAPACITY,
+			Constants.DEFAULT_LOAD_FACTOR,
+			-1,
+			-1 );
+
+	final private TLongArrayList ids = new TLongArrayList();
+
+	final private LabelMultisetEntryList list = new LabelMultisetEntryList();
+
+	final private LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+
+	private byte[] buffer = null;
+
+	private int nextListOffset;
+
+	private SingletonLabelMultisetDecoder() {}
+
+	private void reset()
+	{
+		idOffsetHash.clear();
+		ids.resetQuick();
+		nextListOffset = 0;
+	}
+
+	/**
+	 * @return the offset of the list for {@code id}, reserving it if
+	 *         {@code id} has not been seen before
+	 */
+	private int offset( final long id )
+	{
+		final int offset = idOffsetHash.get( id );
+		if ( offset != -1 )
+			return offset;
+
+		final int newOffset = nextListOffset;
+		idOffsetHash.put( id, newOffset );
+		ids.add( id );
+		nextListOffset += SINGLETON_LIST_SIZE_IN_BYTES;
+		return newOffset;
+	}
+
+	/**
+	 * Write the lists of all distinct labels.
+	 */
+	private VolatileLabelMultisetArray createArray( final int[] offsets )
+	{
+		/*
+		 * MappedObjectArrayList reserves space for one more entry than it
+		 * contains
+		 */
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( nextListOffset + LabelMultisetEntry.SIZE_IN_BYTES );
+		for ( int i = 0, offset = 0; i < ids.size(); ++i, offset += SINGLETON_LIST_SIZE_IN_BYTES )
+		{
+			list.createListAt( listData, offset );
+			entry.setId( ids.getQuick( i ) );
+			list.add( entry );
+		}
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+	}
+
+	private byte[] buffer()
+	{
+		if ( buffer == null )
+			buffer = new byte[ BUFFER_SIZE ];
+		return buffer;
+	}
+
+	/**
+	 * @param data
+	 *            uint64 labels
+	 */
+	static public VolatileLabelMultisetArray decode( final long[] data )
+	{
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final int[] offsets = new int[ data.length ];
+		for ( int i = 0; i < data.length; ++i )
+			offsets[ i ] = decoder.offset( data[ i ] );
+		return decoder.createArray( offsets );
+	}
+
+	/**
+	 * @param data
+	 *            uint32 labels
+	 */
+	static public VolatileLabelMultisetArray decode( final int[] data )
+	{
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final int[] offsets = new int[ data.length ];
+		for ( int i = 0; i < data.length; ++i )
+			offsets[ i ] = decoder.offset( data[ i ] & 0xffffffffL );
+		return decoder.createArray( offsets );
+	}
+
+	/**
+	 * @param data
+	 *            uint16 labels
+	 */
+	static public VolatileLabelMultisetArray decode( final short[] data )
+	{
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final int[] offsets = new int[ data.length ];
+		for ( int i = 0; i < data.length; ++i )
+			offsets[ i ] = decoder.offset( data[ i ] & 0xffffL );
+		return decoder.createArray( offsets );
+	}
+
+	/**
+	 * @param data
+	 *            uint8 labels
+	 */
+	static public VolatileLabelMultisetArray decode( final byte[] data )
+	{
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final int[] offsets = new int[ data.length ];
+		for ( int i = 0; i < data.length; ++i )
+			offsets[ i ] = decoder.offset( data[ i ] & 0xffL );
+		return decoder.createArray( offsets );
+	}
+
+	/**
+	 * Decode the remaining content of {@code data} in its
+	 * {@link ByteBuffer#order() byte order}.  The position of {@code data}
+	 * is not changed.
+	 *
+	 * @param data
+	 * @param bytesPerElement
+	 *            1, 2, 4, or 8 for uint8, uint16, uint32, or uint64 labels
+	 */
+	static public VolatileLabelMultisetArray decode( final ByteBuffer data, final int bytesPerElement )
+	{
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final int p = data.position();
+		final int[] offsets = new int[ data.remaining() / bytesPerElement ];
+		switch ( bytesPerElement )
+		{
+		case 1:
+			for ( int i = 0; i < offsets.length; ++i )
+				offsets[ i ] = decoder.offset( data.get( p + i ) & 0xffL );
+			break;
+		case 2:
+			for ( int i = 0; i < offsets.length; ++i )
+				offsets[ i ] = decoder.offset( data.getShort( p + 2 * i ) & 0xffffL );
+			break;
+		case 4:
+			for ( int i = 0; i < offsets.length; ++i )
+				offsets[ i ] = decoder.offset( data.getInt( p + 4 * i ) & 0xffffffffL );
+			break;
+		case 8:
+			for ( int i = 0; i < offsets.length; ++i )
+				offsets[ i ] = decoder.offset( data.getLong( p + 8 * i ) );
+			break;
+		default:
+			throw new IllegalArgumentException( "Unsupported number of bytes per element: " + bytesPerElement );
+		}
+		return decoder.createArray( offsets );
+	}
+
+	/**
+	 * Decode {@code numElements} little-endian labels from {@code in}
+	 * while reading it.  If the stream ends early, the remaining voxels are
+	 * labeled 0.  {@code in} is not closed.
+	 *
+	 * @param in
+	 * @param bytesPerElement
+	 *            1, 2, 4, or 8 for uint8, uint16, uint32, or uint64 labels
+	 * @param numElements
+	 */
+	static public VolatileLabelMultisetArray decode( final InputStream in, final int bytesPerElement, final int numElements ) throws IOException
+	{
+		if ( bytesPerElement != 1 && bytesPerElement != 2 && bytesPerElement != 4 && bytesPerElement != 8 )
+			throw new IllegalArgumentException( "Unsupported number of bytes per element: " + bytesPerElement );
+
+		final SingletonLabelMultisetDecoder decoder = decoders.get();
+		decoder.reset();
+		final byte[] bytes = decoder.buffer();
+		final int[] offsets = new int[ numElements ];
+		final long remainingBytes = ( long )numElements * bytesPerElement;
+		int i = 0;
+		int numBytes = 0;
+		while ( i < numElements )
+		{
+			/* fill the buffer, keeping the incomplete label at its start */
+			final int l = in.read( bytes, numBytes, ( int )Math.min( bytes.length, remainingBytes - ( long )i * bytesPerElement ) - numBytes );
+			if ( l < 0 )
+				break;
+			numBytes += l;
+
+			final int numLabelBytes = numBytes - numBytes % bytesPerElement;
+			int j = 0;
+			if ( bytesPerElement == 8 )
+			{
+				while ( j < numLabelBytes )
+				{
+					final long id =
+							( 0xffl & bytes[ j++ ] ) |
+							( ( 0xffl & bytes[ j++ ] ) << 8 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 16 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 24 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 32 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 40 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 48 ) |
+							( ( 0xffl & bytes[ j++ ] ) << 56 );
+					offsets[ i++ ] = decoder.offset( id );
+				}
+			}
+			else
+			{
+				while ( j < numLabelBytes )
+				{
+					long id = 0;
+					for ( int b = 0; b < bytesPerElement; ++b, ++j )
+						id |= ( 0xffl & bytes[ j ] ) << ( b << 3 );
+					offsets[ i++ ] = decoder.offset( id );
+				}
+			}
+
+			numBytes -= numLabelBytes;
+			System.arraycopy( bytes, numLabelBytes, bytes, 0, numBytes );
+		}
+
+		if ( i < numElements )
+		{
+			final int offset = decoder.offset( 0 );
+			while ( i < numElements )
+				offsets[ i++ ] = offset;
+		}
+
+		return decoder.createArray( offsets );
+	}
+}
@@ -0,0 +1,119 @@
+package bdv.labels.labelset;
+
+import java.util.Iterator;
+
+import bdv.labels.labelset.Multiset.Entry;
+
+/**
+ * Binary min-heap of {@link SortedPeekIterator SortedPeekIterators}, ordered by
+ * the id of their current head entry. This is used for k-way merging of the
+ * (sorted) entry sets of several {@link Multiset Multisets}: after the smallest
+ * head has been consumed with {@link #fwd()}, only that one iterator is sifted
+ * down instead of re-sorting all of them.
+ */
+class SortedPeekIteratorHeap
+{
+	static class SortedPeekIterator
+	{
+		Iterator< Entry< Label > > iter;
+
+		Entry< Label > head;
+
+		long headId;
+
+		void init( final Iterator< Entry< Label > > iter )
+		{
+			this.iter = iter;
+			fwd();
+		}
+
+		void fwd()
+		{
+			if ( iter.hasNext() )
+			{
+				head = iter.next();
+				headId = head.getElement().id();
+			}
+			else
+				head = null;
+		}
+	}
+
+	private final SortedPeekIterator[] heap;
+
+	private int size;
+
+	/**
+	 * @param iters
+	 *            the iterators to merge. The array is used as heap storage and
+	 *            will be reordered.
+	 */
+	SortedPeekIteratorHeap( final SortedPeekIterator[] iters )
+	{
+		this.heap = iters;
+		this.size = 0;
+	}
+
+	/**
+	 * Build the heap from all iterators that have been
+	 * {@link SortedPeekIterator#init(Iterator) initialized} and still have a
+	 * head.
+	 */
+	void heapify()
+	{
+		size = 0;
+		for ( int i = 0; i < heap.length; ++i )
+			if ( heap[ i ].head != null )
+				swap( i, size++ );
+		for ( int i = ( size >> 1 ) - 1; i >= 0; --i )
+			siftDown( i );
+	}
+
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @return the iterator with the smallest head id.
+	 */
+	SortedPeekIterator peek()
+	{
+		return heap[ 0 ];
+	}
+
+	/**
+	 * Advance the iterator with the smallest head id and restore heap order.
+	 */
+	void fwd()
+	{
+		final SortedPeekIterator top = heap[ 0 ];
+		top.fwd();
+		if ( top.head == null )
+			swap( 0, --size );
+		siftDown( 0 );
+	}
+
+	private void siftDown( int i )
+	{
+		while ( true )
+		{
+			final int l = 2 * i + 1;
+			if ( l >= size )
+				return;
+			final int r = l + 1;
+			final int c = ( r < size && heap[ r ].headId < heap[ l ].headId ) ? r : l;
+			if ( heap[ i ].headId <= heap[ c ].headId )
+				return;
+			swap( i, c );
+			i = c;
+		}
+	}
+
+	private void swap( final int i, final int j )
+	{
+		final SortedPeekIterator tmp = heap[ i ];
+		heap[ i ] = heap[ j ];
+		heap[ j ] = tmp;
+	}
+}
@@ -1,5 +1,7 @@
 package bdv.labels.labelset;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
 
@@ -12,6 +14,10 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 
 	private final long listDataUsedSizeInBytes;
 
+	private static final AtomicLong serialNumbers = new AtomicLong();
+
+	private final long serialNumber = serialNumbers.incrementAndGet();
+
 	public VolatileLabelMultisetArray( final int numEntities, final boolean isValid )
 	{
 		super( isValid );
@@ -41,11 +47,43 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 		this.listDataUsedSizeInBytes = listDataUsedSizeInBytes;
 	}
 
+	/**
+	 * For subclasses that store the list offsets in another form and
+	 * override {@link #getValue(int, LabelMultisetEntryList)},
+	 * {@link #getListOffset(int)}, and {@link #getCurrentStorageArray()}.
+	 */
+	protected VolatileLabelMultisetArray(
+			final MappedAccessData< LongMappedAccess > listData,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid )
+	{
+		this( null, listData, listDataUsedSizeInBytes, isValid );
+	}
+
 	public void getValue( final int index, final LabelMultisetEntryList ref )
 	{
 		ref.referToDataAt( listData, data[ index ] );
 	}
 
+	/**
+	 * Get the offset of the list at {@code index} in the list data.  Lists
+	 * are deduplicated, so equal offsets within an array stand for equal
+	 * lists.
+	 */
+	public int getListOffset( final int index )
+	{
+		return data[ index ];
+	}
+
+	/**
+	 * Get a number that is unique for each array created in this JVM, e.g. to
+	 * key caches of values derived from the lists of this array.
+	 */
+	public long getSerialNumber()
+	{
+		return serialNumber;
+	}
+
 	@Override
 	public VolatileLabelMultisetArray createArray( final int numEntities )
 	{
@@ -67,4 +105,13 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 	{
 		return listDataUsedSizeInBytes;
 	}
+
+	/**
+	 * Get the number of bytes occupied by the list offsets and the list data
+	 * of this array (excluding object headers).
+	 */
+	public long getSizeInBytes()
+	{
+		return 4l * data.length + listData.size();
+	}
 }
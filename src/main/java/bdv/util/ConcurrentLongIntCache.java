@@ -0,0 +1,133 @@
+package bdv.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size long to int cache that can be read and written by any number of
+ * threads without locking and without allocating.
+ *
+ * <p>
+ * The cache is direct mapped: each key has exactly one slot, and a new entry
+ * replaces whatever was stored in its slot before. Each slot stores the key
+ * and its value packed together with a 32 bit fingerprint of the key. A
+ * reader that races with writers of the same slot finds a key/value
+ * combination whose fingerprint does not match and reports a miss.
+ *
+ * <p>
+ * {@link #get(long)} returns a configurable 'no entry' value for keys that are
+ * not cached, so mapping a key to that value is the same as not caching it.
+ */
+public class ConcurrentLongIntCache
+{
+	/**
+	 * interleaved key and (fingerprint << 32 | value) pairs
+	 */
+	final private AtomicLongArray slots;
+
+	final private int mask;
+
+	final private int noEntryValue;
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to the next power of two.
+	 * @param noEntryValue
+	 *            returned by {@link #get(long)} for keys that are not cached.
+	 */
+	public ConcurrentLongIntCache( final int capacity, final int noEntryValue )
+	{
+		int n = 1;
+		while ( n < capacity )
+			n <<= 1;
+		slots = new AtomicLongArray( 2 * n );
+		mask = n - 1;
+		this.noEntryValue = noEntryValue;
+	}
+
+	/**
+	 * Cache with 'no entry' value 0.
+	 *
+	 * @param capacity
+	 *            number of slots, rounded up to the next power of two.
+	 */
+	public ConcurrentLongIntCache( final int capacity )
+	{
+		this( capacity, 0 );
+	}
+
+	/**
+	 * Upper 32 bits of the hash, with the lowest bit set such that empty
+	 * slots never match.
+	 */
+	private static int fingerprint( final long hash )
+	{
+		return ( int ) ( hash >>> 32 ) | 1;
+	}
+
+	private static long hash( final long key )
+	{
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+	public int getNoEntryValue()
+	{
+		return noEntryValue;
+	}
+
+	/**
+	 * @return the cached value for {@code key} or {@link #getNoEntryValue()}
+	 *         if it is not cached
+	 */
+	public int get( final long key )
+	{
+		final long h = hash( key );
+		final int i = ( ( int ) h & mask ) << 1;
+		if ( slots.get( i ) != key )
+			return noEntryValue;
+		final long v = slots.get( i + 1 );
+		if ( ( int ) ( v >>> 32 ) != fingerprint( h ) )
+			return noEntryValue;
+		return ( int ) v;
+	}
+
+	public void put( final long key, final int value )
+	{
+		final long h = hash( key );
+		final int i = ( ( int ) h & mask ) << 1;
+		slots.set( i + 1, ( ( long ) fingerprint( h ) << 32 ) | ( value & 0xffffffffl ) );
+		slots.set( i, key );
+	}
+
+	/**
+	 * Remove {@code key} if it is cached.  Clears the fingerprint, so a
+	 * concurrent {@link #put(long, int)} of the same key may be lost too.
+	 */
+	public void remove( final long key )
+	{
+		final long h = hash( key );
+		final int i = ( ( int ) h & mask ) << 1;
+		if ( slots.get( i ) == key )
+			slots.set( i + 1, 0 );
+	}
+
+	/**
+	 * Remove all entries without reallocating the slots.  Entries that are
+	 * put concurrently may or may not survive.
+	 */
+	public void clear()
+	{
+		for ( int i = 1; i < slots.length(); i += 2 )
+			slots.set( i, 0 );
+	}
+}
@@ -0,0 +1,296 @@
+package bdv.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.procedure.TLongLongProcedure;
+
+/**
+ * Open addressing long to long hash map with wait-free reads for a single
+ * writer.
+ *
+ * <p>
+ * {@link #get(long)}, {@link #containsKey(long)}, {@link #size()} and
+ * {@link #forEachEntry(TLongLongProcedure)} can be called from any number of
+ * threads without locking. All modifying methods must be called by one thread
+ * at a time, i.e. callers synchronize writes externally.
+ *
+ * <p>
+ * Slots are never removed, so a key once visible stays in its slot. New
+ * entries write the value before the key, such that a reader that sees the
+ * key also sees a valid value. Growing and {@link #replaceAll(TLongLongHashMap)}
+ * build a complete new table and publish it with a single volatile write.
+ */
+public class ConcurrentLongLongHashMap
+{
+	final static private int MIN_CAPACITY = 16;
+
+	final static private class Table
+	{
+		final AtomicLongArray keys;
+
+		final AtomicLongArray values;
+
+		final int mask;
+
+		/**
+		 * entries stored in {@link #keys} and {@link #values}, i.e. not
+		 * counting {@link ConcurrentLongLongHashMap#noEntryKey}
+		 */
+		volatile int size = 0;
+
+		/**
+		 * mapped value for {@link ConcurrentLongLongHashMap#noEntryKey}
+		 * which cannot be stored in the table
+		 */
+		volatile boolean hasNoEntryKey = false;
+
+		volatile long noEntryKeyValue;
+
+		Table( final int capacity, final long noEntryKey )
+		{
+			keys = new AtomicLongArray( capacity );
+			values = new AtomicLongArray( capacity );
+			mask = capacity - 1;
+			if ( noEntryKey != 0 )
+				for ( int i = 0; i < capacity; ++i )
+					keys.lazySet( i, noEntryKey );
+		}
+	}
+
+	final private long noEntryKey;
+
+	final private long noEntryValue;
+
+	private volatile Table table;
+
+	public ConcurrentLongLongHashMap( final int initialCapacity, final long noEntryKey, final long noEntryValue )
+	{
+		this.noEntryKey = noEntryKey;
+		this.noEntryValue = noEntryValue;
+		table = new Table( capacityFor( initialCapacity ), noEntryKey );
+	}
+
+	public ConcurrentLongLongHashMap( final long noEntryKey, final long noEntryValue )
+	{
+		this( MIN_CAPACITY, noEntryKey, noEntryValue );
+	}
+
+	/**
+	 * Smallest power of two table size that keeps the load factor of
+	 * {@code numEntries} at or below 0.5.
+	 */
+	private static int capacityFor( final int numEntries )
+	{
+		int capacity = MIN_CAPACITY;
+		while ( capacity < 2l * numEntries )
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private static int hash( final long key )
+	{
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return ( int ) h;
+	}
+
+	public long getNoEntryKey()
+	{
+		return noEntryKey;
+	}
+
+	public long getNoEntryValue()
+	{
+		return noEntryValue;
+	}
+
+	/**
+	 * @return the value mapped to {@code key} or {@link #getNoEntryValue()}
+	 */
+	public long get( final long key )
+	{
+		final Table t = table;
+		if ( key == noEntryKey )
+			return t.hasNoEntryKey ? t.noEntryKeyValue : noEntryValue;
+
+		final AtomicLongArray keys = t.keys;
+		for ( int i = hash( key ) & t.mask;; i = ( i + 1 ) & t.mask )
+		{
+			final long k = keys.get( i );
+			if ( k == key )
+				return t.values.get( i );
+			if ( k == noEntryKey )
+				return noEntryValue;
+		}
+	}
+
+	public boolean containsKey( final long key )
+	{
+		final Table t = table;
+		if ( key == noEntryKey )
+			return t.hasNoEntryKey;
+
+		final AtomicLongArray keys = t.keys;
+		for ( int i = hash( key ) & t.mask;; i = ( i + 1 ) & t.mask )
+		{
+			final long k = keys.get( i );
+			if ( k == key )
+				return true;
+			if ( k == noEntryKey )
+				return false;
+		}
+	}
+
+	public int size()
+	{
+		final Table t = table;
+		return t.hasNoEntryKey ? t.size + 1 : t.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Map {@code key} to {@code value}. Must not be called concurrently with
+	 * other modifying methods.
+	 *
+	 * @return the previous value mapped to {@code key} or
+	 *         {@link #getNoEntryValue()}
+	 */
+	public long put( final long key, final long value )
+	{
+		Table t = table;
+		if ( key == noEntryKey )
+		{
+			final long previous = t.hasNoEntryKey ? t.noEntryKeyValue : noEntryValue;
+			t.noEntryKeyValue = value;
+			t.hasNoEntryKey = true;
+			return previous;
+		}
+
+		if ( 2l * ( t.size + 1 ) > t.keys.length() )
+		{
+			t = copy( t, t.keys.length() << 1 );
+			table = t;
+		}
+
+		return put( t, key, value );
+	}
+
+	private long put( final Table t, final long key, final long value )
+	{
+		final AtomicLongArray keys = t.keys;
+		for ( int i = hash( key ) & t.mask;; i = ( i + 1 ) & t.mask )
+		{
+			final long k = keys.get( i );
+			if ( k == key )
+			{
+				final long previous = t.values.get( i );
+				t.values.set( i, value );
+				return previous;
+			}
+			if ( k == noEntryKey )
+			{
+				t.values.set( i, value );
+				keys.set( i, key );
+				++t.size;
+				return noEntryValue;
+			}
+		}
+	}
+
+	private Table copy( final Table src, final int capacity )
+	{
+		final Table dst = new Table( capacity, noEntryKey );
+		for ( int i = 0; i < src.keys.length(); ++i )
+		{
+			final long k = src.keys.get( i );
+			if ( k != noEntryKey )
+				put( dst, k, src.values.get( i ) );
+		}
+		dst.noEntryKeyValue = src.noEntryKeyValue;
+		dst.hasNoEntryKey = src.hasNoEntryKey;
+		return dst;
+	}
+
+	/**
+	 * Remove all entries. Must not be called concurrently with other
+	 * modifying methods.
+	 */
+	public void clear()
+	{
+		table = new Table( MIN_CAPACITY, noEntryKey );
+	}
+
+	/**
+	 * Replace all entries by the entries of {@code map}. Readers see either
+	 * the complete previous or the complete new content. Must not be called
+	 * concurrently with other modifying methods.
+	 */
+	public void replaceAll( final TLongLongHashMap map )
+	{
+		final Table t = new Table( capacityFor( map.size() ), noEntryKey );
+		map.forEachEntry( new TLongLongProcedure()
+		{
+			@Override
+			public boolean execute( final long key, final long value )
+			{
+				if ( key == noEntryKey )
+				{
+					t.noEntryKeyValue = value;
+					t.hasNoEntryKey = true;
+				}
+				else
+					put( t, key, value );
+				return true;
+			}
+		} );
+		table = t;
+	}
+
+	/**
+	 * Execute {@code procedure} for each entry of the table current at the
+	 * time of the call. Stops if {@code procedure} returns false.
+	 *
+	 * @return false if {@code procedure} returned false, true otherwise
+	 */
+	public boolean forEachEntry( final TLongLongProcedure procedure )
+	{
+		final Table t = table;
+		if ( t.hasNoEntryKey && !procedure.execute( noEntryKey, t.noEntryKeyValue ) )
+			return false;
+		for ( int i = 0; i < t.keys.length(); ++i )
+		{
+			final long k = t.keys.get( i );
+			if ( k != noEntryKey && !procedure.execute( k, t.values.get( i ) ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a copy of all entries as a {@link TLongLongHashMap} with the
+	 *         same no entry key and value
+	 */
+	public TLongLongHashMap toTLongLongHashMap()
+	{
+		final TLongLongHashMap map = new TLongLongHashMap( Math.max( size(), MIN_CAPACITY ), 0.5f, noEntryKey, noEntryValue );
+		forEachEntry( new TLongLongProcedure()
+		{
+			@Override
+			public boolean execute( final long key, final long value )
+			{
+				map.put( key, value );
+				return true;
+			}
+		} );
+		return map;
+	}
+}
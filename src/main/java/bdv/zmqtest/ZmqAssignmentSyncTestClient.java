@@ -0,0 +1,145 @@
+package bdv.zmqtest;
+
+import java.util.Arrays;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import bdv.bigcat.Message;
+import bdv.bigcat.MessageCodec;
+import bdv.bigcat.label.AssignmentDeltaSync;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.UnionFindFragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+
+/**
+ * Receives bursts of assignment updates from a
+ * {@link ZmqAssignmentSyncTestServer} running in the same JVM, applies them
+ * like {@link bdv.bigcat.control.LabelMergeSplitClientController} does, and
+ * reports throughput and latency.  Run with "lut" to send full lookup tables
+ * instead of updates, and with a number n to drop every n-th update.
+ */
+public class ZmqAssignmentSyncTestClient extends ZmqTestClient
+{
+	public static void main( final String[] args )
+	{
+		final boolean fullLut = args.length > 0 && args[ 0 ].equals( "lut" );
+		final int dropEvery = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 0;
+		final int numFragments = 100000;
+		final String url = "ipc:///tmp/zmqsynctest";
+
+		final ZContext ctx = new ZContext();
+		final ZmqAssignmentSyncTestServer server = new ZmqAssignmentSyncTestServer(
+				ctx,
+				url,
+				numFragments,
+				100,
+				100,
+				10,
+				dropEvery,
+				fullLut );
+		final Thread serverThread = new Thread( server );
+		serverThread.start();
+
+		final Socket client = ctx.createSocket( ZMQ.PAIR );
+		client.connect( url );
+
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( numFragments );
+		final FragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( idService );
+		final AssignmentDeltaSync sync = new AssignmentDeltaSync( assignment );
+		final MessageCodec codec = new MessageCodec();
+
+		/* start with a snapshot */
+		sync.requestSnapshot();
+		client.send( codec.encode( sync.resyncMessage() ) );
+
+		final int numUpdates = server.numUpdates();
+		final long[] latencies = new long[ numUpdates * 2 ];
+		int numLatencies = 0;
+		int numMessages = 0;
+		long numBytes = 0;
+		int numRepaints = 0;
+		int numResyncs = 0;
+		boolean resyncRequested = true;
+
+		long t0 = 0;
+		while ( sync.needsResync() || sync.getLastSequence() < numUpdates - 1 )
+		{
+			boolean updated = false;
+			for ( byte[] bytes = client.recv( 0 ); bytes != null; bytes = client.recv( ZMQ.DONTWAIT ) )
+			{
+				if ( numMessages == 0 )
+					t0 = System.nanoTime();
+				++numMessages;
+				numBytes += bytes.length;
+
+				final Message msg = codec.decode( bytes );
+				if ( sync.apply( msg ) )
+				{
+					updated = true;
+					if ( numLatencies < latencies.length && msg.getSequence() != Message.NO_SEQUENCE )
+						latencies[ numLatencies++ ] = System.nanoTime() - server.sendTimes.get( ( int )msg.getSequence() );
+				}
+
+				if ( sync.needsResync() )
+				{
+					if ( !resyncRequested )
+					{
+						client.send( codec.encode( sync.resyncMessage() ) );
+						resyncRequested = true;
+						++numResyncs;
+					}
+				}
+				else
+					resyncRequested = false;
+			}
+			if ( updated )
+				++numRepaints;
+		}
+		final long t = System.nanoTime() - t0;
+
+		client.send( "exit" );
+		try
+		{
+			serverThread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			e.printStackTrace();
+		}
+
+		boolean consistent = true;
+		for ( int fragmentId = 0; fragmentId < numFragments && consistent; ++fragmentId )
+		{
+			final long segmentId = server.getAssignment().getSegment( fragmentId );
+			consistent = segmentId == assignment.getSegment( fragmentId ) && sameFragments(
+					server.getAssignment().getFragments( segmentId ),
+					assignment.getFragments( segmentId ) );
+		}
+
+		Arrays.sort( latencies, 0, numLatencies );
+		System.out.println( ( fullLut ? "full lookup tables" : "updates" ) + ( dropEvery > 0 ? ", dropping every " + dropEvery + "th" : "" ) );
+		System.out.println( "  messages    : " + numMessages + " (" + numBytes / 1024 + "kB)" );
+		System.out.println( "  throughput  : " + String.format( "%.1f", numMessages * 1e9 / t ) + " messages/s, " + String.format( "%.1f", numUpdates * 1e9 / t ) + " updates/s" );
+		System.out.println( "  latency     : median " + String.format( "%.3f", latencies[ numLatencies / 2 ] / 1e6 ) + "ms, 99% " + String.format( "%.3f", latencies[ numLatencies * 99 / 100 ] / 1e6 ) + "ms" );
+		System.out.println( "  repaints    : " + numRepaints );
+		System.out.println( "  resyncs     : " + numResyncs );
+		System.out.println( "  consistent  : " + consistent );
+
+		ctx.destroy();
+	}
+
+	/**
+	 * Whether two segments have the same fragments.
+	 */
+	static private boolean sameFragments( final long[] fragments1, final long[] fragments2 )
+	{
+		final long[] a = fragments1.clone();
+		final long[] b = fragments2.clone();
+		Arrays.sort( a );
+		Arrays.sort( b );
+		return Arrays.equals( a, b );
+	}
+}
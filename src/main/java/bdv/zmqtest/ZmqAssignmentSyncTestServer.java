@@ -0,0 +1,210 @@
+package bdv.zmqtest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import bdv.bigcat.Message;
+import bdv.bigcat.Message.FragmentSegmentLUTData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.MessageCodec;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Sends bursts of random merges and isolates of fragments as sequenced
+ * assignment updates, or as full lookup tables for comparison.  Every
+ * {@link #dropEvery}th update is not sent to exercise the resync, which is
+ * answered with a snapshot.  Runs until it receives "exit".
+ *
+ * Send times are recorded per sequence number in {@link #sendTimes} such
+ * that a client in the same JVM can measure the update latency, see
+ * {@link ZmqAssignmentSyncTestClient}.
+ */
+public class ZmqAssignmentSyncTestServer extends ZmqTestServer implements Runnable
+{
+	final protected ZContext ctx;
+	final protected String url;
+	final protected int numFragments;
+	final protected int numBursts;
+	final protected int burstSize;
+	final protected long burstPause;
+	final protected int dropEvery;
+	final protected boolean fullLut;
+
+	final protected FragmentSegmentAssignment assignment;
+	final protected MessageCodec codec = new MessageCodec();
+	final public AtomicLongArray sendTimes;
+
+	protected long sequence = 0;
+
+	/**
+	 * @param ctx
+	 * @param url
+	 * @param numFragments
+	 * @param numBursts
+	 * @param burstSize updates per burst
+	 * @param burstPause pause between bursts in ms
+	 * @param dropEvery drop every n-th update, 0 for none
+	 * @param fullLut send full lookup tables instead of updates
+	 */
+	public ZmqAssignmentSyncTestServer(
+			final ZContext ctx,
+			final String url,
+			final int numFragments,
+			final int numBursts,
+			final int burstSize,
+			final long burstPause,
+			final int dropEvery,
+			final boolean fullLut )
+	{
+		this.ctx = ctx;
+		this.url = url;
+		this.numFragments = numFragments;
+		this.numBursts = numBursts;
+		this.burstSize = burstSize;
+		this.burstPause = burstPause;
+		this.dropEvery = dropEvery;
+		this.fullLut = fullLut;
+
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( numFragments );
+		assignment = new FragmentSegmentAssignment( idService );
+		sendTimes = new AtomicLongArray( numBursts * burstSize );
+	}
+
+	public int numUpdates()
+	{
+		return numBursts * burstSize;
+	}
+
+	public FragmentSegmentAssignment getAssignment()
+	{
+		return assignment;
+	}
+
+	protected Message snapshot( final long sequence )
+	{
+		final TLongLongHashMap lut = assignment.getLut();
+		final FragmentSegmentLUTData data = new FragmentSegmentLUTData();
+		data.fragments = lut.keys();
+		data.segments = lut.values();
+		return new Message( data, sequence );
+	}
+
+	/**
+	 * Merge two random fragments by assigning the first to the segment of
+	 * the second, or isolate a random fragment.
+	 */
+	protected Message edit( final Random rnd, final long sequence )
+	{
+		final long fragmentId1 = rnd.nextInt( numFragments );
+		if ( rnd.nextInt( 4 ) == 0 )
+		{
+			final long segmentId = assignment.getSegment( fragmentId1 );
+			final long[] fragments = assignment.getFragments( segmentId );
+			assignment.detachFragment( fragmentId1 );
+
+			/* the remaining fragments get a new id if the segment had the id of the fragment */
+			final IsolateData data = new IsolateData();
+			data.fragment = fragmentId1;
+			if ( fragments != null && fragments.length > 1 )
+				data.segment = assignment.getSegment( fragments[ 0 ] == fragmentId1 ? fragments[ 1 ] : fragments[ 0 ] );
+			return new Message( data, sequence );
+		}
+		else
+		{
+			final long fragmentId2 = rnd.nextInt( numFragments );
+			final long segmentId2 = assignment.getSegment( fragmentId2 );
+			assignment.assignFragments( assignment.getSegment( fragmentId1 ), segmentId2 );
+
+			final MergeData data = new MergeData();
+			data.fragments = new long[]{ fragmentId1, fragmentId2 };
+			data.segment = segmentId2;
+			return new Message( data, sequence );
+		}
+	}
+
+	/**
+	 * Answer resync requests.
+	 *
+	 * @return false if "exit" was received
+	 */
+	protected boolean handle( final Socket socket, final byte[] bytes )
+	{
+		if ( bytes.length == 0 )
+			return true;
+		if ( bytes[ 0 ] != '{' && bytes[ 0 ] != MessageCodec.BINARY_MAGIC )
+			return !new String( bytes, StandardCharsets.UTF_8 ).equals( "exit" );
+
+		final Message msg = codec.decode( bytes );
+		if ( msg.getData() instanceof ResyncData )
+		{
+			System.out.println( "Resync after " + ( ( ResyncData )msg.getData() ).lastSequence + " requested." );
+			socket.send( codec.encode( snapshot( sequence - 1 ) ) );
+		}
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		final Socket socket = ctx.createSocket( ZMQ.PAIR );
+		socket.bind( url );
+
+		final Random rnd = new Random( 42 );
+		try
+		{
+			for ( int b = 0; b < numBursts; ++b )
+			{
+				for ( int i = 0; i < burstSize; ++i )
+				{
+					final Message msg = edit( rnd, sequence );
+					sendTimes.set( ( int )sequence, System.nanoTime() );
+					/* never drop the last update of a burst such that the gap is noticed */
+					if ( dropEvery == 0 || i == burstSize - 1 || sequence % dropEvery != dropEvery - 1 )
+						socket.send( codec.encode( fullLut ? snapshot( sequence ) : msg ) );
+					++sequence;
+				}
+
+				for ( byte[] bytes = socket.recv( ZMQ.DONTWAIT ); bytes != null; bytes = socket.recv( ZMQ.DONTWAIT ) )
+					handle( socket, bytes );
+
+				Thread.sleep( burstPause );
+			}
+
+			while ( handle( socket, socket.recv( 0 ) ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			ctx.destroySocket( socket );
+		}
+	}
+
+	public static void main( final String[] args )
+	{
+		final ZContext ctx = new ZContext();
+		final ZmqAssignmentSyncTestServer server = new ZmqAssignmentSyncTestServer(
+				ctx,
+				"ipc:///tmp/zmqsynctest",
+				100000,
+				100,
+				100,
+				10,
+				0,
+				args.length > 0 && args[ 0 ].equals( "lut" ) );
+		server.run();
+		ctx.destroy();
+	}
+}
@@ -0,0 +1,159 @@
+package bdv.bigcat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import bdv.bigcat.Message.FragmentSegmentLUTData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.Message.MessageType;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.Message.SeparateData;
+
+public class MessageCodecTest
+{
+	private static FragmentSegmentLUTData lut( final int n )
+	{
+		final FragmentSegmentLUTData lut = new FragmentSegmentLUTData();
+		lut.fragments = new long[ n ];
+		lut.segments = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			lut.fragments[ i ] = i;
+			lut.segments[ i ] = i / 3 + ( 1L << 40 );
+		}
+		return lut;
+	}
+
+	private static void assertRoundTrip( final MessageCodec codec, final byte[] bytes, final Message msg )
+	{
+		final Message decoded = codec.decode( bytes );
+		assertEquals( msg.getType(), decoded.getType() );
+		assertEquals( msg.getSequence(), decoded.getSequence() );
+		final Object data = msg.getData();
+		final Object decodedData = decoded.getData();
+		if ( data instanceof MergeData )
+		{
+			assertArrayEquals( ( ( MergeData )data ).fragments, ( ( MergeData )decodedData ).fragments );
+			assertEquals( ( ( MergeData )data ).segment, ( ( MergeData )decodedData ).segment );
+		}
+		else if ( data instanceof SeparateData )
+		{
+			assertEquals( ( ( SeparateData )data ).fragmentA, ( ( SeparateData )decodedData ).fragmentA );
+			assertEquals( ( ( SeparateData )data ).fragmentB, ( ( SeparateData )decodedData ).fragmentB );
+			assertEquals( ( ( SeparateData )data ).segment, ( ( SeparateData )decodedData ).segment );
+		}
+		else if ( data instanceof IsolateData )
+		{
+			assertEquals( ( ( IsolateData )data ).fragment, ( ( IsolateData )decodedData ).fragment );
+			assertEquals( ( ( IsolateData )data ).segment, ( ( IsolateData )decodedData ).segment );
+		}
+		else if ( data instanceof FragmentSegmentLUTData )
+		{
+			assertArrayEquals( ( ( FragmentSegmentLUTData )data ).fragments, ( ( FragmentSegmentLUTData )decodedData ).fragments );
+			assertArrayEquals( ( ( FragmentSegmentLUTData )data ).segments, ( ( FragmentSegmentLUTData )decodedData ).segments );
+		}
+		else if ( data instanceof ResyncData )
+			assertEquals( ( ( ResyncData )data ).lastSequence, ( ( ResyncData )decodedData ).lastSequence );
+	}
+
+	private static Message[] messages()
+	{
+		final MergeData merge = new MergeData();
+		merge.fragments = new long[]{ 1, 2, 3 };
+		merge.segment = 7;
+		final SeparateData separate = new SeparateData();
+		separate.fragmentA = 4;
+		separate.fragmentB = 5;
+		separate.segment = 9;
+		final IsolateData isolate = new IsolateData();
+		isolate.fragment = 6;
+		isolate.segment = 8;
+		final ResyncData resync = new ResyncData();
+		resync.lastSequence = 41;
+		return new Message[]{
+				new Message( merge, 1 ),
+				new Message( separate, 2 ),
+				new Message( isolate ),
+				new Message( lut( 10 ), 3 ),
+				new Message( resync ) };
+	}
+
+	@Test
+	public void testJson()
+	{
+		final MessageCodec codec = new MessageCodec();
+		for ( final Message msg : messages() )
+		{
+			final byte[] bytes = codec.encode( msg );
+			assertEquals( '{', bytes[ 0 ] );
+			assertRoundTrip( codec, bytes, msg );
+		}
+	}
+
+	@Test
+	public void testBinary()
+	{
+		final MessageCodec codec = new MessageCodec();
+		/* type codes of the frames of messages() are fixed by the protocol */
+		final byte[] typeCodes = new byte[]{ 1, 2, 3, 4, 6 };
+		final Message[] messages = messages();
+		for ( int i = 0; i < messages.length; ++i )
+		{
+			final byte[] bytes = MessageCodec.encodeBinary( messages[ i ] );
+			assertEquals( MessageCodec.BINARY_MAGIC, bytes[ 0 ] );
+			assertEquals( typeCodes[ i ], bytes[ 1 ] );
+			assertRoundTrip( codec, bytes, messages[ i ] );
+		}
+
+		for ( final MessageType type : MessageType.values() )
+			assertEquals( type, MessageCodec.messageType( MessageCodec.typeCode( type ) ) );
+	}
+
+	@Test
+	public void testLargePayload()
+	{
+		final MessageCodec codec = new MessageCodec();
+		final Message msg = new Message( lut( 100000 ), 12345 );
+		final byte[] bytes = codec.encode( msg );
+		assertEquals( MessageCodec.BINARY_MAGIC, bytes[ 0 ] );
+		assertTrue( bytes.length < new MessageCodec( Integer.MAX_VALUE ).encode( msg ).length );
+		assertRoundTrip( codec, bytes, msg );
+	}
+
+	@Test
+	public void testMalformed()
+	{
+		final MessageCodec codec = new MessageCodec();
+		final byte[] bytes = MessageCodec.encodeBinary( new Message( lut( 10 ), 3 ) );
+		/* negative number of entries */
+		final byte[] negative = bytes.clone();
+		negative[ 10 ] = ( byte )0x80;
+
+		final byte[][] malformed = new byte[][]{
+				Arrays.copyOf( bytes, bytes.length - 1 ),
+				Arrays.copyOf( bytes, 5 ),
+				negative,
+				new byte[]{ MessageCodec.BINARY_MAGIC, 100 },
+				"{\"type\": \"merge\", \"data\": [".getBytes( StandardCharsets.UTF_8 ),
+				new byte[ 0 ] };
+
+		for ( final byte[] message : malformed )
+		{
+			try
+			{
+				codec.decode( message );
+				fail( "Malformed message was decoded." );
+			}
+			catch ( final RuntimeException e )
+			{}
+		}
+	}
+}
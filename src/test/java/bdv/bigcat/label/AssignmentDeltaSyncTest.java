@@ -0,0 +1,211 @@
+package bdv.bigcat.label;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import bdv.bigcat.Message;
+import bdv.bigcat.Message.FragmentSegmentLUTData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.Message.SeparateData;
+import bdv.labels.labelset.Label;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class AssignmentDeltaSyncTest
+{
+	private static final int numFragments = 100;
+
+	private static FragmentSegmentAssignment[] assignments()
+	{
+		final LocalIdService idService1 = new LocalIdService();
+		idService1.setNext( numFragments );
+		final LocalIdService idService2 = new LocalIdService();
+		idService2.setNext( numFragments );
+		return new FragmentSegmentAssignment[] {
+				new FragmentSegmentAssignment( idService1 ),
+				new UnionFindFragmentSegmentAssignment( idService2 ) };
+	}
+
+	private static Message merge( final long sequence, final long segmentId, final long... fragments )
+	{
+		final MergeData data = new MergeData();
+		data.fragments = fragments;
+		data.segment = segmentId;
+		return new Message( data, sequence );
+	}
+
+	private static Message separate( final long sequence, final long fragmentA, final long fragmentB )
+	{
+		final SeparateData data = new SeparateData();
+		data.fragmentA = fragmentA;
+		data.fragmentB = fragmentB;
+		return new Message( data, sequence );
+	}
+
+	private static Message isolate( final long sequence, final long fragmentId, final long segmentId )
+	{
+		final IsolateData data = new IsolateData();
+		data.fragment = fragmentId;
+		data.segment = segmentId;
+		return new Message( data, sequence );
+	}
+
+	private static Message snapshot( final long sequence, final long[] fragments, final long[] segments )
+	{
+		final FragmentSegmentLUTData data = new FragmentSegmentLUTData();
+		data.fragments = fragments;
+		data.segments = segments;
+		return new Message( data, sequence );
+	}
+
+	@Test
+	public void testInOrder()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final AssignmentDeltaSync sync = new AssignmentDeltaSync( assignment );
+			assertTrue( sync.apply( merge( 0, 3, 1, 2, 3 ) ) );
+			assertEquals( 3, assignment.getSegment( 1 ) );
+			assertEquals( 3, assignment.getSegment( 2 ) );
+			assertEquals( 3, assignment.getSegment( 3 ) );
+
+			assertTrue( sync.apply( separate( 1, 1, 2 ) ) );
+			assertEquals( 2, assignment.getSegment( 2 ) );
+			assertEquals( 3, assignment.getSegment( 1 ) );
+
+			assertTrue( sync.apply( isolate( 2, 3, 200 ) ) );
+			assertEquals( 3, assignment.getSegment( 3 ) );
+			assertEquals( 200, assignment.getSegment( 1 ) );
+			assertArrayEquals( new long[]{ 1 }, assignment.getFragments( 200 ) );
+
+			assertTrue( sync.apply( merge( 3, Label.TRANSPARENT, 4, 5 ) ) );
+			assertEquals( assignment.getSegment( 4 ), assignment.getSegment( 5 ) );
+			assertEquals( 3, sync.getLastSequence() );
+			assertFalse( sync.needsResync() );
+		}
+	}
+
+	@Test
+	public void testDuplicatesAndGaps()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final AssignmentDeltaSync sync = new AssignmentDeltaSync( assignment );
+			assertTrue( sync.apply( merge( 5, 2, 1, 2 ) ) );
+			assertFalse( sync.apply( merge( 5, 2, 1, 2 ) ) );
+			assertFalse( sync.apply( merge( 4, 7, 6, 7 ) ) );
+			assertEquals( 6, assignment.getSegment( 6 ) );
+
+			final long version = assignment.getVersion();
+			assertFalse( sync.apply( merge( 7, 9, 8, 9 ) ) );
+			assertTrue( sync.needsResync() );
+			assertFalse( sync.apply( merge( 8, 11, 10, 11 ) ) );
+			assertEquals( version, assignment.getVersion() );
+
+			final Message resync = sync.resyncMessage();
+			assertEquals( 5, ( ( ResyncData )resync.getData() ).lastSequence );
+
+			assertTrue( sync.apply( snapshot( 8, new long[]{ 1, 2, 8, 9, 10, 11 }, new long[]{ 2, 2, 9, 9, 11, 11 } ) ) );
+			assertFalse( sync.needsResync() );
+			assertEquals( 8, sync.getLastSequence() );
+			assertEquals( 9, assignment.getSegment( 8 ) );
+			assertEquals( 11, assignment.getSegment( 10 ) );
+
+			assertFalse( sync.apply( snapshot( 7, new long[ 0 ], new long[ 0 ] ) ) );
+			assertEquals( 9, assignment.getSegment( 8 ) );
+			assertTrue( sync.apply( merge( 9, 11, 8, 10 ) ) );
+			assertEquals( 11, assignment.getSegment( 8 ) );
+			assertEquals( 11, assignment.getSegment( 9 ) );
+		}
+	}
+
+	/**
+	 * Random merges and isolates on the server, with new segment ids drawn
+	 * by the server.
+	 */
+	private static Message edit( final FragmentSegmentAssignment server, final Random rnd, final long sequence )
+	{
+		final long fragmentId1 = rnd.nextInt( numFragments );
+		final long fragmentId2 = rnd.nextInt( numFragments );
+		if ( rnd.nextInt( 3 ) == 0 )
+		{
+			final long[] fragments = server.getFragments( server.getSegment( fragmentId1 ) );
+			server.detachFragment( fragmentId1 );
+			final long remainingFragmentId = fragments[ 0 ] == fragmentId1 && fragments.length > 1 ? fragments[ 1 ] : fragments[ 0 ];
+			return isolate( sequence, fragmentId1, server.getSegment( remainingFragmentId ) );
+		}
+		else
+		{
+			server.mergeFragmentSegments( fragmentId1, fragmentId2 );
+			return merge( sequence, server.getSegment( fragmentId1 ), fragmentId1, fragmentId2 );
+		}
+	}
+
+	private static void assertSameAssignment( final FragmentSegmentAssignment expected, final FragmentSegmentAssignment actual )
+	{
+		for ( long fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+		{
+			final long segmentId = expected.getSegment( fragmentId );
+			assertEquals( segmentId, actual.getSegment( fragmentId ) );
+			final long[] expectedFragments = expected.getFragments( segmentId ).clone();
+			final long[] actualFragments = actual.getFragments( segmentId ).clone();
+			Arrays.sort( expectedFragments );
+			Arrays.sort( actualFragments );
+			assertArrayEquals( expectedFragments, actualFragments );
+		}
+	}
+
+	/**
+	 * The ids drawn by the server and the client overlap, applying updates
+	 * must not draw ids on the client.
+	 */
+	@Test
+	public void testSnapshotAndDeltas()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final LocalIdService idService = new LocalIdService();
+			idService.setNext( numFragments );
+			final FragmentSegmentAssignment server = new FragmentSegmentAssignment( idService );
+			final Random rnd = new Random( 42 );
+			long sequence = 0;
+			for ( ; sequence < 50; ++sequence )
+				edit( server, rnd, sequence );
+
+			final AssignmentDeltaSync sync = new AssignmentDeltaSync( assignment );
+			sync.requestSnapshot();
+			assertFalse( sync.apply( merge( sequence, 1, 1, 2 ) ) );
+			final TLongLongHashMap lut = server.getLut();
+			assertTrue( sync.apply( snapshot( sequence - 1, lut.keys(), lut.values() ) ) );
+			assertSameAssignment( server, assignment );
+
+			for ( ; sequence < 500; ++sequence )
+			{
+				assertTrue( sync.apply( edit( server, rnd, sequence ) ) );
+				assertSameAssignment( server, assignment );
+			}
+		}
+	}
+
+	@Test
+	public void testUnsequenced()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final AssignmentDeltaSync sync = new AssignmentDeltaSync( assignment );
+			assertTrue( sync.apply( new Message( merge( 0, 2, 1, 2 ).getData() ) ) );
+			assertTrue( sync.apply( new Message( merge( 0, 3, 2, 3 ).getData() ) ) );
+			assertEquals( 3, assignment.getSegment( 1 ) );
+			assertEquals( Message.NO_SEQUENCE, sync.getLastSequence() );
+		}
+	}
+}
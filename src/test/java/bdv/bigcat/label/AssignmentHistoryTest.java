@@ -0,0 +1,191 @@
+package bdv.bigcat.label;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import bdv.util.LocalIdService;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+public class AssignmentHistoryTest
+{
+	static private String testDirPath = System.getProperty( "user.home" ) + "/tmp/bigcat-test/";
+
+	private static final int numFragments = 100;
+
+	private static FragmentSegmentAssignment[] assignments()
+	{
+		final LocalIdService idService1 = new LocalIdService();
+		idService1.setNext( numFragments );
+		final LocalIdService idService2 = new LocalIdService();
+		idService2.setNext( numFragments );
+		return new FragmentSegmentAssignment[] {
+				new FragmentSegmentAssignment( idService1 ),
+				new UnionFindFragmentSegmentAssignment( idService2 ) };
+	}
+
+	private static void edit( final FragmentSegmentAssignment assignment, final Random rnd )
+	{
+		final long fragmentId1 = rnd.nextInt( numFragments );
+		final long fragmentId2 = rnd.nextInt( numFragments );
+		switch ( rnd.nextInt( 4 ) )
+		{
+		case 0:
+		case 1:
+			assignment.mergeFragmentSegments( fragmentId1, fragmentId2 );
+			break;
+		case 2:
+			assignment.detachFragment( fragmentId1 );
+			break;
+		default:
+			assignment.assignFragments( assignment.getSegment( fragmentId1 ), assignment.getSegment( fragmentId2 ) );
+		}
+	}
+
+	/**
+	 * Segments of all fragments, checks that the fragments of each segment
+	 * are exactly the fragments that map to it and that no segment id drawn
+	 * from the id service is in the lookup.
+	 */
+	private static long[] segments( final FragmentSegmentAssignment assignment )
+	{
+		final long[] segments = new long[ numFragments ];
+		final TLongObjectHashMap< TLongArrayList > members = new TLongObjectHashMap<>();
+		for ( int fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+		{
+			segments[ fragmentId ] = assignment.getSegment( fragmentId );
+			TLongArrayList fragments = members.get( segments[ fragmentId ] );
+			if ( fragments == null )
+			{
+				fragments = new TLongArrayList();
+				members.put( segments[ fragmentId ], fragments );
+			}
+			fragments.add( fragmentId );
+		}
+
+		final TLongObjectIterator< TLongArrayList > iterator = members.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			final long[] fragments = assignment.getFragments( iterator.key() ).clone();
+			Arrays.sort( fragments );
+			assertArrayEquals( iterator.value().toArray(), fragments );
+		}
+
+		for ( final long id : assignment.getLut().keys() )
+			assertTrue( id < numFragments );
+
+		return segments;
+	}
+
+	@Test
+	public void testUndoRedo()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final AssignmentHistory history = new AssignmentHistory( assignment );
+			assertFalse( history.canUndo() );
+
+			final Random rnd = new Random( 42 );
+			final ArrayList< long[] > states = new ArrayList<>();
+			states.add( segments( assignment ) );
+			for ( int i = 0; i < 500; ++i )
+			{
+				final long version = assignment.getVersion();
+				edit( assignment, rnd );
+				if ( assignment.getVersion() != version )
+					states.add( segments( assignment ) );
+			}
+
+			for ( int i = states.size() - 2; i >= 0; --i )
+			{
+				assertTrue( history.undo() );
+				assertArrayEquals( states.get( i ), segments( assignment ) );
+			}
+			assertFalse( history.undo() );
+
+			for ( int i = 1; i < states.size(); ++i )
+			{
+				assertTrue( history.redo() );
+				assertArrayEquals( states.get( i ), segments( assignment ) );
+			}
+			assertFalse( history.redo() );
+		}
+	}
+
+	@Test
+	public void testEditAfterUndo()
+	{
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			final AssignmentHistory history = new AssignmentHistory( assignment );
+			assignment.mergeFragmentSegments( 1, 2 );
+			final long[] merged = segments( assignment );
+			assignment.mergeFragmentSegments( 2, 3 );
+			assertTrue( history.undo() );
+			assertArrayEquals( merged, segments( assignment ) );
+
+			assignment.detachFragment( 1 );
+			assertFalse( history.redo() );
+			assertTrue( history.undo() );
+			assertArrayEquals( merged, segments( assignment ) );
+			assertTrue( history.undo() );
+			assertFalse( history.undo() );
+			assertEquals( 2, assignment.getSegment( 2 ) );
+		}
+	}
+
+	@Test
+	public void testSaveLoad()
+	{
+		final File testDir = new File( testDirPath );
+		testDir.mkdirs();
+		final String testH5Path = testDirPath + "history.h5";
+		final String lutDataset = "/fragment_segment_lut";
+
+		for ( final FragmentSegmentAssignment assignment : assignments() )
+		{
+			new File( testH5Path ).delete();
+			final AssignmentHistory history = new AssignmentHistory( assignment );
+			final Random rnd = new Random( 42 );
+			for ( int i = 0; i < 100; ++i )
+				edit( assignment, rnd );
+			history.checkpoint( testH5Path, lutDataset );
+			for ( int i = 0; i < 100; ++i )
+				edit( assignment, rnd );
+			history.undo();
+			history.save( testH5Path, lutDataset );
+			for ( int i = 0; i < 100; ++i )
+				edit( assignment, rnd );
+			history.undo();
+			history.undo();
+			history.redo();
+			history.save( testH5Path, lutDataset );
+
+			final FragmentSegmentAssignment loaded = assignment instanceof UnionFindFragmentSegmentAssignment
+					? new UnionFindFragmentSegmentAssignment( new LocalIdService() )
+					: new FragmentSegmentAssignment( new LocalIdService() );
+			final AssignmentHistory loadedHistory = new AssignmentHistory( loaded );
+			loadedHistory.load( testH5Path, lutDataset );
+			assertArrayEquals( segments( assignment ), segments( loaded ) );
+
+			while ( history.undo() )
+			{
+				assertTrue( loadedHistory.undo() );
+				assertArrayEquals( segments( assignment ), segments( loaded ) );
+			}
+			assertFalse( loadedHistory.undo() );
+		}
+		new File( testH5Path ).delete();
+	}
+}
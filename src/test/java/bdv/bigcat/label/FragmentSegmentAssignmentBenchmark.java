@@ -0,0 +1,181 @@
+package bdv.bigcat.label;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import bdv.labels.labelset.Label;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Measures {@link FragmentSegmentAssignment#getSegment(long)} throughput of
+ * 1&ndash;16 concurrent render threads while another thread keeps merging
+ * and detaching fragments, and compares against a fully synchronized
+ * {@link FragmentSegmentAssignment#getSegment(long)} as it was before reads
+ * became lock-free.
+ *
+ * Usage: {@code FragmentSegmentAssignmentBenchmark [numFragments [millisPerRun [mergesPerSecond]]]}
+ */
+public class FragmentSegmentAssignmentBenchmark
+{
+	/**
+	 * Serializes all reads on the monitor of the assignment.
+	 */
+	static class SynchronizedFragmentSegmentAssignment extends FragmentSegmentAssignment
+	{
+		public SynchronizedFragmentSegmentAssignment( final LocalIdService idService )
+		{
+			super( idService );
+		}
+
+		@Override
+		public long getSegment( final long fragmentId )
+		{
+			synchronized ( this )
+			{
+				return super.getSegment( fragmentId );
+			}
+		}
+	}
+
+	public static void main( final String[] args ) throws InterruptedException
+	{
+		final int numFragments = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1 << 20;
+		final long millisPerRun = args.length > 1 ? Long.parseLong( args[ 1 ] ) : 2000;
+		final int mergesPerSecond = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 1000;
+
+		final TLongLongHashMap lut = new TLongLongHashMap( numFragments, 0.5f, Label.TRANSPARENT, Label.TRANSPARENT );
+		for ( long i = 0; i < numFragments; ++i )
+			lut.put( i, i );
+
+		System.out.println( String.format( "%d fragments, %d merges/s, lookups/s", numFragments, mergesPerSecond ) );
+		System.out.println( "threads   synchronized      lock-free" );
+		for ( int numThreads = 1; numThreads <= 16; numThreads <<= 1 )
+		{
+			final LocalIdService idService1 = new LocalIdService();
+			idService1.setNext( numFragments );
+			final FragmentSegmentAssignment synced = new SynchronizedFragmentSegmentAssignment( idService1 );
+			synced.initLut( lut );
+
+			final LocalIdService idService2 = new LocalIdService();
+			idService2.setNext( numFragments );
+			final FragmentSegmentAssignment lockFree = new FragmentSegmentAssignment( idService2 );
+			lockFree.initLut( lut );
+
+			final double s = run( synced, numFragments, numThreads, millisPerRun, mergesPerSecond );
+			final double l = run( lockFree, numFragments, numThreads, millisPerRun, mergesPerSecond );
+			System.out.println( String.format( "%7d %14.3e %14.3e", numThreads, s, l ) );
+		}
+
+		System.out.println( "merges into one body, initLut ms, ms/merge" );
+		System.out.println( "          array  union-find" );
+		final LocalIdService idService3 = new LocalIdService();
+		idService3.setNext( numFragments );
+		final LocalIdService idService4 = new LocalIdService();
+		idService4.setNext( numFragments );
+		final double[] a = mergeIntoOneBody( new FragmentSegmentAssignment( idService3 ), lut, numFragments );
+		final double[] u = mergeIntoOneBody( new UnionFindFragmentSegmentAssignment( idService4 ), lut, numFragments );
+		System.out.println( String.format( "initLut %7.1f %11.1f", a[ 0 ], u[ 0 ] ) );
+		System.out.println( String.format( "merge   %7.3f %11.3f", a[ 1 ], u[ 1 ] ) );
+	}
+
+	/**
+	 * Merge fragments into one growing body as during proofreading, and
+	 * re-initialize from the resulting lookup.
+	 *
+	 * @return initLut ms, ms per merge
+	 */
+	static double[] mergeIntoOneBody(
+			final FragmentSegmentAssignment assignment,
+			final TLongLongHashMap lut,
+			final int numFragments )
+	{
+		assignment.initLut( lut );
+		final int numMerges = Math.min( numFragments - 1, 10000 );
+		long t = System.nanoTime();
+		for ( int i = 1; i <= numMerges; ++i )
+			assignment.mergeFragmentSegments( 0, i );
+		final double msPerMerge = ( System.nanoTime() - t ) / 1e6 / numMerges;
+
+		final TLongLongHashMap mergedLut = assignment.getLut();
+		t = System.nanoTime();
+		assignment.initLut( mergedLut );
+		final double msInitLut = ( System.nanoTime() - t ) / 1e6;
+
+		return new double[] { msInitLut, msPerMerge };
+	}
+
+	static double run(
+			final FragmentSegmentAssignment assignment,
+			final int numFragments,
+			final int numThreads,
+			final long millisPerRun,
+			final int mergesPerSecond ) throws InterruptedException
+	{
+		final AtomicLong numLookups = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final long[] stopAt = new long[ 1 ];
+		final ArrayList< Thread > threads = new ArrayList<>();
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			final long seed = t;
+			threads.add( new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final Random rnd = new Random( seed );
+					long n = 0;
+					long sum = 0;
+					try
+					{
+						start.await();
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+					while ( System.nanoTime() < stopAt[ 0 ] )
+					{
+						for ( int i = 0; i < 1024; ++i )
+							sum += assignment.getSegment( rnd.nextInt( numFragments ) );
+						n += 1024;
+					}
+					numLookups.addAndGet( n + ( sum == 42 ? 1 : 0 ) );
+				}
+			} ) );
+		}
+
+		final Thread merger = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final Random rnd = new Random( -1 );
+				final long pause = 1000000000l / mergesPerSecond;
+				while ( System.nanoTime() < stopAt[ 0 ] )
+				{
+					/* small segments only, merging ever growing segments would measure ArrayUtils */
+					final long fragmentId = rnd.nextInt( numFragments );
+					assignment.mergeFragmentSegments( fragmentId, rnd.nextInt( numFragments ) );
+					assignment.detachFragment( fragmentId );
+					LockSupport.parkNanos( pause );
+				}
+			}
+		} );
+
+		stopAt[ 0 ] = System.nanoTime() + millisPerRun * 1000000l;
+		for ( final Thread thread : threads )
+			thread.start();
+		merger.start();
+		start.countDown();
+		for ( final Thread thread : threads )
+			thread.join();
+		merger.join();
+
+		return numLookups.get() * 1000.0 / millisPerRun;
+	}
+}
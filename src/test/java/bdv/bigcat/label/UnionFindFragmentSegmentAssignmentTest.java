@@ -0,0 +1,153 @@
+package bdv.bigcat.label;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class UnionFindFragmentSegmentAssignmentTest
+{
+	private static final int numFragments = 200;
+
+	private static LocalIdService idService()
+	{
+		final LocalIdService idService = new LocalIdService();
+		/* beyond the segment ids of testInitLut */
+		idService.setNext( 2 * numFragments );
+		return idService;
+	}
+
+	private static long[] sorted( final long[] fragments )
+	{
+		if ( fragments == null )
+			return null;
+		final long[] copy = fragments.clone();
+		Arrays.sort( copy );
+		return copy;
+	}
+
+	/**
+	 * Same segment ids and fragment lists for all fragments.
+	 */
+	private static void assertSame( final FragmentSegmentAssignment expected, final FragmentSegmentAssignment actual )
+	{
+		for ( long fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+		{
+			final long segmentId = expected.getSegment( fragmentId );
+			assertEquals( segmentId, actual.getSegment( fragmentId ) );
+			assertArrayEquals( sorted( expected.getFragments( segmentId ) ), sorted( actual.getFragments( segmentId ) ) );
+		}
+		assertEquals( expected.getLut().size(), actual.getLut().size() );
+	}
+
+	@Test
+	public void testSameAsFragmentSegmentAssignment()
+	{
+		final FragmentSegmentAssignment expected = new FragmentSegmentAssignment( idService() );
+		final FragmentSegmentAssignment actual = new UnionFindFragmentSegmentAssignment( idService() );
+
+		final Random rnd = new Random( 42 );
+		for ( int i = 0; i < 2000; ++i )
+		{
+			final long fragmentId1 = rnd.nextInt( numFragments );
+			final long fragmentId2 = rnd.nextInt( numFragments );
+			switch ( rnd.nextInt( 4 ) )
+			{
+			case 0:
+			case 1:
+				expected.mergeFragmentSegments( fragmentId1, fragmentId2 );
+				actual.mergeFragmentSegments( fragmentId1, fragmentId2 );
+				break;
+			case 2:
+				expected.detachFragment( fragmentId1 );
+				actual.detachFragment( fragmentId1 );
+				break;
+			default:
+				expected.assignFragments( expected.getSegment( fragmentId1 ), expected.getSegment( fragmentId2 ) );
+				actual.assignFragments( actual.getSegment( fragmentId1 ), actual.getSegment( fragmentId2 ) );
+			}
+			if ( i % 100 == 0 )
+				assertSame( expected, actual );
+		}
+		assertSame( expected, actual );
+	}
+
+	@Test
+	public void testImplicitIdentity()
+	{
+		for ( final FragmentSegmentAssignment assignment : new FragmentSegmentAssignment[] {
+				new FragmentSegmentAssignment( idService() ),
+				new UnionFindFragmentSegmentAssignment( idService() ) } )
+		{
+			assignment.mergeFragmentSegments( 1, 2 );
+			final long version = assignment.getVersion();
+			for ( long fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+				assignment.getSegment( fragmentId );
+			assertEquals( 2, assignment.getLut().size() );
+			assertEquals( 42, assignment.getSegment( 42 ) );
+			assertArrayEquals( new long[] { 42 }, assignment.getFragments( 42 ) );
+			assertNull( assignment.getFragments( 1 ) );
+			assertEquals( version, assignment.getVersion() );
+
+			assignment.detachFragment( 1 );
+			assertEquals( 1, assignment.getSegment( 1 ) );
+			assertArrayEquals( new long[] { 2 }, assignment.getFragments( assignment.getSegment( 2 ) ) );
+		}
+	}
+
+	@Test
+	public void testInitLut()
+	{
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		final Random rnd = new Random( 42 );
+		for ( long fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+			lut.put( fragmentId, numFragments + rnd.nextInt( 20 ) );
+
+		final FragmentSegmentAssignment expected = new FragmentSegmentAssignment( idService() );
+		expected.initLut( lut );
+		final FragmentSegmentAssignment actual = new UnionFindFragmentSegmentAssignment( idService() );
+		final long version = actual.getVersion();
+		actual.initLut( lut );
+		assertEquals( version + 1, actual.getVersion() );
+		assertSame( expected, actual );
+
+		expected.mergeSegments( numFragments, numFragments + 1 );
+		actual.mergeSegments( numFragments, numFragments + 1 );
+		expected.detachFragment( 7 );
+		actual.detachFragment( 7 );
+		assertSame( expected, actual );
+	}
+
+	@Test
+	public void testSerialization()
+	{
+		final FragmentSegmentAssignment assignment = new UnionFindFragmentSegmentAssignment( idService() );
+		for ( long fragmentId = 0; fragmentId < numFragments; fragmentId += 3 )
+			assignment.mergeFragmentSegments( fragmentId, fragmentId + 1 );
+
+		final GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new FragmentSegmentAssignment.FragmentSegmentSerializer() );
+		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new UnionFindFragmentSegmentAssignment.GSONDeserializer() );
+		final Gson gson = gsonBuilder.create();
+		final FragmentSegmentAssignment deserialized = gson.fromJson(
+				gson.toJson( assignment, FragmentSegmentAssignment.class ),
+				FragmentSegmentAssignment.class );
+
+		assertEquals( UnionFindFragmentSegmentAssignment.class, deserialized.getClass() );
+		assertEquals( assignment.getLut().size(), deserialized.getLut().size() );
+		for ( long fragmentId = 0; fragmentId < numFragments; ++fragmentId )
+			assertArrayEquals(
+					sorted( assignment.getFragments( assignment.getSegment( fragmentId ) ) ),
+					sorted( deserialized.getFragments( deserialized.getSegment( fragmentId ) ) ) );
+	}
+}
@@ -16,6 +16,8 @@
  */
 package bdv.img.h5;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -28,9 +30,17 @@ import org.junit.Test;
 
 import com.google.gson.Gson;
 
+import bdv.img.access.ModificationAwareCellImgs;
 import bdv.labels.labelset.Label;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongLongHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.type.numeric.integer.LongType;
 
 /**
  *
@@ -109,6 +119,58 @@ public class H5UtilsTest
 				fail( "loaded lut key '" + key + "' does not match lut." );
 	}
 
+	@Test
+	public void testLongLongLutDeltas()
+	{
+		final String path = testDirPath + testH5Name;
+		H5Utils.saveLongLongLut( lut, path, "/deltalut", 4 );
+
+		final TLongLongHashMap expected = new TLongLongHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				Label.TRANSPARENT,
+				Label.TRANSPARENT );
+		expected.putAll( lut );
+
+		final IHDF5Writer writer = HDF5Factory.open( path );
+		final TLongLongHashMap deltas = new TLongLongHashMap();
+		deltas.put( 3, 10 );
+		deltas.put( 9, 11 );
+		deltas.put( 13, 14 );
+		H5Utils.appendLongLongLutDeltas( deltas, writer, "/deltalut", 2 );
+		expected.putAll( deltas );
+		deltas.clear();
+		deltas.put( 3, 12 );
+		H5Utils.appendLongLongLutDeltas( deltas, writer, "/deltalut", 2 );
+		expected.putAll( deltas );
+		assertEquals( 4, H5Utils.lutSize( writer, H5Utils.lutDeltasDataset( "/deltalut" ) ) );
+
+		assertEquals( expected, H5Utils.loadLongLongLut( writer, "/deltalut", 3 ) );
+
+		/* compacting overwrites in place, rows keep their keys */
+		final MDLongArray rows = writer.uint64().readMDArray( "/deltalut" );
+		H5Utils.compactLongLongLut( writer, "/deltalut", 4 );
+		assertFalse( writer.exists( H5Utils.lutDeltasDataset( "/deltalut" ) ) );
+		assertEquals( expected.size(), H5Utils.lutSize( writer, "/deltalut" ) );
+		assertEquals( expected, H5Utils.loadLongLongLut( writer, "/deltalut", 3 ) );
+		final MDLongArray compactedRows = writer.uint64().readMDArray( "/deltalut" );
+		for ( int i = 0; i < rows.size( 1 ); ++i )
+			assertEquals( rows.get( 0, i ), compactedRows.get( 0, i ) );
+
+		/* replacing by a smaller lookup table leaves no stale entries */
+		H5Utils.replaceLongLongLut( lut, writer, "/deltalut", 4 );
+		assertEquals( lut.size(), H5Utils.lutSize( writer, "/deltalut" ) );
+		assertEquals( lut, H5Utils.loadLongLongLut( writer, "/deltalut", 3 ) );
+
+		/* died after deleting the old lookup table while replacing it */
+		writer.object().move( "/deltalut", "/deltalut_new" );
+		assertEquals( lut, H5Utils.loadLongLongLut( writer, "/deltalut", 3 ) );
+		H5Utils.replaceLongLongLut( expected, writer, "/deltalut", 4 );
+		assertFalse( writer.exists( "/deltalut_new" ) );
+		assertEquals( expected, H5Utils.loadLongLongLut( writer, "/deltalut", 3 ) );
+		writer.close();
+	}
+
 	@Test
 	public void testSaveAndLoadLongAttribute()
 	{
@@ -120,4 +182,74 @@ public class H5UtilsTest
 			fail( "Saving and loading long failed." );
 	}
 
+	@Test
+	public void testSaveModifiedUnsignedLong()
+	{
+		final int[] cellDimensions = new int[]{ 4, 4, 2 };
+		final CellImg< LongType, ?, ? > img = ModificationAwareCellImgs.longs( new long[]{ 10, 9, 5 }, cellDimensions );
+		for ( final LongType t : img )
+			t.set( Label.TRANSPARENT );
+
+		final File file = new File( testDirPath + testH5Name );
+		/* new dataset, all cells */
+		assertEquals( 3 * 3 * 3, H5Utils.saveModifiedUnsignedLong( img, file, "/painted", cellDimensions ) );
+		assertEquals( 0, H5Utils.saveModifiedUnsignedLong( img, file, "/painted", cellDimensions ) );
+
+		final RandomAccess< LongType > access = img.randomAccess();
+		access.setPosition( new long[]{ 9, 8, 4 } );
+		access.get().set( 1 );
+		access.setPosition( new long[]{ 1, 2, 3 } );
+		access.get().set( 2 );
+		assertEquals( 2, H5Utils.saveModifiedUnsignedLong( img, file, "/painted", cellDimensions ) );
+
+		final CellImg< LongType, ?, ? > loaded = H5Utils.loadUnsignedLong( file, "/painted", cellDimensions );
+		final Cursor< LongType > c = loaded.localizingCursor();
+		final RandomAccess< LongType > r = img.randomAccess();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			r.setPosition( c );
+			assertEquals( r.get().get(), c.get().get() );
+		}
+		assertEquals( 0, H5Utils.saveModifiedUnsignedLong( loaded, file, "/painted", cellDimensions ) );
+	}
+
+	@Test
+	public void testH5LongCanvas()
+	{
+		final int[] cellDimensions = new int[]{ 4, 4, 2 };
+		final long[] dimensions = new long[]{ 10, 9, 5 };
+		final File file = new File( testDirPath + testH5Name );
+
+		final H5LongCanvas canvas = new H5LongCanvas( file, "/canvas", dimensions, cellDimensions );
+		for ( final LongType t : canvas )
+			assertEquals( Label.TRANSPARENT, t.get() );
+		assertEquals( 0, canvas.getNumPinnedCells() );
+
+		final RandomAccess< LongType > access = canvas.randomAccess();
+		access.setPosition( new long[]{ 9, 8, 4 } );
+		access.get().set( 1 );
+		access.setPosition( new long[]{ 1, 2, 3 } );
+		access.get().set( 2 );
+		assertEquals( 2, canvas.getNumPinnedCells() );
+
+		/* new dataset, only the modified cells */
+		assertEquals( 2, canvas.save() );
+		assertEquals( 0, canvas.getNumPinnedCells() );
+		assertEquals( 0, canvas.save() );
+
+		final H5LongCanvas loaded = new H5LongCanvas( file, "/canvas", new long[]{ 1, 1, 1 }, cellDimensions );
+		for ( int d = 0; d < dimensions.length; ++d )
+			assertEquals( dimensions[ d ], loaded.dimension( d ) );
+		final Cursor< LongType > c = loaded.localizingCursor();
+		final RandomAccess< LongType > r = canvas.randomAccess();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			r.setPosition( c );
+			assertEquals( r.get().get(), c.get().get() );
+		}
+		assertEquals( 0, loaded.getNumPinnedCells() );
+		assertEquals( 0, loaded.save() );
+	}
 }
@@ -0,0 +1,75 @@
+package bdv.labels.labelset;
+
+/**
+ * Memory per block and list offset access throughput of
+ * {@link VolatileLabelMultisetArray} and
+ * {@link CompressedVolatileLabelMultisetArray} on synthetic blocks: long runs
+ * of few labels (bodies), short runs, and independently drawn labels
+ * (fragments).  The number of blocks that fit into the same heap grows with
+ * the reported ratio.
+ *
+ * Usage: {@code CompressedVolatileLabelMultisetArrayBenchmark [blockSize [iterations]]}
+ */
+public class CompressedVolatileLabelMultisetArrayBenchmark
+{
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 64;
+		final int iterations = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+		final int n = size * size * size;
+
+		measure( "runs of 4096, 8 ids", n, iterations, SyntheticLabels.runIds( n, 4096, 8, 42 ) );
+		measure( "runs of 256, 100 ids", n, iterations, SyntheticLabels.runIds( n, 256, 100, 42 ) );
+		measure( "runs of 16, 1000 ids", n, iterations, SyntheticLabels.runIds( n, 16, 1000, 42 ) );
+		measure( "fragments, 100 ids", n, iterations, SyntheticLabels.fragmentedIds( n, 100, 42 ) );
+		measure( "fragments, 10000 ids", n, iterations, SyntheticLabels.fragmentedIds( n, 10000, 42 ) );
+	}
+
+	private static void measure( final String name, final int n, final int iterations, final long[] ids )
+	{
+		final VolatileLabelMultisetArray array = SyntheticLabels.singletonLists( ids );
+
+		long compressNanos = Long.MAX_VALUE;
+		VolatileLabelMultisetArray compressed = null;
+		for ( int k = 0; k < iterations; ++k )
+		{
+			final long t0 = System.nanoTime();
+			compressed = CompressedVolatileLabelMultisetArray.compress( array );
+			compressNanos = Math.min( compressNanos, System.nanoTime() - t0 );
+		}
+
+		final long arrayNanos = accessNanos( array, n, iterations );
+		final long compressedNanos = accessNanos( compressed, n, iterations );
+		for ( int i = 0; i < n; ++i )
+			if ( array.getListOffset( i ) != compressed.getListOffset( i ) )
+				throw new AssertionError( name + ": offsets differ at " + i );
+
+		System.out.println( String.format(
+				"%-22s %9.1f kB -> %9.1f kB (%5.1fx, %2d bits/index), compress %6.2f ms, access %7.1f -> %7.1f Mvoxels/s",
+				name,
+				array.getSizeInBytes() / 1e3,
+				compressed.getSizeInBytes() / 1e3,
+				( double ) array.getSizeInBytes() / compressed.getSizeInBytes(),
+				compressed instanceof CompressedVolatileLabelMultisetArray ? ( ( CompressedVolatileLabelMultisetArray ) compressed ).getBitsPerIndex() : 32,
+				compressNanos / 1e6,
+				n / ( arrayNanos / 1e3 ),
+				n / ( compressedNanos / 1e3 ) ) );
+	}
+
+	private static int sink;
+
+	private static long accessNanos( final VolatileLabelMultisetArray array, final int n, final int iterations )
+	{
+		long t = Long.MAX_VALUE;
+		for ( int k = 0; k < iterations; ++k )
+		{
+			final long t0 = System.nanoTime();
+			int sum = 0;
+			for ( int i = 0; i < n; ++i )
+				sum += array.getListOffset( i );
+			t = Math.min( t, System.nanoTime() - t0 );
+			sink += sum;
+		}
+		return t;
+	}
+}
@@ -0,0 +1,75 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CompressedVolatileLabelMultisetArrayTest
+{
+	private static CompressedVolatileLabelMultisetArray compress( final VolatileLabelMultisetArray array )
+	{
+		return ( CompressedVolatileLabelMultisetArray ) CompressedVolatileLabelMultisetArray.compress( array );
+	}
+
+	private static void assertSameLists( final VolatileLabelMultisetArray expected, final VolatileLabelMultisetArray actual )
+	{
+		final int[] offsets = expected.getCurrentStorageArray();
+		assertArrayEquals( offsets, actual.getCurrentStorageArray() );
+
+		final LabelMultisetEntryList expectedList = new LabelMultisetEntryList();
+		final LabelMultisetEntryList actualList = new LabelMultisetEntryList();
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			assertEquals( offsets[ i ], actual.getListOffset( i ) );
+			expected.getValue( i, expectedList );
+			actual.getValue( i, actualList );
+			assertEquals( expectedList.size(), actualList.size() );
+			for ( int j = 0; j < expectedList.size(); ++j )
+			{
+				assertEquals( expectedList.get( j ).getId(), actualList.get( j ).getId() );
+				assertEquals( expectedList.get( j ).getCount(), actualList.get( j ).getCount() );
+			}
+		}
+	}
+
+	@Test
+	public void testBitsPerIndex()
+	{
+		final int[] numIds = new int[] { 1, 2, 3, 4, 5, 16, 17, 256, 257, 4096 };
+		final int[] bitsPerIndex = new int[] { 0, 1, 2, 2, 4, 4, 8, 8, 16, 16 };
+		for ( int k = 0; k < numIds.length; ++k )
+		{
+			final long[] ids = new long[ 17 * 19 * 23 ];
+			for ( int i = 0; i < ids.length; ++i )
+				ids[ i ] = ( i * 7919l ) % numIds[ k ];
+			final VolatileLabelMultisetArray array = SyntheticLabels.singletonLists( ids );
+			final CompressedVolatileLabelMultisetArray compressed = compress( array );
+			assertEquals( numIds[ k ], compressed.getPaletteSize() );
+			assertEquals( bitsPerIndex[ k ], compressed.getBitsPerIndex() );
+			assertSameLists( array, compressed );
+		}
+	}
+
+	@Test
+	public void testRuns()
+	{
+		final VolatileLabelMultisetArray array = SyntheticLabels.singletonLists( SyntheticLabels.runIds( 64 * 64 * 64, 64, 100, 42 ) );
+		final CompressedVolatileLabelMultisetArray compressed = compress( array );
+		assertSameLists( array, compressed );
+		assertTrue( compressed.getSizeInBytes() * 3 < array.getSizeInBytes() );
+		assertSame( compressed, CompressedVolatileLabelMultisetArray.compress( compressed ) );
+	}
+
+	@Test
+	public void testTooManyLists()
+	{
+		final long[] ids = new long[ CompressedVolatileLabelMultisetArray.MAX_PALETTE_SIZE + 1 ];
+		for ( int i = 0; i < ids.length; ++i )
+			ids[ i ] = i;
+		final VolatileLabelMultisetArray array = SyntheticLabels.singletonLists( ids );
+		assertSame( array, CompressedVolatileLabelMultisetArray.compress( array ) );
+	}
+}
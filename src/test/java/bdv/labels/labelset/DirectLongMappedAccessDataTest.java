@@ -0,0 +1,87 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DirectLongMappedAccessDataTest
+{
+	@Test
+	public void testSameAsHeap()
+	{
+		final LongMappedAccessData heap = LongMappedAccessData.factory.createStorage( 32 );
+		final DirectLongMappedAccessData direct = DirectLongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccess heapAccess = heap.createAccess();
+		final LongMappedAccess directAccess = direct.createAccess();
+
+		final Random rnd = new Random( 42 );
+		for ( long size = 32; size < 1 << 20; size *= 2 )
+		{
+			heap.resize( size );
+			direct.resize( size );
+			for ( int k = 0; k < 1000; ++k )
+			{
+				/* including positions that straddle chunk boundaries */
+				final int position = rnd.nextInt( ( int ) size - 8 );
+				if ( rnd.nextBoolean() )
+				{
+					final long value = rnd.nextLong();
+					heapAccess.putLong( value, position );
+					directAccess.putLong( value, position );
+				}
+				else
+				{
+					final int value = rnd.nextInt();
+					heapAccess.putInt( value, position );
+					directAccess.putInt( value, position );
+				}
+			}
+			for ( int position = 0; position < size - 8; ++position )
+			{
+				assertEquals( heapAccess.getByte( position ), directAccess.getByte( position ) );
+				assertEquals( heapAccess.getInt( position ), directAccess.getInt( position ) );
+				assertEquals( heapAccess.getLong( position ), directAccess.getLong( position ) );
+			}
+		}
+		assertTrue( direct.capacity() >= direct.size() );
+	}
+
+	@Test
+	public void testLists()
+	{
+		final long[] ids = SyntheticLabels.runIds( 16 * 16 * 16, 3, 1000, 42 );
+		final DirectLongMappedAccessData listData = DirectLongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final int[] offsets = new int[ ids.length / 4 ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			list.createListAt( listData, nextListOffset );
+			for ( int j = 0; j < 4; ++j )
+			{
+				entry.setId( ids[ 4 * i + j ] );
+				entry.setCount( j + 1 );
+				list.add( entry );
+			}
+			offsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+
+		final VolatileLabelMultisetArray array = new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+		final LabelMultisetEntryList ref = new LabelMultisetEntryList();
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			array.getValue( i, ref );
+			assertEquals( 4, ref.size() );
+			for ( int j = 0; j < 4; ++j )
+			{
+				assertEquals( ids[ 4 * i + j ], ref.get( j ).getId() );
+				assertEquals( j + 1, ref.get( j ).getCount() );
+			}
+		}
+	}
+}
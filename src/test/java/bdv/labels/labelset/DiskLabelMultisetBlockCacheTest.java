@@ -0,0 +1,91 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskLabelMultisetBlockCacheTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static VolatileLabelMultisetArray block( final long seed )
+	{
+		return SyntheticLabels.singletonLists( SyntheticLabels.fragmentedIds( 16 * 16 * 16, 100, seed ) );
+	}
+
+	private static LabelMultisetBlockCache.Key key( final long x )
+	{
+		return new LabelMultisetBlockCache.Key( "test.h5/volumes/labels", 17, 0, 0, 1, new long[] { x, 0, 0 } );
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		final DiskLabelMultisetBlockCache cache = new DiskLabelMultisetBlockCache( folder.getRoot().toPath(), 1l << 30 );
+		final VolatileLabelMultisetArray expected = block( 1 );
+		cache.put( key( 0 ), expected );
+
+		final VolatileLabelMultisetArray actual = cache.get( key( 0 ), 16 * 16 * 16 );
+		assertNotNull( actual );
+		assertArrayEquals( expected.getCurrentStorageArray(), actual.getCurrentStorageArray() );
+		assertEquals( expected.getListDataUsedSizeInBytes(), actual.getListDataUsedSizeInBytes() );
+		assertTrue( DownscaleDeduplicationBenchmark.sameLists( expected, actual ) );
+
+		assertNull( cache.get( key( 16 ), 16 * 16 * 16 ) );
+		assertNull( cache.get( key( 0 ), 8 * 8 * 8 ) );
+		assertNull( cache.get( new LabelMultisetBlockCache.Key( "test.h5/volumes/labels", 18, 0, 0, 1, new long[] { 0, 0, 0 } ), 16 * 16 * 16 ) );
+	}
+
+	@Test
+	public void testCorruptedFileIsIgnored() throws IOException
+	{
+		final DiskLabelMultisetBlockCache cache = new DiskLabelMultisetBlockCache( folder.getRoot().toPath(), 1l << 30 );
+		cache.put( key( 0 ), block( 1 ) );
+
+		final Path path = cache.getPath( key( 0 ) );
+		try ( final RandomAccessFile file = new RandomAccessFile( path.toFile(), "rw" ) )
+		{
+			file.seek( file.length() - 1 );
+			final int b = file.read();
+			file.seek( file.length() - 1 );
+			file.write( b ^ 0xff );
+		}
+		assertNull( cache.get( key( 0 ), 16 * 16 * 16 ) );
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		final Path root = folder.getRoot().toPath();
+		final DiskLabelMultisetBlockCache unbounded = new DiskLabelMultisetBlockCache( root, 1l << 30 );
+		unbounded.put( key( 0 ), block( 0 ) );
+		final Path oldest = unbounded.getPath( key( 0 ) );
+		final long blockFileSize = Files.size( oldest );
+		Files.setLastModifiedTime( oldest, FileTime.fromMillis( 1000 ) );
+
+		final DiskLabelMultisetBlockCache cache = new DiskLabelMultisetBlockCache( root, 3 * blockFileSize );
+		for ( int i = 1; i < 10; ++i )
+			cache.put( key( 16 * i ), block( i ) );
+
+		assertFalse( Files.exists( oldest ) );
+		int numRemaining = 0;
+		for ( int i = 1; i < 10; ++i )
+			if ( Files.exists( cache.getPath( key( 16 * i ) ) ) )
+				++numRemaining;
+		assertTrue( numRemaining > 0 && numRemaining <= 3 );
+	}
+}
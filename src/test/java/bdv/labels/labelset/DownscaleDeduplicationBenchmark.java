@@ -0,0 +1,210 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import bdv.labels.labelset.Multiset.Entry;
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Compares
+ * {@link DownscalingVolatileSuperVoxelMultisetArrayLoader#downscale(RandomAccessibleInterval, int[], int[], long[])}
+ * (heap merge, hash indexed list deduplication) against the previous
+ * implementation (re-sorting all iterators after every entry, linear scan
+ * over list hashes) on synthetic high-fragmentation blocks.
+ *
+ * Usage: {@code DownscaleDeduplicationBenchmark [blocksize [numIds [iterations]]]}
+ */
+public class DownscaleDeduplicationBenchmark
+{
+	public static void main( final String[] args )
+	{
+		final int blocksize = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 32;
+		final int numIds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 1 << 20;
+		final int iterations = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 5;
+
+		final int[] factors = new int[] { 2, 2, 2 };
+		final int[] dimensions = new int[] { blocksize, blocksize, blocksize };
+		final long[] min = new long[ 3 ];
+		final long[] inputDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			inputDimensions[ d ] = dimensions[ d ] * factors[ d ];
+		final int numInputElements = ( int ) ( inputDimensions[ 0 ] * inputDimensions[ 1 ] * inputDimensions[ 2 ] );
+
+		final RandomAccessibleInterval< LabelMultisetType > input = SyntheticLabels.img(
+				SyntheticLabels.singletonLists( SyntheticLabels.fragmentedIds( numInputElements, numIds, 42 ) ),
+				inputDimensions );
+
+		final VolatileLabelMultisetArray expected = downscaleLinearScan( input, factors, dimensions, min );
+		final VolatileLabelMultisetArray actual = DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale( input, factors, dimensions, min );
+		if ( !sameLists( expected, actual ) )
+			throw new AssertionError( "heap merge / hash index result differs from linear scan result" );
+
+		System.out.println( String.format( "output block %d^3, %d distinct input ids", blocksize, numIds ) );
+		for ( int i = 0; i < iterations; ++i )
+		{
+			long t = System.nanoTime();
+			downscaleLinearScan( input, factors, dimensions, min );
+			final long tOld = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale( input, factors, dimensions, min );
+			final long tNew = System.nanoTime() - t;
+
+			System.out.println( String.format( "linear scan: %8.2f ms    hash index: %8.2f ms", tOld / 1e6, tNew / 1e6 ) );
+		}
+	}
+
+	static boolean sameLists( final VolatileLabelMultisetArray a, final VolatileLabelMultisetArray b )
+	{
+		final int[] da = a.getCurrentStorageArray();
+		final int[] db = b.getCurrentStorageArray();
+		if ( da.length != db.length )
+			return false;
+		final LabelMultisetEntryList la = new LabelMultisetEntryList();
+		final LabelMultisetEntryList lb = new LabelMultisetEntryList();
+		for ( int i = 0; i < da.length; ++i )
+		{
+			a.getValue( i, la );
+			b.getValue( i, lb );
+			if ( !la.equals( lb ) )
+				return false;
+		}
+		return true;
+	}
+
+	private static class SortedPeekIterator implements Comparable< SortedPeekIterator >
+	{
+		Iterator< Entry< Label > > iter;
+
+		Entry< Label > head;
+
+		void init( final Iterator< Entry< Label > > iter )
+		{
+			this.iter = iter;
+			head = iter.hasNext() ? iter.next() : null;
+		}
+
+		void fwd()
+		{
+			head = iter.hasNext() ? iter.next() : null;
+		}
+
+		@Override
+		public int compareTo( final SortedPeekIterator o )
+		{
+			if ( head == null )
+				return o.head == null ? 0 : 1;
+			else
+				return o.head == null ? -1 : Long.compare( head.getElement().id(), o.head.getElement().id() );
+		}
+	}
+
+	/**
+	 * The previous implementation of
+	 * {@link DownscalingVolatileSuperVoxelMultisetArrayLoader#downscale(RandomAccessibleInterval, int[], int[], long[])}.
+	 */
+	static VolatileLabelMultisetArray downscaleLinearScan(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors,
+			final int[] dimensions,
+			final long[] min )
+	{
+		final int n = 3;
+		final int numEntities = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final int[] data = new int[ numEntities ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+
+		final int numContribs = factors[ 0 ] * factors[ 1 ] * factors[ 2 ];
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccess< LabelMultisetType >[] inputs = new RandomAccess[ numContribs ];
+		final SortedPeekIterator[] iters = new SortedPeekIterator[ numContribs ];
+		for ( int i = 0; i < numContribs; ++i )
+		{
+			inputs[ i ] = input.randomAccess();
+			iters[ i ] = new SortedPeekIterator();
+		}
+
+		final int[] outputPos = new int[ n ];
+		final int[] inputOffset = new int[ n ];
+		final int[] inputPos = new int[ n ];
+
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntryList list2 = new LabelMultisetEntryList();
+		final TIntArrayList listHashesAndOffsets = new TIntArrayList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		int nextListOffset = 0;
+		for ( int o = 0; o < numEntities; ++o )
+		{
+			IntervalIndexer.indexToPosition( o, dimensions, outputPos );
+			for ( int d = 0; d < n; ++d )
+				inputOffset[ d ] = ( outputPos[ d ] + ( int ) min[ d ] ) * factors[ d ];
+
+			for ( int i = 0; i < numContribs; ++i )
+			{
+				IntervalIndexer.indexToPositionWithOffset( i, factors, inputOffset, inputPos );
+				inputs[ i ].setPosition( inputPos );
+				iters[ i ].init( inputs[ i ].get().entrySet().iterator() );
+			}
+
+			list.createListAt( listData, nextListOffset );
+			Arrays.sort( iters );
+			if ( iters[ 0 ].head != null )
+			{
+				long id = iters[ 0 ].head.getElement().id();
+				int count = iters[ 0 ].head.getCount();
+				iters[ 0 ].fwd();
+				Arrays.sort( iters );
+				while ( iters[ 0 ].head != null )
+				{
+					final long headId = iters[ 0 ].head.getElement().id();
+					final int headCount = iters[ 0 ].head.getCount();
+					if ( headId == id )
+						count += headCount;
+					else
+					{
+						entry.setId( id );
+						entry.setCount( count );
+						list.add( entry );
+						id = headId;
+						count = headCount;
+					}
+					iters[ 0 ].fwd();
+					Arrays.sort( iters );
+				}
+				entry.setId( id );
+				entry.setCount( count );
+				list.add( entry );
+			}
+
+			boolean makeNewList = true;
+			final int hash = list.hashCode();
+			for ( int i = 0; i < listHashesAndOffsets.size(); i += 2 )
+			{
+				if ( hash == listHashesAndOffsets.get( i ) )
+				{
+					list2.referToDataAt( listData, listHashesAndOffsets.get( i + 1 ) );
+					if ( list.equals( list2 ) )
+					{
+						makeNewList = false;
+						data[ o ] = listHashesAndOffsets.get( i + 1 );
+						break;
+					}
+				}
+			}
+			if ( makeNewList )
+			{
+				data[ o ] = nextListOffset;
+				listHashesAndOffsets.add( hash );
+				listHashesAndOffsets.add( nextListOffset );
+				nextListOffset += list.getSizeInBytes();
+			}
+		}
+
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+}
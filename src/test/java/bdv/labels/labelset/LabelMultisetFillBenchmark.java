@@ -0,0 +1,130 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+
+import net.imglib2.Point;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the breadth first
+ * {@link LabelMultisetFill#fill(RandomAccessible, RandomAccessible, net.imglib2.Localizable, net.imglib2.algorithm.neighborhood.Shape, LabelMultisetFill.FillPolicyFactory)}
+ * against the span based
+ * {@link LabelMultisetFill#fill(RandomAccessible, RandomAccessible, net.imglib2.Interval, net.imglib2.Localizable, LabelMultisetFill.FillPolicyFactory)}
+ * on a synthetic body (a ball of fragment 1 perforated by random fragments),
+ * checks that both fill the same voxels, and reports time and retained heap.
+ *
+ * Usage: {@code LabelMultisetFillBenchmark [size [iterations]]}
+ */
+public class LabelMultisetFillBenchmark
+{
+	final static long FILL_LABEL = 1000;
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 128;
+		final int iterations = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 3;
+
+		final long[] dimensions = new long[] { size, size, size };
+		final long[] ids = new long[ size * size * size ];
+		final Random rnd = new Random( 42 );
+		final double r = 0.45 * size;
+		final double c = 0.5 * size;
+		for ( int z = 0, i = 0; z < size; ++z )
+			for ( int y = 0; y < size; ++y )
+				for ( int x = 0; x < size; ++x, ++i )
+				{
+					final double dx = x - c, dy = y - c, dz = z - c;
+					if ( dx * dx + dy * dy + dz * dz < r * r && rnd.nextDouble() > 0.05 )
+						ids[ i ] = 1;
+					else
+						ids[ i ] = 2 + rnd.nextInt( 100 );
+				}
+
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels =
+				SyntheticLabels.img( SyntheticLabels.singletonLists( ids ), dimensions );
+		final Point seed = new Point( size / 2, size / 2, size / 2 );
+
+		final ArrayImg< LongType, LongArray > expected = canvas( dimensions );
+		LabelMultisetFill.fill(
+				Views.extendValue( labels, new LabelMultisetType() ),
+				Views.extendValue( expected, new LongType( Label.TRANSPARENT ) ),
+				seed,
+				new DiamondShape( 1 ),
+				new LabelMultisetFill.IntegerTypeFillPolicyFragmentsConsiderBackgroundAndCanvas.Factory< LongType >( FILL_LABEL ) );
+
+		final ArrayImg< LongType, LongArray > actual = canvas( dimensions );
+		final long numFilled = LabelMultisetFill.fill(
+				labels,
+				actual,
+				labels,
+				seed,
+				new LabelMultisetFill.IntegerTypeFillPolicyFragmentsConsiderBackgroundAndCanvas.Factory< LongType >( FILL_LABEL ) );
+
+		final ArrayCursor< LongType > a = actual.cursor();
+		for ( final LongType e : expected )
+			if ( a.next().get() != e.get() )
+				throw new AssertionError( "span fill result differs from breadth first fill result" );
+
+		System.out.println( String.format( "%d^3 voxels, %d filled", size, numFilled ) );
+		for ( int i = 0; i < iterations; ++i )
+		{
+			final ArrayImg< LongType, LongArray > canvas1 = canvas( dimensions );
+			System.gc();
+			final long heap0 = usedHeap();
+			long t = System.nanoTime();
+			LabelMultisetFill.fill(
+					Views.extendValue( labels, new LabelMultisetType() ),
+					Views.extendValue( canvas1, new LongType( Label.TRANSPARENT ) ),
+					seed,
+					new DiamondShape( 1 ),
+					new LabelMultisetFill.IntegerTypeFillPolicyFragmentsConsiderBackgroundAndCanvas.Factory< LongType >( FILL_LABEL ) );
+			final long tBfs = System.nanoTime() - t;
+			final long heapBfs = usedHeap() - heap0;
+
+			final ArrayImg< LongType, LongArray > canvas2 = canvas( dimensions );
+			System.gc();
+			final long heap1 = usedHeap();
+			t = System.nanoTime();
+			LabelMultisetFill.fill(
+					labels,
+					canvas2,
+					labels,
+					seed,
+					new LabelMultisetFill.IntegerTypeFillPolicyFragmentsConsiderBackgroundAndCanvas.Factory< LongType >( FILL_LABEL ) );
+			final long tSpan = System.nanoTime() - t;
+			final long heapSpan = usedHeap() - heap1;
+
+			System.out.println( String.format(
+					"breadth first: %8.2f ms %8.1f MB heap growth    span: %8.2f ms %8.1f MB heap growth",
+					tBfs / 1e6,
+					heapBfs / 1e6,
+					tSpan / 1e6,
+					heapSpan / 1e6 ) );
+		}
+	}
+
+	private static ArrayImg< LongType, LongArray > canvas( final long[] dimensions )
+	{
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( dimensions );
+		for ( final LongType t : canvas )
+			t.set( Label.TRANSPARENT );
+		return canvas;
+	}
+
+	/**
+	 * Heap in use, differences are a rough estimate of what a fill allocated
+	 * (garbage collection may run during the fill).
+	 */
+	private static long usedHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,242 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+
+import bdv.bigcat.ui.ARGBStream;
+import bdv.bigcat.ui.LabelMultisetARGBCache;
+import bdv.labels.labelset.Multiset.Entry;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Per pixel cost of visiting the entries of {@link LabelMultisetType} through
+ * {@link LabelMultisetType#entrySet()} (before) and through the primitive
+ * accessors (after), for the per pixel loops of the viewer and the fill
+ * tools: blending colors, finding the label with most counts, testing for
+ * any of a set of fragments, and merging lists as done for downscaling.
+ *
+ * The input is a downscaled synthetic label volume, such that pixels have
+ * several entries.
+ *
+ * Usage: {@code LabelMultisetIterationBenchmark [size [factor [iterations]]]}
+ */
+public class LabelMultisetIterationBenchmark
+{
+	private static final ARGBStream argbStream = new ARGBStream()
+	{
+		@Override
+		public int argb( final long id )
+		{
+			return ( int ) ( id * 0x9e3779b97f4a7c15l ) | 0xff000000;
+		}
+
+		@Override
+		public long getGeneration()
+		{
+			return 0;
+		}
+	};
+
+	private interface PixelOp
+	{
+		public long apply( LabelMultisetType t );
+	}
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 128;
+		final int factor = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 4;
+		final int iterations = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 10;
+
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input = SyntheticLabels.img(
+				SyntheticLabels.singletonLists( SyntheticLabels.runIds( size * size * size, 3, 1000, 42 ) ),
+				size, size, size );
+		final int downscaledSize = size / factor;
+		final int[] dimensions = new int[] { downscaledSize, downscaledSize, downscaledSize };
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = SyntheticLabels.img(
+				DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale( input, new int[] { factor, factor, factor }, dimensions, new long[ 3 ] ),
+				downscaledSize, downscaledSize, downscaledSize );
+
+		final long[] fragments = new long[ 20 ];
+		for ( int i = 0; i < fragments.length; ++i )
+			fragments[ i ] = 1000 + i;
+		Arrays.sort( fragments );
+
+		long numEntries = 0;
+		for ( final LabelMultisetType t : img )
+			numEntries += t.numEntries();
+		System.out.println( String.format( "%d pixels, %.1f entries per pixel", img.size(), ( double ) numEntries / img.size() ) );
+
+		for ( int i = 0; i < iterations; ++i )
+		{
+			System.out.println( "iteration " + i );
+			compare( "blend", img,
+					t -> blendEntrySet( t ),
+					t -> LabelMultisetARGBCache.blend( t, argbStream ) );
+			compare( "most counts", img,
+					t -> labelWithMostCountsEntrySet( t ),
+					t -> LabelMultisetFill.getLabelWithMostCounts( t ) );
+			compare( "contains any", img,
+					t -> containsAnyEntrySet( t, fragments ) ? 1 : 0,
+					t -> t.containsAny( fragments ) ? 1 : 0 );
+			compare( "forEachEntry", img,
+					t -> sumEntrySet( t ),
+					t -> sumForEachEntry( t ) );
+			compareMerge( img );
+		}
+	}
+
+	/**
+	 * {@link LabelMultisetARGBCache#blend(LabelMultisetType, ARGBStream)}
+	 * through {@link LabelMultisetType#entrySet()}.
+	 */
+	private static int blendEntrySet( final LabelMultisetType labels )
+	{
+		double a = 0;
+		double r = 0;
+		double g = 0;
+		double b = 0;
+		double alphaCountSize = 0;
+		for ( final Entry< Label > entry : labels.entrySet() )
+		{
+			final int argb = argbStream.argb( entry.getElement().id() );
+			final double alpha = ARGBType.alpha( argb );
+			final double alphaCount = alpha * ( 1.0 / 255.0 ) * entry.getCount();
+			a += alphaCount * alpha;
+			r += alphaCount * ARGBType.red( argb );
+			g += alphaCount * ARGBType.green( argb );
+			b += alphaCount * ARGBType.blue( argb );
+			alphaCountSize += alphaCount;
+		}
+		final double iAlphaCountSize = 1.0 / alphaCountSize;
+		final int aInt = Math.min( 255, ( int )( a * iAlphaCountSize ) );
+		final int rInt = Math.min( 255, ( int )( r * iAlphaCountSize ) );
+		final int gInt = Math.min( 255, ( int )( g * iAlphaCountSize ) );
+		final int bInt = Math.min( 255, ( int )( b * iAlphaCountSize ) );
+		return ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt;
+	}
+
+	private static long labelWithMostCountsEntrySet( final LabelMultisetType labels )
+	{
+		long seedLabel = -1;
+		long seedCount = -1;
+		for ( final Entry< Label > e : labels.entrySet() )
+		{
+			final int count = e.getCount();
+			if ( count > seedCount )
+			{
+				seedLabel = e.getElement().id();
+				seedCount = count;
+			}
+		}
+		return seedLabel;
+	}
+
+	private static boolean containsAnyEntrySet( final LabelMultisetType labels, final long[] sortedIds )
+	{
+		for ( final Entry< Label > e : labels.entrySet() )
+			if ( Arrays.binarySearch( sortedIds, e.getElement().id() ) >= 0 )
+				return true;
+		return false;
+	}
+
+	private static long sumEntrySet( final LabelMultisetType labels )
+	{
+		long sum = 0;
+		for ( final Entry< Label > e : labels.entrySet() )
+			sum += e.getElement().id() * e.getCount();
+		return sum;
+	}
+
+	private static long sumForEachEntry( final LabelMultisetType labels )
+	{
+		final long[] sum = new long[ 1 ];
+		labels.forEachEntry( ( id, count ) -> sum[ 0 ] += id * count );
+		return sum[ 0 ];
+	}
+
+	private static long nanosPerPixel( final ArrayImg< LabelMultisetType, ? > img, final PixelOp op, final long[] result )
+	{
+		long t = Long.MAX_VALUE;
+		for ( int k = 0; k < 5; ++k )
+		{
+			final Cursor< LabelMultisetType > c = img.cursor();
+			long sum = 0;
+			final long t0 = System.nanoTime();
+			while ( c.hasNext() )
+				sum += op.apply( c.next() );
+			t = Math.min( t, System.nanoTime() - t0 );
+			result[ 0 ] = sum;
+		}
+		return t;
+	}
+
+	private static void compare(
+			final String name,
+			final ArrayImg< LabelMultisetType, ? > img,
+			final PixelOp before,
+			final PixelOp after )
+	{
+		final long[] resultBefore = new long[ 1 ];
+		final long[] resultAfter = new long[ 1 ];
+		final long tBefore = nanosPerPixel( img, before, resultBefore );
+		final long tAfter = nanosPerPixel( img, after, resultAfter );
+		print( name, img.size(), tBefore, tAfter, resultBefore[ 0 ] == resultAfter[ 0 ] );
+	}
+
+	/**
+	 * Merge all pixels of each row into one list, once from the
+	 * {@link LabelMultisetType#entrySet()} and once from the list itself.
+	 */
+	private static void compareMerge( final ArrayImg< LabelMultisetType, ? > img )
+	{
+		final long rowLength = img.dimension( 0 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( 16 );
+
+		long tBefore = Long.MAX_VALUE;
+		long tAfter = Long.MAX_VALUE;
+		int sizeBefore = 0;
+		int sizeAfter = 0;
+		for ( int k = 0; k < 5; ++k )
+		{
+			long t0 = System.nanoTime();
+			Cursor< LabelMultisetType > c = img.cursor();
+			for ( long i = 0; c.hasNext(); ++i )
+			{
+				if ( i % rowLength == 0 )
+				{
+					sizeBefore += list.size();
+					list.clear();
+				}
+				list.mergeWith( c.next().entrySet() );
+			}
+			tBefore = Math.min( tBefore, System.nanoTime() - t0 );
+
+			t0 = System.nanoTime();
+			c = img.cursor();
+			for ( long i = 0; c.hasNext(); ++i )
+			{
+				if ( i % rowLength == 0 )
+				{
+					sizeAfter += list.size();
+					list.clear();
+				}
+				list.mergeWith( c.next() );
+			}
+			tAfter = Math.min( tAfter, System.nanoTime() - t0 );
+		}
+		print( "merge", img.size(), tBefore, tAfter, sizeBefore == sizeAfter );
+	}
+
+	private static void print( final String name, final long numPixels, final long tBefore, final long tAfter, final boolean same )
+	{
+		System.out.println( String.format(
+				"  %-14s entrySet %6.2f ns/pixel, primitive %6.2f ns/pixel (%4.1fx)%s",
+				name,
+				( double ) tBefore / numPixels,
+				( double ) tAfter / numPixels,
+				( double ) tBefore / tAfter,
+				same ? "" : ", RESULTS DIFFER" ) );
+	}
+}
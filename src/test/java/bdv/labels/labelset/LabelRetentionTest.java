@@ -0,0 +1,80 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImg;
+
+public class LabelRetentionTest
+{
+	private static LabelMultisetEntryList list( final long... idsAndCounts )
+	{
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( 1 );
+		for ( int i = 0; i < idsAndCounts.length; i += 2 )
+			list.add( new LabelMultisetEntry( idsAndCounts[ i ], ( int ) idsAndCounts[ i + 1 ] ) );
+		return list;
+	}
+
+	private static void assertList( final LabelMultisetEntryList list, final long... idsAndCounts )
+	{
+		assertEquals( idsAndCounts.length / 2, list.size() );
+		for ( int i = 0; i < idsAndCounts.length; i += 2 )
+		{
+			assertEquals( idsAndCounts[ i ], list.getId( i / 2 ) );
+			assertEquals( idsAndCounts[ i + 1 ], list.getCount( i / 2 ) );
+		}
+	}
+
+	@Test
+	public void testTopK()
+	{
+		final LabelMultisetEntryList list = list( 1, 5, 2, 1, 3, 7, 4, 5, 5, 2 );
+		LabelRetention.topK( 2, false ).apply( list );
+		assertList( list, 1, 5, 3, 7 );
+
+		final LabelMultisetEntryList aggregated = list( 1, 5, 2, 1, 3, 7, 4, 5, 5, 2 );
+		LabelRetention.topK( 2, true ).apply( aggregated );
+		assertList( aggregated, Label.OTHER, 8, 1, 5, 3, 7 );
+
+		final LabelMultisetEntryList small = list( 1, 5, 2, 1 );
+		LabelRetention.topK( 2, true ).apply( small );
+		assertList( small, 1, 5, 2, 1 );
+	}
+
+	@Test
+	public void testMinCountFraction()
+	{
+		final LabelMultisetEntryList list = list( 1, 5, 2, 1, 3, 7, 4, 5, 5, 2 );
+		LabelRetention.minCountFraction( 0.3, true ).apply( list );
+		assertList( list, Label.OTHER, 13, 3, 7 );
+
+		/* the label with the largest count is always kept */
+		final LabelMultisetEntryList even = list( 1, 1, 2, 1, 3, 1 );
+		LabelRetention.minCountFraction( 0.9, false ).apply( even );
+		assertList( even, 1, 1, 2, 1, 3, 1 );
+	}
+
+	@Test
+	public void testDownscale()
+	{
+		final int size = 32;
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input = SyntheticLabels.img(
+				SyntheticLabels.singletonLists( SyntheticLabels.fragmentedIds( size * size * size, 1000, 42 ) ),
+				size, size, size );
+		final long[] factors = new long[] { 4, 4, 4 };
+		final long[] dimensions = new long[] { 8, 8, 8 };
+		final VolatileLabelMultisetArray lossless = Downscale.downscale( input, factors, dimensions, new long[ 3 ] );
+		final VolatileLabelMultisetArray lossy = Downscale.downscale( input, factors, dimensions, new long[ 3 ], LabelRetention.topK( 4, true ) );
+
+		assertTrue( lossy.getListDataUsedSizeInBytes() < lossless.getListDataUsedSizeInBytes() );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		for ( int i = 0; i < 8 * 8 * 8; ++i )
+		{
+			lossy.getValue( i, list );
+			assertTrue( list.size() <= 5 );
+			assertEquals( 4 * 4 * 4, list.multisetSize() );
+		}
+	}
+}
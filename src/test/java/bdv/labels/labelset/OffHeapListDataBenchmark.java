@@ -0,0 +1,129 @@
+package bdv.labels.labelset;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.img.array.ArrayImg;
+
+/**
+ * GC pressure of downscaled label multiset blocks with list data on the heap
+ * ({@link LongMappedAccessData}) and off the heap
+ * ({@link DirectLongMappedAccessData}).
+ *
+ * Replays a navigation over a synthetic label volume: the viewer pans back
+ * and forth across the volume in slices, every visited block of the
+ * downscaled level is computed if it is not in an LRU cache of recently
+ * visited blocks, as the BDV cache would.  Reports time, the number of
+ * collections and time spent in them, and the heap in use after a full
+ * collection with the cache still populated.
+ *
+ * Usage: {@code OffHeapListDataBenchmark [size [blocksize [cachedBlocks [iterations]]]]}
+ */
+public class OffHeapListDataBenchmark
+{
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 128;
+		final int blocksize = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 16;
+		final int cachedBlocks = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 64;
+		final int iterations = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 3;
+
+		final int[] factors = new int[] { 4, 4, 4 };
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input = SyntheticLabels.img(
+				SyntheticLabels.singletonLists( SyntheticLabels.runIds( size * size * size, 4, 1000, 42 ) ),
+				size, size, size );
+		final ArrayList< long[] > path = navigation( size / factors[ 0 ] / blocksize );
+
+		for ( int i = 0; i < iterations; ++i )
+		{
+			replay( "heap", input, factors, blocksize, cachedBlocks, path, LongMappedAccessData.factory );
+			replay( "direct", input, factors, blocksize, cachedBlocks, path, DirectLongMappedAccessData.factory );
+		}
+	}
+
+	/**
+	 * Block positions visited when panning through all z slices of
+	 * {@code numBlocks}^3 blocks, back and forth along x in each row, and
+	 * revisiting the previous slice before moving on.
+	 */
+	private static ArrayList< long[] > navigation( final int numBlocks )
+	{
+		final ArrayList< long[] > path = new ArrayList<>();
+		for ( int z = 0; z < numBlocks; ++z )
+			for ( final int zz : z == 0 ? new int[] { 0 } : new int[] { z, z - 1, z } )
+				for ( int y = 0; y < numBlocks; ++y )
+					for ( int i = 0; i < numBlocks; ++i )
+						path.add( new long[] { y % 2 == 0 ? i : numBlocks - 1 - i, y, zz } );
+		return path;
+	}
+
+	private static long[] gcCountAndMillis()
+	{
+		final long[] countAndMillis = new long[ 2 ];
+		for ( final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+		{
+			countAndMillis[ 0 ] += Math.max( 0, gc.getCollectionCount() );
+			countAndMillis[ 1 ] += Math.max( 0, gc.getCollectionTime() );
+		}
+		return countAndMillis;
+	}
+
+	private static void replay(
+			final String name,
+			final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input,
+			final int[] factors,
+			final int blocksize,
+			final int cachedBlocks,
+			final ArrayList< long[] > path,
+			final MappedAccessData.Factory< ? extends MappedAccessData< LongMappedAccess >, LongMappedAccess > listDataFactory )
+	{
+		System.gc();
+		final LinkedHashMap< String, VolatileLabelMultisetArray > cache = new LinkedHashMap< String, VolatileLabelMultisetArray >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, VolatileLabelMultisetArray > eldest )
+			{
+				return size() > cachedBlocks;
+			}
+		};
+
+		final int[] dimensions = new int[] { blocksize, blocksize, blocksize };
+		final long[] gc0 = gcCountAndMillis();
+		final long t0 = System.nanoTime();
+		int numLoaded = 0;
+		long listBytes = 0;
+		for ( final long[] block : path )
+		{
+			final String key = block[ 0 ] + "/" + block[ 1 ] + "/" + block[ 2 ];
+			if ( cache.get( key ) == null )
+			{
+				final long[] min = new long[] { block[ 0 ] * blocksize, block[ 1 ] * blocksize, block[ 2 ] * blocksize };
+				final VolatileLabelMultisetArray array = DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale( input, factors, dimensions, min, listDataFactory );
+				cache.put( key, array );
+				listBytes += array.getListDataUsedSizeInBytes();
+				++numLoaded;
+			}
+		}
+		final long t = System.nanoTime() - t0;
+		final long[] gc1 = gcCountAndMillis();
+
+		System.gc();
+		final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		System.out.println( String.format(
+				"%-6s %5d blocks (%6.1f MB lists) in %7.1f ms, %4d GCs in %5d ms, heap used %7.1f MB with %d cached blocks",
+				name,
+				numLoaded,
+				listBytes / 1e6,
+				t / 1e6,
+				gc1[ 0 ] - gc0[ 0 ],
+				gc1[ 1 ] - gc0[ 1 ],
+				heapUsed / 1e6,
+				cache.size() ) );
+	}
+}
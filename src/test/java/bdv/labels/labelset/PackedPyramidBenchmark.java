@@ -0,0 +1,184 @@
+package bdv.labels.labelset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.h5.H5LongLabelMultisetArrayLoader;
+import bdv.img.h5.H5ReaderPool;
+import bdv.labels.labelset.DownscaleToHdf5.H5PackedPyramidWriter;
+import bdv.labels.labelset.DownscaleToHdf5.H5PyramidWriter;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+
+/**
+ * Writes the pyramid of a synthetic label volume in the two dataset per block
+ * layout and in the packed layout of {@link H5PackedPyramidWriter}, checks
+ * that both load the same blocks, and compares file size, open time (open
+ * the file and read the level metadata), and per block load latency through
+ * {@link H5LongLabelMultisetArrayLoader}.
+ *
+ * Usage: {@code PackedPyramidBenchmark [size [blocksize [iterations]]]}
+ */
+public class PackedPyramidBenchmark
+{
+	public static void main( final String[] args ) throws IOException, InterruptedException, ExecutionException
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 256;
+		final int blocksize = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 8;
+		final int iterations = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 3;
+
+		final long[] dimensions = new long[] { size, size, size };
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo(
+				new int[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 4, 4, 4 }, { 8, 8, 8 } },
+				new int[][] { { 64, 64, 64 }, { blocksize, blocksize, blocksize }, { blocksize, blocksize, blocksize }, { blocksize, blocksize, blocksize } } );
+		final LabelMultisetPyramidBuilder builder = new LabelMultisetPyramidBuilder(
+				SyntheticLabels.img(
+						SyntheticLabels.singletonLists( SyntheticLabels.runIds( size * size * size, 16, 1 << 16, 42 ) ),
+						dimensions ),
+				mipmapInfo,
+				Runtime.getRuntime().availableProcessors() );
+
+		final File blocksFile = File.createTempFile( "bigcat-pyramid-blocks", ".h5" );
+		final File packedFile = File.createTempFile( "bigcat-pyramid-packed", ".h5" );
+		blocksFile.delete();
+		packedFile.delete();
+		try
+		{
+			IHDF5Writer writer = HDF5Factory.open( blocksFile );
+			long t = System.currentTimeMillis();
+			builder.build( new H5PyramidWriter( writer ) );
+			writer.close();
+			System.out.println( String.format( "blocks: written in %d ms, %.1f MB", System.currentTimeMillis() - t, blocksFile.length() / 1e6 ) );
+
+			writer = HDF5Factory.open( packedFile );
+			t = System.currentTimeMillis();
+			final H5PackedPyramidWriter packedWriter = new H5PackedPyramidWriter( writer );
+			builder.build( packedWriter );
+			packedWriter.writeIndex();
+			writer.close();
+			System.out.println( String.format( "packed: written in %d ms, %.1f MB", System.currentTimeMillis() - t, packedFile.length() / 1e6 ) );
+
+			compare( blocksFile, packedFile );
+
+			for ( int i = 0; i < iterations; ++i )
+				System.out.println( String.format(
+						"blocks: open %8.2f ms, %8.3f ms/block    packed: open %8.2f ms, %8.3f ms/block",
+						openMillis( blocksFile ),
+						loadMillisPerBlock( blocksFile ),
+						openMillis( packedFile ),
+						loadMillisPerBlock( packedFile ) ) );
+		}
+		finally
+		{
+			blocksFile.delete();
+			packedFile.delete();
+		}
+	}
+
+	interface BlockConsumer
+	{
+		public void accept( int level, int[] dimensions, long[] min );
+	}
+
+	private static void forEachBlock( final IHDF5Reader reader, final BlockConsumer consumer )
+	{
+		final int numLevels = reader.uint32().read( "levels" );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final long[] dimensions = reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+			final long[] blocksize = reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+			final int n = dimensions.length;
+			final long[] maxCell = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				maxCell[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ];
+			final LocalizingIntervalIterator i = new LocalizingIntervalIterator( new long[ n ], maxCell );
+			while ( i.hasNext() )
+			{
+				i.fwd();
+				final long[] min = new long[ n ];
+				final int[] cellDimensions = new int[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = i.getLongPosition( d ) * blocksize[ d ];
+					cellDimensions[ d ] = ( int ) Math.min( blocksize[ d ], dimensions[ d ] - min[ d ] );
+				}
+				consumer.accept( level, cellDimensions, min );
+			}
+		}
+	}
+
+	private static H5LongLabelMultisetArrayLoader loader( final IHDF5Reader reader )
+	{
+		return new H5LongLabelMultisetArrayLoader( ( H5ReaderPool ) null, H5ReaderPool.wrap( reader ), "" );
+	}
+
+	private static void compare( final File blocksFile, final File packedFile )
+	{
+		final IHDF5Reader blocksReader = HDF5Factory.openForReading( blocksFile );
+		final IHDF5Reader packedReader = HDF5Factory.openForReading( packedFile );
+		final H5LongLabelMultisetArrayLoader blocksLoader = loader( blocksReader );
+		final H5LongLabelMultisetArrayLoader packedLoader = loader( packedReader );
+		forEachBlock( blocksReader, ( level, dimensions, min ) -> {
+			try
+			{
+				final VolatileLabelMultisetArray a = blocksLoader.loadArray( 0, 0, level, dimensions, min );
+				final VolatileLabelMultisetArray b = packedLoader.loadArray( 0, 0, level, dimensions, min );
+				final LongMappedAccess accessA = a.getListData().createAccess();
+				final LongMappedAccess accessB = b.getListData().createAccess();
+				boolean equal = Arrays.equals( a.getCurrentStorageArray(), b.getCurrentStorageArray() );
+				for ( int i = 0; equal && i < b.getListDataUsedSizeInBytes(); i += 4 )
+					equal = accessA.getInt( i ) == accessB.getInt( i );
+				if ( !equal )
+					throw new AssertionError( "blocks differ at level " + level + ", min = " + Arrays.toString( min ) );
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+		} );
+		blocksReader.close();
+		packedReader.close();
+	}
+
+	private static double openMillis( final File file )
+	{
+		final long t = System.nanoTime();
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		final int numLevels = reader.uint32().read( "levels" );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+			reader.uint64().readArray( String.format( "l%02d/factors", level ) );
+			reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+		}
+		reader.close();
+		return ( System.nanoTime() - t ) / 1e6;
+	}
+
+	private static double loadMillisPerBlock( final File file )
+	{
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		final H5LongLabelMultisetArrayLoader loader = loader( reader );
+		final long[] numBlocks = new long[ 1 ];
+		final long t = System.nanoTime();
+		forEachBlock( reader, ( level, dimensions, min ) -> {
+			try
+			{
+				loader.loadArray( 0, 0, level, dimensions, min );
+				++numBlocks[ 0 ];
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+		} );
+		final double millis = ( System.nanoTime() - t ) / 1e6;
+		reader.close();
+		return millis / numBlocks[ 0 ];
+	}
+}
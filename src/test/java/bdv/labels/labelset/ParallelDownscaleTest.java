@@ -0,0 +1,65 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImg;
+
+public class ParallelDownscaleTest
+{
+	private static final int size = 64;
+
+	private static final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input = SyntheticLabels.img(
+			SyntheticLabels.singletonLists( SyntheticLabels.runIds( size * size * size, 3, 200, 42 ) ),
+			size, size, size );
+
+	/**
+	 * Offsets and used list data must be the same byte for byte.
+	 */
+	private static void assertIdentical( final VolatileLabelMultisetArray expected, final VolatileLabelMultisetArray actual )
+	{
+		assertArrayEquals( expected.getCurrentStorageArray(), actual.getCurrentStorageArray() );
+		assertEquals( expected.getListDataUsedSizeInBytes(), actual.getListDataUsedSizeInBytes() );
+		final LongMappedAccess expectedAccess = expected.getListData().createAccess();
+		final LongMappedAccess actualAccess = actual.getListData().createAccess();
+		for ( int i = 0; i < expected.getListDataUsedSizeInBytes(); ++i )
+			assertEquals( expectedAccess.getByte( i ), actualAccess.getByte( i ) );
+	}
+
+	@Test
+	public void testDownscale()
+	{
+		final long[] factors = new long[] { 4, 4, 2 };
+		final long[] dimensions = new long[] { 8, 8, 13 };
+		final long[] min = new long[] { 1, 2, 3 };
+		final VolatileLabelMultisetArray serial = Downscale.downscale( input, factors, dimensions, min );
+		for ( final int parallelism : new int[] { 1, 2, 3, 7, 32 } )
+		{
+			final ForkJoinPool pool = new ForkJoinPool( parallelism );
+			assertIdentical( serial, Downscale.downscale( input, factors, dimensions, min, pool ) );
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testDownscalingLoader()
+	{
+		final int[] factors = new int[] { 2, 2, 2 };
+		final int[] dimensions = new int[] { 16, 16, 16 };
+		final long[] min = new long[] { 16, 0, 16 };
+		final VolatileLabelMultisetArray serial = DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale( input, factors, dimensions, min );
+		for ( final int parallelism : new int[] { 1, 3, 4 } )
+		{
+			final ForkJoinPool pool = new ForkJoinPool( parallelism );
+			assertIdentical( serial, DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale(
+					input, factors, dimensions, min, LongMappedAccessData.factory, LabelRetention.ALL, pool ) );
+			assertIdentical( serial, DownscalingVolatileSuperVoxelMultisetArrayLoader.downscale(
+					input, factors, dimensions, min, DirectLongMappedAccessData.factory, LabelRetention.ALL, pool ) );
+			pool.shutdown();
+		}
+	}
+}
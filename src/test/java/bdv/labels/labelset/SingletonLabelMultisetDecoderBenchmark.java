@@ -0,0 +1,149 @@
+package bdv.labels.labelset;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Decode throughput of {@link SingletonLabelMultisetDecoder} per source format
+ * (uint64 {@code long[]}, uint32 {@code int[]}, uint16 {@code short[]}, uint8
+ * {@code byte[]}, uint64 {@link ByteBuffer}, uint64 little-endian
+ * {@link java.io.InputStream}) on synthetic blocks with an increasing number
+ * of distinct labels.  The streamed uint64 decode is compared against the
+ * linear scan decoder that the DVID and KNOSSOS loaders used before, and all
+ * formats are checked to produce the same list offsets.
+ *
+ * Usage: {@code SingletonLabelMultisetDecoderBenchmark [blockSize [iterations]]}
+ */
+public class SingletonLabelMultisetDecoderBenchmark
+{
+	interface Decode
+	{
+		public VolatileLabelMultisetArray run() throws IOException;
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 64;
+		final int iterations = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+		final int n = size * size * size;
+
+		for ( final int numIds : new int[]{ 1, 16, 255, 4096 } )
+		{
+			final long[] longs = block( n, numIds, new Random( 42 ) );
+			final int[] ints = new int[ n ];
+			final short[] shorts = new short[ n ];
+			final byte[] bytes = new byte[ n ];
+			final ByteBuffer buffer = ByteBuffer.allocate( n * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+			for ( int i = 0; i < n; ++i )
+			{
+				ints[ i ] = ( int )longs[ i ];
+				shorts[ i ] = ( short )longs[ i ];
+				bytes[ i ] = ( byte )longs[ i ];
+				buffer.putLong( longs[ i ] );
+			}
+			buffer.flip();
+			final byte[] stream = buffer.array();
+
+			final int[] expected = new int[ n ];
+			decodeLinear( stream, expected, LongMappedAccessData.factory.createStorage( 32 ) );
+
+			System.out.println( String.format( "%d^3 voxels, %d ids", size, numIds ) );
+			final boolean narrow = numIds < 256;
+			measure( "linear scan uint64 stream", n, iterations, null, () -> {
+				final int[] data = new int[ n ];
+				decodeLinear( stream, data, LongMappedAccessData.factory.createStorage( 32 ) );
+				return new VolatileLabelMultisetArray( data, LongMappedAccessData.factory.createStorage( 32 ), true );
+			} );
+			measure( "uint64 long[]", n, iterations, expected, () -> SingletonLabelMultisetDecoder.decode( longs ) );
+			measure( "uint32 int[]", n, iterations, expected, () -> SingletonLabelMultisetDecoder.decode( ints ) );
+			measure( "uint16 short[]", n, iterations, expected, () -> SingletonLabelMultisetDecoder.decode( shorts ) );
+			measure( "uint8 byte[]", n, iterations, narrow ? expected : null, () -> SingletonLabelMultisetDecoder.decode( bytes ) );
+			measure( "uint64 ByteBuffer", n, iterations, expected, () -> SingletonLabelMultisetDecoder.decode( buffer, 8 ) );
+			measure( "uint64 InputStream", n, iterations, expected, () -> SingletonLabelMultisetDecoder.decode( new ByteArrayInputStream( stream ), 8, n ) );
+		}
+	}
+
+	private static void measure( final String name, final int n, final int iterations, final int[] expected, final Decode decode ) throws IOException
+	{
+		final VolatileLabelMultisetArray array = decode.run();
+		if ( expected != null )
+		{
+			final int[] actual = array.getCurrentStorageArray();
+			for ( int i = 0; i < n; ++i )
+				if ( expected[ i ] != actual[ i ] )
+					throw new AssertionError( name + ": offsets differ at " + i );
+		}
+
+		long t = Long.MAX_VALUE;
+		for ( int k = 0; k < iterations; ++k )
+		{
+			final long t0 = System.nanoTime();
+			decode.run();
+			t = Math.min( t, System.nanoTime() - t0 );
+		}
+		System.out.println( String.format( "  %-28s %8.2f ms %10.1f Mvoxels/s", name, t / 1e6, n / ( t / 1e3 ) ) );
+	}
+
+	/**
+	 * Runs of random labels from {@code numIds} distinct labels.  They survive
+	 * narrowing to 16 bits, and to 8 bits if there are fewer than 256.
+	 */
+	private static long[] block( final int n, final int numIds, final Random rnd )
+	{
+		final long[] data = new long[ n ];
+		long id = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( rnd.nextInt( 8 ) == 0 )
+				id = rnd.nextInt( numIds );
+			data[ i ] = id;
+		}
+		return data;
+	}
+
+	/**
+	 * The decoder used by the DVID and KNOSSOS loaders before
+	 * {@link SingletonLabelMultisetDecoder}.
+	 */
+	private static void decodeLinear( final byte[] bytes, final int[] data, final LongMappedAccessData listData )
+	{
+		final TLongArrayList idAndOffsetList = new TLongArrayList();
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		long nextListOffset = 0;
+A:		for ( int i = 0, j = -1; i < data.length; ++i )
+		{
+			final long id =
+					( 0xffl & bytes[ ++j ] ) |
+					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
+					( ( 0xffl & bytes[ ++j ] ) << 56 );
+
+			for ( int k = 0; k < idAndOffsetList.size(); k += 2 )
+			{
+				if ( idAndOffsetList.getQuick( k ) == id )
+				{
+					data[ i ] = ( int ) idAndOffsetList.getQuick( k + 1 );
+					continue A;
+				}
+			}
+
+			list.createListAt( listData, nextListOffset );
+			entry.setId( id );
+			list.add( entry );
+			idAndOffsetList.add( id );
+			idAndOffsetList.add( nextListOffset );
+			data[ i ] = ( int ) nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+
+/**
+ * Synthetic label blocks for benchmarks.
+ */
+public class SyntheticLabels
+{
+	/**
+	 * Random ids in {@code [0, numIds)}, every voxel drawn independently. With
+	 * a large {@code numIds} this is the worst case for list deduplication.
+	 */
+	public static long[] fragmentedIds( final int numElements, final int numIds, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final long[] ids = new long[ numElements ];
+		for ( int i = 0; i < numElements; ++i )
+			ids[ i ] = rnd.nextInt( numIds );
+		return ids;
+	}
+
+	/**
+	 * Ids that are constant along runs of {@code runLength} voxels (in
+	 * flattened order), similar to real segmentations with large bodies.
+	 */
+	public static long[] runIds( final int numElements, final int runLength, final int numIds, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final long[] ids = new long[ numElements ];
+		long id = 0;
+		for ( int i = 0; i < numElements; ++i )
+		{
+			if ( i % runLength == 0 )
+				id = rnd.nextInt( numIds );
+			ids[ i ] = id;
+		}
+		return ids;
+	}
+
+	/**
+	 * Create a {@link VolatileLabelMultisetArray} with a singleton list
+	 * {@code [id x 1]} per voxel.
+	 */
+	public static VolatileLabelMultisetArray singletonLists( final long[] ids )
+	{
+		final int[] offsets = new int[ ids.length ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final TLongIntHashMap idOffsetHash = new TLongIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+		int nextListOffset = 0;
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			final long id = ids[ i ];
+			final int offset = idOffsetHash.get( id );
+			if ( offset == idOffsetHash.getNoEntryValue() )
+			{
+				list.createListAt( listData, nextListOffset );
+				entry.setId( id );
+				list.add( entry );
+				offsets[ i ] = nextListOffset;
+				idOffsetHash.put( id, nextListOffset );
+				nextListOffset += list.getSizeInBytes();
+			}
+			else
+				offsets[ i ] = offset;
+		}
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true );
+	}
+
+	/**
+	 * Wrap a {@link VolatileLabelMultisetArray} as an image.
+	 */
+	public static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img(
+			final VolatileLabelMultisetArray access,
+			final long... dimensions )
+	{
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>( access, dimensions, new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+}
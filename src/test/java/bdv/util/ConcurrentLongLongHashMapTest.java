@@ -0,0 +1,69 @@
+package bdv.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class ConcurrentLongLongHashMapTest
+{
+	@Test
+	public void testPutGet()
+	{
+		final Random rnd = new Random( 0 );
+		final ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap( -1, -1 );
+		final TLongLongHashMap reference = new TLongLongHashMap( 16, 0.5f, -1, -1 );
+		for ( int i = 0; i < 100000; ++i )
+		{
+			final long key = rnd.nextInt( 50000 ) - 2;
+			final long value = rnd.nextLong();
+			Assert.assertEquals( reference.put( key, value ), map.put( key, value ) );
+		}
+
+		Assert.assertEquals( reference.size(), map.size() );
+		for ( long key = -2; key < 50000; ++key )
+		{
+			Assert.assertEquals( reference.containsKey( key ), map.containsKey( key ) );
+			Assert.assertEquals( reference.get( key ), map.get( key ) );
+		}
+		Assert.assertEquals( reference, map.toTLongLongHashMap() );
+
+		map.clear();
+		Assert.assertTrue( map.isEmpty() );
+		Assert.assertEquals( -1, map.get( 0 ) );
+
+		map.replaceAll( reference );
+		Assert.assertEquals( reference, map.toTLongLongHashMap() );
+	}
+
+	@Test
+	public void testConcurrentReads() throws InterruptedException
+	{
+		final int n = 1 << 16;
+		final ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap( -1, -1 );
+		final boolean[] failed = new boolean[ 1 ];
+		final Thread reader = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for ( int round = 0; round < 16; ++round )
+					for ( long key = 0; key < n; ++key )
+					{
+						final long value = map.get( key );
+						if ( value != -1 && value != 2 * key )
+							failed[ 0 ] = true;
+					}
+			}
+		} );
+		reader.start();
+		for ( long key = 0; key < n; ++key )
+			map.put( key, 2 * key );
+		reader.join();
+
+		Assert.assertFalse( failed[ 0 ] );
+		Assert.assertEquals( n, map.size() );
+	}
+}